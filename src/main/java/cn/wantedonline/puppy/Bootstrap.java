@@ -26,10 +26,9 @@ import cn.wantedonline.puppy.util.*;
 import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
 import cn.wantedonline.puppy.util.concurrent.ConcurrentUtil;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 import io.netty.util.internal.logging.Slf4JLoggerFactory;
 import org.slf4j.Logger;
@@ -43,6 +42,8 @@ import java.lang.management.ManagementFactory;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -70,11 +71,13 @@ public class Bootstrap {
     private Runnable shutdownRunnable;
 
     private ChannelFuture serverChannelFuture;
+    private final List<Channel> serverChannels = new ArrayList<Channel>(1); //所有绑定成功的监听Channel，SO_REUSEPORT时有多个
 
     private String serverStartTime = "";
     private String serverStatus = "";
 
     private volatile boolean stopping = false;
+    private final AtomicBoolean sessionsSaved = new AtomicBoolean(false);
 
     @Config
     private long bindRetryTimeout = 60000; //端口绑定超时时间，默认60s
@@ -97,12 +100,13 @@ public class Bootstrap {
      */
     private ServerBootstrap initHttpServerBootstrap() {
         EventLoopGroup bossGroup = httpServerConfig.getBossEventLoopGroup();
-        NioEventLoopGroup workerGroup = httpServerConfig.getWorkerEventLoopGroup();
+        EventLoopGroup workerGroup = httpServerConfig.getWorkerEventLoopGroup();
         nioWorkerStat.registerWorkers(workerGroup);
         ServerBootstrap serverBootstrap = new ServerBootstrap();
         serverBootstrap.group(bossGroup,workerGroup)
-                       .channel(NioServerSocketChannel.class)
+                       .channel(httpServerConfig.getServerChannelClass())
                        .childHandler(httpServerConfig.getHttpServerHandler());
+        httpServerConfig.initChannelOptions(serverBootstrap);
         return serverBootstrap;
     }
 
@@ -123,6 +127,8 @@ public class Bootstrap {
         } catch (Throwable t) {//读取统计错误时不应该直接退出启动，只要打印错误信息就好了
             log.error("read statistic data error, error info{}", t);
         }
+        //恢复上次停机时保存的Session
+        loadSessions();
         System.out.println("------------------------------> 系统组件准备完毕，耗时：" + (System.currentTimeMillis() - begin) + "MS");
     }
 
@@ -145,6 +151,11 @@ public class Bootstrap {
                         lastPrintTime = thisPrintTime;
                     }
                     serverChannelFuture = b.bind(new InetSocketAddress(port)).sync();
+                    serverChannels.add(serverChannelFuture.channel());
+                    //SO_REUSEPORT模式下每个Boss线程各绑定一个监听Channel
+                    for (int i = 1; i < httpServerConfig.getBindTimes(); i++) {
+                        serverChannels.add(b.bind(new InetSocketAddress(port)).sync().channel());
+                    }
                     long endBind = System.currentTimeMillis();
                     long rb = retryBind.get();
 
@@ -154,6 +165,8 @@ public class Bootstrap {
                     System.out.println("------------------------------> 端口绑定成功[port:" + port + "]耗时： " + (endBind - beginBind) + "MS");
                     binded = true;
                 } catch (final Exception e) {
+                    //中途绑定失败时关掉已经绑定的Channel，重试时重新全部绑定
+                    closeServerChannels();
                     if (System.currentTimeMillis() - beginBind > bindRetryTimeout) {
                         throw e;
                     }
@@ -305,6 +318,38 @@ public class Bootstrap {
         return 0;
     }
 
+    private void loadSessions() {
+        if (AssertUtil.isNull(HttpServerConfig.sessionManager)) {
+            return;
+        }
+        try {
+            HttpServerConfig.sessionManager.load();
+        } catch (Throwable t) {//Session恢复失败不影响启动
+            log.error("load sessions error", t);
+        }
+        //没有走shutdown命令(如kill)停机时也要保存Session
+        Runtime.getRuntime().addShutdownHook(new Thread("SessionSaver") {
+            @Override
+            public void run() {
+                saveSessions();
+            }
+        });
+    }
+
+    /**
+     * 保存Session，shutdown命令和JVM退出钩子都会调用，只执行一次
+     */
+    private void saveSessions() {
+        if (AssertUtil.isNull(HttpServerConfig.sessionManager) || !sessionsSaved.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            HttpServerConfig.sessionManager.unload();
+        } catch (Throwable t) {
+            log.error("save sessions error", t);
+        }
+    }
+
     public void stopServer() {
         if (AssertUtil.isNull(serverChannelFuture) || !serverChannelFuture.isSuccess()) {
             System.out.println("------------------------------> 服务器未启动或启动失败，停止服务器无效...");
@@ -316,10 +361,11 @@ public class Bootstrap {
             System.out.println("------------------------------> 服务器准备关闭，资源清理完毕，耗时: " + (System.currentTimeMillis() - begin) + "MS");
         }
         try {
-            serverChannelFuture.channel().closeFuture();
+            closeServerChannels();
             httpServerConfig.stopEventLoopGroup();
-            //将统计数据写入文件
-            statisticManager.writeStatisticData();
+            saveSessions();
+            //统计快照已随打点写入文件，这里只刷盘关闭
+            statisticManager.closeStatisticData();
             Thread.currentThread().sleep(1000); //等待其他线程打印完才打印"ByeBye"字符串
         } catch (Throwable e) {
             e.printStackTrace();
@@ -335,6 +381,13 @@ public class Bootstrap {
         System.out.println(ascii_doom);
     }
 
+    private void closeServerChannels() {
+        for (Channel channel : serverChannels) {
+            channel.close().awaitUninterruptibly();
+        }
+        serverChannels.clear();
+    }
+
     public boolean isStopping() {
         return stopping;
     }
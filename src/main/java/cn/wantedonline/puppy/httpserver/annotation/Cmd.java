@@ -34,6 +34,24 @@ import java.lang.annotation.Target;
 @Target(ElementType.METHOD)
 public @interface Cmd {
 
+    /**
+     * 过载时的优先级，并发超过限制时按优先级从低到高拒绝
+     */
+    public enum Priority {
+        /**
+         * 不受并发限制，管理接口(@CmdAdmin)默认是这个级别
+         */
+        CRITICAL,
+        /**
+         * 并发达到限制或拒绝服务时拒绝
+         */
+        NORMAL,
+        /**
+         * 并发接近限制或快要拒绝服务时就开始拒绝
+         */
+        SHEDDABLE,
+    }
+
     /**
      * 接口名称
      */
@@ -43,4 +61,22 @@ public @interface Cmd {
      * 接口使用描述
      */
     String[] desc() default "";
+
+    /**
+     * 是否提交到业务线程池执行，默认在Netty I/O线程上直接执行
+     * 涉及数据库、远程调用等慢操作的接口应设置为true，避免阻塞同一EventLoop上的其他连接
+     */
+    boolean offload() default false;
+
+    /**
+     * 是否以流式方式接收请求体，适用于大文件上传
+     * 为true时请求体不经过聚合，按块交给实现了StreamingCmd的Cmd，或者通过HttpPostRequestDecoder写入磁盘，
+     * 请求体大小受maxUploadSize而不是maxContentLength限制
+     */
+    boolean streaming() default false;
+
+    /**
+     * 过载时的优先级
+     */
+    Priority priority() default Priority.NORMAL;
 }
@@ -16,25 +16,54 @@
 
 package cn.wantedonline.puppy.httpserver.cmd;
 
+import cn.wantedonline.puppy.exception.IllegalParameterError;
+import cn.wantedonline.puppy.exception.ResourceNotFoundError;
 import cn.wantedonline.puppy.httpserver.annotation.Cmd;
 import cn.wantedonline.puppy.httpserver.annotation.CmdDescr;
 import cn.wantedonline.puppy.httpserver.common.BaseCmd;
 import cn.wantedonline.puppy.httpserver.component.HttpRequest;
 import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+import cn.wantedonline.puppy.httpserver.component.StaticFileSender;
 import cn.wantedonline.puppy.spring.annotation.Config;
+import cn.wantedonline.puppy.util.StringTools;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
+import java.net.URLEncoder;
+
 /**
  * Created by louiswang on 17/1/23.
  */
 @Service
 @CmdDescr("下载文件")
 public class DownloadCmd implements BaseCmd {
+    private static final String CONTENT_DISPOSITION = "Content-Disposition";
+
     @Config(resetable = true)
     private String downloadPath = "/download";
 
+    @Autowired
+    private StaticFileSender staticFileSender;
+
+    /**
+     * 下载downloadPath下的文件，支持断点续传和条件请求，文件通过sendfile发送
+     */
     @Cmd("下载文件")
     public Object download(HttpRequest request, HttpResponse response) throws Exception {
-        return "OK";
+        String name = request.getParameter("file");
+        if (StringTools.isEmpty(name)) {
+            throw new IllegalParameterError("file", request, "Parameter");
+        }
+        File root = new File(downloadPath).getCanonicalFile();
+        File file = new File(root, name).getCanonicalFile();
+        //防止通过../访问downloadPath之外的文件
+        if (!file.getPath().startsWith(root.getPath() + File.separator)) {
+            throw ResourceNotFoundError.INSTANCE;
+        }
+        response.setHeaderIfEmpty(CONTENT_DISPOSITION,
+                "attachment; filename*=UTF-8''" + URLEncoder.encode(file.getName(), "UTF-8").replace("+", "%20"));
+        staticFileSender.sendFile(request, response, file);
+        return null;
     }
 }
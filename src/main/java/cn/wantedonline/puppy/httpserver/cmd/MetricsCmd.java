@@ -0,0 +1,95 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.cmd;
+
+import cn.wantedonline.puppy.httpserver.annotation.CmdAdmin;
+import cn.wantedonline.puppy.httpserver.annotation.CmdDescr;
+import cn.wantedonline.puppy.httpserver.common.BaseCmd;
+import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
+import cn.wantedonline.puppy.httpserver.component.AccessLogger;
+import cn.wantedonline.puppy.httpserver.component.HttpRequest;
+import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+import cn.wantedonline.puppy.httpserver.stat.CmdCountStat;
+import cn.wantedonline.puppy.httpserver.stat.CountStat;
+import cn.wantedonline.puppy.httpserver.stat.MetricsWriter;
+import cn.wantedonline.puppy.httpserver.stat.NioWorkerStat;
+import cn.wantedonline.puppy.httpserver.stat.StreamStat;
+import cn.wantedonline.puppy.httpserver.stat.TimeSpanStat;
+import cn.wantedonline.puppy.httpserver.system.SystemMonitor;
+import cn.wantedonline.puppy.util.AssertUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * <pre>
+ *     OpenMetrics(Prometheus)格式的监控指标，供监控系统定时抓取
+ *     按上一次输出的大小预先分配缓冲区，指标直接写入响应的ByteBuf
+ * </pre>
+ *
+ * @author wangcheng
+ */
+@Service
+@CmdDescr("非对外接口:监控指标")
+public class MetricsCmd implements BaseCmd {
+    @Autowired
+    private CountStat countStat;
+    @Autowired
+    private StreamStat streamStat;
+    @Autowired
+    private TimeSpanStat timeSpanStat;
+    @Autowired
+    private CmdCountStat cmdCountStat;
+    @Autowired
+    private NioWorkerStat nioWorkerStat;
+    @Autowired
+    private HttpServerConfig config;
+
+    private volatile int lastSize = 8 * 1024;
+
+    @CmdAdmin
+    public Object process(HttpRequest request, HttpResponse response) throws Exception {
+        ByteBuf buf = response.content();
+        buf.ensureWritable(lastSize + (lastSize >> 3));
+        MetricsWriter writer = new MetricsWriter(buf);
+        countStat.writeMetrics(writer);
+        streamStat.writeMetrics(writer);
+        timeSpanStat.writeMetrics(writer);
+        cmdCountStat.writeMetrics(writer);
+        nioWorkerStat.writeMetrics(writer);
+        SystemMonitor.writeMetrics(writer);
+        config.concurrencyLimiter.writeMetrics(writer);
+        if (AssertUtil.isNotNull(HttpServerConfig.sessionManager)) {
+            HttpServerConfig.sessionManager.writeMetrics(writer);
+        }
+        writeAccessLogMetrics(writer);
+        writer.eof();
+        lastSize = buf.readableBytes();
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, MetricsWriter.CONTENT_TYPE);
+        response.contentWritten();
+        return null;
+    }
+
+    private void writeAccessLogMetrics(MetricsWriter writer) {
+        AccessLogger accessLogger = config.getAccessLogger();
+        writer.family("puppy_access_log_dropped", "counter", "Access log events dropped because the queue was full.");
+        writer.name("puppy_access_log_dropped_total").value(accessLogger.getDroppedEvents());
+        writer.family("puppy_access_log_pending", "gauge", "Access log events waiting for the writer thread.");
+        writer.name("puppy_access_log_pending").value(accessLogger.getPendingEvents());
+    }
+}
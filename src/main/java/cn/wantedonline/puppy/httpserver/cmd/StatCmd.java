@@ -0,0 +1,100 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.cmd;
+
+import cn.wantedonline.puppy.httpserver.annotation.Cmd;
+import cn.wantedonline.puppy.httpserver.annotation.CmdAdmin;
+import cn.wantedonline.puppy.httpserver.annotation.CmdDescr;
+import cn.wantedonline.puppy.httpserver.common.BaseCmd;
+import cn.wantedonline.puppy.httpserver.component.HttpRequest;
+import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+import cn.wantedonline.puppy.httpserver.httptools.JsonUtil;
+import cn.wantedonline.puppy.httpserver.httptools.RtnConstants;
+import cn.wantedonline.puppy.httpserver.stat.CmdCountStat;
+import cn.wantedonline.puppy.httpserver.stat.RequestTracer;
+import cn.wantedonline.puppy.httpserver.stat.SlowRequestSampler;
+import cn.wantedonline.puppy.httpserver.stat.StatisticManager;
+import cn.wantedonline.puppy.util.AssertUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <pre>
+ *     内置统计接口
+ * </pre>
+ *
+ * @author wangcheng
+ */
+@Service
+@CmdDescr("非对外接口:统计信息")
+public class StatCmd implements BaseCmd {
+    @Autowired
+    private CmdCountStat cmdCountStat;
+    @Autowired
+    private StatisticManager statisticManager;
+    @Autowired
+    private RequestTracer requestTracer;
+    @Autowired
+    private SlowRequestSampler slowRequestSampler;
+
+    @Cmd("当前统计周期内各Cmd的QPS及耗时分位数")
+    @CmdAdmin
+    public Object cmd(HttpRequest request, HttpResponse response) throws Exception {
+        return JsonUtil.getRtnAndDataJsonObject(RtnConstants.OK, cmdCountStat.tickCmdCountSnapshot());
+    }
+
+    @Cmd("最近n个统计周期的Cmd统计,参数n默认为6")
+    @CmdAdmin
+    public Object cmdHistory(HttpRequest request, HttpResponse response) throws Exception {
+        int n = request.getParameterInteger("n", 6);
+        List<CmdCountStat.CmdCountSnapshot> result = new ArrayList<>(n);
+        if (AssertUtil.isNotNull(statisticManager.getCmdCountSnapshotsData())) {
+            Iterator<CmdCountStat.CmdCountSnapshot> it = statisticManager.getCmdCountSnapshotsData().iterator();
+            while (it.hasNext() && result.size() < n) {
+                result.add(it.next());
+            }
+        }
+        return JsonUtil.getRtnAndDataJsonObject(RtnConstants.OK, result);
+    }
+
+    @Cmd("最近n个被采样的慢请求的分阶段耗时(us),参数n默认为20")
+    @CmdAdmin
+    public Object trace(HttpRequest request, HttpResponse response) throws Exception {
+        int n = request.getParameterInteger("n", 20);
+        return JsonUtil.getRtnAndDataJsonObject(RtnConstants.OK, requestTracer.recent(n));
+    }
+
+    @Cmd("执行超时仍未返回的Cmd的堆栈,按出现次数排序,参数n默认为20,clear=true时返回后清空")
+    @CmdAdmin
+    public Object slow(HttpRequest request, HttpResponse response) throws Exception {
+        int n = request.getParameterInteger("n", 20);
+        Map<String, Object> data = new LinkedHashMap<>(4);
+        data.put("running", slowRequestSampler.getRunningCount());
+        data.put("droppedStacks", slowRequestSampler.getDroppedStacks());
+        data.put("stacks", slowRequestSampler.top(n));
+        if (request.getParameterBoolean("clear", false)) {
+            slowRequestSampler.clear();
+        }
+        return JsonUtil.getRtnAndDataJsonObject(RtnConstants.OK, data);
+    }
+}
@@ -21,9 +21,18 @@ import cn.wantedonline.puppy.httpserver.annotation.CmdDescr;
 import cn.wantedonline.puppy.httpserver.common.BaseCmd;
 import cn.wantedonline.puppy.httpserver.component.HttpRequest;
 import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+import cn.wantedonline.puppy.httpserver.httptools.JsonUtil;
+import cn.wantedonline.puppy.httpserver.httptools.RtnConstants;
 import cn.wantedonline.puppy.spring.annotation.Config;
+import cn.wantedonline.puppy.util.StringTools;
+import io.netty.handler.codec.http.multipart.FileUpload;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by louiswang on 17/1/23.
  */
@@ -33,8 +42,32 @@ public class UploadCmd implements BaseCmd {
     @Config(resetable = true)
     private String uploadPath = "/upload";
 
-    @Cmd("上传文件接口")
+    /**
+     * 以流式方式接收multipart表单或者原始请求体，超过内存阈值的部分直接写入临时文件，最后移动到uploadPath下
+     */
+    @Cmd(value = "上传文件接口", streaming = true, offload = true)
     public Object upload(HttpRequest request, HttpResponse response) throws Exception {
-        return "OK";
+        File dir = new File(uploadPath);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cant create upload dir:" + uploadPath);
+        }
+        List<String> saved = new ArrayList<>(1);
+        for (FileUpload upload : request.getFileUploads()) {
+            //只保留文件名，防止通过../写到uploadPath之外
+            String name = new File(upload.getFilename()).getName();
+            if (StringTools.isEmpty(name)) {
+                continue;
+            }
+            File dest = new File(dir, name);
+            if (dest.exists()) {
+                dest = new File(dir, System.currentTimeMillis() + "_" + name);
+            }
+            //磁盘上的临时文件rename失败时(比如跨分区)netty会复制后删除，仍然失败就不能当成上传成功
+            if (!upload.renameTo(dest)) {
+                throw new IOException("cant save upload file:" + dest.getPath());
+            }
+            saved.add(dest.getName());
+        }
+        return JsonUtil.getRtnAndDataJsonObject(RtnConstants.OK, saved);
     }
 }
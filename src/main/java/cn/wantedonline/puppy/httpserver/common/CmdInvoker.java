@@ -0,0 +1,57 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.common;
+
+import cn.wantedonline.puppy.httpserver.component.HttpRequest;
+import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * <pre>
+ *     Cmd方法调用器，在初始化时绑定Cmd实例和方法，请求处理时通过反射调用，
+ *     Cmd抛出的异常原样抛出，不会包装成InvocationTargetException
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public final class CmdInvoker {
+    private final BaseCmd cmd;
+    private final Method method;
+
+    private CmdInvoker(BaseCmd cmd, Method method) {
+        this.cmd = cmd;
+        this.method = method;
+    }
+
+    /**
+     * 绑定cmd实例，void返回null，基本类型自动装箱
+     */
+    public static CmdInvoker bind(BaseCmd cmd, Method method) {
+        method.setAccessible(true);
+        return new CmdInvoker(cmd, method);
+    }
+
+    public Object invoke(HttpRequest request, HttpResponse response) throws Throwable {
+        try {
+            return method.invoke(cmd, request, response);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
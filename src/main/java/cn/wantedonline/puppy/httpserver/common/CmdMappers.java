@@ -16,12 +16,15 @@
 
 package cn.wantedonline.puppy.httpserver.common;
 
+import cn.wantedonline.puppy.httpserver.annotation.Cmd;
+import cn.wantedonline.puppy.httpserver.annotation.CmdAdmin;
 import cn.wantedonline.puppy.httpserver.annotation.CmdDescr;
 import cn.wantedonline.puppy.httpserver.annotation.CmdMapper;
 import cn.wantedonline.puppy.httpserver.annotation.CmdOverride;
 import cn.wantedonline.puppy.httpserver.annotation.CmdPath;
 import cn.wantedonline.puppy.httpserver.component.HttpRequest;
 import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+import cn.wantedonline.puppy.httpserver.stat.CmdCountStat;
 import cn.wantedonline.puppy.spring.BeanUtil;
 import cn.wantedonline.puppy.spring.SpringBootstrap;
 import cn.wantedonline.puppy.spring.annotation.Config;
@@ -68,7 +71,9 @@ public class CmdMappers {
 
     private Set<Class<? extends BaseCmd>> disableCmdClass = new HashSet<>(0);
     private Set<Method> disableCmdMethod = new HashSet<>(0);
-    private PathMap fuzzyMap;
+    private Map<String, CmdMeta> fuzzyCmdMap = new LinkedHashMap<>();
+    /** 由cmdAllMap和fuzzyCmdMap构建，映射变化时整体替换 */
+    private volatile CmdRouter router = CmdRouter.EMPTY;
 
     private static String sanitizePath(String path) {
         int len = path.length();
@@ -149,12 +154,43 @@ public class CmdMappers {
     }
 
     public CmdMeta getCmdMeta(String path) {
-        path = sanitizePath(path);
-        CmdMeta meta = cmdAllMap.get(path);
-        if (AssertUtil.isNull(meta) || AssertUtil.isNotNull(fuzzyMap)) {
-            return (CmdMeta) fuzzyMap.match(path);
+        CmdRouter.Route route = router.match(path);
+        return AssertUtil.isNull(route) ? null : route.getMeta();
+    }
+
+    /**
+     * 直接使用请求行中的URI匹配路由
+     */
+    public CmdRouter.Route route(String uri) {
+        return router.match(uri);
+    }
+
+    public CmdRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * 重新构建路由表，构建完成后整体替换，正在匹配的请求不受影响
+     */
+    public synchronized void buildRouter() {
+        CmdRouter.Builder builder = CmdRouter.builder();
+        addRoutes(builder, cmdAllMap);
+        addRoutes(builder, fuzzyCmdMap);
+        router = builder.build();
+    }
+
+    private void addRoutes(CmdRouter.Builder builder, Map<String, CmdMeta> map) {
+        for (Map.Entry<String, CmdMeta> e : map.entrySet()) {
+            try {
+                builder.add(e.getKey(), e.getValue());
+            } catch (IllegalArgumentException ex) {
+                log.error("illegal cmd path:{}, cmd:{}", new Object[] {
+                        e.getKey(),
+                        e.getValue(),
+                        ex
+                });
+            }
         }
-        return meta;
     }
 
     private String getCmdName(BaseCmd cmd) {
@@ -193,11 +229,11 @@ public class CmdMappers {
         if (url.isEmpty()) {
             return;
         }
-        if (url.contains("*")) {// 模糊匹配
-            if (AssertUtil.isNull(fuzzyMap)) {
-                fuzzyMap = new PathMap();
+        if (url.contains("*")) {// 模糊匹配，可以用,或者:分隔多个路径
+            StringTokenizer tok = new StringTokenizer(url, ":,");
+            while (tok.hasMoreTokens()) {
+                fuzzyCmdMap.put(tok.nextToken().trim(), meta);
             }
-            fuzzyMap.put(url, meta);
             return;
         }
         url = sanitizePath(url);
@@ -217,6 +253,7 @@ public class CmdMappers {
         annotation_cmd_map = tmp;
         log.error("ANNOTATION_MAP:\t\t{}", annotation_cmd_map);
         cmdAllMap.putAll(tmp);
+        buildRouter();
         return tmp;
     }
 
@@ -271,6 +308,7 @@ public class CmdMappers {
         auto_cmd_map = tmp_auto;
         log.error("AUTO_MAP:\t\t{}", auto_cmd_map);
         cmdAllMap.putAll(tmp_auto);
+        buildRouter();
 
         Map<String, CmdMeta> tmp = new LinkedHashMap<String, CmdMeta>(tmp_auto.size());
         tmp.putAll(tmp_auto);
@@ -296,6 +334,7 @@ public class CmdMappers {
         config_cmd_map = tmp;
         log.error("CONFIG_MAP:\t\t{}", config_cmd_map);
         cmdAllMap.putAll(tmp);
+        buildRouter();
 
         return tmp;
     }
@@ -363,11 +402,13 @@ public class CmdMappers {
      * <pre>
      * 2011-01-25 为了解决统计cmd各自的请求量问题,内存中需要统一CmdMeta
      * 即：如果cmd,method一样,内存中只能用相同的引用
+     * 调用器只为保留下来的CmdMeta生成一次
      */
     private CmdMeta newCmdMeta(BaseCmd cmd, Method method) {
         CmdMeta tmp = new CmdMeta(cmd, method);
         CmdMeta ori = cmdMetaUnite.get(tmp);
         if (ori == null) {
+            tmp.invoker = CmdInvoker.bind(cmd, method);
             cmdMetaUnite.put(tmp, tmp);
             return tmp;
         }
@@ -375,22 +416,34 @@ public class CmdMappers {
     }
 
     public void printFuzzyMap() {
-        if (fuzzyMap != null) {
-            log.error("FUZZY_MAP:\t\t{}", fuzzyMap);
+        if (!fuzzyCmdMap.isEmpty()) {
+            log.error("FUZZY_MAP:\t\t{}", fuzzyCmdMap);
         }
     }
 
     public static class CmdMeta {
         private BaseCmd cmd;
         private Method method;
+        private CmdInvoker invoker;
         private String baseName;
         private String name;
+        private boolean offload;
+        private boolean streaming;
+        private Cmd.Priority priority;
+        private volatile CmdCountStat.CmdStatBean stat;
 
         public CmdMeta(BaseCmd cmd, Method method) {
             this.cmd = cmd;
             this.method = method;
             this.baseName = cmd.getClass().getSimpleName() + ".*";
             this.name = cmd.getClass().getSimpleName() + "." + method.getName();
+            Cmd c = method.getAnnotation(Cmd.class);
+            this.offload = AssertUtil.isNotNull(c) && c.offload();
+            this.streaming = AssertUtil.isNotNull(c) && c.streaming();
+            this.priority = AssertUtil.isNull(c) ? Cmd.Priority.NORMAL : c.priority();
+            if (this.priority == Cmd.Priority.NORMAL && method.isAnnotationPresent(CmdAdmin.class)) {
+                this.priority = Cmd.Priority.CRITICAL;
+            }
         }
 
         public BaseCmd getCmd() {
@@ -401,6 +454,13 @@ public class CmdMappers {
             return method;
         }
 
+        /**
+         * 初始化时绑定好的调用器
+         */
+        public CmdInvoker getInvoker() {
+            return invoker;
+        }
+
         public String getBaseName() {
             return baseName;
         }
@@ -409,6 +469,43 @@ public class CmdMappers {
             return name;
         }
 
+        /**
+         * 是否在业务线程池中执行
+         */
+        public boolean isOffload() {
+            return offload;
+        }
+
+        /**
+         * 是否以流式方式接收请求体
+         */
+        public boolean isStreaming() {
+            return streaming;
+        }
+
+        /**
+         * 过载时的优先级
+         */
+        public Cmd.Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * 该Cmd的调用次数及耗时统计，第一次使用时创建(newCmdMeta会丢弃重复的CmdMeta)
+         */
+        public CmdCountStat.CmdStatBean getStat() {
+            CmdCountStat.CmdStatBean s = stat;
+            if (AssertUtil.isNull(s)) {
+                synchronized (this) {
+                    s = stat;
+                    if (AssertUtil.isNull(s)) {
+                        s = stat = new CmdCountStat.CmdStatBean(name);
+                    }
+                }
+            }
+            return s;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
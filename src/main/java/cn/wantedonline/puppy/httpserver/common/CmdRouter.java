@@ -0,0 +1,404 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.common;
+
+import cn.wantedonline.puppy.util.AssertUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <pre>
+ *     基于基数树(radix tree)的Cmd路由表，构建完成后不再修改，映射变化时整体重建后替换
+ *     支持的路径写法：
+ *     /user/info          精确匹配
+ *     /user/{id}/info     路径参数，匹配一个完整的路径段，静态路径优先于路径参数
+ *     /user/*             前缀匹配，同时匹配/user，多个前缀时最长的优先
+ *     /*                  默认匹配
+ *     *.do                后缀匹配，优先级最低
+ *     匹配直接在原始URI上进行，忽略查询串和末尾的/，不做字符串截取；
+ *     只有URI中包含%编码或者需要尝试路径参数分支时才会分配对象，命中静态路由时不分配
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public final class CmdRouter {
+    private static final char[] EMPTY_CHARS = new char[0];
+    private static final Node[] EMPTY_NODES = new Node[0];
+    //必须在EMPTY_CHARS和EMPTY_NODES之后初始化
+    public static final CmdRouter EMPTY = new Builder().build();
+
+    private final Node root;
+    private final Route[] suffixes;
+    private final int maxParams;
+    private final int size;
+
+    private CmdRouter(Builder builder) {
+        this.root = builder.root;
+        this.suffixes = builder.suffixes.toArray(new Route[builder.suffixes.size()]);
+        this.maxParams = builder.maxParams;
+        this.size = builder.size;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param uri 请求行中的URI，可以带查询串
+     * @return 匹配的路由，找不到时返回null
+     */
+    public Route match(String uri) {
+        if (AssertUtil.isNull(uri)) {
+            return null;
+        }
+        int start = 0;
+        int end = uri.length();
+        //absolute-form: http://host/path
+        int scheme = uri.indexOf("://");
+        if (scheme > 0 && scheme < uri.indexOf('/')) {
+            start = uri.indexOf('/', scheme + 3);
+            if (start < 0) {
+                start = end;
+            }
+        }
+        boolean encoded = false;
+        for (int i = start; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+            encoded |= c == '%';
+        }
+        if (start == end) {
+            //absolute-form中没有路径，如http://host
+            return match("/", 0, 1);
+        }
+        if (encoded) {
+            //包含%编码时先解码再匹配，路径中的+不是空格
+            String path = QueryStringDecoder.decodeComponent(uri.substring(start, end).replace("+", "%2B"));
+            return match(path, 0, path.length());
+        }
+        return match(uri, start, end);
+    }
+
+    private Route match(String path, int start, int end) {
+        if (end - start > 1 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        Route route = find(root, path, start, end, null, 0);
+        if (AssertUtil.isNotNull(route)) {
+            return route;
+        }
+        Route best = null;
+        for (Route suffix : suffixes) {
+            String ext = suffix.suffix;
+            int dot = end - ext.length() - 1;
+            if (dot > start && path.charAt(dot) == '.' && path.regionMatches(dot + 1, ext, 0, ext.length())
+                    && (AssertUtil.isNull(best) || ext.length() > best.suffix.length())) {
+                best = suffix;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param captures 路径参数在path中的起止位置，第一次进入路径参数分支时才分配
+     */
+    private Route find(Node n, String path, int pos, int end, int[] captures, int depth) {
+        String label = n.label;
+        int len = label.length();
+        if (end - pos < len || !path.regionMatches(pos, label, 0, len)) {
+            return null;
+        }
+        pos += len;
+        if (pos == end) {
+            return bind(AssertUtil.isNotNull(n.exact) ? n.exact : n.prefix, path, captures);
+        }
+        char c = path.charAt(pos);
+        for (int i = 0; i < n.indices.length; i++) {
+            if (n.indices[i] == c) {
+                Route route = find(n.children[i], path, pos, end, captures, depth);
+                if (AssertUtil.isNotNull(route)) {
+                    return route;
+                }
+                break;
+            }
+        }
+        if (AssertUtil.isNotNull(n.param)) {
+            int segmentEnd = pos;
+            while (segmentEnd < end && path.charAt(segmentEnd) != '/') {
+                segmentEnd++;
+            }
+            if (segmentEnd > pos) {
+                if (AssertUtil.isNull(captures)) {
+                    captures = new int[maxParams * 2];
+                }
+                captures[depth * 2] = pos;
+                captures[depth * 2 + 1] = segmentEnd;
+                Route route = find(n.param, path, segmentEnd, end, captures, depth + 1);
+                if (AssertUtil.isNotNull(route)) {
+                    return route;
+                }
+            }
+        }
+        if (AssertUtil.isNotNull(n.prefix) && c == '/') {
+            return bind(n.prefix, path, captures);
+        }
+        return null;
+    }
+
+    /**
+     * 带路径参数的路由只能经过路径参数分支到达，此时captures已经分配
+     */
+    private static Route bind(Route route, String path, int[] captures) {
+        if (AssertUtil.isNull(route) || route.paramNames.length == 0) {
+            return route;
+        }
+        Map<String, String> params = new HashMap<>(route.paramNames.length * 2);
+        for (int i = 0; i < route.paramNames.length; i++) {
+            params.put(route.paramNames[i], path.substring(captures[i * 2], captures[i * 2 + 1]));
+        }
+        return new ParameterizedRoute(route, params);
+    }
+
+    private static final class Node {
+        private String label;
+        private char[] indices = EMPTY_CHARS;
+        private Node[] children = EMPTY_NODES;
+        /** {name}子节点，匹配一个路径段 */
+        private Node param;
+        private Route exact;
+        /** 以该节点结尾的路径加上/*的前缀路由 */
+        private Route prefix;
+        /** 从根节点到该节点经过的路径参数个数 */
+        private int depth;
+
+        private Node(String label, int depth) {
+            this.label = label;
+            this.depth = depth;
+        }
+
+        /**
+         * 在at处拆分当前节点，后半部分连同所有子节点和路由下移为唯一的子节点
+         */
+        private void split(int at) {
+            Node tail = new Node(label.substring(at), depth);
+            tail.indices = indices;
+            tail.children = children;
+            tail.param = param;
+            tail.exact = exact;
+            tail.prefix = prefix;
+            label = label.substring(0, at);
+            indices = new char[] {tail.label.charAt(0)};
+            children = new Node[] {tail};
+            param = null;
+            exact = null;
+            prefix = null;
+        }
+
+        private Node insertStatic(String s) {
+            Node n = this;
+            while (!s.isEmpty()) {
+                Node next = null;
+                for (int i = 0; i < n.indices.length; i++) {
+                    if (n.indices[i] == s.charAt(0)) {
+                        next = n.children[i];
+                        break;
+                    }
+                }
+                if (AssertUtil.isNull(next)) {
+                    next = new Node(s, n.depth);
+                    n.indices = Arrays.copyOf(n.indices, n.indices.length + 1);
+                    n.indices[n.indices.length - 1] = s.charAt(0);
+                    n.children = Arrays.copyOf(n.children, n.children.length + 1);
+                    n.children[n.children.length - 1] = next;
+                    return next;
+                }
+                int common = 0;
+                int max = Math.min(next.label.length(), s.length());
+                while (common < max && next.label.charAt(common) == s.charAt(common)) {
+                    common++;
+                }
+                if (common < next.label.length()) {
+                    next.split(common);
+                }
+                n = next;
+                s = s.substring(common);
+            }
+            return n;
+        }
+    }
+
+    public static class Route {
+        private final String pattern;
+        private final CmdMappers.CmdMeta meta;
+        private final String[] paramNames;
+        private final String suffix;
+
+        private Route(String pattern, CmdMappers.CmdMeta meta, String[] paramNames, String suffix) {
+            this.pattern = pattern;
+            this.meta = meta;
+            this.paramNames = paramNames;
+            this.suffix = suffix;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public CmdMappers.CmdMeta getMeta() {
+            return meta;
+        }
+
+        /**
+         * 路径参数，没有路径参数时返回空Map
+         */
+        public Map<String, String> getPathParameters() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String toString() {
+            return pattern + "=" + meta;
+        }
+    }
+
+    private static final class ParameterizedRoute extends Route {
+        private final Map<String, String> pathParameters;
+
+        private ParameterizedRoute(Route route, Map<String, String> pathParameters) {
+            super(route.pattern, route.meta, route.paramNames, route.suffix);
+            this.pathParameters = pathParameters;
+        }
+
+        @Override
+        public Map<String, String> getPathParameters() {
+            return pathParameters;
+        }
+    }
+
+    public static final class Builder {
+        private final Node root = new Node("", 0);
+        private final List<Route> suffixes = new ArrayList<>(0);
+        private int maxParams;
+        private int size;
+        private boolean built;
+
+        private Builder() {}
+
+        /**
+         * 添加路由，相同的路径后添加的覆盖先添加的
+         * @throws IllegalArgumentException 路径格式不正确
+         */
+        public Builder add(String pattern, CmdMappers.CmdMeta meta) {
+            if (built) {
+                throw new IllegalStateException("router already built");
+            }
+            if (pattern.startsWith("*.")) {
+                String ext = pattern.substring(2);
+                if (ext.isEmpty() || ext.indexOf('/') >= 0 || ext.indexOf('*') >= 0) {
+                    throw new IllegalArgumentException("path " + pattern + " has illegal suffix, should be like *.do");
+                }
+                for (int i = 0; i < suffixes.size(); i++) {
+                    if (suffixes.get(i).suffix.equals(ext)) {
+                        suffixes.remove(i);
+                        size--;
+                        break;
+                    }
+                }
+                suffixes.add(new Route(pattern, meta, new String[0], ext));
+                size++;
+                return this;
+            }
+            if (!pattern.startsWith("/")) {
+                throw new IllegalArgumentException("path " + pattern + " must start with '/' or '*.'");
+            }
+            boolean isPrefix = pattern.endsWith("/*");
+            String path = isPrefix ? pattern.substring(0, pattern.length() - 2) : pattern;
+            if (!isPrefix && path.length() > 1 && path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            if (path.indexOf('*') >= 0) {
+                throw new IllegalArgumentException("path " + pattern + " can only use '*' as '/*' suffix or '*.' prefix");
+            }
+
+            List<String> names = new ArrayList<>(0);
+            Node n = root;
+            int i = 0;
+            while (i < path.length()) {
+                int open = path.indexOf('{', i);
+                String text = open < 0 ? path.substring(i) : path.substring(i, open);
+                if (text.indexOf('}') >= 0) {
+                    throw new IllegalArgumentException("path " + pattern + " has '}' without '{'");
+                }
+                n = n.insertStatic(text);
+                if (open < 0) {
+                    break;
+                }
+                int close = path.indexOf('}', open);
+                if (close < 0) {
+                    throw new IllegalArgumentException("path " + pattern + " has '{' without '}'");
+                }
+                String name = path.substring(open + 1, close);
+                if (name.isEmpty() || name.indexOf('{') >= 0 || name.indexOf('/') >= 0) {
+                    throw new IllegalArgumentException("path " + pattern + " has illegal parameter name '" + name + "'");
+                }
+                //参数必须占满一个路径段: open前面是/(path以/开头，所以open>0)，close后面是/或者结尾
+                if (path.charAt(open - 1) != '/' || (close + 1 < path.length() && path.charAt(close + 1) != '/')) {
+                    throw new IllegalArgumentException("path " + pattern + " has illegal parameter, should be like /a/{name}/b");
+                }
+                names.add(name);
+                if (AssertUtil.isNull(n.param)) {
+                    n.param = new Node("", n.depth + 1);
+                }
+                n = n.param;
+                i = close + 1;
+            }
+
+            Route route = new Route(pattern, meta, names.toArray(new String[names.size()]), null);
+            if (isPrefix) {
+                if (AssertUtil.isNull(n.prefix)) {
+                    size++;
+                }
+                n.prefix = route;
+            } else {
+                if (AssertUtil.isNull(n.exact)) {
+                    size++;
+                }
+                n.exact = route;
+            }
+            maxParams = Math.max(maxParams, names.size());
+            return this;
+        }
+
+        public CmdRouter build() {
+            built = true;
+            return new CmdRouter(this);
+        }
+    }
+}
@@ -17,26 +17,62 @@
 package cn.wantedonline.puppy.httpserver.common;
 
 import cn.wantedonline.puppy.httpserver.component.*;
+import cn.wantedonline.puppy.httpserver.component.session.DistributedSessionManager;
+import cn.wantedonline.puppy.httpserver.component.session.LocalSessionStore;
+import cn.wantedonline.puppy.httpserver.component.session.OffHeapSessionManager;
+import cn.wantedonline.puppy.httpserver.component.session.RedisSessionStore;
 import cn.wantedonline.puppy.httpserver.component.session.SessionManagerBase;
+import cn.wantedonline.puppy.httpserver.component.session.SessionStore;
 import cn.wantedonline.puppy.httpserver.component.session.StandardSessionManager;
 import cn.wantedonline.puppy.httpserver.stat.CountStat;
 import cn.wantedonline.puppy.httpserver.stat.StreamStat;
 import cn.wantedonline.puppy.httpserver.stat.TimeSpanStat;
+import cn.wantedonline.puppy.httpserver.stat.CmdCountStat;
+import cn.wantedonline.puppy.httpserver.stat.NioWorkerStat;
+import cn.wantedonline.puppy.httpserver.stat.RequestTracer;
+import cn.wantedonline.puppy.httpserver.stat.SlowRequestSampler;
+import cn.wantedonline.puppy.httpserver.system.ConcurrencyLimiter;
 import cn.wantedonline.puppy.spring.annotation.AfterConfig;
 import cn.wantedonline.puppy.spring.annotation.Config;
+import cn.wantedonline.puppy.util.AssertUtil;
 import cn.wantedonline.puppy.util.Log;
+import cn.wantedonline.puppy.util.StringTools;
 import cn.wantedonline.puppy.util.concurrent.NamedThreadFactory;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.MultithreadEventLoopGroup;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
+import io.netty.handler.codec.http.multipart.DiskAttribute;
+import io.netty.handler.codec.http.multipart.DiskFileUpload;
+import io.netty.handler.codec.http.multipart.HttpDataFactory;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * <pre>
  *     Http服务器配置信息，可以在serverconfig.properties修改配置
@@ -52,6 +88,7 @@ public final class HttpServerConfig {
     public static final int PROCESSOR_NUM = Runtime.getRuntime().availableProcessors();
 
     private static ContentType respInnerContentType = ContentType.json;
+    private static HttpDataFactory httpDataFactory = new DefaultHttpDataFactory(DefaultHttpDataFactory.MINSIZE);
 
     public static final String SESSIONID_PARAMERTER = "sessionId";
 
@@ -82,6 +119,26 @@ public final class HttpServerConfig {
     private boolean openSession = false;
     @Config(resetable = true)
     private String sessionStore = null;
+    @Config
+    private int sessionOffHeapSize = 64 * 1024 * 1024;
+    @Config
+    private String sessionSnapshotFile = "SESSIONS.snap";
+    @Config
+    private String sessionRedisAddress = "127.0.0.1:6379";
+    @Config
+    private int sessionRedisTimeout = 1000;
+    @Config
+    private int sessionRedisPoolSize = 8;
+    @Config
+    private String sessionRedisKeyPrefix = "puppy:session:";
+    @Config
+    private String sessionJvmRoute = "";
+    @Config(resetable = true)
+    private int sessionNearCacheMillis = 1000;
+    @Config
+    private int sessionWriteBehindMillis = 100;
+    @Config(resetable = true)
+    private int sessionWriteBehindBatch = 128;
     @Config(resetable = true)
     private int sessionMaxActiveTime = 1800;
     @Config(resetable = true)
@@ -100,15 +157,24 @@ public final class HttpServerConfig {
 
     @Autowired
     private AbstractPageDispatcher dispatcher;
-
-    private NioEventLoopGroup bossEventLoopGroup;
-    private NioEventLoopGroup workerEventLoopGroup;
+    @Autowired
+    private CmdMappers cmdMappers;
+
+    //===== add transport on V0.7.0
+    @Config
+    private String transport = "nio";
+    @Config
+    private boolean soReusePort = false;
+    @Config
+    private int bossThreadNum = 1;
+    private boolean epoll = false;
+    //===== end transport
+
+    private MultithreadEventLoopGroup bossEventLoopGroup;
+    private MultithreadEventLoopGroup workerEventLoopGroup;
     private ChannelInitializer httpServerHandler;
 
     {
-        bossEventLoopGroup = new NioEventLoopGroup(1, new NamedThreadFactory("Boss thread $", Thread.MAX_PRIORITY));
-        int workThreads = work_thread_num > 0 ? work_thread_num : PROCESSOR_NUM*2;
-        workerEventLoopGroup = new NioEventLoopGroup(workThreads, new NamedThreadFactory("Worker thread $",Thread.NORM_PRIORITY+4));
         httpServerHandler = new HttpServerHandler();
     }
 
@@ -119,26 +185,211 @@ public final class HttpServerConfig {
     public StreamStat streamStat;
     @Autowired
     public TimeSpanStat timeSpanStat;
+    @Autowired
+    public CmdCountStat cmdCountStat;
+    @Autowired
+    public NioWorkerStat nioWorkerStat;
+    @Autowired
+    public RequestTracer requestTracer;
+    @Autowired
+    public SlowRequestSampler slowRequestSampler;
+    @Autowired
+    public ConcurrencyLimiter concurrencyLimiter;
     //*******************V0.2.0 统计需求 End ***************************//
 
     //*******************V0.4.0 日志告警需求 Start *********************//
     @Config(resetable = true)
     private boolean logaccessEnable = true;
     private AccessLogger accessLogger = new AccessLogger();
+    @Config
+    private int accessLogQueueSize = 8192; // 异步访问日志队列容量，只在启动时生效
+    @Config(resetable = true)
+    private int accessLogBatchSize = 256; // 写线程每批最多写多少条，每批flush一次
+    @Config(resetable = true)
+    private boolean accessLogBlockWhenFull = false; // 队列满时I/O线程是否等待，默认丢弃
+    @Config(resetable = true)
+    private String accessLogHeaders = "Referer,User-Agent"; // 访问日志中需要记录的请求头
+    @Config(resetable = true)
+    private boolean accessLogHostLookups = false; // %h是否反查客户端主机名，默认直接输出IP
     //*******************V0.4.0 日志告警需求 End *********************//
 
+    //*******************V0.7.0 业务线程池 Start *********************//
+    @Config(resetable = true)
+    private int bizThreadNum = 0;
+    @Config(resetable = true)
+    private int bizQueueSize = 1000;
+    private ThreadPoolExecutor bizExecutor;
+    //*******************V0.7.0 业务线程池 End *********************//
+
+    //*******************V0.7.0 网络参数 Start *********************//
+    @Config
+    private int soBacklog = 1024;
+    @Config
+    private boolean soReuseAddr = true;
+    @Config
+    private boolean tcpNoDelay = true;
+    @Config
+    private int soRcvBuf = 0;
+    @Config
+    private int soSndBuf = 0;
+    @Config
+    private int writeBufferHighWaterMark = 64*1024;
+    @Config
+    private int writeBufferLowWaterMark = 32*1024;
+    @Config
+    private boolean pooledAllocator = true;
+    @Config
+    private String recvByteBufAllocator = "adaptive";
+    @Config
+    private int recvBufFixedSize = 8192;
+    private String channelOptionsInfo = "";
+    //*******************V0.7.0 网络参数 End *********************//
+
+    //*******************V0.7.0 流式上传 Start *********************//
+    @Config(resetable = true)
+    private long maxUploadSize = 512*1024*1024L;
+    @Config(resetable = true)
+    private long uploadMemoryThreshold = 16*1024;
+    @Config(resetable = true)
+    private String uploadTempDir = "";
+    //*******************V0.7.0 流式上传 End *********************//
+
+    //*******************V0.7.0 文件下载 Start *********************//
+    @Config(resetable = true)
+    private boolean sendfile = true;
+    @Config(resetable = true)
+    private int fileChunkSize = 8192;
+    @Config(resetable = true)
+    private int openFileCacheSize = 256;
+    @Config(resetable = true)
+    private boolean gzipStatic = false;
+    //*******************V0.7.0 文件下载 End *********************//
+
+    //*******************V0.7.0 响应压缩 Start *********************//
+    @Config(resetable = true)
+    private boolean compressEnable = true;
+    @Config(resetable = true)
+    private int compressLevel = 6;
+    @Config(resetable = true)
+    private int compressMinSize = 1024;
+    @Config(resetable = true)
+    private String[] compressContentTypes = {"text/", "application/json", "application/javascript", "application/xml"};
+    //*******************V0.7.0 响应压缩 End *********************//
+
     public static ContentType getRespInnerContentType() {
         return respInnerContentType;
     }
 
-    public NioEventLoopGroup getBossEventLoopGroup() {
+    public static HttpDataFactory getHttpDataFactory() {
+        return httpDataFactory;
+    }
+
+    public long getMaxUploadSize() {
+        return maxUploadSize;
+    }
+
+    public boolean isSendfile() {
+        return sendfile;
+    }
+
+    public int getFileChunkSize() {
+        return fileChunkSize;
+    }
+
+    public int getOpenFileCacheSize() {
+        return openFileCacheSize;
+    }
+
+    public boolean isGzipStatic() {
+        return gzipStatic;
+    }
+
+    public int getCompressLevel() {
+        return compressLevel;
+    }
+
+    public int getCompressMinSize() {
+        return compressMinSize;
+    }
+
+    public String[] getCompressContentTypes() {
+        return compressContentTypes;
+    }
+
+    public MultithreadEventLoopGroup getBossEventLoopGroup() {
         return bossEventLoopGroup;
     }
 
-    public NioEventLoopGroup getWorkerEventLoopGroup() {
+    public MultithreadEventLoopGroup getWorkerEventLoopGroup() {
         return workerEventLoopGroup;
     }
 
+    /**
+     * <pre>
+     *     在配置注入之后创建EventLoopGroup，这样work_thread_num等配置才能生效
+     *     transport=epoll并且本机支持native epoll时使用EpollEventLoopGroup，否则退回到NIO
+     *     EventLoopGroup只创建一次，修改transport需要重启
+     * </pre>
+     */
+    @AfterConfig
+    public void initEventLoopGroup() {
+        if (bossEventLoopGroup != null) {
+            return;
+        }
+        if ("epoll".equalsIgnoreCase(transport)) {
+            if (Epoll.isAvailable()) {
+                epoll = true;
+            } else {
+                log.warn("native epoll is unavailable, fall back to nio, cause:{}", String.valueOf(Epoll.unavailabilityCause()));
+            }
+        }
+        int bossThreads = isReusePort() && bossThreadNum > 1 ? bossThreadNum : 1;
+        int workThreads = work_thread_num > 0 ? work_thread_num : PROCESSOR_NUM*2;
+        NamedThreadFactory bossThreadFactory = new NamedThreadFactory("Boss thread $", Thread.MAX_PRIORITY);
+        NamedThreadFactory workerThreadFactory = new NamedThreadFactory("Worker thread $",Thread.NORM_PRIORITY+4);
+        if (epoll) {
+            try {
+                bossEventLoopGroup = new EpollEventLoopGroup(bossThreads, bossThreadFactory);
+                workerEventLoopGroup = new EpollEventLoopGroup(workThreads, workerThreadFactory);
+            } catch (Throwable t) {
+                //Epoll.isAvailable()只检查native库能否加载，创建EventLoop时仍可能失败
+                log.warn("create epoll event loop failed, fall back to nio", t);
+                if (bossEventLoopGroup != null) {
+                    bossEventLoopGroup.shutdownGracefully();
+                }
+                epoll = false;
+                bossThreads = 1;
+            }
+        }
+        if (!epoll) {
+            bossEventLoopGroup = new NioEventLoopGroup(bossThreads, bossThreadFactory);
+            workerEventLoopGroup = new NioEventLoopGroup(workThreads, workerThreadFactory);
+        }
+        log.info("transport:{}, bossThreads:{}, workerThreads:{}, soReusePort:{}", epoll ? "epoll" : "nio", bossThreads, workThreads, isReusePort());
+    }
+
+    public Class<? extends ServerChannel> getServerChannelClass() {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    /**
+     * SO_REUSEPORT只有epoll支持，开启后每个Boss线程绑定一个监听Channel，由内核在多个accept队列间分发连接
+     */
+    public boolean isReusePort() {
+        return epoll && soReusePort;
+    }
+
+    /**
+     * 需要在同一个端口上绑定的次数
+     */
+    public int getBindTimes() {
+        return isReusePort() ? bossEventLoopGroup.executorCount() : 1;
+    }
+
     public int getListenPort() {
         return listen_port;
     }
@@ -167,6 +418,8 @@ public final class HttpServerConfig {
     @AfterConfig
     private void initAccessLogger() {
         accessLogger.setLogEanble(logaccessEnable);
+        accessLogger.startWriter(accessLogQueueSize, accessLogBatchSize, accessLogBlockWhenFull,
+                StringTools.splitAndTrimAsArray(accessLogHeaders, ","), accessLogHostLookups);
     }
 
     public AccessLogger getAccessLogger() {
@@ -177,12 +430,21 @@ public final class HttpServerConfig {
         @Override
         protected void initChannel(SocketChannel ch) throws Exception {
             ChannelPipeline cp = ch.pipeline();
+            if (nioWorkerStat.isProbeEnabled()) {
+                cp.addLast("puppy_loop_stat", nioWorkerStat.getLoopStatHandler());
+            }
             if (openLogHandler) {
                 cp.addLast("inner_logger_handler",new LoggingHandler(LogLevel.DEBUG));
             }
+            if (keepAliveTimeout > 0) {
+                cp.addLast("puppy_keep_alive_idle", new IdleStateHandler(0, 0, keepAliveTimeout));
+            }
             cp.addLast("puppy_http_request_decoder",new HttpRequestDecoder(maxInitialLineLength, maxHeaderSize, maxChunkSize))
-              .addLast("puppy_http_response_encoder", new HttpResponseEncoder())
-              .addLast("aggregator",new HttpObjectAggregator(maxContentLength))
+              .addLast("puppy_http_response_encoder", new HttpResponseEncoder());
+            if (compressEnable) {
+                cp.addLast("puppy_http_compressor", new HttpResponseCompressor());
+            }
+            cp.addLast("aggregator",new HttpObjectAggregator(maxContentLength, maxUploadSize, cmdMappers))
               .addLast("puppy_http_chunked", new ChunkedWriteHandler())
               .addLast("pageDispatcher", dispatcher);
         }
@@ -191,6 +453,93 @@ public final class HttpServerConfig {
     public void stopEventLoopGroup() {
         workerEventLoopGroup.shutdownGracefully();
         bossEventLoopGroup.shutdownGracefully();
+        if (bizExecutor != null) {
+            bizExecutor.shutdown();
+        }
+        accessLogger.stop();
+    }
+
+    /**
+     * 业务线程池，有界队列，队列满时抛出RejectedExecutionException，由分发器返回503
+     * 队列长度只在第一次初始化时生效，线程数可以通过重新加载配置调整
+     */
+    @AfterConfig
+    public void initBizExecutor() {
+        int threads = bizThreadNum > 0 ? bizThreadNum : PROCESSOR_NUM*2;
+        if (bizExecutor == null) {
+            bizExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(bizQueueSize > 0 ? bizQueueSize : 1000),
+                    new NamedThreadFactory("Biz thread $", Thread.NORM_PRIORITY), new ThreadPoolExecutor.AbortPolicy());
+        } else if (threads > bizExecutor.getMaximumPoolSize()) {
+            bizExecutor.setMaximumPoolSize(threads);
+            bizExecutor.setCorePoolSize(threads);
+        } else {
+            bizExecutor.setCorePoolSize(threads);
+            bizExecutor.setMaximumPoolSize(threads);
+        }
+        log.info("set biz executor threads:{}, queueSize:{}", threads, bizQueueSize);
+    }
+
+    public ThreadPoolExecutor getBizExecutor() {
+        return bizExecutor;
+    }
+
+    public ByteBufAllocator getAllocator() {
+        return pooledAllocator ? PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT;
+    }
+
+    public RecvByteBufAllocator getRecvByteBufAllocator() {
+        if ("fixed".equalsIgnoreCase(recvByteBufAllocator) && recvBufFixedSize > 0) {
+            return new FixedRecvByteBufAllocator(recvBufFixedSize);
+        }
+        return AdaptiveRecvByteBufAllocator.DEFAULT;
+    }
+
+    /**
+     * 按配置设置ServerBootstrap的网络参数，在绑定端口之前调用，修改后需要重启才能生效
+     */
+    public void initChannelOptions(ServerBootstrap b) {
+        ByteBufAllocator allocator = getAllocator();
+        RecvByteBufAllocator recvAllocator = getRecvByteBufAllocator();
+        if (isReusePort()) {
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        b.option(ChannelOption.SO_BACKLOG, soBacklog)
+         .option(ChannelOption.SO_REUSEADDR, soReuseAddr)
+         .option(ChannelOption.ALLOCATOR, allocator)
+         .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay)
+         .childOption(ChannelOption.ALLOCATOR, allocator)
+         .childOption(ChannelOption.RCVBUF_ALLOCATOR, recvAllocator);
+        if (soRcvBuf > 0) {
+            //监听端口上设置，accept出来的连接才能使用大于64K的接收窗口
+            b.option(ChannelOption.SO_RCVBUF, soRcvBuf);
+            b.childOption(ChannelOption.SO_RCVBUF, soRcvBuf);
+        }
+        if (soSndBuf > 0) {
+            b.childOption(ChannelOption.SO_SNDBUF, soSndBuf);
+        }
+        if (writeBufferLowWaterMark > writeBufferHighWaterMark) {
+            log.error("writeBufferLowWaterMark:{} > writeBufferHighWaterMark:{}, use netty default", writeBufferLowWaterMark, writeBufferHighWaterMark);
+        } else if (writeBufferLowWaterMark <= 64*1024) {
+            //Netty默认高水位64K，低水位32K，设置顺序不对时会抛出IllegalArgumentException
+            b.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark)
+             .childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark);
+        } else {
+            b.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHighWaterMark)
+             .childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLowWaterMark);
+        }
+        channelOptionsInfo = String.format("TRANSPORT=%s, SO_REUSEPORT=%s, SO_BACKLOG=%s, SO_REUSEADDR=%s, TCP_NODELAY=%s, SO_RCVBUF=%s, SO_SNDBUF=%s, WRITE_BUFFER_WATER_MARK=[%s, %s], ALLOCATOR=%s, RCVBUF_ALLOCATOR=%s",
+                epoll ? "epoll" : "nio", isReusePort(), soBacklog, soReuseAddr, tcpNoDelay, soRcvBuf > 0 ? soRcvBuf : "default", soSndBuf > 0 ? soSndBuf : "default",
+                writeBufferLowWaterMark, writeBufferHighWaterMark, allocator.getClass().getSimpleName(), recvAllocator.getClass().getSimpleName());
+        log.info("channel options: {}", channelOptionsInfo);
+    }
+
+    public String getChannelOptionsInfo() {
+        return channelOptionsInfo;
+    }
+
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
     }
 
     public boolean getOpenSession() {
@@ -215,11 +564,43 @@ public final class HttpServerConfig {
         log.info("set response inner contentType is: {}", respInnerContentType);
     }
 
+    /**
+     * 请求体超过uploadMemoryThreshold的部分写入uploadTempDir下的临时文件
+     */
+    @AfterConfig
+    public void initHttpDataFactory() {
+        if (StringTools.isNotEmpty(uploadTempDir)) {
+            DiskFileUpload.baseDirectory = uploadTempDir;
+            DiskAttribute.baseDirectory = uploadTempDir;
+        }
+        DiskFileUpload.deleteOnExitTemporaryFile = true;
+        DiskAttribute.deleteOnExitTemporaryFile = true;
+        httpDataFactory = new DefaultHttpDataFactory(uploadMemoryThreshold);
+        log.info("set upload memory threshold: {}, temp dir: {}, max upload size: {}", new Object[] {
+                uploadMemoryThreshold,
+                StringTools.isEmpty(uploadTempDir) ? System.getProperty("java.io.tmpdir") : uploadTempDir,
+                maxUploadSize
+        });
+    }
+
     @AfterConfig
     public void initSessionManager() {
         if (openSession) {
             if ("jvm".equalsIgnoreCase(sessionStore)) {
-                sessionManager = StandardSessionManager.getInstance();
+                StandardSessionManager standardSessionManager = StandardSessionManager.getInstance();
+                standardSessionManager.setPathname(sessionSnapshotFile);
+                sessionManager = standardSessionManager;
+            } else if ("offheap".equalsIgnoreCase(sessionStore)) {
+                sessionManager = OffHeapSessionManager.getInstance(sessionOffHeapSize);
+            } else if ("redis".equalsIgnoreCase(sessionStore) || "local".equalsIgnoreCase(sessionStore)) {
+                sessionManager = initDistributedSessionManager();
+            } else {
+                log.error("unknown sessionStore:{}, session is disabled", sessionStore);
+            }
+            if (AssertUtil.isNotNull(sessionManager)) {
+                if (StringTools.isNotEmpty(sessionJvmRoute)) {
+                    sessionManager.setJvmRoute(sessionJvmRoute);
+                }
                 sessionManager.setMaxActive(sessionMaxCount);
                 sessionManager.setSessionMaxAliveTime(sessionMaxActiveTime);
                 sessionManager.setMaxInactiveInterval(sessionMaxInActiveTime);
@@ -229,6 +610,27 @@ public final class HttpServerConfig {
         }
     }
 
+    private DistributedSessionManager initDistributedSessionManager() {
+        SessionStore store;
+        if ("redis".equalsIgnoreCase(sessionStore)) {
+            String host = sessionRedisAddress;
+            int port = 6379;
+            int idx = sessionRedisAddress.lastIndexOf(':');
+            if (idx > 0) {
+                host = sessionRedisAddress.substring(0, idx);
+                port = Integer.parseInt(sessionRedisAddress.substring(idx + 1).trim());
+            }
+            store = new RedisSessionStore(host.trim(), port, sessionRedisTimeout, sessionRedisPoolSize, sessionRedisKeyPrefix);
+        } else {
+            store = new LocalSessionStore();
+        }
+        DistributedSessionManager manager = DistributedSessionManager.getInstance(store);
+        manager.setNearCacheMillis(sessionNearCacheMillis);
+        manager.setWriteBehindBatch(sessionWriteBehindBatch);
+        manager.startWriteBehind(sessionWriteBehindMillis);
+        return manager;
+    }
+
 
 
 }
@@ -0,0 +1,34 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.common;
+
+import cn.wantedonline.puppy.httpserver.component.HttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+
+/**
+ * <pre>
+ *     流式接收请求体的Cmd，配合@Cmd(streaming = true)使用
+ *     请求体的每一块到达时在Netty I/O线程上回调contentReceived，全部到达后再调用@Cmd方法
+ *     回调中不要做阻塞操作；content在回调返回后释放，需要保留时自行retain
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public interface StreamingCmd extends BaseCmd {
+
+    void contentReceived(HttpRequest request, HttpContent content) throws Exception;
+}
@@ -19,13 +19,17 @@ import ch.qos.logback.access.AccessConstants;
 import ch.qos.logback.access.pattern.AccessConverter;
 import ch.qos.logback.access.spi.IAccessEvent;
 import ch.qos.logback.access.spi.ServerAdapter;
+import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
 import cn.wantedonline.puppy.httpserver.component.session.Session;
 import cn.wantedonline.puppy.util.AssertUtil;
+import cn.wantedonline.puppy.util.StringTools;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.*;
 
 // Contributors:  Joern Huxhorn (see also bug #110)
@@ -87,7 +91,64 @@ public class AccessEvent implements Serializable, IAccessEvent {
         this.httpRequest = httpRequest;
         this.httpResponse = httpResponse;
         this.timeStamp = System.currentTimeMillis();
-        this.elapsedTime = httpRequest.getCreateTime();
+        this.elapsedTime = timeStamp - httpRequest.getCreateTime();
+    }
+
+    private AccessEvent() {
+        this.httpRequest = null;
+        this.httpResponse = null;
+    }
+
+    /**
+     * <pre>
+     *     在I/O线程上提取访问日志需要的字段，生成不引用request/response的事件，交给异步写线程
+     *     请求头只保留headers中列出的，请求参数、响应头、请求属性不保留
+     *     hostLookups为false时%h直接输出客户端IP(同Tomcat的enableLookups=false)，
+     *     为true时在写线程上调用getRemoteHost才反查，每条日志都会阻塞写线程一次DNS查询
+     *     sessionId取请求已经拿到的Session或者Cookie中带来的Id，不查找Session，不会更新访问时间或者访问Session存储
+     * </pre>
+     */
+    public static AccessEvent capture(HttpRequest request, HttpResponse response, String[] headers, boolean hostLookups) {
+        AccessEvent event = new AccessEvent();
+        event.timeStamp = System.currentTimeMillis();
+        event.elapsedTime = event.timeStamp - request.getCreateTime();
+        event.threadName = Thread.currentThread().getName();
+        event.method = request.getMethodStr();
+        event.requestURI = request.getRequestURI();
+        String qStr = request.getQueryString();
+        event.queryString = qStr == null ? EMPTY : AccessConverter.QUESTION_CHAR + qStr;
+        event.protocol = request.getProtocol();
+        event.requestURL = event.method + AccessConverter.SPACE_CHAR + event.requestURI + event.queryString + AccessConverter.SPACE_CHAR + event.protocol;
+        event.remoteAddr = request.getPrimitiveRemoteIp();
+        if (!hostLookups) {
+            event.remoteHost = event.remoteAddr;
+        }
+        event.remoteUser = request.getRemoteUser();
+        event.serverName = request.getServerName();
+        event.localPort = request.getLocalPort();
+        event.sessionID = peekSessionId(request);
+        event.statusCode = response.getStatus().code();
+        event.contentLength = response.getContentLength();
+        event.requestHeaderMap = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : headers) {
+            String value = request.getHeader(name);
+            if (value != null) {
+                event.requestHeaderMap.put(name, value);
+            }
+        }
+        event.requestParameterMap = Collections.emptyMap();
+        event.responseHeaderMap = Collections.emptyMap();
+        event.attributeMap = Collections.emptyMap();
+        return event;
+    }
+
+    private static String peekSessionId(HttpRequest request) {
+        Session session = request.getCurrentSession();
+        if (AssertUtil.isNotNull(session)) {
+            return session.getId();
+        }
+        //只看Cookie，getRequestedSessionId可能会解析POST请求体
+        return request.getCookieValue(HttpServerConfig.SESSIONID_PARAMERTER, NA);
     }
 
     /**
@@ -208,6 +269,9 @@ public class AccessEvent implements Serializable, IAccessEvent {
                 // the underlying implementation of HttpServletRequest will
                 // determine if remote lookup will be performed
                 remoteHost = httpRequest.getRemoteHost();
+            } else if (StringTools.isNotEmpty(remoteAddr)) {
+                //capture生成的事件只有IP，在写线程上反查主机名
+                remoteHost = lookupHost(remoteAddr);
             } else {
                 remoteHost = NA;
             }
@@ -215,6 +279,14 @@ public class AccessEvent implements Serializable, IAccessEvent {
         return remoteHost;
     }
 
+    private static String lookupHost(String ip) {
+        try {
+            return InetAddress.getByName(ip).getHostName();
+        } catch (UnknownHostException e) {
+            return ip;
+        }
+    }
+
     /**
      * puppy 目前总是返回null
      * @return
@@ -259,10 +331,7 @@ public class AccessEvent implements Serializable, IAccessEvent {
     public String getSessionID() {
         if (sessionID == null) {
             if (httpRequest != null) {
-                final Session session = httpRequest.getSession();
-                if (session != null) {
-                    sessionID = session.getId();
-                }
+                sessionID = peekSessionId(httpRequest);
             } else {
                 sessionID = NA;
             }
@@ -16,6 +16,9 @@
 package cn.wantedonline.puppy.httpserver.component;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -23,12 +26,18 @@ import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import ch.qos.logback.access.joran.JoranConfigurator;
 import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.BasicStatusManager;
 import ch.qos.logback.core.Context;
 import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
 import ch.qos.logback.core.filter.Filter;
 import ch.qos.logback.core.joran.spi.JoranException;
 import ch.qos.logback.core.spi.AppenderAttachable;
@@ -43,11 +52,17 @@ import ch.qos.logback.core.status.StatusManager;
 import ch.qos.logback.core.status.WarnStatus;
 import ch.qos.logback.core.util.StatusPrinter;
 import cn.wantedonline.puppy.util.concurrent.ConcurrentUtil;
+import cn.wantedonline.puppy.util.concurrent.MpscRingBuffer;
 
 /**
  * This class is an implementation of tomcat's Valve interface, by extending ValveBase.
  * <p>
  * For more information on using LogbackValve please refer to the online documentation on <a href="http://logback.qos.ch/access.html#tomcat">logback-acces and tomcat</a>.
+ * <pre>
+ *     调用startWriter后改为异步写日志:I/O线程只提取AccessEvent.capture需要的字段放入有界环形队列，
+ *     独立的写线程批量取出，执行过滤器和appender，每批结束后flush一次
+ *     队列满时按blockWhenFull决定丢弃(计入droppedEvents)还是等待写线程腾出空间
+ * </pre>
  * 
  * @author Ceki G&uuml;lc&uuml;
  * @author S&eacute;bastien Pennec
@@ -93,6 +108,18 @@ public class AccessLogger implements Context, AppenderAttachable<AccessEvent>, F
         putObject(CoreConstants.EVALUATOR_MAP, new HashMap<Object, Object>());
     }
 
+    private static final long WRITER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private volatile MpscRingBuffer<AccessEvent> ringBuffer;
+    private volatile Thread writer;
+    private volatile boolean running;
+    private volatile boolean writerParked;
+    private volatile boolean blockWhenFull;
+    private volatile int batchSize = 256;
+    private volatile String[] capturedHeaders = {"Referer", "User-Agent"};
+    private volatile boolean hostLookups;
+    private final AtomicLong droppedEvents = new AtomicLong();
+
     private boolean logEnable = true;
     private boolean logSuccess = false;
     private InnerLog logimpl;
@@ -166,21 +193,24 @@ public class AccessLogger implements Context, AppenderAttachable<AccessEvent>, F
 
         @Override
         public void log(HttpRequest request, HttpResponse response) {
-
-            AccessEvent accessEvent = new AccessEvent(request, response);
-            if (getFilterChainDecision(accessEvent) == FilterReply.DENY) {
-                return;
+            if (running) {
+                enqueue(AccessEvent.capture(request, response, capturedHeaders, hostLookups));
+            } else {
+                AccessEvent event = new AccessEvent(request, response);
+                if (!hostLookups) {
+                    event.remoteHost = event.getRemoteAddr();
+                }
+                append(event);
             }
-            aai.appendLoopOnAppenders(accessEvent);
-
         }
 
         @Override
         public void log(AccessEvent accessEvent) {
-            if (getFilterChainDecision(accessEvent) == FilterReply.DENY) {
-                return;
+            if (running) {
+                enqueue(accessEvent);
+            } else {
+                append(accessEvent);
             }
-            aai.appendLoopOnAppenders(accessEvent);
         }
 
     }
@@ -202,8 +232,149 @@ public class AccessLogger implements Context, AppenderAttachable<AccessEvent>, F
         logimpl.log(accessEvent);
     }
 
+    private void append(AccessEvent accessEvent) {
+        if (getFilterChainDecision(accessEvent) == FilterReply.DENY) {
+            return;
+        }
+        aai.appendLoopOnAppenders(accessEvent);
+    }
+
+    private void enqueue(AccessEvent accessEvent) {
+        MpscRingBuffer<AccessEvent> rb = ringBuffer;
+        if (rb.offer(accessEvent)) {
+            if (writerParked) {
+                LockSupport.unpark(writer);
+            }
+            return;
+        }
+        if (blockWhenFull) {
+            while (running) {
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                if (rb.offer(accessEvent)) {
+                    return;
+                }
+            }
+        }
+        droppedEvents.incrementAndGet();
+    }
+
+    /**
+     * <pre>
+     *     启动异步写线程，已经启动时只更新丢弃策略、批量大小、记录的请求头和是否反查主机名
+     *     文件类appender改为不立即flush，由写线程每批flush一次
+     * </pre>
+     *
+     * @param queueSize 队列容量，只在第一次启动时生效
+     * @param batchSize 每批最多写多少条
+     * @param blockWhenFull 队列满时是否等待，false则丢弃
+     * @param headers 需要记录的请求头
+     * @param hostLookups %h是否反查客户端主机名，false时输出IP
+     */
+    public synchronized void startWriter(int queueSize, int batchSize, boolean blockWhenFull, String[] headers, boolean hostLookups) {
+        this.batchSize = Math.max(1, batchSize);
+        this.blockWhenFull = blockWhenFull;
+        this.capturedHeaders = headers;
+        this.hostLookups = hostLookups;
+        if (running) {
+            return;
+        }
+        for (Iterator<Appender<AccessEvent>> it = aai.iteratorForAppenders(); it.hasNext();) {
+            Appender<AccessEvent> appender = it.next();
+            if (appender instanceof OutputStreamAppender) {
+                Encoder<AccessEvent> encoder = ((OutputStreamAppender<AccessEvent>) appender).getEncoder();
+                if (encoder instanceof LayoutWrappingEncoder) {
+                    ((LayoutWrappingEncoder<AccessEvent>) encoder).setImmediateFlush(false);
+                }
+            }
+        }
+        ringBuffer = new MpscRingBuffer<>(queueSize);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "AccessLog writer");
+        writer.setDaemon(true);
+        running = true;
+        writer.start();
+    }
+
+    private void drainLoop() {
+        MpscRingBuffer<AccessEvent> rb = ringBuffer;
+        List<AccessEvent> batch = new ArrayList<>(batchSize);
+        while (running || !rb.isEmpty()) {
+            if (rb.drainTo(batch, batchSize) == 0) {
+                writerParked = true;
+                if (running && rb.isEmpty()) {
+                    LockSupport.parkNanos(this, WRITER_PARK_NANOS);
+                }
+                writerParked = false;
+                continue;
+            }
+            for (AccessEvent event : batch) {
+                try {
+                    append(event);
+                } catch (Throwable t) {
+                    getStatusManager().add(new ErrorStatus("append access event error", this, t));
+                }
+            }
+            batch.clear();
+            flushAppenders();
+        }
+        flushAppenders();
+    }
+
+    private void flushAppenders() {
+        for (Iterator<Appender<AccessEvent>> it = aai.iteratorForAppenders(); it.hasNext();) {
+            Appender<AccessEvent> appender = it.next();
+            if (appender instanceof OutputStreamAppender) {
+                OutputStream os = ((OutputStreamAppender<AccessEvent>) appender).getOutputStream();
+                if (os != null) {
+                    try {
+                        os.flush();
+                    } catch (IOException e) {
+                        getStatusManager().add(new ErrorStatus("flush access log error", this, e));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 队列满被丢弃的日志条数
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * 等待写线程处理的日志条数
+     */
+    public int getPendingEvents() {
+        MpscRingBuffer<AccessEvent> rb = ringBuffer;
+        return rb == null ? 0 : rb.size();
+    }
+
+    /**
+     * 停止写线程，队列中剩余的日志写完后返回，之后的日志同步写
+     */
     public void stop() {
         started = false;
+        Thread w;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            w = writer;
+        }
+        LockSupport.unpark(w);
+        try {
+            w.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
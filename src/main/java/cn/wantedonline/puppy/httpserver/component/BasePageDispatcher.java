@@ -16,15 +16,31 @@
 
 package cn.wantedonline.puppy.httpserver.component;
 
+import cn.wantedonline.puppy.exception.RequestEntityTooLargeError;
 import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
+import cn.wantedonline.puppy.httpserver.stat.NioWorkerStat;
 import cn.wantedonline.puppy.util.AssertUtil;
+import cn.wantedonline.puppy.util.Log;
 import cn.wantedonline.puppy.httpserver.component.HttpObjectAggregator.AggregatedFullHttpMessage;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayDeque;
+import java.util.Queue;
+
 /**
  * <pre>
  *  上层业务请求分发器，不同的业务可以继承该类实现特殊的需求
@@ -34,11 +50,23 @@ import org.springframework.beans.factory.annotation.Autowired;
  * @since V0.1.0 on 2016/11/18
  */
 public abstract class BasePageDispatcher extends AbstractPageDispatcher {
+    private static final Logger log = Log.getLogger();
 
     private static final AttributeKey<ContextAttachment> HTTP_ATTACH_KEY = AttributeKey.newInstance("HTTP_ATTACHMENT");
+    private static final AttributeKey<Queue<Object>> HTTP_PENDING_KEY = AttributeKey.newInstance("HTTP_PENDING_REQUESTS");
+    /** 连接建立或上一个响应写完的System.nanoTime()，即连接开始空闲的时间，供请求跟踪使用 */
+    private static final AttributeKey<Long> HTTP_IDLE_SINCE_NANOS_KEY = AttributeKey.newInstance("HTTP_IDLE_SINCE_NANOS");
+    private static final ChannelFutureListener MARK_IDLE_SINCE = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            future.channel().attr(HTTP_IDLE_SINCE_NANOS_KEY).set(System.nanoTime());
+        }
+    };
 
     @Autowired
     private HttpServerConfig config;
+    @Autowired
+    private NioWorkerStat nioWorkerStat;
 
     @Override
     public void init() {
@@ -47,6 +75,14 @@ public abstract class BasePageDispatcher extends AbstractPageDispatcher {
 
     public abstract void dispatch(ContextAttachment attachment) throws Exception;
 
+    /**
+     * 流式请求收到一块请求体时在EventLoop上调用，默认交给HttpRequest解码，超过阈值的部分写入磁盘
+     * 子类可以覆盖该方法直接消费数据块，content在方法返回后释放，需要保留时自行retain
+     */
+    protected void streamContent(ContextAttachment attachment, HttpContent content) throws Exception {
+        attachment.getRequest().offer(content);
+    }
+
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
         super.channelRegistered(ctx);
@@ -61,6 +97,7 @@ public abstract class BasePageDispatcher extends AbstractPageDispatcher {
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ctx.attr(HTTP_IDLE_SINCE_NANOS_KEY).set(System.nanoTime());
         super.channelActive(ctx);
         config.countStat.channelActive(ctx);
     }
@@ -68,6 +105,21 @@ public abstract class BasePageDispatcher extends AbstractPageDispatcher {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         config.countStat.channelInactive(ctx);
+        ContextAttachment current = ctx.attr(HTTP_ATTACH_KEY).get();
+        if (AssertUtil.isNotNull(current) && current.isReceiving()) {
+            //客户端在上传过程中断开，清理已经写入的临时文件
+            current.setReceiving(false);
+            current.getRequest().clean();
+        } else if (AssertUtil.isNotNull(current) && current.isNotAsync()) {
+            //响应还没写出连接就断开了，释放响应持有的文件；业务线程还在处理的由sendResponse写出时释放
+            current.clean();
+        }
+        Queue<Object> pending = ctx.attr(HTTP_PENDING_KEY).get();
+        if (AssertUtil.isNotNull(pending)) {
+            for (Object msg = pending.poll(); msg != null; msg = pending.poll()) {
+                ReferenceCountUtil.release(msg);
+            }
+        }
         ctx.close();
     }
 
@@ -77,9 +129,52 @@ public abstract class BasePageDispatcher extends AbstractPageDispatcher {
         config.countStat.exceptionCaught(ctx, cause);
     }
 
+    /**
+     * 写缓冲区超过高水位时暂停读取，避免慢客户端不断发来请求把响应堆积在内存里，降到低水位后恢复
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        nioWorkerStat.channelWritabilityChanged(ctx);
+        updateAutoRead(ctx);
+        super.channelWritabilityChanged(ctx);
+    }
+
+    /**
+     * 长连接空闲超过keepAliveTimeout后由IdleStateHandler触发，只关闭两次请求之间空闲的连接；
+     * 请求还在处理中（上传、业务线程执行、sendfile大文件下载）时不关闭，IdleStateHandler会在下一个周期再次触发。
+     * 管线化的响应按顺序写完，所以只需要看最后一个请求
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            ContextAttachment current = ctx.attr(HTTP_ATTACH_KEY).get();
+            if (AssertUtil.isNull(current) || !current.isBusy()) {
+                ctx.close();
+            }
+        } else {
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (AssertUtil.isNotNull(msg)) {
+            ContextAttachment previous = ctx.attr(HTTP_ATTACH_KEY).get();
+            if (AssertUtil.isNotNull(previous) && previous.isReceiving() && msg instanceof HttpContent && !(msg instanceof HttpMessage)) {
+                contentReceived(ctx, previous, (HttpContent) msg);
+                return;
+            }
+            if (AssertUtil.isNotNull(previous) && previous.isCloseAfterOperationComplete()) {
+                //上一个响应已经要求关闭连接，管线中后续的请求直接丢弃
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            if (AssertUtil.isNotNull(previous) && previous.isAsync()) {
+                //上一个请求还在业务线程池中处理，暂停读取并缓存请求，保证管线化的响应顺序
+                getPendingQueue(ctx).add(msg);
+                ctx.channel().config().setAutoRead(false);
+                return;
+            }
             ContextAttachment attach = getAttach(ctx);
             try {
                 if (msg instanceof HttpMessage) {
@@ -87,46 +182,220 @@ public abstract class BasePageDispatcher extends AbstractPageDispatcher {
                     if (msg instanceof AggregatedFullHttpMessage) {
                         AggregatedFullHttpMessage aggregatedFullHttpMessage = (AggregatedFullHttpMessage)msg;
                         request = (HttpRequest) aggregatedFullHttpMessage.message;
+                        //请求体交给HttpRequest持有，在clean()中释放
+                        request.setAggregatedContent(aggregatedFullHttpMessage.content().retain());
                     } else {
                         request = (HttpRequest)msg;
                     }
                     request.setRemoteAddress(ctx.channel().remoteAddress());
                     request.setLocalAddress(ctx.channel().localAddress());
                     attach.registerNewMessage(request);
-                    requestReceived(ctx, attach);
+                    attach.setTrace(config.requestTracer.begin(request.getUri(), getIdleSinceNanos(ctx), attach.getDecodeNanos()));
+                    attach.setCloseAfterOperationComplete(!isKeepAlive(request));
+                    if (request.isStreaming()) {
+                        //流式请求等请求体全部到达后再分发
+                        attach.setReceiving(true);
+                    } else {
+                        requestReceived(ctx, attach);
+                    }
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             } finally {
-                ChannelFuture future = ctx.writeAndFlush(attach.getResponse().copy());
-                attach.markWriteEnd();
-                //次数统计
-                config.countStat.responseSended(ctx, attach);
-                //时间统计
-                config.timeSpanStat.writeEnd(attach);
-                future.addListener(attach);
+                ReferenceCountUtil.release(msg);
+                if (attach.isReceiving()) {
+                    //继续等待请求体
+                } else if (AssertUtil.isNull(attach.getResponse())) {
+                    attach.clean();
+                    ctx.close();
+                } else if (attach.isNotAsync()) {
+                    writeResponse(ctx, attach);
+                }
+            }
+        }
+    }
+
+    /**
+     * 处理流式请求的一块请求体，最后一块到达或者出错时分发请求；出错后不再接收剩余数据，响应后关闭连接
+     */
+    private void contentReceived(ChannelHandlerContext ctx, ContextAttachment attach, HttpContent content) {
+        boolean last = content instanceof LastHttpContent;
+        try {
+            HttpRequest request = attach.getRequest();
+            int bytes = content.content().readableBytes();
+            if (!content.getDecoderResult().isSuccess()) {
+                attach.setReceiveError(content.getDecoderResult().cause());
+            } else if (request.getReceivedBytes() + bytes > config.getMaxUploadSize()) {
+                attach.setReceiveError(RequestEntityTooLargeError.INSTANCE);
+            } else {
+                //在这里计数，streamContent被子类覆盖或者交给StreamingCmd时同样受maxUploadSize限制
+                request.addReceivedBytes(bytes);
+                streamContent(attach, content);
+            }
+        } catch (Throwable t) {
+            attach.setReceiveError(t);
+        } finally {
+            content.release();
+        }
+        if (AssertUtil.isNotNull(attach.getReceiveError())) {
+            attach.setCloseAfterOperationComplete(true);
+            last = true;
+        }
+        if (!last) {
+            return;
+        }
+        attach.setReceiving(false);
+        try {
+            requestReceived(ctx, attach);
+        } catch (Exception e) {
+            log.error("dispatch streaming request:{} error", attach.getRequest().getUri(), e);
+        } finally {
+            if (AssertUtil.isNull(attach.getResponse())) {
+                attach.clean();
+                ctx.close();
+            } else if (attach.isNotAsync()) {
+                writeResponse(ctx, attach);
+            }
+        }
+    }
+
+    /**
+     * 业务线程处理完成后调用，切回Channel所在的EventLoop写出响应，并继续处理缓存的管线化请求
+     */
+    protected void sendResponse(final ContextAttachment attach) {
+        final ChannelHandlerContext ctx = attach.getChannelHandlerContext();
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                attach.setAsync(false);
+                if (!ctx.channel().isActive()) {
+                    //业务线程处理期间连接已经断开，文件不会再写出
+                    attach.getResponse().releaseFile();
+                }
+                writeResponse(ctx, attach);
+                resumePending(ctx);
+            }
+        });
+    }
+
+    private void writeResponse(ChannelHandlerContext ctx, ContextAttachment attach) {
+        setKeepAliveHeaders(attach);
+        //同一个EventLoop上按读取顺序写回，管线化的请求响应顺序与请求顺序一致
+        //响应体直接交给编码器，编码完成或写失败时由Netty释放
+        HttpResponse response = attach.getResponse();
+        attach.markWriteBegin();
+        //时间统计
+        config.timeSpanStat.writeBegin(attach);
+        ChannelFuture future = response.isFileContent() ? writeFile(ctx, attach) : ctx.writeAndFlush(response);
+        attach.markWriteEnd();
+        //次数统计
+        config.countStat.responseSended(ctx, attach);
+        //时间统计
+        config.timeSpanStat.writeEnd(attach);
+        config.cmdCountStat.writeEnd(attach);
+        future.addListener(attach);
+        future.addListener(MARK_IDLE_SINCE);
+    }
+
+    /**
+     * 先写出响应头，再通过sendfile(或者不支持时分块读取)写出文件，HEAD请求只写响应头
+     */
+    private ChannelFuture writeFile(ChannelHandlerContext ctx, ContextAttachment attach) {
+        HttpResponse response = attach.getResponse();
+        OpenFileCache.CachedFile file = response.takeFile();
+        DefaultHttpResponse head = new DefaultHttpResponse(response.getProtocolVersion(), response.getStatus());
+        head.headers().set(response.headers());
+        //响应体没有用到，直接释放
+        response.release();
+        ctx.write(head);
+        long length = response.getFileLength();
+        if (HttpMethod.HEAD.equals(attach.getRequest().getMethod()) || length <= 0) {
+            file.release();
+            return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+        if (config.isSendfile()) {
+            ctx.write(new OpenFileCache.CachedFileRegion(file, response.getFileOffset(), length));
+            return ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+        return ctx.writeAndFlush(new HttpChunkedInput(new OpenFileCache.CachedChunkedFile(file, response.getFileOffset(), length, config.getFileChunkSize())));
+    }
+
+    private void resumePending(ChannelHandlerContext ctx) {
+        Queue<Object> pending = ctx.attr(HTTP_PENDING_KEY).get();
+        if (AssertUtil.isNotNull(pending)) {
+            while (!pending.isEmpty()) {
+                if (ctx.attr(HTTP_ATTACH_KEY).get().isAsync()) {
+                    return;
+                }
+                try {
+                    channelRead(ctx, pending.poll());
+                } catch (Exception e) {
+                    ctx.fireExceptionCaught(e);
+                }
             }
         }
+        if (ctx.channel().isActive()) {
+            updateAutoRead(ctx);
+        }
+    }
+
+    /**
+     * 只有当前没有在业务线程池中处理的请求，并且写缓冲区没有超过高水位时才继续读取
+     */
+    private void updateAutoRead(ChannelHandlerContext ctx) {
+        ContextAttachment current = ctx.attr(HTTP_ATTACH_KEY).get();
+        boolean processing = AssertUtil.isNotNull(current) && current.isAsync();
+        ctx.channel().config().setAutoRead(ctx.channel().isWritable() && !processing);
+    }
+
+    private Queue<Object> getPendingQueue(ChannelHandlerContext ctx) {
+        Queue<Object> pending = ctx.attr(HTTP_PENDING_KEY).get();
+        if (AssertUtil.isNull(pending)) {
+            pending = new ArrayDeque<>(4);
+            ctx.attr(HTTP_PENDING_KEY).set(pending);
+        }
+        return pending;
     }
 
     private void requestReceived(ChannelHandlerContext ctx, ContextAttachment attachment) throws Exception {
         HttpResponse response = new HttpResponse(attachment);
-        attachment.markWriteBegin();
         attachment.registerNewMessage(response);
-        //重写SessionId cookie
-        if (config.getOpenSession()) {
-            attachment.writeSessionIdCookie(HttpServerConfig.sessionManager.getSessionIdGenerator());
-        }
         //次数统计
         config.countStat.requestReceived(ctx, attachment);
         //时间统计
-        config.timeSpanStat.writeBegin(attachment);
+        config.timeSpanStat.messageReceiveEnd(attachment);
         dispatch(attachment);
     }
 
+    /**
+     * 每个请求使用新的ContextAttachment，保证长连接上前一个响应的写回调不会影响当前请求
+     */
     public ContextAttachment getAttach(ChannelHandlerContext ctx) {
-        ctx.attr(HTTP_ATTACH_KEY).setIfAbsent(new ContextAttachment(ctx));
-        return ctx.attr(HTTP_ATTACH_KEY).get();
+        ContextAttachment previous = ctx.attr(HTTP_ATTACH_KEY).get();
+        ContextAttachment attach = new ContextAttachment(ctx, previous);
+        ctx.attr(HTTP_ATTACH_KEY).set(attach);
+        return attach;
+    }
+
+    private long getIdleSinceNanos(ChannelHandlerContext ctx) {
+        Long idleSinceNanos = ctx.attr(HTTP_IDLE_SINCE_NANOS_KEY).get();
+        return AssertUtil.isNull(idleSinceNanos) ? 0 : idleSinceNanos;
+    }
+
+    private boolean isKeepAlive(HttpRequest request) {
+        return HttpHeaders.isKeepAlive(request) && request.getDecoderResult().isSuccess();
+    }
+
+    private void setKeepAliveHeaders(ContextAttachment attach) {
+        HttpResponse response = attach.getResponse();
+        if (!HttpHeaders.isContentLengthSet(response)) {
+            HttpHeaders.setContentLength(response, response.content().readableBytes());
+        }
+        if (attach.isCloseAfterOperationComplete()) {
+            response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+        } else if (!attach.getRequest().getProtocolVersion().isKeepAliveDefault()) {
+            response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        }
     }
 
 
@@ -17,15 +17,25 @@
 package cn.wantedonline.puppy.httpserver.component;
 
 import cn.wantedonline.puppy.exception.ResourceNotFoundError;
+import cn.wantedonline.puppy.exception.ServerBusyError;
 import cn.wantedonline.puppy.httpserver.common.BaseCmd;
+import cn.wantedonline.puppy.httpserver.common.CmdInvoker;
 import cn.wantedonline.puppy.httpserver.common.CmdMappers;
+import cn.wantedonline.puppy.httpserver.common.CmdRouter;
+import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
+import cn.wantedonline.puppy.httpserver.common.StreamingCmd;
 import cn.wantedonline.puppy.httpserver.handler.TextResponseHandlerManager;
+import cn.wantedonline.puppy.httpserver.stat.RequestTrace;
 import cn.wantedonline.puppy.util.AssertUtil;
+import cn.wantedonline.puppy.util.Log;
 import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.lang.reflect.Method;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * <pre>
@@ -37,10 +47,14 @@ import java.lang.reflect.Method;
 @Sharable
 @Component
 public class CmdPageDispatcher extends BasePageDispatcher {
+    private static final Logger log = Log.getLogger();
+
     @Autowired
     private CmdMappers cmdMappers;
     @Autowired
     private TextResponseHandlerManager handlerManager;
+    @Autowired
+    private HttpServerConfig config;
 
     @Override
     public void init() {
@@ -50,36 +64,125 @@ public class CmdPageDispatcher extends BasePageDispatcher {
         cmdMappers.printFuzzyMap();
     }
 
+    /**
+     * 实现了StreamingCmd的Cmd直接接收请求体，否则交给HttpRequest解码
+     */
+    @Override
+    protected void streamContent(ContextAttachment attachment, HttpContent content) throws Exception {
+        BaseCmd cmd = findCmdMeta(attachment).getCmd();
+        if (cmd instanceof StreamingCmd) {
+            ((StreamingCmd) cmd).contentReceived(attachment.getRequest(), content);
+        } else {
+            super.streamContent(attachment, content);
+        }
+    }
+
     @Override
     public void dispatch(ContextAttachment attachment) throws Exception {
+        CmdMappers.CmdMeta meta = null;
+        try {
+            if (AssertUtil.isNotNull(attachment.getReceiveError())) {
+                throw attachment.getReceiveError();
+            }
+            meta = findCmdMeta(attachment);
+        } catch (Throwable ex) {
+            handlerManager.writeResponse(attachment, handlerManager.handleThrowable(attachment, ex));
+            return;
+        }
+        if (!config.concurrencyLimiter.tryAcquire(meta.getPriority())) {
+            rejectBusy(attachment);
+            return;
+        }
+        long begin = System.nanoTime();
+        if (meta.isOffload()) {
+            offload(attachment, begin);
+        } else {
+            try {
+                process(attachment);
+            } finally {
+                config.concurrencyLimiter.release(System.nanoTime() - begin);
+            }
+        }
+    }
+
+    /**
+     * 过载时立即返回503，并通过Retry-After告诉客户端多久后重试
+     */
+    private void rejectBusy(ContextAttachment attachment) throws Exception {
+        attachment.getResponse().headers().set(HttpHeaders.Names.RETRY_AFTER, config.concurrencyLimiter.getRetryAfterSeconds());
+        handlerManager.writeResponse(attachment, handlerManager.handleThrowable(attachment, ServerBusyError.INSTANCE));
+    }
+
+    /**
+     * 提交到业务线程池执行，执行完后由sendResponse切回EventLoop写出响应；队列已满时直接返回503
+     */
+    private void offload(final ContextAttachment attachment, final long begin) throws Exception {
+        attachment.setAsync(true);
+        try {
+            config.getBizExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process(attachment);
+                    } catch (Throwable ex) {
+                        log.error("process cmd:{} error", attachment.getCmdMeta(), ex);
+                    } finally {
+                        config.concurrencyLimiter.release(System.nanoTime() - begin);
+                        sendResponse(attachment);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            attachment.setAsync(false);
+            config.concurrencyLimiter.release(-1);
+            rejectBusy(attachment);
+        }
+    }
+
+    private void process(ContextAttachment attachment) throws Exception {
         Object cmdReturnObj = null;
         try {
             cmdReturnObj = _dispatch(attachment);
         } catch (Throwable ex) {
-            //交给异常处理器处理
-            cmdReturnObj = handlerManager.handleThrowable(attachment, ex);
+            //Cmd抛出的异常，交给异常处理器处理
+            cmdReturnObj = handlerManager.handleCmdThrowable(attachment, ex);
         } finally {
             handlerManager.writeResponse(attachment, cmdReturnObj);
         }
     }
 
-    private Object _dispatch(ContextAttachment attachment) throws Exception {
+    private CmdMappers.CmdMeta findCmdMeta(ContextAttachment attachment) {
+        if (AssertUtil.isNotNull(attachment.getCmdMeta())) {
+            return attachment.getCmdMeta();
+        }
         HttpRequest request = attachment.getRequest();
-        HttpResponse response = attachment.getResponse();
-        String path = request.getPath();
-        CmdMappers.CmdMeta meta = cmdMappers.getCmdMeta(path);
-        if (AssertUtil.isNull(meta)) {
+        CmdRouter.Route route = request.getRoute();
+        if (AssertUtil.isNull(route)) {
+            route = cmdMappers.route(request.getUri());
+        }
+        if (AssertUtil.isNull(route)) {
             //TODO:处理找不到meta的情况, 1 path是 / 则显示首页，2 path是不存在的页，显示404
             throw ResourceNotFoundError.INSTANCE;
         }
-
+        CmdMappers.CmdMeta meta = route.getMeta();
+        request.setPathParameters(route.getPathParameters());
         attachment.setCmdMeta(meta);
-        BaseCmd cmd = meta.getCmd();
-        Method method = meta.getMethod();
+        attachment.trace(RequestTrace.Phase.ROUTED);
+        return meta;
+    }
+
+    private Object _dispatch(ContextAttachment attachment) throws Throwable {
+        HttpRequest request = attachment.getRequest();
+        HttpResponse response = attachment.getResponse();
+        CmdInvoker invoker = attachment.getCmdMeta().getInvoker();
         try {
             attachment.registerProcessThread();
-            return method.invoke(cmd, request, response);
+            attachment.trace(RequestTrace.Phase.CMD_START);
+            config.slowRequestSampler.processBegin(attachment);
+            return invoker.invoke(request, response);
         } finally {
+            config.slowRequestSampler.processEnd(attachment);
+            attachment.trace(RequestTrace.Phase.CMD_END);
             attachment.unRegisterProcessThread();
         }
     }
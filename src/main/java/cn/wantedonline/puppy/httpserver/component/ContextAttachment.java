@@ -18,11 +18,11 @@ package cn.wantedonline.puppy.httpserver.component;
 
 import cn.wantedonline.puppy.httpserver.common.CmdMappers;
 import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
+import cn.wantedonline.puppy.httpserver.component.session.Session;
 import cn.wantedonline.puppy.httpserver.httptools.CookieHelper;
+import cn.wantedonline.puppy.httpserver.stat.RequestTrace;
 import cn.wantedonline.puppy.util.AssertUtil;
 import cn.wantedonline.puppy.util.DefaultSessionIdGenerator;
-import cn.wantedonline.puppy.util.SessionIdGenerator;
-import cn.wantedonline.puppy.util.StringTools;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
@@ -51,6 +51,13 @@ public class ContextAttachment implements ChannelFutureListener, Comparable<Cont
     private long process;
     private long encode;
     private long complete;
+    /** 各阶段的System.nanoTime()，用于亚毫秒精度的耗时统计 */
+    private long decodeNanos;
+    private long processNanos;
+    private long encodeNanos;
+    private long completeNanos;
+    /** 被采样的请求才有跟踪记录，未采样为null */
+    private RequestTrace trace;
 
     private volatile Thread processThread;
 
@@ -60,6 +67,14 @@ public class ContextAttachment implements ChannelFutureListener, Comparable<Cont
 
     private volatile boolean running;
     private volatile boolean closeAfterOperationComplete = true;
+    /** 请求已提交到业务线程池，响应由业务线程处理完后切回EventLoop写出 */
+    private volatile boolean async;
+    /** 响应已经交给Channel写出，还没有写完（sendfile下整个文件是一次写操作） */
+    private volatile boolean writing;
+    /** 流式请求的请求头已经到达，还在等待后续的请求体 */
+    private boolean receiving;
+    /** 接收流式请求体时发生的错误，分发时直接返回错误响应 */
+    private Throwable receiveError;
 
     public void registerThrowable(Throwable ex) {
         if (AssertUtil.isEmptyCollection(throwables)) {
@@ -82,7 +97,12 @@ public class ContextAttachment implements ChannelFutureListener, Comparable<Cont
     }
 
     public void markWriteBegin() {
+        this.writing = true;
         this.encode = this.lastWriteTime = System.currentTimeMillis();
+        this.encodeNanos = System.nanoTime();
+        if (AssertUtil.isNotNull(trace)) {
+            trace.mark(RequestTrace.Phase.WRITE_BEGIN, encodeNanos);
+        }
     }
 
     /**
@@ -91,6 +111,7 @@ public class ContextAttachment implements ChannelFutureListener, Comparable<Cont
     public long markWriteEnd() {
         long ori = this.complete;
         this.complete = this.lastWriteTime = System.currentTimeMillis();
+        this.completeNanos = System.nanoTime();
         return ori == 0 ? -1 : complete - ori;
     }
 
@@ -121,16 +142,24 @@ public class ContextAttachment implements ChannelFutureListener, Comparable<Cont
         this.processThread = Thread.currentThread();
     }
 
-    public void writeSessionIdCookie(SessionIdGenerator idGenerator) {
-        String sessionId = null;
-        if (AssertUtil.isNotNull(request) && AssertUtil.isNotNull(response)) {
-            sessionId = request.getRequestedSessionId();
+    /**
+     * 本次请求取到或新建了Session时下发SessionId cookie，每次访问都重新下发以延长cookie的Max-Age，
+     * Cmd没有用到Session的请求不生成SessionId，也不写cookie
+     */
+    public void writeSessionIdCookie() {
+        if (AssertUtil.isNull(request) || AssertUtil.isNull(response) || AssertUtil.isNull(HttpServerConfig.sessionManager)) {
+            return;
         }
-        if (StringTools.isEmpty(sessionId)) {
-            sessionId = idGenerator.generateSessionId();
+        Session session = request.getCurrentSession();
+        if (AssertUtil.isNull(session) || !session.isValid()) {
+            return;
         }
         int maxAge = HttpServerConfig.sessionManager.getSessionMaxAliveTime();
-        CookieHelper.addSessionCookie(sessionId, maxAge, response);
+        CookieHelper.addSessionCookie(session.getId(), maxAge, response);
+    }
+
+    public Thread getProcessThread() {
+        return processThread;
     }
 
     public synchronized void unRegisterProcessThread() {
@@ -165,6 +194,22 @@ public class ContextAttachment implements ChannelFutureListener, Comparable<Cont
         return complete;
     }
 
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public long getProcessNanos() {
+        return processNanos;
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    public long getCompleteNanos() {
+        return completeNanos;
+    }
+
     public HttpRequest getRequest() {
         return request;
     }
@@ -185,20 +230,111 @@ public class ContextAttachment implements ChannelFutureListener, Comparable<Cont
         return cmdMeta;
     }
 
+    public RequestTrace getTrace() {
+        return trace;
+    }
+
+    public void setTrace(RequestTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * 请求被采样时记录阶段时间
+     */
+    public void trace(RequestTrace.Phase phase) {
+        if (AssertUtil.isNotNull(trace)) {
+            trace.mark(phase);
+        }
+    }
+
     public ContextAttachment(ChannelHandlerContext ctx) {
         this.channelHandlerContext = ctx;
         this.channelOpenTime = this.lastReadTime = this.lastWriteTime = System.currentTimeMillis();
     }
 
+    /**
+     * 长连接上的后续请求使用新的Attachment，保留通道建立时间，
+     * 避免上一个响应的写回调与当前请求共享状态
+     */
+    public ContextAttachment(ChannelHandlerContext ctx, ContextAttachment previous) {
+        this(ctx);
+        if (AssertUtil.isNotNull(previous)) {
+            this.channelOpenTime = previous.channelOpenTime;
+            this.lastWriteTime = previous.lastWriteTime;
+        }
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public boolean isNotAsync() {
+        return !async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public boolean isWriting() {
+        return writing;
+    }
+
+    /**
+     * 请求还在处理中：正在接收请求体、在业务线程执行或者响应还没写完
+     */
+    public boolean isBusy() {
+        return async || receiving || writing;
+    }
+
+    public boolean isReceiving() {
+        return receiving;
+    }
+
+    public void setReceiving(boolean receiving) {
+        this.receiving = receiving;
+    }
+
+    public Throwable getReceiveError() {
+        return receiveError;
+    }
+
+    public void setReceiveError(Throwable receiveError) {
+        this.receiveError = receiveError;
+    }
+
+    public boolean isCloseAfterOperationComplete() {
+        return closeAfterOperationComplete;
+    }
+
+    public void setCloseAfterOperationComplete(boolean closeAfterOperationComplete) {
+        this.closeAfterOperationComplete = closeAfterOperationComplete;
+    }
+
     @Override
     public void operationComplete(ChannelFuture future) throws Exception {
         running = false;
+        writing = false;
+        if (AssertUtil.isNotNull(trace)) {
+            trace.finish(AssertUtil.isNull(cmdMeta) ? null : cmdMeta.getName(), AssertUtil.isNull(response) ? 0 : response.getStatus().code());
+        }
         if (closeAfterOperationComplete) {
             future.channel().close();
         }
+        clean();
+    }
+
+    /**
+     * 释放请求的临时数据和响应还没交给Channel的文件引用，可以重复调用
+     * 写完、没有响应直接关闭、连接在写出之前断开时都要调用，保证setFile取得的引用一定被释放
+     */
+    public void clean() {
         if (AssertUtil.isNotNull(request)) {
             request.clean();
         }
+        if (AssertUtil.isNotNull(response)) {
+            response.releaseFile();
+        }
     }
 
     @Override
@@ -209,11 +345,16 @@ public class ContextAttachment implements ChannelFutureListener, Comparable<Cont
     public void registerNewMessage(HttpResponse response) {
         this.response = response;
         this.process = response.getCreateTime();
+        this.processNanos = response.getCreateNanos();
+        if (AssertUtil.isNotNull(trace)) {
+            trace.mark(RequestTrace.Phase.DECODED, processNanos);
+        }
     }
 
     public void registerNewMessage(HttpRequest request) {
         this.request = request;
         this.decode = request.getCreateTime();
+        this.decodeNanos = request.getCreateNanos();
         this.lastReadTime = this.decode;
     }
 }
@@ -16,6 +16,9 @@
 
 package cn.wantedonline.puppy.httpserver.component;
 
+import cn.wantedonline.puppy.httpserver.common.CmdMappers;
+import cn.wantedonline.puppy.httpserver.common.CmdRouter;
+import cn.wantedonline.puppy.util.AssertUtil;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufHolder;
 import io.netty.buffer.CompositeByteBuf;
@@ -27,6 +30,7 @@ import io.netty.handler.codec.DecoderResult;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.handler.codec.TooLongFrameException;
 import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
 
 import java.util.List;
 
@@ -38,6 +42,7 @@ import static io.netty.handler.codec.http.HttpHeaders.removeTransferEncodingChun
  * <pre>
  *     Refer to io.netty.handler.codec.http.HttpObjectAggregator
  *     适配Puppy的HttpRequest和HttpResponse
+ *     映射到流式Cmd(@Cmd(streaming = true))的请求不做聚合，请求头和后续的HttpContent原样向后传递
  * </pre>
  *
  * @author wangcheng
@@ -55,7 +60,10 @@ public class HttpObjectAggregator extends MessageToMessageDecoder<HttpObject> {
     }
 
     private final int maxContentLength;
+    private final long maxStreamingContentLength;
     private boolean tooLongFrameFound;
+    private boolean streaming;
+    private final CmdMappers cmdMappers;
     private final boolean closeOnExpectationFailed;
     private AggregatedFullHttpMessage currentMessage;
 
@@ -67,11 +75,25 @@ public class HttpObjectAggregator extends MessageToMessageDecoder<HttpObject> {
     }
 
     public HttpObjectAggregator(int maxContentLength, boolean closeOnExpectationFailed) {
+        this(maxContentLength, 0, null, closeOnExpectationFailed);
+    }
+
+    /**
+     * @param maxStreamingContentLength 流式请求体的最大长度，小于等于0时不开启流式模式
+     * @param cmdMappers 用来判断请求是否映射到流式Cmd，为null时不开启流式模式
+     */
+    public HttpObjectAggregator(int maxContentLength, long maxStreamingContentLength, CmdMappers cmdMappers) {
+        this(maxContentLength, maxStreamingContentLength, cmdMappers, false);
+    }
+
+    public HttpObjectAggregator(int maxContentLength, long maxStreamingContentLength, CmdMappers cmdMappers, boolean closeOnExpectationFailed) {
         if (maxContentLength <= 0) {
             throw new IllegalArgumentException("maxContentLength must be a positive integer: " + maxContentLength);
         }
         this.maxContentLength = maxContentLength;
+        this.maxStreamingContentLength = maxStreamingContentLength;
         this.closeOnExpectationFailed = closeOnExpectationFailed;
+        this.cmdMappers = maxStreamingContentLength > 0 ? cmdMappers : null;
     }
 
     /**
@@ -115,10 +137,12 @@ public class HttpObjectAggregator extends MessageToMessageDecoder<HttpObject> {
             assert currentMessage == null;
 
             HttpMessage m = (HttpMessage) msg;
+            streaming = m.getDecoderResult().isSuccess() && isStreaming(m);
 
             // Handle the 'Expect: 100-continue' header if necessary.
             if (is100ContinueExpected(m)) {
-                if (HttpHeaders.getContentLength(m, 0) > maxContentLength) {
+                if (HttpHeaders.getContentLength(m, 0) > (streaming ? maxStreamingContentLength : maxContentLength)) {
+                    streaming = false;
                     tooLongFrameFound = true;
                     final ChannelFuture future = ctx.writeAndFlush(EXPECTATION_FAILED.duplicate().retain());
                     future.addListener(new ChannelFutureListener() {
@@ -151,6 +175,12 @@ public class HttpObjectAggregator extends MessageToMessageDecoder<HttpObject> {
                 this.currentMessage = null;
                 return;
             }
+            if (streaming) {
+                // 流式请求，请求体由BasePageDispatcher按块处理
+                ((HttpRequest) msg).setStreaming(true);
+                out.add(ReferenceCountUtil.retain(msg));
+                return;
+            }
             if (msg instanceof HttpRequest) {
                 HttpRequest header = (HttpRequest) msg;
                 this.currentMessage = currentMessage = new AggregatedFullHttpRequest(header, ctx.alloc().compositeBuffer(maxCumulationBufferComponents), null);
@@ -164,6 +194,13 @@ public class HttpObjectAggregator extends MessageToMessageDecoder<HttpObject> {
             // A streamed message - initialize the cumulative buffer, and wait for incoming chunks.
             removeTransferEncodingChunked(currentMessage);
         } else if (msg instanceof HttpContent) {
+            if (streaming) {
+                if (msg instanceof LastHttpContent) {
+                    streaming = false;
+                }
+                out.add(ReferenceCountUtil.retain(msg));
+                return;
+            }
             if (tooLongFrameFound) {
                 if (msg instanceof LastHttpContent) {
                     this.currentMessage = null;
@@ -235,6 +272,17 @@ public class HttpObjectAggregator extends MessageToMessageDecoder<HttpObject> {
         }
     }
 
+    private boolean isStreaming(HttpMessage m) {
+        if (AssertUtil.isNull(cmdMappers) || !(m instanceof HttpRequest)) {
+            return false;
+        }
+        HttpRequest request = (HttpRequest) m;
+        CmdRouter.Route route = cmdMappers.route(request.getUri());
+        //保存下来，CmdPageDispatcher不用再匹配一次
+        request.setRoute(route);
+        return AssertUtil.isNotNull(route) && route.getMeta().isStreaming();
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
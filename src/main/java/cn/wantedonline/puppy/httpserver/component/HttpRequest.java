@@ -17,6 +17,7 @@
 package cn.wantedonline.puppy.httpserver.component;
 
 import cn.wantedonline.puppy.exception.IllegalParameterError;
+import cn.wantedonline.puppy.httpserver.common.CmdRouter;
 import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
 import cn.wantedonline.puppy.httpserver.component.session.Session;
 import cn.wantedonline.puppy.httpserver.component.session.SessionManager;
@@ -50,9 +51,8 @@ public class HttpRequest extends DefaultFullHttpRequest {
     private static final String COOKIE = HttpHeaders.Names.COOKIE;
     private static final String PARAMETER = "Parameter";
 
-    private static final HttpDataFactory factory = new DefaultHttpDataFactory(DefaultHttpDataFactory.MINSIZE);
-
     private long createTime = System.currentTimeMillis();
+    private long createNanos = System.nanoTime();
 
     private ServerCookieDecoder cookieDecoder = ServerCookieDecoder.STRICT;
     private QueryStringDecoder queryStringDecoder;
@@ -60,6 +60,18 @@ public class HttpRequest extends DefaultFullHttpRequest {
     private HttpPostRequestDecoder httpPostRequestDecoder;
 
     private boolean httpPostRequestDecoderInit;
+    private HttpDataFactory httpDataFactory;
+
+    /**
+     * 聚合模式下的请求体，由HttpObjectAggregator聚合而来，在clean()中释放
+     */
+    private ByteBuf aggregatedContent;
+    /**
+     * 流式模式下请求体不做聚合，按块交给HttpPostRequestDecoder或者写入rawBody
+     */
+    private boolean streaming;
+    private long receivedBytes;
+    private FileUpload rawBody;
     private SocketAddress localAddress;
     private SocketAddress remoteAddress;
     private String localIp;
@@ -69,6 +81,9 @@ public class HttpRequest extends DefaultFullHttpRequest {
     private Map<String, List<String>> parametersByGet;
     private Map<String, List<String>> parametersByPost;
     private Map<String, Cookie> cookiesMap;
+    private Map<String, String> pathParameters = Collections.emptyMap();
+    /** HttpObjectAggregator判断流式请求时匹配到的路由，分发时直接使用 */
+    private CmdRouter.Route route;
 
     private Session session = null;
 
@@ -89,14 +104,139 @@ public class HttpRequest extends DefaultFullHttpRequest {
         super(httpVersion, method, uri, content, validateHeaders);
     }
 
+    /**
+     * 释放请求体以及解码过程中创建的临时文件，可以重复调用
+     */
     public void clean() {
-        //TODO:清理资源,比如长连接或者创建了文件资源等
+        if (AssertUtil.isNotNull(httpPostRequestDecoder)) {
+            httpPostRequestDecoder.destroy();
+            httpPostRequestDecoder = null;
+        }
+        if (AssertUtil.isNotNull(rawBody)) {
+            httpDataFactory.cleanRequestHttpDatas(this);
+            rawBody = null;
+        }
+        if (AssertUtil.isNotNull(aggregatedContent)) {
+            aggregatedContent.release();
+            aggregatedContent = null;
+        }
+    }
+
+    @Override
+    public ByteBuf content() {
+        return AssertUtil.isNotNull(aggregatedContent) ? aggregatedContent : super.content();
+    }
+
+    /**
+     * 接管聚合后的请求体，调用方需要保证content已经retain
+     */
+    public void setAggregatedContent(ByteBuf content) {
+        this.aggregatedContent = content;
+    }
+
+    public CmdRouter.Route getRoute() {
+        return route;
+    }
+
+    public void setRoute(CmdRouter.Route route) {
+        this.route = route;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * 流式模式下已经收到的请求体字节数
+     */
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * 由BasePageDispatcher在每块请求体交给Cmd或者解码之前累加，无论请求体由谁消费都计入maxUploadSize
+     */
+    void addReceivedBytes(long bytes) {
+        receivedBytes += bytes;
+    }
+
+    /**
+     * <pre>
+     * 流式模式下收到一块请求体:
+     * 表单(multipart/x-www-form-urlencoded)交给HttpPostRequestDecoder解码，
+     * 其他类型的请求体整体写入一个FileUpload，超过uploadMemoryThreshold的部分会落到磁盘
+     * 调用方负责释放content
+     * </pre>
+     */
+    public void offer(HttpContent content) throws IOException {
+        ByteBuf buf = content.content();
+        boolean last = content instanceof LastHttpContent;
+        HttpPostRequestDecoder decoder = getHttpPostRequestDecoder();
+        if (AssertUtil.isNotNull(decoder)) {
+            decoder.offer(content);
+            return;
+        }
+        if (AssertUtil.isNull(rawBody)) {
+            String contentType = headers().get(HttpHeaders.Names.CONTENT_TYPE);
+            if (StringTools.isEmpty(contentType)) {
+                contentType = "application/octet-stream";
+            }
+            rawBody = getHttpDataFactory().createFileUpload(this, "body", "body", contentType, null, charset4ContentDecoder, HttpHeaders.getContentLength(this, 0));
+        }
+        rawBody.addContent(buf.retain(), last);
+    }
+
+    /**
+     * 获取已经接收完整的上传文件，非表单的流式请求体作为名字为body的FileUpload返回
+     */
+    public List<FileUpload> getFileUploads() {
+        if (AssertUtil.isNotNull(rawBody)) {
+            return rawBody.isCompleted() ? Collections.singletonList(rawBody) : Collections.<FileUpload>emptyList();
+        }
+        HttpPostRequestDecoder decoder = getHttpPostRequestDecoder();
+        if (AssertUtil.isNull(decoder)) {
+            return Collections.emptyList();
+        }
+        List<FileUpload> uploads = new ArrayList<>(1);
+        try {
+            for (InterfaceHttpData data : decoder.getBodyHttpDatas()) {
+                if (data instanceof FileUpload && ((FileUpload) data).isCompleted()) {
+                    uploads.add((FileUpload) data);
+                }
+            }
+        } catch (HttpPostRequestDecoder.NotEnoughDataDecoderException e) {
+            log.error("req:{}", this, e);
+        }
+        return uploads;
+    }
+
+    private boolean isFormContentType(String contentType) {
+        if (StringTools.isEmpty(contentType)) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith(HttpHeaders.Values.MULTIPART_FORM_DATA) || type.startsWith(HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED);
+    }
+
+    private HttpDataFactory getHttpDataFactory() {
+        if (AssertUtil.isNull(httpDataFactory)) {
+            httpDataFactory = HttpServerConfig.getHttpDataFactory();
+        }
+        return httpDataFactory;
     }
 
     public long getCreateTime() {
         return createTime;
     }
 
+    public long getCreateNanos() {
+        return createNanos;
+    }
+
     public Charset getCharset4QueryStringDecoder() {
         return charset4QueryStringDecoder;
     }
@@ -104,9 +244,17 @@ public class HttpRequest extends DefaultFullHttpRequest {
     public HttpPostRequestDecoder getHttpPostRequestDecoder() {
         if (!httpPostRequestDecoderInit) {
             HttpMethod method = getMethod();
-            if (method.equals(HttpMethod.POST) || method.equals(HttpMethod.PUT)) {
+            //流式模式下只解码表单，其他类型的请求体由offer()写入rawBody
+            boolean decodable = !streaming || isFormContentType(headers().get(HttpHeaders.Names.CONTENT_TYPE));
+            if (decodable && (method.equals(HttpMethod.POST) || method.equals(HttpMethod.PUT))) {
                 try {
-                    httpPostRequestDecoder = new HttpPostRequestDecoder(factory, this, charset4ContentDecoder);
+                    // 流式模式下请求体还没有到达，只把请求头交给解码器，后续通过offer()逐块喂给它
+                    io.netty.handler.codec.http.HttpRequest source = this;
+                    if (streaming) {
+                        source = new DefaultHttpRequest(getProtocolVersion(), method, getUri());
+                        source.headers().set(headers());
+                    }
+                    httpPostRequestDecoder = new HttpPostRequestDecoder(getHttpDataFactory(), source, charset4ContentDecoder);
                 } catch (HttpPostRequestDecoder.ErrorDataDecoderException e) {
                     log.error("request postDataDecode error:{}", this, e);
                 } catch (HttpPostRequestDecoder.IncompatibleDataDecoderException e) {}
@@ -400,7 +548,8 @@ public class HttpRequest extends DefaultFullHttpRequest {
             return (null);
         }
 
-        session = manager.createSession(getRequestedSessionId());
+        // 总是生成新的SessionId，不沿用客户端带来的无效Id
+        session = manager.createSession(null);
 
         if (session == null) {
             return null;
@@ -410,6 +559,13 @@ public class HttpRequest extends DefaultFullHttpRequest {
         return session;
     }
 
+    /**
+     * @return 本次请求已经取到或者新建的Session，不查找也不创建，不会更新Session的访问时间
+     */
+    public Session getCurrentSession() {
+        return session;
+    }
+
     public String getRequestedSessionId() {
         if (StringTools.isNotEmpty(requestedSessionId)) {
             return requestedSessionId;
@@ -432,9 +588,29 @@ public class HttpRequest extends DefaultFullHttpRequest {
         if (AssertUtil.isNotEmptyCollection(v)) {
             return v.get(0);
         }
+        //再从路径参数获取，如/user/{id}
+        String pathValue = pathParameters.get(key);
+        if (AssertUtil.isNotNull(pathValue)) {
+            return pathValue;
+        }
         return getParametersbyPost(key);
     }
 
+    /**
+     * 路由中{name}匹配到的路径参数
+     */
+    public String getPathParameter(String key) {
+        return pathParameters.get(key);
+    }
+
+    public Map<String, String> getPathParameters() {
+        return pathParameters;
+    }
+
+    public void setPathParameters(Map<String, String> pathParameters) {
+        this.pathParameters = pathParameters;
+    }
+
     public String getParameter(String key, String defaultValue) {
         String v = getParameter(key);
         if (StringTools.isEmpty(v)) {
@@ -23,7 +23,9 @@ import cn.wantedonline.puppy.util.AssertUtil;
 import cn.wantedonline.puppy.util.CharsetTools;
 import cn.wantedonline.puppy.util.StringTools;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -32,12 +34,17 @@ import io.netty.handler.codec.http.cookie.ClientCookieEncoder;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.CookieEncoder;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
+import io.netty.util.CharsetUtil;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
+ * <pre>
+ *     响应对象，由Channel的ByteBufAllocator分配响应体，直接交给编码器写出，不再复制，
+ *     写出后由编码器负责释放，写出之后不能再访问content()
+ * </pre>
  *
  * @author wangcheng
  * @since V0.1.0 on 16/11/22.
@@ -46,6 +53,7 @@ public class HttpResponse extends DefaultFullHttpResponse {
 
     private List<Cookie> cookies = new ArrayList<Cookie>(1);
     private long createTime = System.currentTimeMillis();
+    private long createNanos = System.nanoTime();
     private ContentType innerContentType = HttpServerConfig.getRespInnerContentType();
     private ContextAttachment attach;
     private int contentLength = -1;
@@ -53,6 +61,10 @@ public class HttpResponse extends DefaultFullHttpResponse {
     private String contentString;
     private boolean binaryContent; //是否为二进制内容
     private boolean contentSetted = false;
+    //文件响应，写出时不使用content()，而是通过sendfile或者分块写出文件的[fileOffset, fileOffset + fileLength)
+    private OpenFileCache.CachedFile file;
+    private long fileOffset;
+    private long fileLength;
 
     public HttpResponse() {
         super(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
@@ -63,10 +75,22 @@ public class HttpResponse extends DefaultFullHttpResponse {
     }
 
     public HttpResponse(ContextAttachment attach) {
-        super(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        super(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, allocContent(attach));
         this.attach = attach;
     }
 
+    public ContextAttachment getAttach() {
+        return attach;
+    }
+
+    private static ByteBuf allocContent(ContextAttachment attach) {
+        ChannelHandlerContext ctx = AssertUtil.isNull(attach) ? null : attach.getChannelHandlerContext();
+        if (AssertUtil.isNull(ctx)) {
+            return Unpooled.buffer(0);
+        }
+        return ctx.alloc().ioBuffer(0);
+    }
+
     /**
      * 使用DefaultCookie
      * @param cookie
@@ -133,11 +157,68 @@ public class HttpResponse extends DefaultFullHttpResponse {
             return;
         }
         this.contentString = contentStr;
-        content().writeBytes(contentStr.getBytes(contentCharset));
+        //UTF-8和ASCII直接编码进响应的ByteBuf，省去中间的byte[]
+        if (CharsetUtil.UTF_8.equals(contentCharset)) {
+            ByteBufUtil.writeUtf8(content(), contentStr);
+        } else if (CharsetUtil.US_ASCII.equals(contentCharset)) {
+            ByteBufUtil.writeAscii(content(), contentStr);
+        } else {
+            content().writeBytes(contentStr.getBytes(contentCharset));
+        }
         contentLength = content().readableBytes();
         contentSetted = true;
     }
 
+    /**
+     * 调用方已经直接写入了content()，更新长度并标记响应体已设置
+     */
+    public void contentWritten() {
+        contentLength = content().readableBytes();
+        contentSetted = true;
+    }
+
+    /**
+     * 使用文件作为响应体，接管file的引用，由BasePageDispatcher写出后释放
+     */
+    public void setFile(OpenFileCache.CachedFile file, long offset, long length) {
+        releaseFile();
+        this.file = file;
+        this.fileOffset = offset;
+        this.fileLength = length;
+        HttpHeaders.setContentLength(this, length);
+        contentLength = length > Integer.MAX_VALUE ? -1 : (int) length;
+        contentSetted = true;
+        binaryContent = true;
+    }
+
+    /**
+     * 取出文件响应体，之后由调用方负责释放
+     */
+    public OpenFileCache.CachedFile takeFile() {
+        OpenFileCache.CachedFile f = file;
+        file = null;
+        return f;
+    }
+
+    public boolean isFileContent() {
+        return AssertUtil.isNotNull(file);
+    }
+
+    public long getFileOffset() {
+        return fileOffset;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public void releaseFile() {
+        if (AssertUtil.isNotNull(file)) {
+            file.release();
+            file = null;
+        }
+    }
+
     public int getContentLength() {
         return contentLength;
     }
@@ -180,6 +261,10 @@ public class HttpResponse extends DefaultFullHttpResponse {
         return createTime;
     }
 
+    public long getCreateNanos() {
+        return createNanos;
+    }
+
     public ContentType getInnerContentType() {
         return innerContentType;
     }
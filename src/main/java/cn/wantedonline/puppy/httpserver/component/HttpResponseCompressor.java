@@ -0,0 +1,247 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.component;
+
+import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
+import cn.wantedonline.puppy.spring.BeanUtil;
+import cn.wantedonline.puppy.util.AssertUtil;
+import cn.wantedonline.puppy.util.StringTools;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <pre>
+ *     响应压缩，根据Accept-Encoding选择gzip或者deflate
+ *     以下响应不压缩：二进制内容、文件响应、小于compressMinSize、Content-Type不在compressContentTypes中、
+ *     已经设置了Content-Encoding、HEAD请求以及没有响应体的状态码
+ *     可以压缩的响应不管是否压缩都带上Vary: Accept-Encoding，避免缓存把压缩结果发给不支持的客户端
+ *     响应体一般是直接内存，按块拷到线程内复用的数组里交给Deflater，不为每个响应分配整块数组
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public class HttpResponseCompressor extends MessageToMessageEncoder<HttpResponse> {
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int INPUT_CHUNK_SIZE = 16 * 1024;
+
+    private static final FastThreadLocal<Deflater> GZIP_DEFLATER = new FastThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() throws Exception {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+    private static final FastThreadLocal<Deflater> ZLIB_DEFLATER = new FastThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() throws Exception {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+        }
+    };
+
+    private static final FastThreadLocal<byte[]> INPUT_CHUNK = new FastThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() throws Exception {
+            return new byte[INPUT_CHUNK_SIZE];
+        }
+    };
+
+    //这里没有注入到Spring容器中，只能通过这种方式获取Config
+    private static HttpServerConfig config = BeanUtil.getTypedBean(HttpServerConfig.class);
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, HttpResponse response, List<Object> out) throws Exception {
+        if (!shouldCompress(response)) {
+            out.add(response.retain());
+            return;
+        }
+        addVary(response);
+        String encoding = selectEncoding(response.getAttach().getRequest());
+        if (AssertUtil.isNull(encoding)) {
+            out.add(response.retain());
+            return;
+        }
+        ByteBuf content = response.content();
+        int rawSize = content.readableBytes();
+        ByteBuf compressed = compress(ctx, encoding, content);
+
+        FullHttpResponse encoded = new DefaultFullHttpResponse(response.getProtocolVersion(), response.getStatus(), compressed);
+        encoded.headers().set(response.headers());
+        encoded.headers().set(HttpHeaders.Names.CONTENT_ENCODING, encoding);
+        HttpHeaders.setContentLength(encoded, compressed.readableBytes());
+        config.streamStat.getCompressRaw().record(rawSize);
+        config.streamStat.getCompressWire().record(compressed.readableBytes());
+        out.add(encoded);
+    }
+
+    private void addVary(HttpResponse response) {
+        for (String vary : response.headers().getAll(HttpHeaders.Names.VARY)) {
+            if (StringUtils.containsIgnoreCase(vary, HttpHeaders.Names.ACCEPT_ENCODING)) {
+                return;
+            }
+        }
+        response.headers().add(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+    }
+
+    private boolean shouldCompress(HttpResponse response) {
+        if (response.isBinaryContent() || AssertUtil.isNull(response.getAttach())) {
+            return false;
+        }
+        int code = response.getStatus().code();
+        if (code < 200 || code == 204 || code == 304) {
+            return false;
+        }
+        if (HttpMethod.HEAD.equals(response.getAttach().getRequest().getMethod())) {
+            return false;
+        }
+        if (response.content().readableBytes() < config.getCompressMinSize()) {
+            return false;
+        }
+        if (AssertUtil.isNotNull(response.headers().get(HttpHeaders.Names.CONTENT_ENCODING))) {
+            return false;
+        }
+        String contentType = response.headers().get(HttpHeaders.Names.CONTENT_TYPE);
+        if (StringTools.isEmpty(contentType)) {
+            return false;
+        }
+        for (String type : config.getCompressContentTypes()) {
+            if (contentType.regionMatches(true, 0, type, 0, type.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按Accept-Encoding中的q值选择编码，q值相同时优先gzip，q=0表示不接受
+     */
+    static String selectEncoding(HttpRequest request) {
+        String acceptEncoding = request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+        if (StringTools.isEmpty(acceptEncoding)) {
+            return null;
+        }
+        float starQ = -1.0f;
+        float gzipQ = -1.0f;
+        float deflateQ = -1.0f;
+        for (String encoding : acceptEncoding.split(",")) {
+            float q = 1.0f;
+            int equalsPos = encoding.indexOf('=');
+            if (equalsPos != -1) {
+                try {
+                    q = Float.valueOf(encoding.substring(equalsPos + 1).trim());
+                } catch (NumberFormatException e) {
+                    q = 0.0f;
+                }
+            }
+            int semicolonPos = encoding.indexOf(';');
+            String name = (semicolonPos == -1 ? encoding : encoding.substring(0, semicolonPos)).trim();
+            if ("*".equals(name)) {
+                starQ = q;
+            } else if (GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                gzipQ = Math.max(gzipQ, q);
+            } else if (DEFLATE.equalsIgnoreCase(name)) {
+                deflateQ = Math.max(deflateQ, q);
+            }
+        }
+        if (gzipQ > 0.0f || deflateQ > 0.0f) {
+            return gzipQ >= deflateQ ? GZIP : DEFLATE;
+        }
+        if (starQ > 0.0f) {
+            if (gzipQ == -1.0f) {
+                return GZIP;
+            }
+            if (deflateQ == -1.0f) {
+                return DEFLATE;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Java 7的Deflater只接受数组，堆内的响应体直接压缩，直接内存的响应体按块拷到线程内复用的数组里
+     */
+    private ByteBuf compress(ChannelHandlerContext ctx, String encoding, ByteBuf content) {
+        boolean gzip = GZIP.equals(encoding);
+        Deflater deflater = gzip ? GZIP_DEFLATER.get() : ZLIB_DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(config.getCompressLevel());
+        CRC32 crc = gzip ? new CRC32() : null;
+        int length = content.readableBytes();
+
+        ByteBuf out = ctx.alloc().heapBuffer(length / 2 + 64);
+        boolean release = true;
+        try {
+            if (gzip) {
+                out.writeBytes(GZIP_HEADER);
+            }
+            if (content.hasArray()) {
+                byte[] raw = content.array();
+                int offset = content.arrayOffset() + content.readerIndex();
+                deflate(deflater, raw, offset, length, crc, out);
+            } else {
+                byte[] chunk = INPUT_CHUNK.get();
+                for (int index = content.readerIndex(), end = index + length; index < end; ) {
+                    int n = Math.min(chunk.length, end - index);
+                    content.getBytes(index, chunk, 0, n);
+                    deflate(deflater, chunk, 0, n, crc, out);
+                    index += n;
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain(deflater, out);
+            }
+            if (gzip) {
+                out.writeInt(Integer.reverseBytes((int) crc.getValue()));
+                out.writeInt(Integer.reverseBytes(length));
+            }
+            release = false;
+            return out;
+        } finally {
+            if (release) {
+                out.release();
+            }
+        }
+    }
+
+    private static void deflate(Deflater deflater, byte[] input, int offset, int length, CRC32 crc, ByteBuf out) {
+        if (AssertUtil.isNotNull(crc)) {
+            crc.update(input, offset, length);
+        }
+        deflater.setInput(input, offset, length);
+        while (!deflater.needsInput()) {
+            drain(deflater, out);
+        }
+    }
+
+    private static void drain(Deflater deflater, ByteBuf out) {
+        out.ensureWritable(4096);
+        int n = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+        out.writerIndex(out.writerIndex() + n);
+    }
+}
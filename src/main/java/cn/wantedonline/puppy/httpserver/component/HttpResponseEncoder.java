@@ -22,6 +22,7 @@ import cn.wantedonline.puppy.spring.BeanUtil;
 import cn.wantedonline.puppy.util.AssertUtil;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.FileRegion;
 
 import java.util.List;
 
@@ -47,6 +48,8 @@ public class HttpResponseEncoder extends io.netty.handler.codec.http.HttpRespons
             for (Object obj : out) {
                 if (obj instanceof ByteBuf) {
                     bytes += ((ByteBuf)obj).readableBytes();
+                } else if (obj instanceof FileRegion) {
+                    bytes += ((FileRegion)obj).count();
                 }
             }
             if (bytes > 0) {
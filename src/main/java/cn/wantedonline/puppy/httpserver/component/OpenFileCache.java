@@ -0,0 +1,226 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.component;
+
+import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
+import cn.wantedonline.puppy.util.AssertUtil;
+import cn.wantedonline.puppy.util.Log;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.AbstractReferenceCounted;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <pre>
+ *     打开文件描述符缓存，按LRU淘汰，避免热点文件每次下载都重新open/close
+ *     每次获取时比较文件的修改时间和长度，文件被替换后重新打开
+ *     缓存和每个正在进行的下载各持有一个引用，全部释放后才关闭文件
+ * </pre>
+ *
+ * @author wangcheng
+ */
+@Component
+public class OpenFileCache {
+    private static final Logger log = Log.getLogger(OpenFileCache.class);
+
+    @Autowired
+    private HttpServerConfig config;
+
+    private final LinkedHashMap<String, CachedFile> cache = new LinkedHashMap<String, CachedFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedFile> eldest) {
+            if (size() > config.getOpenFileCacheSize()) {
+                eldest.getValue().release();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * 获取已经打开的文件，调用方使用完后需要release
+     */
+    public CachedFile open(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (cache) {
+            CachedFile cached = cache.get(path);
+            if (AssertUtil.isNotNull(cached)) {
+                if (cached.lastModified == lastModified && cached.length == length) {
+                    return (CachedFile) cached.retain();
+                }
+                cache.remove(path);
+                cached.release();
+            }
+        }
+        CachedFile opened = new CachedFile(file, lastModified, length);
+        if (config.getOpenFileCacheSize() <= 0) {
+            return opened;
+        }
+        synchronized (cache) {
+            CachedFile old = cache.put(path, opened);
+            if (AssertUtil.isNotNull(old)) {
+                old.release();
+            }
+            return (CachedFile) opened.retain();
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            for (Iterator<CachedFile> it = cache.values().iterator(); it.hasNext();) {
+                it.next().release();
+                it.remove();
+            }
+        }
+    }
+
+    public static class CachedFile extends AbstractReferenceCounted {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final long lastModified;
+        private final long length;
+
+        private CachedFile(File file, long lastModified, long length) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "r");
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public FileChannel getChannel() {
+            return raf.getChannel();
+        }
+
+        public long lastModified() {
+            return lastModified;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        @Override
+        protected void deallocate() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.warn("close file:{} error", file, e);
+            }
+        }
+    }
+
+    /**
+     * 零拷贝写出，由sendfile直接从文件发送到socket；继承DefaultFileRegion使epoll也能识别
+     * 释放时只归还文件引用，不关闭共享的FileChannel
+     */
+    public static class CachedFileRegion extends DefaultFileRegion {
+        private final CachedFile file;
+
+        public CachedFileRegion(CachedFile file, long position, long count) {
+            super(file.getChannel(), position, count);
+            this.file = file;
+        }
+
+        @Override
+        protected void deallocate() {
+            file.release();
+        }
+    }
+
+    /**
+     * 不能使用sendfile时的分块写出，使用按位置读取，多个下载可以共享同一个FileChannel
+     */
+    public static class CachedChunkedFile implements ChunkedInput<ByteBuf> {
+        private final CachedFile file;
+        private final long endOffset;
+        private final int chunkSize;
+        private long offset;
+        private boolean closed;
+
+        public CachedChunkedFile(CachedFile file, long offset, long length, int chunkSize) {
+            this.file = file;
+            this.offset = offset;
+            this.endOffset = offset + length;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean isEndOfInput() throws Exception {
+            return offset >= endOffset;
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (!closed) {
+                closed = true;
+                file.release();
+            }
+        }
+
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+            if (offset >= endOffset) {
+                return null;
+            }
+            int size = (int) Math.min(chunkSize, endOffset - offset);
+            ByteBuf buf = ctx.alloc().buffer(size);
+            boolean release = true;
+            try {
+                int read = 0;
+                while (read < size) {
+                    int n = file.getChannel().read(buf.nioBuffer(buf.writerIndex(), size - read), offset + read);
+                    if (n < 0) {
+                        throw new IOException("file:" + file.getFile() + " was truncated while sending");
+                    }
+                    read += n;
+                    buf.writerIndex(buf.writerIndex() + n);
+                }
+                offset += read;
+                release = false;
+                return buf;
+            } finally {
+                if (release) {
+                    buf.release();
+                }
+            }
+        }
+    }
+}
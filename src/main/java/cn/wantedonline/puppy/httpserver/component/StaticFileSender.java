@@ -0,0 +1,189 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.component;
+
+import cn.wantedonline.puppy.exception.ResourceNotFoundError;
+import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
+import cn.wantedonline.puppy.util.AssertUtil;
+import cn.wantedonline.puppy.util.StringTools;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.Date;
+
+/**
+ * <pre>
+ *     发送静态文件：
+ *     1. ETag/Last-Modified，If-None-Match/If-Modified-Since命中时返回304
+ *     2. 单个Range的断点续传，If-Range不匹配时返回整个文件，多个Range时忽略Range
+ *     3. 文件描述符由OpenFileCache缓存，响应体由BasePageDispatcher通过sendfile写出
+ *     4. 开启gzipStatic时，客户端支持gzip并且存在不旧于原文件的.gz文件，直接发送.gz文件
+ * </pre>
+ *
+ * @author wangcheng
+ */
+@Component
+public class StaticFileSender {
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    @Autowired
+    private OpenFileCache openFileCache;
+    @Autowired
+    private HttpServerConfig config;
+
+    public void sendFile(HttpRequest request, HttpResponse response, File file) throws IOException {
+        if (!file.isFile() || !file.canRead()) {
+            throw ResourceNotFoundError.INSTANCE;
+        }
+        File source = file;
+        if (config.isGzipStatic()) {
+            response.headers().add(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+            File gz = new File(file.getPath() + ".gz");
+            if ("gzip".equals(HttpResponseCompressor.selectEncoding(request)) && gz.isFile() && gz.canRead() && gz.lastModified() >= file.lastModified()) {
+                source = gz;
+                response.headers().set(HttpHeaders.Names.CONTENT_ENCODING, HttpHeaders.Values.GZIP);
+            }
+        }
+        OpenFileCache.CachedFile cached = openFileCache.open(source);
+        long lastModified = cached.lastModified();
+        long length = cached.length();
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+
+        response.headers().set(HttpHeaders.Names.ETAG, etag);
+        HttpHeaders.setDateHeader(response, HttpHeaders.Names.LAST_MODIFIED, new Date(lastModified));
+        response.headers().set(HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+        if (AssertUtil.isNull(response.headers().get(HttpHeaders.Names.CONTENT_TYPE))) {
+            String contentType = URLConnection.getFileNameMap().getContentTypeFor(file.getName());
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, StringTools.isEmpty(contentType) ? DEFAULT_CONTENT_TYPE : contentType);
+        }
+
+        if (isNotModified(request, etag, lastModified)) {
+            cached.release();
+            response.setStatus(HttpResponseStatus.NOT_MODIFIED);
+            response.setContent(Unpooled.EMPTY_BUFFER);
+            return;
+        }
+
+        String range = request.getHeader(HttpHeaders.Names.RANGE);
+        if (StringTools.isNotEmpty(range) && HttpMethod.GET.equals(request.getMethod()) && isRangeFresh(request, etag, lastModified)) {
+            long[] r = parseRange(range, length);
+            if (r == UNSATISFIABLE) {
+                cached.release();
+                response.setStatus(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.headers().set(HttpHeaders.Names.CONTENT_RANGE, "bytes */" + length);
+                response.setContent(Unpooled.EMPTY_BUFFER);
+                return;
+            }
+            if (AssertUtil.isNotNull(r)) {
+                response.setStatus(HttpResponseStatus.PARTIAL_CONTENT);
+                response.headers().set(HttpHeaders.Names.CONTENT_RANGE, "bytes " + r[0] + "-" + r[1] + "/" + length);
+                response.setFile(cached, r[0], r[1] - r[0] + 1);
+                return;
+            }
+        }
+        response.setFile(cached, 0, length);
+    }
+
+    /**
+     * If-None-Match优先于If-Modified-Since
+     */
+    private boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+        HttpMethod method = request.getMethod();
+        if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)) {
+            return false;
+        }
+        String ifNoneMatch = request.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+        if (StringTools.isNotEmpty(ifNoneMatch)) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if ("*".equals(tag) || etag.equals(tag.startsWith("W/") ? tag.substring(2) : tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Date ifModifiedSince = HttpHeaders.getDateHeader(request, HttpHeaders.Names.IF_MODIFIED_SINCE, null);
+        return AssertUtil.isNotNull(ifModifiedSince) && lastModified / 1000 <= ifModifiedSince.getTime() / 1000;
+    }
+
+    /**
+     * If-Range只有和当前文件的ETag或者Last-Modified完全一致时才按Range返回
+     */
+    private boolean isRangeFresh(HttpRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.Names.IF_RANGE);
+        if (StringTools.isEmpty(ifRange)) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag.equals(ifRange);
+        }
+        Date date = HttpHeaders.getDateHeader(request, HttpHeaders.Names.IF_RANGE, null);
+        return AssertUtil.isNotNull(date) && lastModified / 1000 == date.getTime() / 1000;
+    }
+
+    /**
+     * 解析单个字节范围，返回[start, end]；无法识别或者有多个范围时返回null，表示忽略Range；
+     * 范围超出文件长度时返回UNSATISFIABLE
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                //bytes=-500 表示最后500个字节
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                if (start >= length) {
+                    return UNSATISFIABLE;
+                }
+                end = Math.min(end, length - 1);
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
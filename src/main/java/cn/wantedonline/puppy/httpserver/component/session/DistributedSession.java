@@ -0,0 +1,236 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import cn.wantedonline.puppy.util.Log;
+import org.slf4j.Logger;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <pre>
+ *     DistributedSessionManager管理的Session，属性仍放在堆内(即近端缓存)，
+ *     同时记录哪些属性被改过，由管理器的写后台批量把这些属性写到SessionStore
+ *     version是最近一次写入或读取时存储端的版本号，0表示还没有写入过存储端
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public class DistributedSession extends DefaultHttpSession {
+    private static final Logger log = Log.getLogger();
+
+    private final transient DistributedSessionManager manager;
+
+    /**
+     * Names of the attributes set or removed since the last write, the
+     * current value in the attribute map decides which of the two it was.
+     */
+    private final transient Set<String> dirtyAttributes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private transient volatile long version = 0;
+    private transient volatile long validatedTime = 0;
+    private transient volatile long persistedAccessTime = 0;
+
+    public DistributedSession(DistributedSessionManager manager) {
+        this.manager = manager;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value != null && manager.getDistributable() && !(value instanceof Serializable)) {
+            throw new IllegalArgumentException("setAttribute: Non-serializable attribute " + name);
+        }
+        super.setAttribute(name, value);
+        dirtyAttributes.add(name);
+        manager.markDirty(this);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        if (name == null) return;
+        super.removeAttribute(name);
+        dirtyAttributes.add(name);
+        manager.markDirty(this);
+    }
+
+    @Override
+    public void setMaxInactiveInterval(int interval) {
+        super.setMaxInactiveInterval(interval);
+        manager.markDirty(this);
+    }
+
+    /**
+     * Refresh the access time and the ttl in the store once in a while, not
+     * on every request.
+     */
+    @Override
+    public void access() {
+        super.access();
+        if (thisAccessedTime - persistedAccessTime >= manager.getTouchIntervalMillis(this)) {
+            manager.markDirty(this);
+        }
+    }
+
+    /**
+     * An explicit invalidation deletes the session from the store as well,
+     * an idle timeout only drops the local copy: another node may have
+     * kept the session alive, the store expires it by itself otherwise.
+     */
+    @Override
+    public void expire() {
+        boolean timedOut = maxInactiveInterval > 0
+                && System.currentTimeMillis() - thisAccessedTime >= maxInactiveInterval * 1000L;
+        boolean wasValid = isValid;
+        super.expire();
+        if (wasValid && !isValid && !timedOut) {
+            manager.markInvalidated(this);
+        }
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    long getValidatedTime() {
+        return validatedTime;
+    }
+
+    void setValidatedTime(long validatedTime) {
+        this.validatedTime = validatedTime;
+    }
+
+    boolean isDirty() {
+        return !dirtyAttributes.isEmpty() || version == 0;
+    }
+
+    /**
+     * Take the changes made since the last write. A name is removed from the
+     * dirty set before its value is read, so a concurrent change is either
+     * part of this delta or marks the name dirty again.
+     */
+    SessionData drainChanges() {
+        SessionData delta = new SessionData(id);
+        delta.setVersion(version);
+        delta.setCreationTime(creationTime);
+        delta.setLastAccessedTime(thisAccessedTime);
+        delta.setMaxInactiveInterval(maxInactiveInterval);
+        for (Iterator<String> it = dirtyAttributes.iterator(); it.hasNext(); ) {
+            String name = it.next();
+            it.remove();
+            Object value = attributes.get(name);
+            if (value == null) {
+                delta.removeAttribute(name);
+                continue;
+            }
+            try {
+                delta.putAttribute(name, SessionAttributeCodec.encode(name, value));
+            } catch (IllegalArgumentException e) {
+                log.error("session {} attribute {} is not written to the session store", id, name, e);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * The write of the delta failed, mark its attributes dirty again.
+     */
+    void undrain(SessionData delta) {
+        dirtyAttributes.addAll(delta.getAttributes().keySet());
+        dirtyAttributes.addAll(delta.getRemovedAttributes());
+    }
+
+    /**
+     * The write of the delta lost the compare-and-set against the current
+     * data in the store. Take what the other node wrote for the attributes
+     * this node did not change itself, then drain this node's changes again
+     * on top of the current version.
+     */
+    SessionData rebase(SessionData current, SessionData delta) {
+        undrain(delta);
+        for (Map.Entry<String, byte[]> e : current.getAttributes().entrySet()) {
+            if (dirtyAttributes.contains(e.getKey())) {
+                continue;
+            }
+            try {
+                Object value = SessionAttributeCodec.decode(e.getKey(), e.getValue());
+                if (value != null) {
+                    attributes.put(e.getKey(), value);
+                }
+            } catch (IllegalStateException ex) {
+                log.error("session {} attribute {} cannot be restored from the session store", id, e.getKey(), ex);
+            }
+        }
+        for (Iterator<String> it = attributes.keySet().iterator(); it.hasNext(); ) {
+            String name = it.next();
+            if (!current.getAttributes().containsKey(name) && !dirtyAttributes.contains(name)) {
+                it.remove();
+            }
+        }
+        if (current.getLastAccessedTime() > thisAccessedTime) {
+            this.lastAccessedTime = current.getLastAccessedTime();
+            this.thisAccessedTime = current.getLastAccessedTime();
+        }
+        this.version = current.getVersion();
+        return drainChanges();
+    }
+
+    /**
+     * Write the whole session again, used after the session id changed.
+     */
+    void markAllDirty() {
+        dirtyAttributes.addAll(attributes.keySet());
+        this.version = 0;
+    }
+
+    void saved(SessionData delta, long version) {
+        this.version = version;
+        this.persistedAccessTime = delta.getLastAccessedTime();
+        this.validatedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Fill this empty session with what was loaded from the store.
+     */
+    void restore(SessionData data) {
+        this.id = data.getId();
+        this.creationTime = data.getCreationTime();
+        this.lastAccessedTime = data.getLastAccessedTime();
+        this.thisAccessedTime = data.getLastAccessedTime();
+        this.maxInactiveInterval = data.getMaxInactiveInterval();
+        this.isNew = false;
+        this.isValid = true;
+        for (Map.Entry<String, byte[]> e : data.getAttributes().entrySet()) {
+            try {
+                Object value = SessionAttributeCodec.decode(e.getKey(), e.getValue());
+                if (value != null) {
+                    attributes.put(e.getKey(), value);
+                }
+            } catch (IllegalStateException ex) {
+                log.error("session {} attribute {} cannot be restored from the session store", id, e.getKey(), ex);
+            }
+        }
+        this.version = data.getVersion();
+        this.persistedAccessTime = data.getLastAccessedTime();
+        this.validatedTime = System.currentTimeMillis();
+    }
+}
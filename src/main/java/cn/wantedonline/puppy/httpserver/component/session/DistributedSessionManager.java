@@ -0,0 +1,441 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import cn.wantedonline.puppy.httpserver.stat.MetricsWriter;
+import cn.wantedonline.puppy.util.Log;
+import cn.wantedonline.puppy.util.concurrent.ConcurrentUtil;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ *     分布式Session管理器，sessionStore=redis或local时使用
+ *     Session保存在SessionStore中，sessions作为本节点的近端缓存:
+ *       1. 新生成的SessionId带本节点JvmRoute后缀，负载均衡按后缀粘住，请求一般落在持有近端缓存的节点上
+ *       2. 距上次校验超过nearCacheMillis时先比较存储端的版本号，版本变了才重新读取整个Session，被删除了就丢掉近端缓存
+ *     属性修改只标记dirty，由写后台每隔writeBehindMillis把dirty的属性批量写到存储端，
+ *     写入以近端缓存的版本号为条件，其他节点已经修改时重新读取存储端的Session，保留其他节点改过的属性，
+ *     把本节点的修改重新放到新版本上再写，最多重试MAX_REBASE次，仍然冲突的留到下一次写；
+ *     其他节点已经删除时不再写回，丢掉近端缓存并记录错误日志，列出没有写入的属性
+ *     访问时间和存储端的过期时间按maxInactiveInterval的1/4间隔刷新
+ *     存储端的读写是阻塞的，大量使用Session的Cmd建议配置offload
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public class DistributedSessionManager extends SessionManagerBase {
+    private static DistributedSessionManager instance;
+
+    /**
+     * 一次写后台中同一个Session冲突后重新读取并重写的次数
+     */
+    private static final int MAX_REBASE = 3;
+
+    private final Logger log = Log.getLogger(); // must not be static
+
+    private final SessionStore store;
+
+    private final Set<DistributedSession> dirtySessions = Collections.newSetFromMap(new ConcurrentHashMap<DistributedSession, Boolean>());
+    private final ConcurrentLinkedQueue<String> invalidatedIds = new ConcurrentLinkedQueue<String>();
+    private final Object flushLock = new Object();
+
+    private volatile long nearCacheMillis = 1000;
+    private volatile int writeBehindBatch = 128;
+    private volatile boolean startedWriteBehind = false;
+
+    private final AtomicLong nearCacheHits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong remoteLoads = new AtomicLong();
+    private final AtomicLong staleReloads = new AtomicLong();
+    private final AtomicLong sessionsWritten = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong storeErrors = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    protected DistributedSessionManager(SessionStore store) {
+        this.store = store;
+        this.distributable = true;
+        startInternal();
+        log.info("DistributedSessionManager ON, store:{}, jvmRoute:{}", store.getClass().getSimpleName(), getJvmRoute());
+    }
+
+    /**
+     * 第一次调用时使用store，之后的调用忽略store
+     */
+    public static synchronized DistributedSessionManager getInstance(SessionStore store) {
+        if (instance == null) {
+            instance = new DistributedSessionManager(store);
+        }
+        return instance;
+    }
+
+    public SessionStore getStore() {
+        return store;
+    }
+
+    public void setNearCacheMillis(long nearCacheMillis) {
+        this.nearCacheMillis = nearCacheMillis;
+    }
+
+    public void setWriteBehindBatch(int writeBehindBatch) {
+        this.writeBehindBatch = Math.max(1, writeBehindBatch);
+    }
+
+    public void startWriteBehind(long periodMillis) {
+        if (startedWriteBehind) {
+            return;
+        }
+        startedWriteBehind = true;
+        ConcurrentUtil.getDaemonExecutor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable t) {
+                    log.error("session write-behind failed", t);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected Session getNewSession() {
+        return new DistributedSession(this);
+    }
+
+    @Override
+    public Session createSession(String sessionId) {
+        Session session = super.createSession(sessionId);
+        markDirty((DistributedSession) session);
+        return session;
+    }
+
+    @Override
+    public Session findSession(String id) throws IOException {
+        if (id == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        DistributedSession cached = (DistributedSession) sessions.get(id);
+        if (cached != null) {
+            if (cached.isDirty() || now - cached.getValidatedTime() < nearCacheMillis) {
+                nearCacheHits.incrementAndGet();
+                return cached;
+            }
+            long version;
+            try {
+                version = store.version(id);
+            } catch (IOException e) {
+                storeError("check version of session " + id, e);
+                return cached;
+            }
+            if (version == cached.getVersion()) {
+                cached.setValidatedTime(now);
+                revalidations.incrementAndGet();
+                return cached;
+            }
+            // changed or removed by another node, the store is authoritative
+            sessions.remove(id);
+            staleReloads.incrementAndGet();
+            if (version < 0) {
+                return null;
+            }
+        }
+
+        remoteLoads.incrementAndGet();
+        SessionData data;
+        try {
+            data = store.load(id);
+        } catch (IOException e) {
+            storeError("load session " + id, e);
+            throw e;
+        }
+        if (data == null) {
+            return null;
+        }
+        DistributedSession loaded = (DistributedSession) createEmptySession();
+        loaded.restore(data);
+        if (!loaded.isValid()) {
+            return null;
+        }
+        Session existing = sessions.get(id);
+        if (existing != null) {
+            return existing;
+        }
+        add(loaded);
+        return loaded;
+    }
+
+    @Override
+    public void remove(Session session, boolean update) {
+        super.remove(session, update);
+        dirtySessions.remove(session);
+    }
+
+    @Override
+    public void changeSessionId(Session session) {
+        String oldId = session.getId();
+        super.changeSessionId(session);
+        DistributedSession ds = (DistributedSession) session;
+        if (oldId != null) {
+            invalidatedIds.add(oldId);
+        }
+        ds.markAllDirty();
+        markDirty(ds);
+    }
+
+    void markDirty(DistributedSession session) {
+        if (session.getId() != null) {
+            dirtySessions.add(session);
+        }
+    }
+
+    void markInvalidated(DistributedSession session) {
+        dirtySessions.remove(session);
+        if (session.getId() != null) {
+            invalidatedIds.add(session.getId());
+        }
+    }
+
+    /**
+     * How stale the access time in the store may get before it is written
+     * again, the store expires the session by the same interval.
+     */
+    long getTouchIntervalMillis(DistributedSession session) {
+        int interval = session.getMaxInactiveInterval();
+        return interval > 0 ? interval * 1000L / 4 : Long.MAX_VALUE;
+    }
+
+    /**
+     * 把已失效的Session和dirty的属性分批写到存储端，写失败的留到下一次
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<SessionData> batch = new ArrayList<SessionData>();
+            List<DistributedSession> owners = new ArrayList<DistributedSession>();
+            String id;
+            while ((id = invalidatedIds.poll()) != null) {
+                SessionData delta = new SessionData(id);
+                delta.setInvalidated(true);
+                batch.add(delta);
+                owners.add(null);
+                if (batch.size() >= writeBehindBatch) {
+                    write(batch, owners);
+                }
+            }
+            for (Iterator<DistributedSession> it = dirtySessions.iterator(); it.hasNext(); ) {
+                DistributedSession session = it.next();
+                it.remove();
+                if (session.getId() == null || !session.isValid()) {
+                    continue;
+                }
+                batch.add(session.drainChanges());
+                owners.add(session);
+                if (batch.size() >= writeBehindBatch) {
+                    write(batch, owners);
+                }
+            }
+            if (!batch.isEmpty()) {
+                write(batch, owners);
+            }
+        }
+    }
+
+    private void write(List<SessionData> batch, List<DistributedSession> owners) {
+        try {
+            long[] versions = store.save(batch);
+            int written = 0;
+            for (int i = 0; i < versions.length; i++) {
+                DistributedSession owner = owners.get(i);
+                if (versions[i] == SessionStore.FAILED) {
+                    storeErrors.incrementAndGet();
+                    retryLater(owner, batch.get(i));
+                    continue;
+                }
+                written++;
+                if (owner == null) {
+                    continue;
+                }
+                if (versions[i] == SessionStore.CONFLICT) {
+                    written--;
+                    conflicts.incrementAndGet();
+                    resolveConflict(owner, batch.get(i));
+                } else {
+                    owner.saved(batch.get(i), versions[i]);
+                }
+            }
+            sessionsWritten.addAndGet(written);
+            batchesWritten.incrementAndGet();
+        } catch (IOException e) {
+            storeError("write " + batch.size() + " sessions", e);
+            for (int i = 0; i < batch.size(); i++) {
+                retryLater(owners.get(i), batch.get(i));
+            }
+        } finally {
+            batch.clear();
+            owners.clear();
+        }
+    }
+
+    /**
+     * 写入的delta没有写到存储端，下一次写后台重新写
+     */
+    private void retryLater(DistributedSession owner, SessionData delta) {
+        if (owner != null) {
+            owner.undrain(delta);
+            dirtySessions.add(owner);
+        } else {
+            invalidatedIds.add(delta.getId());
+        }
+    }
+
+    /**
+     * 其他节点先修改了Session: 重新读取存储端的Session，把本节点的修改放到新版本上再写；
+     * 其他节点已经删除了Session: 不再写回，丢掉近端缓存，本节点的修改只能记录在错误日志里
+     */
+    private void resolveConflict(DistributedSession owner, SessionData delta) {
+        String id = delta.getId();
+        for (int attempt = 1; ; attempt++) {
+            SessionData current;
+            try {
+                current = store.load(id);
+            } catch (IOException e) {
+                storeError("reload conflicting session " + id, e);
+                retryLater(owner, delta);
+                return;
+            }
+            if (current == null) {
+                log.error("session {} was removed by another node, changes not written: set {}, removed {}", id, delta.getAttributes().keySet(), delta.getRemovedAttributes());
+                if (sessions.get(owner.getId()) == owner) {
+                    remove(owner, false);
+                }
+                return;
+            }
+            SessionData rebased = owner.rebase(current, delta);
+            long version;
+            try {
+                version = store.save(Collections.singletonList(rebased))[0];
+            } catch (IOException e) {
+                storeError("write conflicting session " + id, e);
+                retryLater(owner, rebased);
+                return;
+            }
+            if (version >= 0) {
+                owner.saved(rebased, version);
+                sessionsWritten.incrementAndGet();
+                return;
+            }
+            if (version == SessionStore.FAILED) {
+                storeErrors.incrementAndGet();
+                retryLater(owner, rebased);
+                return;
+            }
+            conflicts.incrementAndGet();
+            if (attempt >= MAX_REBASE) {
+                log.warn("session {} still conflicts after {} attempts, retry on next write-behind", id, attempt);
+                retryLater(owner, rebased);
+                return;
+            }
+            delta = rebased;
+        }
+    }
+
+    private void storeError(String what, IOException e) {
+        storeErrors.incrementAndGet();
+        log.error("session store: {} failed, {}", what, e.toString());
+    }
+
+    /**
+     * Session本来就在存储端，启动时不需要恢复
+     */
+    @Override
+    public void load() throws ClassNotFoundException, IOException {
+    }
+
+    /**
+     * 停机时把还没写出去的修改写到存储端
+     */
+    @Override
+    public void unload() throws IOException {
+        flush();
+    }
+
+    public long getNearCacheHits() {
+        return nearCacheHits.get();
+    }
+
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getRemoteLoads() {
+        return remoteLoads.get();
+    }
+
+    public long getStaleReloads() {
+        return staleReloads.get();
+    }
+
+    public long getSessionsWritten() {
+        return sessionsWritten.get();
+    }
+
+    public long getStoreErrors() {
+        return storeErrors.get();
+    }
+
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    public int getPendingWrites() {
+        return dirtySessions.size() + invalidatedIds.size();
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        super.writeMetrics(writer);
+        writer.family("puppy_session_store_lookups", "counter", "Session lookups by how they were served: near-cache only, near-cache after a version check, or loaded from the session store.");
+        writer.name("puppy_session_store_lookups_total").label("result", "near_cache").value(nearCacheHits.get());
+        writer.name("puppy_session_store_lookups_total").label("result", "revalidated").value(revalidations.get());
+        writer.name("puppy_session_store_lookups_total").label("result", "load").value(remoteLoads.get());
+        writer.family("puppy_session_store_stale", "counter", "Near-cache copies dropped because another node changed or removed the session.");
+        writer.name("puppy_session_store_stale_total").value(staleReloads.get());
+        writer.family("puppy_session_store_conflicts", "counter", "Writes that lost the version check because another node changed or removed the session first, changed sessions are reloaded and written again.");
+        writer.name("puppy_session_store_conflicts_total").value(conflicts.get());
+        writer.family("puppy_session_store_writes", "counter", "Session deltas written to the session store.");
+        writer.name("puppy_session_store_writes_total").value(sessionsWritten.get());
+        writer.family("puppy_session_store_batches", "counter", "Write-behind batches sent to the session store.");
+        writer.name("puppy_session_store_batches_total").value(batchesWritten.get());
+        writer.family("puppy_session_store_errors", "counter", "Failed session store operations.");
+        writer.name("puppy_session_store_errors_total").value(storeErrors.get());
+        writer.family("puppy_session_store_pending", "gauge", "Sessions waiting for the next write-behind batch.");
+        writer.name("puppy_session_store_pending").value(getPendingWrites());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <pre>
+ *     进程内的SessionStore，语义与RedisSessionStore一致(版本号、按版本号条件写入、增量写入、ttl)
+ *     用于单机调试和测试，也可以让同一进程里的多个DistributedSessionManager模拟多个节点
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public class LocalSessionStore implements SessionStore {
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private static final class Entry {
+        long version;
+        long creationTime;
+        long lastAccessedTime;
+        int maxInactiveInterval;
+        long expireAt;
+        final Map<String, byte[]> attributes = new HashMap<String, byte[]>();
+
+        boolean isExpired(long now) {
+            return expireAt > 0 && now >= expireAt;
+        }
+    }
+
+    private Entry get(String id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            if (entry.isExpired(System.currentTimeMillis())) {
+                entries.remove(id, entry);
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public SessionData load(String id) {
+        Entry entry = get(id);
+        if (entry == null) {
+            return null;
+        }
+        SessionData data = new SessionData(id);
+        synchronized (entry) {
+            data.setVersion(entry.version);
+            data.setCreationTime(entry.creationTime);
+            data.setLastAccessedTime(entry.lastAccessedTime);
+            data.setMaxInactiveInterval(entry.maxInactiveInterval);
+            for (Map.Entry<String, byte[]> e : entry.attributes.entrySet()) {
+                data.putAttribute(e.getKey(), e.getValue());
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public long version(String id) {
+        Entry entry = get(id);
+        if (entry == null) {
+            return -1;
+        }
+        synchronized (entry) {
+            return entry.version;
+        }
+    }
+
+    @Override
+    public long[] save(List<SessionData> deltas) {
+        long[] versions = new long[deltas.size()];
+        for (int i = 0; i < versions.length; i++) {
+            SessionData delta = deltas.get(i);
+            if (delta.isInvalidated()) {
+                remove(delta.getId());
+                versions[i] = -1;
+                continue;
+            }
+            Entry entry = get(delta.getId());
+            if (entry == null) {
+                if (delta.getVersion() != 0) {
+                    // removed or expired since it was read
+                    versions[i] = CONFLICT;
+                    continue;
+                }
+                Entry created = new Entry();
+                entry = entries.putIfAbsent(delta.getId(), created);
+                if (entry == null) {
+                    entry = created;
+                }
+            }
+            synchronized (entry) {
+                if (entry.version != delta.getVersion() || entries.get(delta.getId()) != entry) {
+                    versions[i] = CONFLICT;
+                    continue;
+                }
+                entry.creationTime = delta.getCreationTime();
+                entry.lastAccessedTime = delta.getLastAccessedTime();
+                entry.maxInactiveInterval = delta.getMaxInactiveInterval();
+                entry.attributes.putAll(delta.getAttributes());
+                for (String name : delta.getRemovedAttributes()) {
+                    entry.attributes.remove(name);
+                }
+                long ttl = delta.getTtlMillis();
+                entry.expireAt = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+                versions[i] = ++entry.version;
+            }
+        }
+        return versions;
+    }
+
+    @Override
+    public void remove(String id) {
+        entries.remove(id);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import cn.wantedonline.puppy.util.AssertUtil;
+import io.netty.util.CharsetUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <pre>
+ *     属性存放在堆外的Session，堆内只保留时间、有效期等元数据和属性块在OffHeapSlab中的位置
+ *     属性块格式: [int 个数]{[short 名字长度][名字 UTF-8][int 值长度][值]}*，值由SessionAttributeCodec编码
+ *     getAttribute只反序列化读取的那个属性；修改属性时整块重写到新的chunk再释放旧的chunk
+ *     和分布式Session一样，取出的对象修改之后需要重新setAttribute才会保存
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public class OffHeapSession extends SessionBase {
+    private final transient OffHeapSlab slab;
+    /** 属性块在slab中的偏移，-1表示没有属性 */
+    private int offset = -1;
+    private int length;
+
+    public OffHeapSession(OffHeapSlab slab) {
+        this.slab = slab;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        if (AssertUtil.isNull(name) || !isValid()) {
+            return null;
+        }
+        byte[] key = name.getBytes(CharsetUtil.UTF_8);
+        synchronized (this) {
+            if (offset < 0) {
+                return null;
+            }
+            ByteBuffer buf = slab.read(offset, length);
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                boolean match = matchName(buf, key);
+                int valueLength = buf.getInt();
+                if (match) {
+                    byte[] value = new byte[valueLength];
+                    buf.get(value);
+                    return SessionAttributeCodec.decode(name, value);
+                }
+                buf.position(buf.position() + valueLength);
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public Set<String> getAttributeNames() {
+        if (!isValid()) {
+            return null;
+        }
+        synchronized (this) {
+            Set<String> names = new HashSet<>();
+            if (offset < 0) {
+                return names;
+            }
+            ByteBuffer buf = slab.read(offset, length);
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] nameBytes = new byte[buf.getShort() & 0xFFFF];
+                buf.get(nameBytes);
+                names.add(new String(nameBytes, CharsetUtil.UTF_8));
+                int valueLength = buf.getInt();
+                buf.position(buf.position() + valueLength);
+            }
+            return names;
+        }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        if (AssertUtil.isNull(name)) return;
+        synchronized (this) {
+            rewrite(name.getBytes(CharsetUtil.UTF_8), null);
+        }
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (AssertUtil.isNull(name)) {
+            throw new IllegalArgumentException("setAttribute: name parameter cannot be null");
+        }
+
+        if (AssertUtil.isNull(value)) {
+            removeAttribute(name);
+            return;
+        }
+
+        if (!isValid()) {
+            throw new IllegalStateException("setAttribute: Session [" + this.id + "] has already been invalidated");
+        }
+
+        byte[] bytes = SessionAttributeCodec.encode(name, value);
+        synchronized (this) {
+            if (!isValid) {
+                throw new IllegalStateException("setAttribute: Session [" + this.id + "] has already been invalidated");
+            }
+            rewrite(name.getBytes(CharsetUtil.UTF_8), bytes);
+        }
+    }
+
+    /**
+     * 去掉名字为key的属性，value不为null时追加新值，写入新的chunk后释放旧的chunk
+     */
+    private void rewrite(byte[] key, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + (value == null ? 0 : key.length + value.length + 6));
+        DataOutputStream data = new DataOutputStream(out);
+        int count = 0;
+        try {
+            data.writeInt(0);
+            if (offset >= 0) {
+                ByteBuffer buf = slab.read(offset, length);
+                int n = buf.getInt();
+                for (int i = 0; i < n; i++) {
+                    int start = buf.position();
+                    boolean match = matchName(buf, key);
+                    int valueLength = buf.getInt();
+                    buf.position(buf.position() + valueLength);
+                    if (!match) {
+                        byte[] entry = new byte[buf.position() - start];
+                        buf.position(start);
+                        buf.get(entry);
+                        data.write(entry);
+                        count++;
+                    }
+                }
+            }
+            if (value != null) {
+                data.writeShort(key.length);
+                data.write(key);
+                data.writeInt(value.length);
+                data.write(value);
+                count++;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // ByteArrayOutputStream不会抛出IOException
+        }
+        byte[] block = out.toByteArray();
+        block[0] = (byte) (count >>> 24);
+        block[1] = (byte) (count >>> 16);
+        block[2] = (byte) (count >>> 8);
+        block[3] = (byte) count;
+
+        int newOffset = -1;
+        if (count > 0) {
+            newOffset = slab.allocate(block.length);
+            if (newOffset < 0) {
+                throw new IllegalStateException("setAttribute: off-heap session store is full, Session [" + this.id + "] attributes size " + block.length);
+            }
+            slab.write(newOffset, block, block.length);
+        }
+        release();
+        offset = newOffset;
+        length = count > 0 ? block.length : 0;
+    }
+
+    /**
+     * 读取一个属性名并和key比较，读完后buf位于值长度
+     */
+    private static boolean matchName(ByteBuffer buf, byte[] key) {
+        int nameLength = buf.getShort() & 0xFFFF;
+        if (nameLength != key.length) {
+            buf.position(buf.position() + nameLength);
+            return false;
+        }
+        byte[] nameBytes = new byte[nameLength];
+        buf.get(nameBytes);
+        return Arrays.equals(nameBytes, key);
+    }
+
+    private void release() {
+        if (offset >= 0) {
+            slab.free(offset, length);
+            offset = -1;
+            length = 0;
+        }
+    }
+
+    /**
+     * 属性块在堆外占用的字节数
+     */
+    public synchronized int getAttributesSize() {
+        return length;
+    }
+
+    @Override
+    protected synchronized void clearAttributes() {
+        release();
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import cn.wantedonline.puppy.httpserver.stat.MetricsWriter;
+import cn.wantedonline.puppy.util.Log;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * <pre>
+ *     堆外Session管理器，sessionStore=offheap时使用
+ *     Session的属性序列化后放在OffHeapSlab中，堆内只有id到Session元数据(含属性块偏移)的索引，
+ *     Session数量很大时不会撑大老年代、拉长GC停顿
+ *     Session被删除时释放其属性块
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public class OffHeapSessionManager extends SessionManagerBase {
+    private static final int PAGE_SIZE = 1024 * 1024;
+
+    private static OffHeapSessionManager instance;
+
+    private final Logger log = Log.getLogger(); // must not be static
+
+    private final OffHeapSlab slab;
+
+    private OffHeapSessionManager(int capacity) {
+        slab = new OffHeapSlab(Math.max(capacity, PAGE_SIZE), PAGE_SIZE);
+        startInternal();
+        log.info("OffHeapSessionManager ON, capacity:{}", slab.getCapacity());
+    }
+
+    /**
+     * 第一次调用时按capacity(字节)申请堆外内存，之后的调用忽略capacity
+     */
+    public static synchronized OffHeapSessionManager getInstance(int capacity) {
+        if (instance == null) {
+            instance = new OffHeapSessionManager(capacity);
+        }
+        return instance;
+    }
+
+    @Override
+    protected Session getNewSession() {
+        return new OffHeapSession(slab);
+    }
+
+    /**
+     * 从管理器中删除后属性不会再被访问，立即释放堆外空间
+     */
+    @Override
+    public void remove(Session session, boolean update) {
+        super.remove(session, update);
+        session.expire();
+    }
+
+    /**
+     * 堆外Session不跨进程保存
+     */
+    @Override
+    public void load() throws ClassNotFoundException, IOException {
+    }
+
+    @Override
+    public void unload() throws IOException {
+    }
+
+    public long getOffHeapCapacity() {
+        return slab.getCapacity();
+    }
+
+    public long getOffHeapReserved() {
+        return slab.getReservedBytes();
+    }
+
+    public long getOffHeapAllocated() {
+        return slab.getAllocatedBytes();
+    }
+
+    public long getOffHeapUsed() {
+        return slab.getUsedBytes();
+    }
+
+    public long getOffHeapFailedAllocations() {
+        return slab.getFailedAllocations();
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        super.writeMetrics(writer);
+        writer.family("puppy_session_offheap_bytes", "gauge", "Off-heap session store memory: capacity, pages reserved by slab classes, chunks allocated and attribute bytes used.");
+        writer.name("puppy_session_offheap_bytes").label("state", "capacity").value(slab.getCapacity());
+        writer.name("puppy_session_offheap_bytes").label("state", "reserved").value(slab.getReservedBytes());
+        writer.name("puppy_session_offheap_bytes").label("state", "allocated").value(slab.getAllocatedBytes());
+        writer.name("puppy_session_offheap_bytes").label("state", "used").value(slab.getUsedBytes());
+        writer.family("puppy_session_offheap_failed_allocations", "counter", "Session attribute writes rejected because the off-heap store was full.");
+        writer.name("puppy_session_offheap_failed_allocations_total").value(slab.getFailedAllocations());
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ *     堆外Slab分配器，一次性申请一块DirectByteBuffer，按页切给不同大小的chunk class
+ *     chunk大小从64字节开始按1.25倍递增到一页，分配时取能放下的最小chunk，释放的chunk放回所属class的空闲栈
+ *     页分给某个class后不再回收，数据大小分布变化很大时会有浪费
+ *     分配和释放按class加锁，读写用绝对位置，不修改region的position
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public final class OffHeapSlab {
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int ALIGNMENT = 8;
+
+    private final ByteBuffer region;
+    private final int pageSize;
+    private final int pageCount;
+    private final SlabClass[] classes;
+    private final AtomicInteger nextPage = new AtomicInteger();
+
+    private final AtomicLong allocatedBytes = new AtomicLong(); // 已分配chunk的总大小
+    private final AtomicLong usedBytes = new AtomicLong(); // chunk中实际数据的总大小
+    private final AtomicLong failedAllocations = new AtomicLong();
+
+    public OffHeapSlab(int capacity, int pageSize) {
+        if (capacity < pageSize || pageSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("capacity:" + capacity + " must not be less than pageSize:" + pageSize);
+        }
+        this.pageSize = pageSize;
+        this.pageCount = capacity / pageSize;
+        this.region = ByteBuffer.allocateDirect(pageCount * pageSize);
+        int count = 0;
+        int[] sizes = new int[64];
+        for (double size = MIN_CHUNK_SIZE; size < pageSize && count < sizes.length - 1; size *= GROWTH_FACTOR) {
+            int aligned = ((int) size + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+            if (count == 0 || aligned > sizes[count - 1]) {
+                sizes[count++] = aligned;
+            }
+        }
+        sizes[count++] = pageSize;
+        classes = new SlabClass[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new SlabClass(sizes[i]);
+        }
+    }
+
+    private SlabClass classFor(int size) {
+        int low = 0;
+        int high = classes.length - 1;
+        if (size > classes[high].chunkSize) {
+            return null;
+        }
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (classes[mid].chunkSize < size) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return classes[low];
+    }
+
+    /**
+     * 分配能放下size字节的chunk
+     * @return chunk的偏移，空间不足或者超过一页时返回-1
+     */
+    public int allocate(int size) {
+        SlabClass cls = classFor(size);
+        int offset = -1;
+        if (cls != null) {
+            offset = cls.allocate();
+        }
+        if (offset < 0) {
+            failedAllocations.incrementAndGet();
+            return -1;
+        }
+        allocatedBytes.addAndGet(cls.chunkSize);
+        usedBytes.addAndGet(size);
+        return offset;
+    }
+
+    /**
+     * 释放allocate得到的chunk，size必须和分配时一致
+     */
+    public void free(int offset, int size) {
+        SlabClass cls = classFor(size);
+        cls.free(offset);
+        allocatedBytes.addAndGet(-cls.chunkSize);
+        usedBytes.addAndGet(-size);
+    }
+
+    public void write(int offset, byte[] src, int length) {
+        ByteBuffer buf = region.duplicate();
+        buf.position(offset);
+        buf.put(src, 0, length);
+    }
+
+    /**
+     * 返回chunk的只读视图，position为0
+     */
+    public ByteBuffer read(int offset, int length) {
+        ByteBuffer buf = region.asReadOnlyBuffer();
+        buf.limit(offset + length).position(offset);
+        return buf.slice();
+    }
+
+    public long getCapacity() {
+        return (long) pageCount * pageSize;
+    }
+
+    /**
+     * 已经切给各个chunk class的页的总大小
+     */
+    public long getReservedBytes() {
+        return (long) Math.min(nextPage.get(), pageCount) * pageSize;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getFailedAllocations() {
+        return failedAllocations.get();
+    }
+
+    private final class SlabClass {
+        private final int chunkSize;
+        private int[] freeChunks = new int[16];
+        private int freeCount;
+        private int carve; // 当前页中下一个未分配的chunk
+        private int carveEnd;
+
+        SlabClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        synchronized int allocate() {
+            if (freeCount > 0) {
+                return freeChunks[--freeCount];
+            }
+            if (carve + chunkSize > carveEnd) {
+                int page = nextPage.get() < pageCount ? nextPage.getAndIncrement() : pageCount;
+                if (page >= pageCount) {
+                    return -1;
+                }
+                carve = page * pageSize;
+                carveEnd = carve + pageSize;
+            }
+            int offset = carve;
+            carve += chunkSize;
+            return offset;
+        }
+
+        synchronized void free(int offset) {
+            if (freeCount == freeChunks.length) {
+                int[] grown = new int[freeChunks.length << 1];
+                System.arraycopy(freeChunks, 0, grown, 0, freeCount);
+                freeChunks = grown;
+            }
+            freeChunks[freeCount++] = offset;
+        }
+    }
+}
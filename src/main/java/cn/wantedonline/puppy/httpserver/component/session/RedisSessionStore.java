@@ -0,0 +1,403 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import cn.wantedonline.puppy.util.CloseableHelper;
+import cn.wantedonline.puppy.util.Log;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <pre>
+ *     基于Redis协议(RESP)的SessionStore，兼容Redis及其协议兼容的实现
+ *     每个Session是一个hash，key为keyPrefix + sessionId，字段:
+ *         #v 版本号  #c 创建时间  #a 最后访问时间  #i 最大不活动间隔(秒)  a:name 属性值
+ *     一批增量用pipeline在一次往返中写完，hash的过期时间跟随maxInactiveInterval
+ *     每条增量由Lua脚本先比较#v再写入，版本号不一致或者Session已被删除时不写，避免覆盖其他节点的修改或者重建被删除的Session
+ *     脚本用EVALSHA执行，Redis重启丢了脚本缓存(NOSCRIPT)时SCRIPT LOAD后只重试返回NOSCRIPT的增量
+ *     一批中单条命令出错不影响其他命令，save按条返回结果，出错的增量对应FAILED
+ *     连接是阻塞的，调用方(包括findSession)会阻塞到Redis返回或超时
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public class RedisSessionStore implements SessionStore {
+    private static final Logger log = Log.getLogger();
+
+    private static final String FIELD_VERSION = "#v";
+    private static final String FIELD_CREATION_TIME = "#c";
+    private static final String FIELD_ACCESSED_TIME = "#a";
+    private static final String FIELD_MAX_INACTIVE = "#i";
+    private static final String ATTRIBUTE_PREFIX = "a:";
+
+    /**
+     * KEYS[1] key, ARGV: 期望的版本号, ttl(ms), 删除的字段数n, n个删除的字段, 其余是HMSET的字段和值
+     */
+    private static final String SAVE_SCRIPT =
+            "local v = redis.call('HGET', KEYS[1], '#v')\n" +
+            "if (v or '0') ~= ARGV[1] then return " + CONFLICT + " end\n" +
+            "local n = tonumber(ARGV[3])\n" +
+            "if n > 0 then redis.call('HDEL', KEYS[1], unpack(ARGV, 4, 3 + n)) end\n" +
+            "redis.call('HMSET', KEYS[1], unpack(ARGV, 4 + n))\n" +
+            "local version = redis.call('HINCRBY', KEYS[1], '#v', 1)\n" +
+            "local ttl = tonumber(ARGV[2])\n" +
+            "if ttl > 0 then redis.call('PEXPIRE', KEYS[1], ttl) else redis.call('PERSIST', KEYS[1]) end\n" +
+            "return version\n";
+    private static final String SAVE_SCRIPT_SHA1 = sha1Hex(SAVE_SCRIPT);
+
+    private final String host;
+    private final int port;
+    private final int timeoutMillis;
+    private final String keyPrefix;
+    private final BlockingQueue<Connection> idle;
+
+    private volatile boolean closed = false;
+
+    public RedisSessionStore(String host, int port, int timeoutMillis, int poolSize, String keyPrefix) {
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+        this.keyPrefix = keyPrefix == null ? "" : keyPrefix;
+        this.idle = new ArrayBlockingQueue<Connection>(Math.max(1, poolSize));
+    }
+
+    private String key(String id) {
+        return keyPrefix + id;
+    }
+
+    @Override
+    public SessionData load(String id) throws IOException {
+        Object reply = execute(command("HGETALL", key(id)));
+        if (!(reply instanceof List)) {
+            throw new IOException("unexpected HGETALL reply: " + reply);
+        }
+        List<?> fields = (List<?>) reply;
+        if (fields.isEmpty()) {
+            return null;
+        }
+        SessionData data = new SessionData(id);
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            String field = new String((byte[]) fields.get(i), CharsetUtil.UTF_8);
+            byte[] value = (byte[]) fields.get(i + 1);
+            if (field.startsWith(ATTRIBUTE_PREFIX)) {
+                data.putAttribute(field.substring(ATTRIBUTE_PREFIX.length()), value);
+            } else if (FIELD_VERSION.equals(field)) {
+                data.setVersion(toLong(value));
+            } else if (FIELD_CREATION_TIME.equals(field)) {
+                data.setCreationTime(toLong(value));
+            } else if (FIELD_ACCESSED_TIME.equals(field)) {
+                data.setLastAccessedTime(toLong(value));
+            } else if (FIELD_MAX_INACTIVE.equals(field)) {
+                data.setMaxInactiveInterval((int) toLong(value));
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public long version(String id) throws IOException {
+        Object reply = execute(command("HGET", key(id), FIELD_VERSION));
+        return reply == null ? -1 : toLong((byte[]) reply);
+    }
+
+    @Override
+    public long[] save(List<SessionData> deltas) throws IOException {
+        long[] versions = new long[deltas.size()];
+        if (deltas.isEmpty()) {
+            return versions;
+        }
+        List<List<byte[]>> commands = new ArrayList<List<byte[]>>(deltas.size());
+        for (SessionData delta : deltas) {
+            String key = key(delta.getId());
+            if (delta.isInvalidated()) {
+                commands.add(command("DEL", key));
+                continue;
+            }
+            List<byte[]> eval = command("EVALSHA", SAVE_SCRIPT_SHA1, 1, key,
+                    delta.getVersion(), delta.getTtlMillis(), delta.getRemovedAttributes().size());
+            for (String name : delta.getRemovedAttributes()) {
+                eval.add(toBytes(ATTRIBUTE_PREFIX + name));
+            }
+            eval.add(toBytes(FIELD_CREATION_TIME));
+            eval.add(toBytes(String.valueOf(delta.getCreationTime())));
+            eval.add(toBytes(FIELD_ACCESSED_TIME));
+            eval.add(toBytes(String.valueOf(delta.getLastAccessedTime())));
+            eval.add(toBytes(FIELD_MAX_INACTIVE));
+            eval.add(toBytes(String.valueOf(delta.getMaxInactiveInterval())));
+            for (Map.Entry<String, byte[]> e : delta.getAttributes().entrySet()) {
+                eval.add(toBytes(ATTRIBUTE_PREFIX + e.getKey()));
+                eval.add(e.getValue());
+            }
+            commands.add(eval);
+        }
+
+        List<Object> replies = pipeline(commands);
+        List<Integer> noScript = new ArrayList<Integer>(0);
+        for (int i = 0; i < replies.size(); i++) {
+            if (isNoScript(replies.get(i))) {
+                noScript.add(i);
+            }
+        }
+        if (!noScript.isEmpty()) {
+            // the script cache was flushed, e.g. redis restarted: load it and retry only what was not run
+            execute(command("SCRIPT", "LOAD", SAVE_SCRIPT));
+            List<List<byte[]>> retry = new ArrayList<List<byte[]>>(noScript.size());
+            for (int i : noScript) {
+                retry.add(commands.get(i));
+            }
+            List<Object> retried = pipeline(retry);
+            for (int i = 0; i < noScript.size(); i++) {
+                replies.set(noScript.get(i), retried.get(i));
+            }
+        }
+        for (int i = 0; i < versions.length; i++) {
+            Object reply = replies.get(i);
+            if (reply instanceof ErrorReply) {
+                log.warn("session store: save session {} failed, {}", deltas.get(i).getId(), reply);
+                versions[i] = FAILED;
+            } else {
+                versions[i] = deltas.get(i).isInvalidated() ? -1 : (Long) reply;
+            }
+        }
+        return versions;
+    }
+
+    @Override
+    public void remove(String id) throws IOException {
+        execute(command("DEL", key(id)));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Connection conn;
+        while ((conn = idle.poll()) != null) {
+            conn.close();
+        }
+    }
+
+    private static boolean isNoScript(Object reply) {
+        return reply instanceof ErrorReply && ((ErrorReply) reply).message.startsWith("NOSCRIPT");
+    }
+
+    private Object execute(List<byte[]> command) throws IOException {
+        List<List<byte[]>> commands = new ArrayList<List<byte[]>>(1);
+        commands.add(command);
+        Object reply = pipeline(commands).get(0);
+        if (reply instanceof ErrorReply) {
+            throw new IOException("redis error: " + ((ErrorReply) reply).message);
+        }
+        return reply;
+    }
+
+    /**
+     * 一次写出所有命令再依次读取应答，出错的连接直接关闭不再放回池中
+     * 命令返回的错误以ErrorReply放在对应位置，不抛异常，同一批的其他命令已经执行了
+     */
+    private List<Object> pipeline(List<List<byte[]>> commands) throws IOException {
+        if (closed) {
+            throw new IOException("session store is closed");
+        }
+        Connection conn = idle.poll();
+        if (conn == null) {
+            conn = new Connection(host, port, timeoutMillis);
+        }
+        List<Object> replies = new ArrayList<Object>(commands.size());
+        try {
+            for (List<byte[]> command : commands) {
+                conn.write(command);
+            }
+            conn.out.flush();
+            for (int i = 0; i < commands.size(); i++) {
+                replies.add(conn.read());
+            }
+        } catch (IOException | RuntimeException e) {
+            conn.close();
+            throw e;
+        }
+        if (closed || !idle.offer(conn)) {
+            conn.close();
+        }
+        return replies;
+    }
+
+    private static List<byte[]> command(Object... parts) {
+        List<byte[]> command = new ArrayList<byte[]>(parts.length + 8);
+        for (Object part : parts) {
+            command.add(part instanceof byte[] ? (byte[]) part : toBytes(String.valueOf(part)));
+        }
+        return command;
+    }
+
+    private static byte[] toBytes(String str) {
+        return str.getBytes(CharsetUtil.UTF_8);
+    }
+
+    private static String sha1Hex(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(toBytes(script));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long toLong(byte[] value) throws IOException {
+        try {
+            return Long.parseLong(new String(value, CharsetUtil.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new IOException("not a number: " + new String(value, CharsetUtil.US_ASCII));
+        }
+    }
+
+    private static final class ErrorReply {
+        private final String message;
+
+        private ErrorReply(String message) {
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "-" + message;
+        }
+    }
+
+    private static final class Connection {
+        private static final byte[] CRLF = {'\r', '\n'};
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private Connection(String host, int port, int timeoutMillis) throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeoutMillis);
+                socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            } catch (IOException e) {
+                CloseableHelper.closeSilently(socket);
+                throw e;
+            }
+        }
+
+        private void write(List<byte[]> command) throws IOException {
+            out.write('*');
+            out.write(toBytes(Integer.toString(command.size())));
+            out.write(CRLF);
+            for (byte[] arg : command) {
+                out.write('$');
+                out.write(toBytes(Integer.toString(arg.length)));
+                out.write(CRLF);
+                out.write(arg);
+                out.write(CRLF);
+            }
+        }
+
+        private Object read() throws IOException {
+            int type = in.read();
+            if (type < 0) {
+                throw new EOFException("redis connection closed");
+            }
+            String line = readLine();
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    return new ErrorReply(line);
+                case ':':
+                    return Long.parseLong(line);
+                case '$': {
+                    int len = Integer.parseInt(line);
+                    if (len < 0) {
+                        return null;
+                    }
+                    byte[] data = new byte[len + 2];
+                    int off = 0;
+                    while (off < data.length) {
+                        int n = in.read(data, off, data.length - off);
+                        if (n < 0) {
+                            throw new EOFException("redis connection closed");
+                        }
+                        off += n;
+                    }
+                    byte[] value = new byte[len];
+                    System.arraycopy(data, 0, value, 0, len);
+                    return value;
+                }
+                case '*': {
+                    int count = Integer.parseInt(line);
+                    if (count < 0) {
+                        return null;
+                    }
+                    List<Object> items = new ArrayList<Object>(count);
+                    for (int i = 0; i < count; i++) {
+                        items.add(read());
+                    }
+                    return items;
+                }
+                default:
+                    throw new IOException("unknown redis reply type: " + (char) type);
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (;;) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("redis connection closed");
+                }
+                if (b == '\r') {
+                    if (in.read() != '\n') {
+                        throw new IOException("malformed redis reply");
+                    }
+                    return line.toString();
+                }
+                line.append((char) b);
+            }
+        }
+
+        private void close() {
+            CloseableHelper.closeSilently(socket);
+        }
+    }
+}
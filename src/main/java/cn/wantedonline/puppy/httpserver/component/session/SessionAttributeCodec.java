@@ -0,0 +1,107 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import io.netty.util.CharsetUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * <pre>
+ *     Session属性值的二进制编码，堆外和分布式Session共用
+ *     格式: [byte 类型][值]，String按UTF-8存放，Integer/Long/Boolean按定长存放，
+ *     其他类型用Java序列化，必须实现Serializable
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public final class SessionAttributeCodec {
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_SERIALIZED = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+
+    private SessionAttributeCodec() {}
+
+    public static byte[] encode(String name, Object value) {
+        if (value instanceof String) {
+            byte[] str = ((String) value).getBytes(CharsetUtil.UTF_8);
+            byte[] data = new byte[str.length + 1];
+            data[0] = TYPE_STRING;
+            System.arraycopy(str, 0, data, 1, str.length);
+            return data;
+        }
+        if (value instanceof Integer) {
+            return ByteBuffer.allocate(5).put(TYPE_INTEGER).putInt((Integer) value).array();
+        }
+        if (value instanceof Long) {
+            return ByteBuffer.allocate(9).put(TYPE_LONG).putLong((Long) value).array();
+        }
+        if (value instanceof Boolean) {
+            return new byte[] {TYPE_BOOLEAN, (byte) ((Boolean) value ? 1 : 0)};
+        }
+        if (!(value instanceof Serializable)) {
+            throw new IllegalArgumentException("setAttribute: Non-serializable attribute " + name);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(TYPE_SERIALIZED);
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(value);
+            oos.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("setAttribute: Non-serializable attribute " + name, e);
+        }
+        return out.toByteArray();
+    }
+
+    public static Object decode(String name, byte[] data) {
+        if (data.length == 0) {
+            return null;
+        }
+        if (data[0] == TYPE_STRING) {
+            return new String(data, 1, data.length - 1, CharsetUtil.UTF_8);
+        }
+        if (data[0] == TYPE_INTEGER) {
+            return ByteBuffer.wrap(data, 1, 4).getInt();
+        }
+        if (data[0] == TYPE_LONG) {
+            return ByteBuffer.wrap(data, 1, 8).getLong();
+        }
+        if (data[0] == TYPE_BOOLEAN) {
+            return data[1] != 0;
+        }
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, 1, data.length - 1));
+            try {
+                return ois.readObject();
+            } finally {
+                ois.close();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("getAttribute: Cannot deserialize attribute " + name, e);
+        }
+    }
+}
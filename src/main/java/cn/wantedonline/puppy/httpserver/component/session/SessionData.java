@@ -0,0 +1,121 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <pre>
+ *     SessionStore读写的数据单元
+ *     load返回的是完整的Session，save提交的是增量:只带有变化的属性和被删除的属性名，
+ *     invalidated为true时表示删除整个Session
+ *     属性值是SessionAttributeCodec编码后的字节
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public class SessionData {
+    private final String id;
+    private long version;
+    private long creationTime;
+    private long lastAccessedTime;
+    private int maxInactiveInterval = -1;
+    private boolean invalidated;
+    private final Map<String, byte[]> attributes = new HashMap<String, byte[]>();
+    private final Set<String> removedAttributes = new HashSet<String>();
+
+    public SessionData(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * 存储端的版本号，每次save后加一
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public void setCreationTime(long creationTime) {
+        this.creationTime = creationTime;
+    }
+
+    public long getLastAccessedTime() {
+        return lastAccessedTime;
+    }
+
+    public void setLastAccessedTime(long lastAccessedTime) {
+        this.lastAccessedTime = lastAccessedTime;
+    }
+
+    public int getMaxInactiveInterval() {
+        return maxInactiveInterval;
+    }
+
+    public void setMaxInactiveInterval(int maxInactiveInterval) {
+        this.maxInactiveInterval = maxInactiveInterval;
+    }
+
+    public boolean isInvalidated() {
+        return invalidated;
+    }
+
+    public void setInvalidated(boolean invalidated) {
+        this.invalidated = invalidated;
+    }
+
+    /**
+     * 存储端的存活时间，单位毫秒，小于等于0表示不过期
+     */
+    public long getTtlMillis() {
+        return maxInactiveInterval > 0 ? maxInactiveInterval * 1000L : 0;
+    }
+
+    public void putAttribute(String name, byte[] value) {
+        attributes.put(name, value);
+        removedAttributes.remove(name);
+    }
+
+    public void removeAttribute(String name) {
+        attributes.remove(name);
+        removedAttributes.add(name);
+    }
+
+    public Map<String, byte[]> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    public Set<String> getRemovedAttributes() {
+        return Collections.unmodifiableSet(removedAttributes);
+    }
+}
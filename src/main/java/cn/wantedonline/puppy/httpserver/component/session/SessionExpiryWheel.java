@@ -0,0 +1,102 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <pre>
+ *     Session过期时间轮，按过期时间把Session放进对应的桶，定时只处理到期的桶，不再全量扫描
+ *     Session被访问时只更新访问时间，不移动桶；桶到期时再检查，没有真正过期的按新的过期时间重新放入
+ *     这样每个Session每个不活跃周期最多被检查一次，access()仍然是O(1)
+ *     超出时间轮跨度的过期时间先放在最远的桶里，到期后再往后放
+ *     桶里一般放Session，重启快照中还没恢复的Session只放Id
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public final class SessionExpiryWheel<T> {
+
+    /**
+     * 处理到期桶里的元素
+     */
+    public interface Visitor<T> {
+        void visit(T item);
+    }
+
+    private final long tickMillis;
+    private final ConcurrentLinkedQueue<T>[] slots;
+    private final int mask;
+    /** 下一个待处理的tick，schedule不会把Session放到已经处理过的tick上 */
+    private volatile long currentTick;
+
+    @SuppressWarnings("unchecked")
+    public SessionExpiryWheel(long tickMillis, int size, long now) {
+        int n = 1;
+        while (n < size) {
+            n <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new ConcurrentLinkedQueue[n];
+        for (int i = 0; i < n; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.mask = n - 1;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * 按过期时间放入对应的桶，可以在任意线程调用
+     * 和advance并发时可能落到刚处理完的桶，最坏晚一圈才被检查
+     * @param deadline 过期时间(ms)，小于等于0表示永不过期，放在最远的桶里定期检查
+     */
+    public void schedule(T item, long deadline) {
+        long cur = currentTick;
+        long farthest = cur + slots.length - 2; // 留出正在处理的桶，重新放入时不会放回同一个桶
+        long tick = deadline <= 0 ? farthest : Math.max(cur, Math.min(farthest, deadline / tickMillis));
+        slots[(int) (tick & mask)].offer(item);
+    }
+
+    /**
+     * 处理到now为止所有到期的桶，同一时间只有一个线程推进
+     * @return 检查过的Session个数
+     */
+    public synchronized int advance(long now, Visitor<T> visitor) {
+        long target = now / tickMillis;
+        long tick = currentTick;
+        if (target - tick >= slots.length) {
+            //停了超过一圈，所有的桶都处理一次即可
+            tick = target - slots.length + 1;
+        }
+        int visited = 0;
+        while (tick <= target) {
+            ConcurrentLinkedQueue<T> slot = slots[(int) (tick & mask)];
+            currentTick = ++tick;
+            T item;
+            while ((item = slot.poll()) != null) {
+                visited++;
+                visitor.visit(item);
+            }
+        }
+        return visited;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+}
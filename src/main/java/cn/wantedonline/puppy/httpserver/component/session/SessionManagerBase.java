@@ -19,6 +19,7 @@ package cn.wantedonline.puppy.httpserver.component.session;
 
 
 import cn.wantedonline.puppy.exception.TooManyActiveSessionsException;
+import cn.wantedonline.puppy.httpserver.stat.MetricsWriter;
 import cn.wantedonline.puppy.spring.annotation.Config;
 import cn.wantedonline.puppy.util.*;
 import cn.wantedonline.puppy.util.concurrent.ConcurrentUtil;
@@ -87,6 +88,7 @@ public abstract class SessionManagerBase implements SessionManager {
     protected String secureRandomProvider = null;
 
     protected SessionIdGenerator sessionIdGenerator = null;
+    protected String jvmRoute = null;
     protected Class<? extends SessionIdGenerator> sessionIdGeneratorClass = null;
 
     /**
@@ -155,6 +157,41 @@ public abstract class SessionManagerBase implements SessionManager {
 
     private volatile boolean startedSessionGC = false;
 
+    /**
+     * Granularity and number of buckets of the expiry wheel. With one second
+     * buckets the wheel spans a bit more than an hour, longer inactive
+     * intervals simply wrap around.
+     */
+    protected static final long EXPIRY_TICK_MILLIS = 1000L;
+    protected static final int EXPIRY_WHEEL_SIZE = 4096;
+
+    /**
+     * Expiry-ordered buckets of the active sessions, only the buckets that
+     * are due are visited by processExpires.
+     */
+    protected final SessionExpiryWheel<Session> expiryWheel = new SessionExpiryWheel<>(EXPIRY_TICK_MILLIS, EXPIRY_WHEEL_SIZE, System.currentTimeMillis());
+
+    private int expireHere;
+
+    private final SessionExpiryWheel.Visitor<Session> expiryVisitor = new SessionExpiryWheel.Visitor<Session>() {
+        @Override
+        public void visit(Session session) {
+            String id = session.getId();
+            if (id == null || sessions.get(id) != session) {
+                // already removed from this manager
+                return;
+            }
+            if (!session.isValid()) {
+                expireHere++;
+                //session过期之后，应该删除session对象
+                remove(session, true);
+                return;
+            }
+            // accessed since it was bucketed, move it to its new deadline
+            scheduleExpiry(session);
+        }
+    };
+
     // ------------------------------------------------------------- Properties
 
     /** Returns the name of the implementation class.
@@ -385,30 +422,34 @@ public abstract class SessionManagerBase implements SessionManager {
     }
 
     /**
-     * Invalidate all sessions that have expired.
+     * Invalidate all sessions that have expired. Only the sessions in the
+     * buckets of the expiry wheel that are due are checked.
      */
-    public void processExpires() {
+    public synchronized void processExpires() {
 
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
-        int expireHere = 0 ;
-        
+        expireHere = 0;
+
         if(log.isDebugEnabled())
-            log.debug("Start expire sessions at "+ getInstanceInfo() + ",time " + timeNow + " sessioncount " + sessions.length);
-        for (int i = 0; i < sessions.length; i++) {
-            if (sessions[i]!=null && !sessions[i].isValid()) {
-                expireHere++;
-                //session过期之后，应该删除session对象
-                remove(sessions[i]);
-            }
-        }
+            log.debug("Start expire sessions at "+ getInstanceInfo() + ",time " + timeNow + " sessioncount " + getActiveSessions());
+        int visited = expiryWheel.advance(timeNow, expiryVisitor);
         long timeEnd = System.currentTimeMillis();
         if(log.isDebugEnabled())
-             log.debug("End expire sessions processingTime " + (timeEnd - timeNow) + " expired sessions: " + expireHere);
+             log.debug("End expire sessions processingTime " + (timeEnd - timeNow) + " checked sessions: " + visited + " expired sessions: " + expireHere);
         processingTime += ( timeEnd - timeNow );
 
     }
 
+    /**
+     * Put the session into the bucket of the expiry wheel matching the time
+     * it will expire if it is not accessed again.
+     */
+    protected void scheduleExpiry(Session session) {
+        int interval = session.getMaxInactiveInterval();
+        long deadline = interval > 0 ? session.getThisAccessedTime() + interval * 1000L : 0;
+        expiryWheel.schedule(session, deadline);
+    }
+
 
     protected void startInternal() {
 
@@ -453,6 +494,7 @@ public abstract class SessionManagerBase implements SessionManager {
     @Override
     public void add(Session session) {
         sessions.put(session.getId(), session);
+        scheduleExpiry(session);
         int size = getActiveSessions();
         if( size > maxActive ) {
             synchronized(maxActiveUpdateLock) {
@@ -507,7 +549,8 @@ public abstract class SessionManagerBase implements SessionManager {
             sessionCreationTiming.add(timing);
             sessionCreationTiming.poll();
         }
-        sessions.put(sessionId, session);
+        sessions.put(id, session);
+        scheduleExpiry(session);
         return (session);
 
     }
@@ -580,7 +623,7 @@ public abstract class SessionManagerBase implements SessionManager {
         if (update) {
             long timeNow = System.currentTimeMillis();
             int timeAlive =
-                (int) (timeNow - session.getCreationTime())/1000;
+                (int) ((timeNow - session.getCreationTime())/1000);
             updateSessionMaxAliveTime(timeAlive);
             expiredSessions.incrementAndGet();
             SessionTiming timing = new SessionTiming(timeNow, timeAlive);
@@ -604,7 +647,12 @@ public abstract class SessionManagerBase implements SessionManager {
      */
     @Override
     public void changeSessionId(Session session) {
-        session.setId(generateSessionId());
+        String oldId = session.getId();
+        String newId = generateSessionId();
+        session.setId(newId);
+        if (oldId != null && sessions.remove(oldId) != null) {
+            sessions.put(newId, session);
+        }
     }
     
     
@@ -647,13 +695,27 @@ public abstract class SessionManagerBase implements SessionManager {
 
     /**
      * 在分布式环境下，支持同一个Session落在不同的实例上
-     * 因此，JvmRoute事实上作用不大，直接用进程名替代好了
+     * 没有配置JvmRoute时直接用进程名替代
      * @return the JvmRoute or null.
      */
     public String getJvmRoute() {
+        if (jvmRoute != null && jvmRoute.length() > 0) {
+            return jvmRoute;
+        }
         return getInstanceInfo();
     }
 
+    /**
+     * 设置本节点的JvmRoute，新生成的SessionId以".jvmRoute"结尾，
+     * 负载均衡按这个后缀把请求粘到创建Session的节点上
+     */
+    public void setJvmRoute(String jvmRoute) {
+        this.jvmRoute = jvmRoute;
+        if (sessionIdGenerator != null) {
+            sessionIdGenerator.setJvmRoute(getJvmRoute());
+        }
+    }
+
     private String getInstanceInfo() {
         return ManagementFactory.getRuntimeMXBean().getName();
     }
@@ -915,6 +977,21 @@ public abstract class SessionManagerBase implements SessionManager {
     }
 
 
+    /**
+     * Write the session statistics of this manager in OpenMetrics format.
+     */
+    public void writeMetrics(MetricsWriter writer) {
+        writer.family("puppy_sessions_active", "gauge", "Sessions currently held by the session manager.");
+        writer.name("puppy_sessions_active").value(getActiveSessions());
+        writer.family("puppy_sessions_created", "counter", "Sessions created since startup.");
+        writer.name("puppy_sessions_created_total").value(getSessionCounter());
+        writer.family("puppy_sessions_expired", "counter", "Sessions removed after expiring.");
+        writer.name("puppy_sessions_expired_total").value(getExpiredSessions());
+        writer.family("puppy_sessions_rejected", "counter", "Session creations rejected because of maxActiveSessions.");
+        writer.name("puppy_sessions_rejected_total").value(getRejectedSessions());
+    }
+
+
     /** 
      * For debugging: return a list of all session ids currently active
      *
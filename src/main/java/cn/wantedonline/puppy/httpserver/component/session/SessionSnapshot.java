@@ -0,0 +1,330 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import cn.wantedonline.puppy.util.CloseableHelper;
+import cn.wantedonline.puppy.util.Log;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <pre>
+ *     Session快照文件，停机时把Session顺序写成二进制，启动时mmap后按需恢复
+ *     文件: [int MAGIC][int VERSION][long 写入时间][int 记录数]{记录}
+ *     记录: [int 记录长度(不含这4字节)][long 创建时间][long 最后访问时间][int 最大不活动间隔]
+ *           [short idLen][id]{[short nameLen][name][int valLen][值]}
+ *     属性值用SessionAttributeCodec编码，不是Java序列化的对象图，不能序列化的属性会被跳过
+ *     文件用int寻址，不能超过2GB
+ * </pre>
+ *
+ * @author wangcheng
+ */
+final class SessionSnapshot {
+    private static final Logger log = Log.getLogger();
+
+    static final int MAGIC = 0x50535353;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 20;
+
+    private static final int CREATION_TIME = 4;
+    private static final int LAST_ACCESSED_TIME = 12;
+    private static final int MAX_INACTIVE = 20;
+    private static final int ID = 24;
+
+    private SessionSnapshot() {}
+
+    /**
+     * 记录在snapshot中的位置
+     */
+    interface Visitor {
+        void visit(String id, int offset);
+    }
+
+    /**
+     * 先写到临时文件，全部写完并刷盘后再改名，中途失败不会破坏上一个快照
+     */
+    static final class Writer {
+        private final File target;
+        private final File tmp;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        private int count = 0;
+
+        Writer(File target) throws IOException {
+            this.target = target;
+            this.tmp = new File(target.getPath() + ".tmp");
+            this.file = new RandomAccessFile(tmp, "rw");
+            file.setLength(0);
+            this.channel = file.getChannel();
+            buffer.position(HEADER_SIZE);
+        }
+
+        void write(Session session) throws IOException {
+            String id = session.getId();
+            Set<String> names = session.getAttributeNames();
+            if (id == null || names == null) {
+                return;
+            }
+            byte[] idBytes = id.getBytes(CharsetUtil.UTF_8);
+            List<byte[]> attributes = new ArrayList<byte[]>(names.size() * 2);
+            int length = ID - 4 + 2 + idBytes.length;
+            for (String name : names) {
+                Object value = session.getAttribute(name);
+                if (value == null) {
+                    continue;
+                }
+                byte[] data;
+                try {
+                    data = SessionAttributeCodec.encode(name, value);
+                } catch (IllegalArgumentException e) {
+                    log.warn("session {} attribute {} is not saved: {}", id, name, e.getMessage());
+                    continue;
+                }
+                byte[] nameBytes = name.getBytes(CharsetUtil.UTF_8);
+                attributes.add(nameBytes);
+                attributes.add(data);
+                length += 2 + nameBytes.length + 4 + data.length;
+            }
+
+            ByteBuffer out = reserve(4 + length);
+            out.putInt(length);
+            out.putLong(session.getCreationTime());
+            out.putLong(session.getThisAccessedTime());
+            out.putInt(session.getMaxInactiveInterval());
+            out.putShort((short) idBytes.length);
+            out.put(idBytes);
+            for (int i = 0; i < attributes.size(); i += 2) {
+                out.putShort((short) attributes.get(i).length);
+                out.put(attributes.get(i));
+                out.putInt(attributes.get(i + 1).length);
+                out.put(attributes.get(i + 1));
+            }
+            release(out);
+        }
+
+        /**
+         * 原样复制上一个快照中还没有恢复的记录
+         */
+        void write(ByteBuffer record) throws IOException {
+            ByteBuffer out = reserve(record.remaining());
+            out.put(record);
+            release(out);
+        }
+
+        private ByteBuffer reserve(int size) throws IOException {
+            if (buffer.remaining() < size) {
+                drain();
+            }
+            return buffer.remaining() < size ? ByteBuffer.allocate(size) : buffer;
+        }
+
+        private void release(ByteBuffer out) throws IOException {
+            count++;
+            if (out != buffer) {
+                out.flip();
+                writeFully(out);
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        void commit() throws IOException {
+            try {
+                if (channel.position() == 0) {
+                    // nothing flushed yet, the header is still the start of the buffer
+                    buffer.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, System.currentTimeMillis()).putInt(16, count);
+                    drain();
+                } else {
+                    drain();
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(count).flip();
+                    while (header.hasRemaining()) {
+                        channel.write(header, header.position());
+                    }
+                }
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("session snapshot is larger than 2GB");
+                }
+                channel.force(false);
+            } finally {
+                CloseableHelper.closeSilently(file);
+            }
+            // replace the old snapshot in one step, a crash in between must not leave no snapshot at all
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        void abort() {
+            CloseableHelper.closeSilently(file);
+            if (tmp.exists() && !tmp.delete()) {
+                log.warn("cannot delete {}", tmp);
+            }
+        }
+    }
+
+    /**
+     * 只读映射整个快照文件，记录在被访问时才解码
+     */
+    static final class Reader {
+        private final MappedByteBuffer map;
+        private final int count;
+        private final long writeTime;
+
+        private Reader(MappedByteBuffer map) throws IOException {
+            this.map = map;
+            if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+                throw new IOException("not a session snapshot");
+            }
+            if (map.getInt(4) != VERSION) {
+                throw new IOException("unsupported session snapshot version " + map.getInt(4));
+            }
+            this.writeTime = map.getLong(8);
+            this.count = map.getInt(16);
+        }
+
+        static Reader open(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() > Integer.MAX_VALUE) {
+                    throw new IOException("session snapshot is larger than 2GB");
+                }
+                return new Reader(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+            } finally {
+                // the mapping stays valid after the channel is closed
+                CloseableHelper.closeSilently(raf);
+            }
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        long getWriteTime() {
+            return writeTime;
+        }
+
+        void scan(Visitor visitor) throws IOException {
+            int offset = HEADER_SIZE;
+            int limit = map.limit();
+            for (int i = 0; i < count; i++) {
+                if (offset + ID + 2 > limit) {
+                    throw new IOException("session snapshot is truncated at record " + i);
+                }
+                int length = map.getInt(offset);
+                if (length < ID - 4 + 2 || offset + 4 + length > limit) {
+                    throw new IOException("session snapshot is corrupted at record " + i);
+                }
+                visitor.visit(readId(offset), offset);
+                offset += 4 + length;
+            }
+        }
+
+        /**
+         * 不再访问时的过期时间，永不过期时返回0
+         */
+        long deadline(int offset) {
+            int interval = map.getInt(offset + MAX_INACTIVE);
+            return interval > 0 ? map.getLong(offset + LAST_ACCESSED_TIME) + interval * 1000L : 0;
+        }
+
+        boolean isExpired(int offset, long now) {
+            int interval = map.getInt(offset + MAX_INACTIVE);
+            return interval > 0 && now - map.getLong(offset + LAST_ACCESSED_TIME) >= interval * 1000L;
+        }
+
+        ByteBuffer record(int offset) {
+            ByteBuffer record = map.duplicate();
+            record.limit(offset + 4 + map.getInt(offset)).position(offset);
+            return record;
+        }
+
+        private String readId(int offset) {
+            int len = map.getShort(offset + ID) & 0xffff;
+            return new String(bytes(offset + ID + 2, len), CharsetUtil.UTF_8);
+        }
+
+        private byte[] bytes(int position, int length) {
+            byte[] data = new byte[length];
+            ByteBuffer src = map.duplicate();
+            src.position(position);
+            src.get(data);
+            return data;
+        }
+
+        /**
+         * 把一条记录恢复成Session，属性在这里才解码
+         */
+        void restore(int offset, Session session) {
+            int end = offset + 4 + map.getInt(offset);
+            String id = readId(offset);
+            session.setValid(true);
+            session.setCreationTime(map.getLong(offset + CREATION_TIME));
+            session.setMaxInactiveInterval(map.getInt(offset + MAX_INACTIVE));
+            session.setId(id);
+            // keep the idle time from before the restart
+            if (session instanceof SessionBase) {
+                ((SessionBase) session).restoreAccessTime(map.getLong(offset + LAST_ACCESSED_TIME));
+            }
+            int position = offset + ID + 2 + (map.getShort(offset + ID) & 0xffff);
+            while (position < end) {
+                int nameLen = map.getShort(position) & 0xffff;
+                String name = new String(bytes(position + 2, nameLen), CharsetUtil.UTF_8);
+                position += 2 + nameLen;
+                int valueLen = map.getInt(position);
+                byte[] value = bytes(position + 4, valueLen);
+                position += 4 + valueLen;
+                try {
+                    session.setAttribute(name, SessionAttributeCodec.decode(name, value));
+                } catch (IllegalStateException e) {
+                    log.warn("session {} attribute {} is not restored: {}", id, name, e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * <pre>
+ *     分布式Session的存储后端，DistributedSessionManager通过它在多个节点间共享Session
+ *     实现必须是线程安全的，过期由存储端按SessionData的ttl处理
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public interface SessionStore extends Closeable {
+
+    /**
+     * save时存储端的版本号与增量的版本号不一致，或者Session已经被删除，这条增量没有写入
+     */
+    public static final long CONFLICT = -2;
+
+    /**
+     * save时这条增量在存储端执行出错，没有写入，同一批的其他增量不受影响，可以重试
+     */
+    public static final long FAILED = -3;
+
+    /**
+     * 读取完整的Session
+     *
+     * @return 不存在或已过期时返回null
+     */
+    public SessionData load(String id) throws IOException;
+
+    /**
+     * 只读取Session的版本号，用于校验近端缓存是否过时
+     *
+     * @return 不存在或已过期时返回-1
+     */
+    public long version(String id) throws IOException;
+
+    /**
+     * 批量提交增量，同一批在一次往返中完成
+     * 只有存储端的版本号等于增量的版本号时才写入，版本号为0的增量要求存储端还没有这个Session
+     *
+     * @return 与deltas一一对应的新版本号，被删除的Session对应-1，没有写入的对应CONFLICT或FAILED
+     * @throws IOException 连接出错，不知道这一批写入了哪些
+     */
+    public long[] save(List<SessionData> deltas) throws IOException;
+
+    /**
+     * 删除整个Session
+     */
+    public void remove(String id) throws IOException;
+}
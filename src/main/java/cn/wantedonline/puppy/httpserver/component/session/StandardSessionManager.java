@@ -17,15 +17,15 @@
 
 package cn.wantedonline.puppy.httpserver.component.session;
 
+import cn.wantedonline.puppy.httpserver.stat.MetricsWriter;
 import cn.wantedonline.puppy.util.Log;
 import org.slf4j.Logger;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <pre>
@@ -57,7 +57,41 @@ public class StandardSessionManager extends SessionManagerBase {
      * temporary working directory provided by our context, available via
      * the <code>javax.servlet.context.tempdir</code> context attribute.
      */
-    protected String pathname = "SESSIONS.ser";
+    protected String pathname = "SESSIONS.snap";
+
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Mapped snapshot of the last unload and the offset of each session not
+     * looked up yet, keyed by session id.
+     */
+    private volatile SessionSnapshot.Reader snapshot = null;
+    private volatile Map<String, Integer> snapshotIndex = Collections.emptyMap();
+
+    /**
+     * Ids of the snapshot not looked up yet, bucketed by the time they
+     * expire. processExpires only visits the due buckets and never holds
+     * the lock findSession restores under.
+     */
+    private final SessionExpiryWheel<String> snapshotWheel = new SessionExpiryWheel<>(EXPIRY_TICK_MILLIS, EXPIRY_WHEEL_SIZE, System.currentTimeMillis());
+
+    private final SessionExpiryWheel.Visitor<String> snapshotExpiryVisitor = new SessionExpiryWheel.Visitor<String>() {
+        @Override
+        public void visit(String id) {
+            SessionSnapshot.Reader reader = snapshot;
+            Integer offset = snapshotIndex.get(id);
+            if (reader == null || offset == null) {
+                // restored or dropped already
+                return;
+            }
+            long deadline = reader.deadline(offset);
+            if (deadline > 0 && deadline <= System.currentTimeMillis()) {
+                snapshotIndex.remove(id, offset);
+            } else {
+                snapshotWheel.schedule(id, deadline);
+            }
+        }
+    };
 
     /**
      * Return the session persistence pathname, if any.
@@ -96,112 +130,42 @@ public class StandardSessionManager extends SessionManagerBase {
 
 
     /**
-     * Load any currently active sessions that were previously unloaded
-     * to the appropriate persistence mechanism, if any.  If persistence is not
-     * supported, this method returns without doing anything.
+     * Map the snapshot written by the last unload and index its sessions
+     * by id. A session is only decoded when it is first looked up, records
+     * that expire before that are dropped by processExpires through the
+     * snapshot expiry wheel.
      *
-     * @exception ClassNotFoundException if a serialized class cannot be
-     *  found during the reload
      * @exception IOException if an input/output error occurs
      */
     protected void doLoad() throws ClassNotFoundException, IOException {
-        if (log.isDebugEnabled())
-            log.debug("Start: Loading persisted sessions");
-
-        // Initialize our internal data structures
-        sessions.clear();
-        // Open an input stream to the specified pathname, if any
         File file = file();
-        if (file == null)
+        if (file == null || !file.exists()) {
             return;
-        if (log.isDebugEnabled())
-            log.debug("Loading persisted sessions from {0}", pathname);
-        FileInputStream fis = null;
-        BufferedInputStream bis = null;
-        ObjectInputStream ois = null;
-        try {
-            fis = new FileInputStream(file.getAbsolutePath());
-            bis = new BufferedInputStream(fis);
-            if (log.isDebugEnabled())
-                log.debug("Creating standard object input stream");
-            ois = new ObjectInputStream(bis);
-        } catch (FileNotFoundException e) {
-            if (log.isDebugEnabled())
-                log.debug("No persisted data file found");
-            return;
-        } catch (IOException e) {
-            log.error("IOException while loading persisted sessions: ", e);
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException f) {
-                    // Ignore
-                }
-            }
-            if (bis != null) {
-                try {
-                    bis.close();
-                } catch (IOException f) {
-                    // Ignore
-                }
-            }
-            throw e;
         }
-/*
-        // Load the previously unloaded active sessions
-        synchronized (sessions) {
-            try {
-                Integer count = (Integer) ois.readObject();
-                int n = count.intValue();
-                if (log.isDebugEnabled())
-                    log.debug("Loading " + n + " persisted sessions");
-                for (int i = 0; i < n; i++) {
-                    Session session = getNewSession();
-                    session.readObjectData(ois);
-                    session.setManager(this);
-                    sessions.put(session.getIdInternal(), session);
-                    session.activate();
-                    if (!session.isValidInternal()) {
-                        // If session is already invalid,
-                        // expire session to prevent memory leak.
-                        session.setValid(true);
-                        session.expire();
-                    }
-                    sessionCounter++;
+        long begin = System.currentTimeMillis();
+        final SessionSnapshot.Reader reader = SessionSnapshot.Reader.open(file);
+        final long now = System.currentTimeMillis();
+        final Map<String, Integer> index = new ConcurrentHashMap<String, Integer>(Math.max(16, reader.getCount() * 4 / 3 + 1));
+        reader.scan(new SessionSnapshot.Visitor() {
+            @Override
+            public void visit(String id, int offset) {
+                if (!reader.isExpired(offset, now)) {
+                    index.put(id, offset);
+                    snapshotWheel.schedule(id, reader.deadline(offset));
                 }
-            } catch (ClassNotFoundException e) {
-                log.error(sm.getString("standardManager.loading.cnfe", e), e);
-                try {
-                    ois.close();
-                } catch (IOException f) {
-                    // Ignore
-                }
-                throw e;
-            } catch (IOException e) {
-                log.error(sm.getString("standardManager.loading.ioe", e), e);
-                try {
-                    ois.close();
-                } catch (IOException f) {
-                    // Ignore
-                }
-                throw e;
-            } finally {
-                // Close the input stream
-                try {
-                    ois.close();
-                } catch (IOException f) {
-                    // ignored
-                }
-
-                // Delete the persistent storage file
-                if (file.exists() )
-                    file.delete();
             }
+        });
+        synchronized (snapshotLock) {
+            snapshot = index.isEmpty() ? null : reader;
+            snapshotIndex = index;
         }
-
-        if (log.isDebugEnabled())
-            log.debug("Finish: Loading persisted sessions");
-            */
+        // the mapping stays readable, a crash from now on must not bring back the old sessions
+        if (!file.delete()) {
+            log.warn("cannot delete session snapshot {}", file);
+        }
+        log.info("session snapshot {} loaded, {} of {} sessions restorable, written {}ms ago, took {}ms", new Object[] {
+                file, index.size(), reader.getCount(), now - reader.getWriteTime(), System.currentTimeMillis() - begin
+        });
     }
 
 
@@ -219,121 +183,109 @@ public class StandardSessionManager extends SessionManagerBase {
 
 
     /**
-     * Save any currently active sessions in the appropriate persistence
-     * mechanism, if any.  If persistence is not supported, this method
-     * returns without doing anything.
+     * Stream the active sessions and the records of the last snapshot that
+     * were never looked up to a new snapshot file.
      *
      * @exception IOException if an input/output error occurs
      */
     protected void doUnload() throws IOException {
-/*
-        if (log.isDebugEnabled())
-            log.debug(sm.getString("standardManager.unloading.debug"));
-
-        if (sessions.isEmpty()) {
-            log.debug(sm.getString("standardManager.unloading.nosessions"));
-            return; // nothing to do
-        }
-
-        // Open an output stream to the specified pathname, if any
         File file = file();
-        if (file == null)
+        if (file == null) {
             return;
-        if (log.isDebugEnabled())
-            log.debug(sm.getString("standardManager.unloading", pathname));
-        FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
-        ObjectOutputStream oos = null;
-        boolean error = false;
+        }
+        long begin = System.currentTimeMillis();
+        SessionSnapshot.Writer writer = new SessionSnapshot.Writer(file);
         try {
-            fos = new FileOutputStream(file.getAbsolutePath());
-            bos = new BufferedOutputStream(fos);
-            oos = new ObjectOutputStream(bos);
-        } catch (IOException e) {
-            error = true;
-            log.error(sm.getString("standardManager.unloading.ioe", e), e);
-            throw e;
-        } finally {
-            if (error) {
-                if (oos != null) {
-                    try {
-                        oos.close();
-                    } catch (IOException ioe) {
-                        // Ignore
-                    }
-                }
-                if (bos != null) {
-                    try {
-                        bos.close();
-                    } catch (IOException ioe) {
-                        // Ignore
-                    }
+            for (Session session : findSessions()) {
+                if (session.isValid()) {
+                    writer.write(session);
                 }
-                if (fos != null) {
-                    try {
-                        fos.close();
-                    } catch (IOException ioe) {
-                        // Ignore
+            }
+            synchronized (snapshotLock) {
+                if (snapshot != null) {
+                    long now = System.currentTimeMillis();
+                    for (Integer offset : snapshotIndex.values()) {
+                        if (!snapshot.isExpired(offset, now)) {
+                            writer.write(snapshot.record(offset));
+                        }
                     }
                 }
             }
+            writer.commit();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
         }
+        log.info("{} sessions saved to {} in {}ms", new Object[] {writer.getCount(), file, System.currentTimeMillis() - begin});
+    }
 
-        // Write the number of active sessions, followed by the details
-        ArrayList<StandardSession> list = new ArrayList<StandardSession>();
-        synchronized (sessions) {
-            if (log.isDebugEnabled())
-                log.debug("Unloading " + sessions.size() + " sessions");
-            try {
-                oos.writeObject(new Integer(sessions.size()));
-                Iterator<Session> elements = sessions.values().iterator();
-                while (elements.hasNext()) {
-                    StandardSession session =
-                        (StandardSession) elements.next();
-                    list.add(session);
-                    session.passivate();
-                    session.writeObjectData(oos);
-                }
-            } catch (IOException e) {
-                log.error(sm.getString("standardManager.unloading.ioe", e), e);
-                try {
-                    oos.close();
-                } catch (IOException f) {
-                    // Ignore
-                }
-                throw e;
+    /**
+     * Look up the session in the snapshot if it is not active yet.
+     */
+    @Override
+    public Session findSession(String id) throws IOException {
+        Session session = super.findSession(id);
+        if (session != null || id == null || snapshot == null) {
+            return session;
+        }
+        synchronized (snapshotLock) {
+            session = sessions.get(id);
+            if (session != null || snapshot == null) {
+                return session;
+            }
+            Integer offset = snapshotIndex.remove(id);
+            if (offset == null) {
+                return null;
             }
+            session = createEmptySession();
+            snapshot.restore(offset, session);
+            releaseSnapshotIfDone();
+            if (!session.isValid()) {
+                return null;
+            }
+            add(session);
+            return session;
         }
+    }
 
-        // Flush and close the output stream
-        try {
-            oos.flush();
-        } finally {
-            try {
-                oos.close();
-            } catch (IOException f) {
-                // Ignore
+    /**
+     * Drop the records of the snapshot that expired without being looked up.
+     * Only the due buckets of the snapshot wheel are visited, the index is
+     * a concurrent map so findSession is not blocked meanwhile.
+     */
+    @Override
+    public synchronized void processExpires() {
+        super.processExpires();
+        // keep draining after the snapshot is released so that the ids left in the wheel are dropped
+        snapshotWheel.advance(System.currentTimeMillis(), snapshotExpiryVisitor);
+        if (snapshot != null && snapshotIndex.isEmpty()) {
+            synchronized (snapshotLock) {
+                if (snapshot != null) {
+                    releaseSnapshotIfDone();
+                }
             }
         }
+    }
 
-        // Expire all the sessions we just wrote
-        if (log.isDebugEnabled())
-            log.debug("Expiring " + list.size() + " persisted sessions");
-        Iterator<StandardSession> expires = list.iterator();
-        while (expires.hasNext()) {
-            StandardSession session = expires.next();
-            try {
-                session.expire(false);
-            } catch (Throwable t) {
-                ExceptionUtils.handleThrowable(t);
-            } finally {
-                session.recycle();
-            }
+    private void releaseSnapshotIfDone() {
+        if (snapshotIndex.isEmpty()) {
+            snapshot = null;
+            log.info("all sessions of the snapshot restored or expired");
         }
+    }
 
-        if (log.isDebugEnabled())
-            log.debug("Unloading complete");
-*/
+    /**
+     * Sessions of the last snapshot not looked up yet.
+     */
+    public int getSnapshotPending() {
+        return snapshotIndex.size();
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        super.writeMetrics(writer);
+        writer.family("puppy_sessions_snapshot_pending", "gauge", "Sessions of the restart snapshot that were not looked up yet.");
+        writer.name("puppy_sessions_snapshot_pending").value(getSnapshotPending());
     }
 
 
@@ -22,6 +22,7 @@ import cn.wantedonline.puppy.exception.ResourceNotFoundError;
 import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
 import cn.wantedonline.puppy.httpserver.component.ContextAttachment;
 import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+import cn.wantedonline.puppy.httpserver.stat.RequestTrace;
 import cn.wantedonline.puppy.spring.annotation.AfterBootstrap;
 import cn.wantedonline.puppy.spring.annotation.AfterConfig;
 import cn.wantedonline.puppy.spring.annotation.Config;
@@ -76,27 +77,40 @@ public class TextResponseHandlerManager extends HandlerManager<TextResponseHandl
     public void writeResponse(ContextAttachment attach, Object cmdReturnObj) {
         HttpResponse response = attach.getResponse();
         setContent(attach, cmdReturnObj);
+        attach.writeSessionIdCookie();
         response.packagingCookies();
+        attach.trace(RequestTrace.Phase.SERIALIZED);
         //记录访问日志
         config.getAccessLogger().log(attach.getRequest(), attach.getResponse());
     }
 
     public Object handleThrowable(ContextAttachment attach, Throwable e) throws Exception {
-        Object cmdReturnObj = null;
         Throwable ex = e;
         if (ex instanceof SecurityException || ex instanceof NoSuchMethodError) {
             ex = ResourceNotFoundError.INSTANCE;
         } else {
             if (ex instanceof InvocationTargetException) {
-                ex = ((InvocationTargetException)ex).getTargetException();
-                if (ex instanceof ProcessFinishedError) {
-                    //TODO:异步处理
-                }
+                return handleCmdThrowable(attach, ((InvocationTargetException)ex).getTargetException());
             } else if (ex instanceof InterruptedException) {
                 ex = ProcessTimeoutError.INSTANCE;
             }
         }
+        return handleChain(attach, ex);
+    }
+
+    /**
+     * 处理Cmd方法自身抛出的异常，不做SecurityException/InterruptedException等转换，
+     * 与原来Method.invoke包装成InvocationTargetException后再解包的处理保持一致
+     */
+    public Object handleCmdThrowable(ContextAttachment attach, Throwable ex) throws Exception {
+        if (ex instanceof ProcessFinishedError) {
+            //TODO:异步处理
+        }
+        return handleChain(attach, ex);
+    }
 
+    private Object handleChain(ContextAttachment attach, Throwable ex) throws Exception {
+        Object cmdReturnObj = null;
         attach.registerThrowable(ex);
 
         for (TextResponseHandler th : getHandlerChain()) {
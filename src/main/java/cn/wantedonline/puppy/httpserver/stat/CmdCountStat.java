@@ -16,15 +16,31 @@
 
 package cn.wantedonline.puppy.httpserver.stat;
 
+import cn.wantedonline.puppy.httpserver.common.CmdMappers;
+import cn.wantedonline.puppy.httpserver.component.ContextAttachment;
+import cn.wantedonline.puppy.httpserver.component.HttpResponse;
 import cn.wantedonline.puppy.spring.annotation.Config;
+import cn.wantedonline.puppy.util.AssertUtil;
+import cn.wantedonline.puppy.util.DateStringUtil;
+import cn.wantedonline.puppy.util.concurrent.StripedCounter;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <pre>
- *     Cmd次数统计
- *     继承BaseChannelEvent类仅仅是为标识这是一个统计类，并不实现BaseChannelEvent的任何方法
+ *     Cmd维度的调用次数及耗时统计
+ *     统计数据挂在每个CmdMeta上，计数使用分段计数器，耗时使用HdrHistogram的Recorder记录，
+ *     快照时输出每个Cmd在本统计周期内的QPS、错误数、耗时分位数，以及按QPS、耗时排名的前maxCmdStat个Cmd
  * </pre>
  *
  * @author wangcheng
@@ -32,49 +48,362 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 @Component
 public class CmdCountStat extends BaseChannelEvent {
-    @Config
+    @Config(resetable = true)
     private int maxCmdStat = 10;
 
-    public class CmdStatBean implements Comparable {
-        private String cmdName;
-        private AtomicInteger count;
+    @Autowired
+    private CmdMappers cmdMappers;
+
+    private volatile long periodBegin = System.currentTimeMillis(); // 当前统计周期的开始时间
+
+    /**
+     * 响应写出后按Cmd记录总耗时，5xx记为错误
+     */
+    @Override
+    public void writeEnd(ContextAttachment attach) {
+        CmdMappers.CmdMeta meta = attach.getCmdMeta();
+        HttpResponse resp = attach.getResponse();
+        if (AssertUtil.isNull(meta) || AssertUtil.isNull(resp)) {
+            return;
+        }
+        meta.getStat().record(attach.getCompleteNanos() - attach.getDecodeNanos(), resp.getStatus().code() >= 500);
+    }
+
+    /**
+     * 当前统计周期到现在的数据，不影响周期
+     */
+    public CmdCountSnapshot tickCmdCountSnapshot() {
+        return tick(false);
+    }
+
+    /**
+     * 结束当前统计周期，返回本周期的数据
+     */
+    public synchronized CmdCountSnapshot tickAndReset() {
+        return tick(true);
+    }
+
+    private CmdCountSnapshot tick(boolean reset) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - periodBegin;
+        List<CmdStatEntry> entries = new ArrayList<>();
+        for (CmdMappers.CmdMeta meta : cmdMappers.getReverseCmdAllSortedMap().keySet()) {
+            entries.add(meta.getStat().tick(elapsed, reset));
+        }
+        if (reset) {
+            periodBegin = now;
+        }
+        return new CmdCountSnapshot(entries, maxCmdStat);
+    }
+
+    /**
+     * 只保存本周期有调用的Cmd，排名在解码时重新计算
+     */
+    private final SnapshotCodec<CmdCountSnapshot> snapshotCodec = new SnapshotCodec<CmdCountSnapshot>() {
+        @Override
+        public void encode(CmdCountSnapshot snapshot, ByteBuffer buf) {
+            buf.putLong(snapshot.getDate().getTime());
+            int countPos = buf.position();
+            buf.putInt(0);
+            int n = 0;
+            for (CmdStatEntry e : snapshot.getCmdStats()) {
+                if (e.getCount() == 0) {
+                    continue;
+                }
+                putString(buf, e.getCmdName());
+                buf.putLong(e.getTotalCount());
+                buf.putLong(e.getCount());
+                buf.putLong(e.getErrorCount());
+                buf.putDouble(e.getQps());
+                buf.putDouble(e.getMeanSpan());
+                buf.putDouble(e.getP50());
+                buf.putDouble(e.getP90());
+                buf.putDouble(e.getP99());
+                buf.putDouble(e.getP999());
+                buf.putDouble(e.getMaxSpan());
+                n++;
+            }
+            buf.putInt(countPos, n);
+        }
+
+        @Override
+        public CmdCountSnapshot decode(ByteBuffer buf) {
+            Date date = new Date(buf.getLong());
+            int n = buf.getInt();
+            List<CmdStatEntry> entries = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                CmdStatEntry e = new CmdStatEntry();
+                e.cmdName = getString(buf);
+                e.totalCount = buf.getLong();
+                e.count = buf.getLong();
+                e.errorCount = buf.getLong();
+                e.qps = buf.getDouble();
+                e.meanSpan = buf.getDouble();
+                e.p50 = buf.getDouble();
+                e.p90 = buf.getDouble();
+                e.p99 = buf.getDouble();
+                e.p999 = buf.getDouble();
+                e.maxSpan = buf.getDouble();
+                entries.add(e);
+            }
+            CmdCountSnapshot snapshot = new CmdCountSnapshot(entries, maxCmdStat);
+            snapshot.date = date;
+            return snapshot;
+        }
+    };
+
+    /**
+     * 快照的二进制编解码，用于落盘
+     */
+    public SnapshotCodec<CmdCountSnapshot> snapshotCodec() {
+        return snapshotCodec;
+    }
 
-        public CmdStatBean(String cmdName, int count) {
+    /**
+     * 分位数为本统计周期内的数据，_sum、_count和错误数为累计值
+     */
+    public void writeMetrics(MetricsWriter writer) {
+        writer.family("puppy_cmd_duration_seconds", "summary", "Latency per Cmd, from request decode to response written.");
+        for (CmdMappers.CmdMeta meta : cmdMappers.getReverseCmdAllSortedMap().keySet()) {
+            meta.getStat().writeSummary(writer, "puppy_cmd_duration_seconds");
+        }
+        writer.family("puppy_cmd_errors", "counter", "5xx responses per Cmd.");
+        for (CmdMappers.CmdMeta meta : cmdMappers.getReverseCmdAllSortedMap().keySet()) {
+            writer.name("puppy_cmd_errors_total").label("cmd", meta.getName()).value(meta.getStat().errorCount.total());
+        }
+    }
+
+    public class CmdCountSnapshot {
+        private Date date;
+        private List<CmdStatEntry> cmdStats;
+        private List<String> topByQps;
+        private List<String> topByLatency;
+
+        public CmdCountSnapshot(List<CmdStatEntry> cmdStats, int top) {
+            this.date = new Date();
+            this.cmdStats = cmdStats;
+            List<CmdStatEntry> active = new ArrayList<>(cmdStats.size());
+            for (CmdStatEntry e : cmdStats) {
+                if (e.getCount() > 0) {
+                    active.add(e);
+                }
+            }
+            this.topByQps = top(active, top, new Comparator<CmdStatEntry>() {
+                @Override
+                public int compare(CmdStatEntry o1, CmdStatEntry o2) {
+                    return Double.compare(o2.getQps(), o1.getQps());
+                }
+            });
+            this.topByLatency = top(active, top, new Comparator<CmdStatEntry>() {
+                @Override
+                public int compare(CmdStatEntry o1, CmdStatEntry o2) {
+                    return Double.compare(o2.getP99(), o1.getP99());
+                }
+            });
+        }
+
+        /**
+         * 排名只输出Cmd名称，具体数据见cmdStats
+         */
+        private List<String> top(List<CmdStatEntry> active, int top, Comparator<CmdStatEntry> comparator) {
+            List<CmdStatEntry> sorted = new ArrayList<>(active);
+            Collections.sort(sorted, comparator);
+            List<String> names = new ArrayList<>(Math.min(top, sorted.size()));
+            for (int i = 0; i < sorted.size() && i < top; i++) {
+                names.add(sorted.get(i).getCmdName());
+            }
+            return names;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public List<CmdStatEntry> getCmdStats() {
+            return cmdStats;
+        }
+
+        public List<String> getTopByQps() {
+            return topByQps;
+        }
+
+        public List<String> getTopByLatency() {
+            return topByLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "CmdCountSnapshot{" +
+                    "date=" + DateStringUtil.DEFAULT.format(date) +
+                    ", topByQps=" + topByQps +
+                    ", topByLatency=" + topByLatency +
+                    '}';
+        }
+    }
+
+    /**
+     * <pre>
+     *     单个Cmd的统计数据，挂在CmdMeta上
+     *     计数器和Recorder只增不减，周期的起点记录在base*中，快照时取差值
+     * </pre>
+     */
+    public static class CmdStatBean {
+        private static final long HIGHEST_TRACKABLE_MICROS = 3600L * 1000 * 1000;
+        private static final int SIGNIFICANT_DIGITS = 2;
+
+        private final String cmdName;
+        private final StripedCounter count = new StripedCounter();
+        private final StripedCounter errorCount = new StripedCounter();
+        private final StripedCounter totalSpan = new StripedCounter(); // ns
+        private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS); // 以微秒记录
+
+        // 以下字段只在tick中访问
+        private final Histogram period = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private Histogram interval;
+        private long baseCount;
+        private long baseErrorCount;
+        private long baseSpan;
+
+        public CmdStatBean(String cmdName) {
             this.cmdName = cmdName;
-            this.count.compareAndSet(0, 1);
         }
 
         public String getCmdName() {
             return cmdName;
         }
 
-        public void setCmdName(String cmdName) {
+        public void record(long spanNanos, boolean error) {
+            if (spanNanos < 0) {
+                return;
+            }
+            count.increment();
+            totalSpan.add(spanNanos);
+            if (error) {
+                errorCount.increment();
+            }
+            recorder.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(spanNanos), HIGHEST_TRACKABLE_MICROS));
+        }
+
+        synchronized void writeSummary(MetricsWriter writer, String family) {
+            interval = recorder.getIntervalHistogram(interval);
+            period.add(interval);
+            writer.summary(family, "cmd", cmdName, period, totalSpan.sum(), count.sum());
+        }
+
+        /**
+         * 统计从周期开始到现在的数据
+         * @param elapsedMs 周期已经过去的时间，用于计算QPS
+         * @param reset 是否同时开始新的周期
+         */
+        public synchronized CmdStatEntry tick(long elapsedMs, boolean reset) {
+            interval = recorder.getIntervalHistogram(interval);
+            period.add(interval);
+            long c = count.sum();
+            long e = errorCount.sum();
+            long s = totalSpan.sum();
+            CmdStatEntry entry = new CmdStatEntry(cmdName, c, c - baseCount, e - baseErrorCount, s - baseSpan, elapsedMs, period);
+            if (reset) {
+                baseCount = c;
+                baseErrorCount = e;
+                baseSpan = s;
+                period.reset();
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * 某个Cmd在一个统计周期内的数据，时长单位都是ms
+     */
+    public static class CmdStatEntry {
+        private String cmdName;
+        private long totalCount;
+        private long count;
+        private long errorCount;
+        private double qps;
+        private double meanSpan;
+        private double p50;
+        private double p90;
+        private double p99;
+        private double p999;
+        private double maxSpan;
+
+        CmdStatEntry() {
+        }
+
+        CmdStatEntry(String cmdName, long totalCount, long count, long errorCount, long spanNanos, long elapsedMs, Histogram histogram) {
             this.cmdName = cmdName;
+            this.totalCount = totalCount;
+            this.count = count;
+            this.errorCount = errorCount;
+            this.qps = elapsedMs > 0 ? count * 1000.0 / elapsedMs : 0;
+            this.meanSpan = count > 0 ? spanNanos / 1000000.0 / count : 0;
+            this.p50 = histogram.getValueAtPercentile(50) / 1000.0;
+            this.p90 = histogram.getValueAtPercentile(90) / 1000.0;
+            this.p99 = histogram.getValueAtPercentile(99) / 1000.0;
+            this.p999 = histogram.getValueAtPercentile(99.9) / 1000.0;
+            this.maxSpan = histogram.getMaxValue() / 1000.0;
+        }
+
+        public String getCmdName() {
+            return cmdName;
+        }
+
+        /**
+         * 启动以来的调用次数
+         */
+        public long getTotalCount() {
+            return totalCount;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public double getQps() {
+            return qps;
+        }
+
+        public double getMeanSpan() {
+            return meanSpan;
+        }
+
+        public double getP50() {
+            return p50;
         }
 
-        public int getCount() {
-            return count.get();
+        public double getP90() {
+            return p90;
         }
 
-        public void setCount(int count) {
-            this.count.set(count);
+        public double getP99() {
+            return p99;
+        }
+
+        public double getP999() {
+            return p999;
+        }
+
+        public double getMaxSpan() {
+            return maxSpan;
         }
 
         @Override
         public String toString() {
-            return "CmdStatBean{" +
+            return "CmdStatEntry{" +
                     "cmdName='" + cmdName + '\'' +
                     ", count=" + count +
+                    ", errorCount=" + errorCount +
+                    ", qps=" + qps +
+                    ", meanSpan=" + meanSpan +
+                    ", p99=" + p99 +
+                    ", maxSpan=" + maxSpan +
                     '}';
         }
-
-        @Override
-        public int compareTo(Object o) {
-            if (o instanceof CmdStatBean) {
-                return this.getCount() - ((CmdStatBean) o).getCount();
-            }
-            return 0;
-        }
     }
 
 }
@@ -19,16 +19,17 @@ package cn.wantedonline.puppy.httpserver.stat;
 import cn.wantedonline.puppy.httpserver.component.ContextAttachment;
 import cn.wantedonline.puppy.spring.annotation.AfterConfig;
 import cn.wantedonline.puppy.util.DateStringUtil;
+import cn.wantedonline.puppy.util.concurrent.StripedCounter;
 import io.netty.channel.ChannelHandlerContext;
 import org.springframework.stereotype.Component;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <pre>
  *     基本的请求，响应次数等统计,基于次数
+ *     计数器使用分段计数，快照中保存的是当时的值
  * </pre>
  *
  * @author wangcheng
@@ -36,99 +37,151 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 @Component
 public class CountStat extends BaseChannelEvent {
-    private AtomicLong totalRegChannel = new AtomicLong(0); //总共注册的通道数
-    private AtomicLong totalUnregChannel = new AtomicLong(0); //总共去注册通道数
-    private AtomicLong totalActiveChannel = new AtomicLong(0); //通道激活总数
-    private AtomicLong totalInActiveChannel = new AtomicLong(0); //通道去激活总数
-    private AtomicLong totalReqCount = new AtomicLong(0); //接受Http请求总次数
-    private AtomicLong totalRespCount = new AtomicLong(0); //响应Http请求总次数
-    private AtomicLong exceptionCount = new AtomicLong(0); //发生异常的总次数
+    private StripedCounter totalRegChannel = new StripedCounter(); //总共注册的通道数
+    private StripedCounter totalUnregChannel = new StripedCounter(); //总共去注册通道数
+    private StripedCounter totalActiveChannel = new StripedCounter(); //通道激活总数
+    private StripedCounter totalInActiveChannel = new StripedCounter(); //通道去激活总数
+    private StripedCounter totalReqCount = new StripedCounter(); //接受Http请求总次数
+    private StripedCounter totalRespCount = new StripedCounter(); //响应Http请求总次数
+    private StripedCounter exceptionCount = new StripedCounter(); //发生异常的总次数
 
     public CountStatSnapshot tickCountStatSnapshot() {
         CountStatSnapshot snapshot = new CountStatSnapshot();
-        snapshot.setTotalRegChannel(totalRegChannel);
-        snapshot.setTotalUnregChannel(totalUnregChannel);
-        snapshot.setTotalActiveChannel(totalActiveChannel);
-        snapshot.setTotalInActiveChannel(totalInActiveChannel);
-        snapshot.setTotalReqCount(totalReqCount);
-        snapshot.setTotalRespCount(totalRespCount);
-        snapshot.setExceptionCount(exceptionCount);
+        snapshot.setTotalRegChannel(totalRegChannel.sum());
+        snapshot.setTotalUnregChannel(totalUnregChannel.sum());
+        snapshot.setTotalActiveChannel(totalActiveChannel.sum());
+        snapshot.setTotalInActiveChannel(totalInActiveChannel.sum());
+        snapshot.setTotalReqCount(totalReqCount.sum());
+        snapshot.setTotalRespCount(totalRespCount.sum());
+        snapshot.setExceptionCount(exceptionCount.sum());
         return snapshot;
     }
 
+    /**
+     * 取值和清零对每个计数器是原子的，快照和清零之间的计数不会丢失
+     */
     public CountStatSnapshot tickAndReset() {
-        CountStatSnapshot snapshot = tickCountStatSnapshot();
-        reset();
+        CountStatSnapshot snapshot = new CountStatSnapshot();
+        snapshot.setTotalRegChannel(totalRegChannel.sumThenReset());
+        snapshot.setTotalUnregChannel(totalUnregChannel.sumThenReset());
+        snapshot.setTotalActiveChannel(totalActiveChannel.sumThenReset());
+        snapshot.setTotalInActiveChannel(totalInActiveChannel.sumThenReset());
+        snapshot.setTotalReqCount(totalReqCount.sumThenReset());
+        snapshot.setTotalRespCount(totalRespCount.sumThenReset());
+        snapshot.setExceptionCount(exceptionCount.sumThenReset());
         return snapshot;
     }
 
+    private final SnapshotCodec<CountStatSnapshot> snapshotCodec = new SnapshotCodec<CountStatSnapshot>() {
+        @Override
+        public void encode(CountStatSnapshot snapshot, ByteBuffer buf) {
+            buf.putLong(snapshot.getDate().getTime());
+            buf.putLong(snapshot.getTotalRegChannel());
+            buf.putLong(snapshot.getTotalUnregChannel());
+            buf.putLong(snapshot.getTotalActiveChannel());
+            buf.putLong(snapshot.getTotalInActiveChannel());
+            buf.putLong(snapshot.getTotalReqCount());
+            buf.putLong(snapshot.getTotalRespCount());
+            buf.putLong(snapshot.getExceptionCount());
+        }
+
+        @Override
+        public CountStatSnapshot decode(ByteBuffer buf) {
+            CountStatSnapshot snapshot = new CountStatSnapshot();
+            snapshot.setDate(new Date(buf.getLong()));
+            snapshot.setTotalRegChannel(buf.getLong());
+            snapshot.setTotalUnregChannel(buf.getLong());
+            snapshot.setTotalActiveChannel(buf.getLong());
+            snapshot.setTotalInActiveChannel(buf.getLong());
+            snapshot.setTotalReqCount(buf.getLong());
+            snapshot.setTotalRespCount(buf.getLong());
+            snapshot.setExceptionCount(buf.getLong());
+            return snapshot;
+        }
+    };
+
+    /**
+     * 快照的二进制编解码，用于落盘
+     */
+    public SnapshotCodec<CountStatSnapshot> snapshotCodec() {
+        return snapshotCodec;
+    }
+
     public class CountStatSnapshot {
-        private AtomicLong totalRegChannel = new AtomicLong(0); //总共注册的通道数
-        private AtomicLong totalUnregChannel = new AtomicLong(0); //总共去注册通道数
-        private AtomicLong totalActiveChannel = new AtomicLong(0); //通道激活总数
-        private AtomicLong totalInActiveChannel = new AtomicLong(0); //通道去激活总数
-        private AtomicLong totalReqCount = new AtomicLong(0); //接受Http请求总次数
-        private AtomicLong totalRespCount = new AtomicLong(0); //响应Http请求总次数
-        private AtomicLong exceptionCount = new AtomicLong(0); //发生异常的总次数
+        private long totalRegChannel; //总共注册的通道数
+        private long totalUnregChannel; //总共去注册通道数
+        private long totalActiveChannel; //通道激活总数
+        private long totalInActiveChannel; //通道去激活总数
+        private long totalReqCount; //接受Http请求总次数
+        private long totalRespCount; //响应Http请求总次数
+        private long exceptionCount; //发生异常的总次数
         private Date date = new Date();
 
         public CountStatSnapshot() {
             this.date = new Date();
         }
 
-        public AtomicLong getTotalRegChannel() {
+        public Date getDate() {
+            return date;
+        }
+
+        public void setDate(Date date) {
+            this.date = date;
+        }
+
+        public long getTotalRegChannel() {
             return totalRegChannel;
         }
 
-        public void setTotalRegChannel(AtomicLong totalRegChannel) {
+        public void setTotalRegChannel(long totalRegChannel) {
             this.totalRegChannel = totalRegChannel;
         }
 
-        public AtomicLong getTotalUnregChannel() {
+        public long getTotalUnregChannel() {
             return totalUnregChannel;
         }
 
-        public void setTotalUnregChannel(AtomicLong totalUnregChannel) {
+        public void setTotalUnregChannel(long totalUnregChannel) {
             this.totalUnregChannel = totalUnregChannel;
         }
 
-        public AtomicLong getTotalActiveChannel() {
+        public long getTotalActiveChannel() {
             return totalActiveChannel;
         }
 
-        public void setTotalActiveChannel(AtomicLong totalActiveChannel) {
+        public void setTotalActiveChannel(long totalActiveChannel) {
             this.totalActiveChannel = totalActiveChannel;
         }
 
-        public AtomicLong getTotalInActiveChannel() {
+        public long getTotalInActiveChannel() {
             return totalInActiveChannel;
         }
 
-        public void setTotalInActiveChannel(AtomicLong totalInActiveChannel) {
+        public void setTotalInActiveChannel(long totalInActiveChannel) {
             this.totalInActiveChannel = totalInActiveChannel;
         }
 
-        public AtomicLong getTotalReqCount() {
+        public long getTotalReqCount() {
             return totalReqCount;
         }
 
-        public void setTotalReqCount(AtomicLong totalReqCount) {
+        public void setTotalReqCount(long totalReqCount) {
             this.totalReqCount = totalReqCount;
         }
 
-        public AtomicLong getTotalRespCount() {
+        public long getTotalRespCount() {
             return totalRespCount;
         }
 
-        public void setTotalRespCount(AtomicLong totalRespCount) {
+        public void setTotalRespCount(long totalRespCount) {
             this.totalRespCount = totalRespCount;
         }
 
-        public AtomicLong getExceptionCount() {
+        public long getExceptionCount() {
             return exceptionCount;
         }
 
-        public void setExceptionCount(AtomicLong exceptionCount) {
+        public void setExceptionCount(long exceptionCount) {
             this.exceptionCount = exceptionCount;
         }
 
@@ -149,101 +202,90 @@ public class CountStat extends BaseChannelEvent {
 
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) {
-        totalRegChannel.incrementAndGet();
+        totalRegChannel.increment();
     }
 
     @Override
     public void channelUnregistered(ChannelHandlerContext ctx) {
-        totalUnregChannel.incrementAndGet();
+        totalUnregChannel.increment();
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
-        totalActiveChannel.incrementAndGet();
+        totalActiveChannel.increment();
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        totalInActiveChannel.incrementAndGet();
+        totalInActiveChannel.increment();
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-        exceptionCount.incrementAndGet();
+        exceptionCount.increment();
     }
 
     public void requestReceived(ChannelHandlerContext ctx, ContextAttachment attach) {
-        totalReqCount.incrementAndGet();
+        totalReqCount.increment();
     }
 
     public void responseSended(ChannelHandlerContext ctx, ContextAttachment attach) {
-        totalRespCount.incrementAndGet();
+        totalRespCount.increment();
     }
 
     public long getTotalRegChannel() {
-        return totalRegChannel.get();
-    }
-
-    public void setTotalRegChannel(long totalRegChannel) {
-        this.totalRegChannel.set(totalRegChannel);
+        return totalRegChannel.sum();
     }
 
     public long getTotalUnregChannel() {
-        return totalUnregChannel.get();
-    }
-
-    public void setTotalUnregChannel(long totalUnregChannel) {
-        this.totalUnregChannel.set(totalUnregChannel);
+        return totalUnregChannel.sum();
     }
 
     public long getTotalActiveChannel() {
-        return totalActiveChannel.get();
-    }
-
-    public void setTotalActiveChannel(long totalActiveChannel) {
-        this.totalActiveChannel.set(totalActiveChannel);
+        return totalActiveChannel.sum();
     }
 
     public long getTotalInActiveChannel() {
-        return totalInActiveChannel.get();
-    }
-
-    public void setTotalInActiveChannel(long totalInActiveChannel) {
-        this.totalInActiveChannel.set(totalInActiveChannel);
+        return totalInActiveChannel.sum();
     }
 
     public long getTotalReqCount() {
-        return totalReqCount.get();
-    }
-
-    public void setTotalReqCount(long totalReqCount) {
-        this.totalReqCount.set(totalReqCount);
+        return totalReqCount.sum();
     }
 
     public long getTotalRespCount() {
-        return totalRespCount.get();
-    }
-
-    public void setTotalRespCount(long totalRespCount) {
-        this.totalRespCount.set(totalRespCount);
+        return totalRespCount.sum();
     }
 
     public long getExceptionCount() {
-        return exceptionCount.get();
+        return exceptionCount.sum();
     }
 
-    public void setExceptionCount(long exceptionCount) {
-        this.exceptionCount.set(exceptionCount);
+    /**
+     * 输出启动以来的累计值
+     */
+    public void writeMetrics(MetricsWriter writer) {
+        writer.family("puppy_channel_events", "counter", "Channel lifecycle events since start.");
+        writer.name("puppy_channel_events_total").label("event", "registered").value(totalRegChannel.total());
+        writer.name("puppy_channel_events_total").label("event", "unregistered").value(totalUnregChannel.total());
+        writer.name("puppy_channel_events_total").label("event", "active").value(totalActiveChannel.total());
+        writer.name("puppy_channel_events_total").label("event", "inactive").value(totalInActiveChannel.total());
+        writer.family("puppy_requests", "counter", "HTTP requests received.");
+        writer.name("puppy_requests_total").value(totalReqCount.total());
+        writer.family("puppy_responses", "counter", "HTTP responses sent.");
+        writer.name("puppy_responses_total").value(totalRespCount.total());
+        writer.family("puppy_exceptions", "counter", "Exceptions caught on channels.");
+        writer.name("puppy_exceptions_total").value(exceptionCount.total());
     }
 
     @AfterConfig
     public void reset() {
-        totalRegChannel.set(0);
-        totalUnregChannel.set(0);
-        totalActiveChannel.set(0);
-        totalInActiveChannel.set(0);
-        totalReqCount.set(0);
-        totalRespCount.set(0);
-        exceptionCount.set(0);
+        totalRegChannel.sumThenReset();
+        totalUnregChannel.sumThenReset();
+        totalActiveChannel.sumThenReset();
+        totalInActiveChannel.sumThenReset();
+        totalReqCount.sumThenReset();
+        totalRespCount.sumThenReset();
+        exceptionCount.sumThenReset();
     }
 }
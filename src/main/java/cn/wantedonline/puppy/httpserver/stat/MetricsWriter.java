@@ -0,0 +1,180 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.stat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import org.HdrHistogram.Histogram;
+
+/**
+ * <pre>
+ *     OpenMetrics文本格式输出，直接写入ByteBuf，数字按字节逐位写出，不产生中间字符串
+ *     用法: writer.family("x", "counter", "help"); writer.name("x_total").label("k", "v").value(1);
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public final class MetricsWriter {
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final double[] QUANTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+    private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L};
+
+    private final ByteBuf buf;
+    private final byte[] digits = new byte[20];
+    private boolean labelOpen;
+
+    public MetricsWriter(ByteBuf buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * 输出指标族的TYPE和HELP
+     */
+    public MetricsWriter family(String name, String type, String help) {
+        ascii("# TYPE ").ascii(name).ascii(' ').ascii(type).ascii('\n');
+        ascii("# HELP ").ascii(name).ascii(' ').ascii(help).ascii('\n');
+        return this;
+    }
+
+    /**
+     * 开始一个样本
+     */
+    public MetricsWriter name(String name) {
+        ascii(name);
+        labelOpen = false;
+        return this;
+    }
+
+    /**
+     * 开始一个带后缀的样本，例如summary的_sum、_count
+     */
+    public MetricsWriter name(String name, String suffix) {
+        ascii(name).ascii(suffix);
+        labelOpen = false;
+        return this;
+    }
+
+    public MetricsWriter label(String key, String value) {
+        ascii(labelOpen ? ',' : '{').ascii(key).ascii("=\"");
+        escape(value);
+        ascii('"');
+        labelOpen = true;
+        return this;
+    }
+
+    public void value(long v) {
+        endLabels();
+        writeLong(v);
+        ascii('\n');
+    }
+
+    /**
+     * 输出v / 10^scale，例如纳秒转秒scale为9
+     */
+    public void value(long v, int scale) {
+        endLabels();
+        if (v < 0) {
+            ascii('-');
+            v = -v;
+        }
+        writeLong(v / POW10[scale]);
+        ascii('.');
+        long frac = v % POW10[scale];
+        for (int i = scale - 1; i >= 0; i--) {
+            buf.writeByte((int) ('0' + frac / POW10[i] % 10));
+        }
+        ascii('\n');
+    }
+
+    public void value(double v) {
+        endLabels();
+        ascii(Double.toString(v));
+        ascii('\n');
+    }
+
+    /**
+     * 输出summary：直方图(微秒)的分位数，以及累计的总时长(纳秒)和次数，单位转换为秒
+     */
+    public void summary(String family, String labelKey, String labelValue, Histogram micros, long sumNanos, long count) {
+        for (int i = 0; i < QUANTILES.length; i++) {
+            name(family).label(labelKey, labelValue).label("quantile", QUANTILE_LABELS[i]).value(micros.getValueAtPercentile(QUANTILES[i]), 6);
+        }
+        name(family, "_sum").label(labelKey, labelValue).value(sumNanos, 9);
+        name(family, "_count").label(labelKey, labelValue).value(count);
+    }
+
+    public void eof() {
+        ascii("# EOF\n");
+    }
+
+    private void endLabels() {
+        if (labelOpen) {
+            ascii('}');
+            labelOpen = false;
+        }
+        ascii(' ');
+    }
+
+    private void writeLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            ascii(Long.toString(v));
+            return;
+        }
+        if (v < 0) {
+            ascii('-');
+            v = -v;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        buf.writeBytes(digits, pos, digits.length - pos);
+    }
+
+    private MetricsWriter ascii(String s) {
+        ByteBufUtil.writeAscii(buf, s);
+        return this;
+    }
+
+    private MetricsWriter ascii(char c) {
+        buf.writeByte(c);
+        return this;
+    }
+
+    /**
+     * 标签值转义反斜杠、双引号和换行，非ASCII按UTF-8写出
+     */
+    private void escape(String value) {
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"' || c == '\n') {
+                ByteBufUtil.writeUtf8(buf, value.subSequence(start, i));
+                ascii('\\').ascii(c == '\n' ? 'n' : c);
+                start = i + 1;
+            }
+        }
+        if (start == 0) {
+            ByteBufUtil.writeUtf8(buf, value);
+        } else {
+            ByteBufUtil.writeUtf8(buf, value.subSequence(start, value.length()));
+        }
+    }
+}
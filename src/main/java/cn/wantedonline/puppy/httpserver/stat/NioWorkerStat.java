@@ -17,22 +17,45 @@
 package cn.wantedonline.puppy.httpserver.stat;
 
 import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
+import cn.wantedonline.puppy.spring.annotation.Config;
 import cn.wantedonline.puppy.util.AssertUtil;
 import cn.wantedonline.puppy.util.DateStringUtil;
+import cn.wantedonline.puppy.util.concurrent.ConcurrentUtil;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoop;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
 import io.netty.util.concurrent.ThreadProperties;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <pre>
- *     NioWorker监控类
+ *     NioWorker监控类，同时支持NIO和epoll两种传输方式的Worker EventLoop
+ *     epoll的EventLoop不公开I/O比例，I/ORatio显示为-1
+ *
+ *     每个EventLoop上挂一个EventLoopProbe，按eventLoopProbeMillis间隔在EventLoop上自我调度:
+ *     1 探测任务实际执行时间比预定时间晚多少(lag)，记入直方图，EventLoop忙或任务队列积压时lag变大
+ *     2 顺便在EventLoop线程上采样pendingTasks，记录高水位
+ *     pipeline最前面的LoopStatHandler统计每个EventLoop上的连接数和处理入站数据的耗时(busy)，
+ *     其余时间是select等待和执行其他任务，Netty4.0不公开select耗时，只能这样拆分
  * </pre>
  *
  * @author wangcheng
@@ -40,29 +63,79 @@ import java.util.List;
  */
 @Component
 public class NioWorkerStat {
-    private List<NioEventLoop> workExecutors;
+    private List<SingleThreadEventExecutor> workExecutors;
+    private String[] workerLabels; // 输出监控指标时EventLoop的标签，按序号
     private boolean inited = false;
-    private final String headinfoFmt = "%-10s %-25s %-10s %-10s %-16s %-12s %-16s\n";
+    private EventLoopProbe[] probes = new EventLoopProbe[0];
+    private final String headinfoFmt = "%-10s %-25s %-10s %-10s %-16s %-12s %-16s %-10s %-12s %-10s\n";
     private final String threadinfoFmt = "%-10s %-25s %-10s %-11s";
     private final String taskinfoFmt = "%-16s %-12s %-16s";
+    private final String probeinfoFmt = " %-10s %-12s %-10s";
+
+    private static final FastThreadLocal<EventLoopProbe> currentProbe = new FastThreadLocal<>(); // 当前EventLoop线程的探针
+    private final LoopStatHandler loopStatHandler = new LoopStatHandler();
+
+    @Config
+    private int eventLoopProbeMillis = 100; // EventLoop延迟探测间隔，小于等于0时关闭探测
 
+    @Autowired
+    private HttpServerConfig config;
+    private AtomicLong channelUnwritableTimes = new AtomicLong(0); //连接写缓冲区超过高水位的次数
+    private AtomicLong channelWritableTimes = new AtomicLong(0); //连接写缓冲区恢复到低水位以下的次数
+
+    /**
+     * 打点一个快照，同时开始新的探测周期(lag直方图、pendingTasks高水位、busy比例)
+     */
     public NioWorkerStatSnapshot tickNioWorkerStatSnapshot() {
         NioWorkerStatSnapshot snapshot = new NioWorkerStatSnapshot();
         snapshot.setNioWorkerStatusBeanList(workExecutors);
+        snapshot.channelUnwritableTimes = channelUnwritableTimes.get();
+        snapshot.channelWritableTimes = channelWritableTimes.get();
+        snapshot.allocatorActiveAllocations = activeAllocations(config.getAllocator());
         return snapshot;
     }
 
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            channelWritableTimes.incrementAndGet();
+        } else {
+            channelUnwritableTimes.incrementAndGet();
+        }
+    }
+
+    /**
+     * 池化分配器当前未释放的分配次数，非池化分配器返回-1
+     */
+    private static long activeAllocations(ByteBufAllocator allocator) {
+        if (!(allocator instanceof PooledByteBufAllocator)) {
+            return -1;
+        }
+        long active = 0;
+        PooledByteBufAllocator pooled = (PooledByteBufAllocator) allocator;
+        for (PoolArenaMetric arena : pooled.directArenas()) {
+            active += arena.numActiveAllocations();
+        }
+        for (PoolArenaMetric arena : pooled.heapArenas()) {
+            active += arena.numActiveAllocations();
+        }
+        return active;
+    }
+
     public class NioWorkerStatSnapshot {
         private Date date;
         private List<NioWorkerStatusBean> statusBeenList = new ArrayList<>(HttpServerConfig.PROCESSOR_NUM*2);
+        private long channelUnwritableTimes;
+        private long channelWritableTimes;
+        private long allocatorActiveAllocations;
 
         public NioWorkerStatSnapshot() {
             this.date = new Date();
         }
 
-        public void setNioWorkerStatusBeanList(List<NioEventLoop> workExecutors) {
+        public void setNioWorkerStatusBeanList(List<SingleThreadEventExecutor> workExecutors) {
             if (inited) {
-                for (NioEventLoop worker : workExecutors) {
+                for (int i = 0; i < workExecutors.size(); i++) {
+                    SingleThreadEventExecutor worker = workExecutors.get(i);
                     NioWorkerStatusBean bean = new NioWorkerStatusBean();
                     ThreadProperties tp = worker.threadProperties();
                     bean.setThreadId(tp.id());
@@ -70,8 +143,11 @@ public class NioWorkerStat {
                     bean.setThreadPriority(tp.priority());
                     bean.setThreadStatus(tp.state());
                     bean.setEventLoopStatus(NioWorkerStatus(worker));
-                    bean.setI_O_ratio(worker.getIoRatio());
-                    bean.setPendingTasks(worker.pendingTasks());
+                    bean.setI_O_ratio(ioRatio(worker));
+                    bean.setPendingTasks(pendingTasks(i));
+                    if (i < probes.length) {
+                        probes[i].tick(bean);
+                    }
                     statusBeenList.add(bean);
                 }
             }
@@ -82,6 +158,9 @@ public class NioWorkerStat {
             return "NioWorkerStatSnapshot{" +
                     "date=" + DateStringUtil.DEFAULT.format(date) +
                     ", statusBeenList=" + statusBeenList +
+                    ", channelUnwritableTimes=" + channelUnwritableTimes +
+                    ", channelWritableTimes=" + channelWritableTimes +
+                    ", allocatorActiveAllocations=" + allocatorActiveAllocations +
                     '}';
         }
     }
@@ -94,6 +173,11 @@ public class NioWorkerStat {
         private int pendingTasks;
         private int I_O_ratio;
         private String EventLoopStatus;
+        private int channels; // 注册在该EventLoop上的连接数
+        private long pendingTasksHighWater; // 本周期pendingTasks采样的最大值
+        private double lagP99; // 本周期探测任务延迟的p99(ms)
+        private double lagMax; // 本周期探测任务延迟的最大值(ms)
+        private double busyRatio; // 本周期处理入站数据的时间占比
 
         public long getThreadId() {
             return threadId;
@@ -151,6 +235,26 @@ public class NioWorkerStat {
             EventLoopStatus = eventLoopStatus;
         }
 
+        public int getChannels() {
+            return channels;
+        }
+
+        public long getPendingTasksHighWater() {
+            return pendingTasksHighWater;
+        }
+
+        public double getLagP99() {
+            return lagP99;
+        }
+
+        public double getLagMax() {
+            return lagMax;
+        }
+
+        public double getBusyRatio() {
+            return busyRatio;
+        }
+
         @Override
         public String toString() {
             return "NioWorkerStatusBean{" +
@@ -161,11 +265,16 @@ public class NioWorkerStat {
                     ", pendingTasks=" + pendingTasks +
                     ", I_O_ratio=" + I_O_ratio +
                     ", EventLoopStatus='" + EventLoopStatus + '\'' +
+                    ", channels=" + channels +
+                    ", pendingTasksHighWater=" + pendingTasksHighWater +
+                    ", lagP99=" + lagP99 +
+                    ", lagMax=" + lagMax +
+                    ", busyRatio=" + busyRatio +
                     '}';
         }
     }
 
-    private String workerThreadStat(NioEventLoop worker) {
+    private String workerThreadStat(SingleThreadEventExecutor worker) {
         StringBuilder tmp = new StringBuilder();
         if (AssertUtil.isNotNull(worker)) {
             ThreadProperties tp = worker.threadProperties();
@@ -174,40 +283,268 @@ public class NioWorkerStat {
         return tmp.toString();
     }
 
-    private String workerTaskStat(NioEventLoop w) {
+    private String workerTaskStat(int i) {
+        SingleThreadEventExecutor w = workExecutors.get(i);
         StringBuilder tmp = new StringBuilder();
         if (AssertUtil.isNotNull(w)) {
-            tmp.append(String.format(taskinfoFmt,w.pendingTasks(),w.getIoRatio(), NioWorkerStatus(w)));
+            tmp.append(String.format(taskinfoFmt, pendingTasks(i), ioRatio(w), NioWorkerStatus(w)));
+        }
+        if (i < probes.length) {
+            EventLoopProbe p = probes[i];
+            tmp.append(String.format(probeinfoFmt, p.channels, p.getLagPercentile(99), p.pendingTasksHighWater.get()));
         }
         return tmp.toString();
     }
 
-    private static String NioWorkerStatus(NioEventLoop w) {
+    /**
+     * 有探针时取探针在EventLoop线程上的采样值，避免从其他线程读取任务队列大小
+     */
+    private int pendingTasks(int i) {
+        return i < probes.length ? probes[i].lastPendingTasks : workExecutors.get(i).pendingTasks();
+    }
+
+    private static int ioRatio(SingleThreadEventExecutor w) {
+        return w instanceof NioEventLoop ? ((NioEventLoop) w).getIoRatio() : -1;
+    }
+
+    private static String NioWorkerStatus(SingleThreadEventExecutor w) {
         return w.isShutdown() ? "ShutDown" : w.isShuttingDown() ? "ShuttingDown" : w.isTerminated() ? "Terminated" : "Running";
     }
 
     public String statNioWorkers() {
         StringBuilder tmp = new StringBuilder();
-        tmp.append(String.format(headinfoFmt, "Thread-id", "Thread-name", "Priority","Status","PendingTasks","I/ORatio", "EventLoopStatus"));
+        tmp.append(String.format(headinfoFmt, "Thread-id", "Thread-name", "Priority","Status","PendingTasks","I/ORatio", "EventLoopStatus",
+                "Channels", "LagP99(ms)", "MaxPending"));
         if (inited) {
-            for (NioEventLoop worker : workExecutors) {
-                tmp.append(workerThreadStat(worker));
-                tmp.append(workerTaskStat(worker)).append("\n");
+            for (int i = 0; i < workExecutors.size(); i++) {
+                tmp.append(workerThreadStat(workExecutors.get(i)));
+                tmp.append(workerTaskStat(i)).append("\n");
             }
         } else {
             return "WorkerEventLoop Not Init yet...";
         }
+        tmp.append("\nChannelOptions: ").append(config.getChannelOptionsInfo()).append("\n");
+        tmp.append(String.format("ChannelUnwritableTimes: %s, ChannelWritableTimes: %s, AllocatorActiveAllocations: %s\n",
+                channelUnwritableTimes.get(), channelWritableTimes.get(), activeAllocations(config.getAllocator())));
         return tmp.toString();
     }
 
-    public void registerWorkers(NioEventLoopGroup eventLoopGroup) {
+    public void writeMetrics(MetricsWriter writer) {
+        if (inited) {
+            writer.family("puppy_eventloop_pending_tasks", "gauge", "Tasks queued on each worker event loop.");
+            for (int i = 0; i < workExecutors.size(); i++) {
+                writer.name("puppy_eventloop_pending_tasks").label("loop", workerLabels[i]).value(pendingTasks(i));
+            }
+        }
+        if (probes.length > 0) {
+            writer.family("puppy_eventloop_pending_tasks_max", "gauge", "Highest sampled pending tasks of each worker event loop in this period.");
+            for (EventLoopProbe p : probes) {
+                writer.name("puppy_eventloop_pending_tasks_max").label("loop", p.label).value(p.pendingTasksHighWater.get());
+            }
+            writer.family("puppy_eventloop_lag_seconds", "summary", "How late a scheduled no-op probe task runs on each worker event loop.");
+            for (EventLoopProbe p : probes) {
+                p.writeSummary(writer, "puppy_eventloop_lag_seconds");
+            }
+            writer.family("puppy_eventloop_busy_seconds", "counter", "Time each worker event loop spent in the inbound pipeline.");
+            for (EventLoopProbe p : probes) {
+                writer.name("puppy_eventloop_busy_seconds_total").label("loop", p.label).value(p.busyNanos, 9);
+            }
+            writer.family("puppy_eventloop_channels", "gauge", "Channels registered on each worker event loop.");
+            for (EventLoopProbe p : probes) {
+                writer.name("puppy_eventloop_channels").label("loop", p.label).value(p.channels);
+            }
+        }
+        writer.family("puppy_channel_writability_changes", "counter", "Channel writability transitions.");
+        writer.name("puppy_channel_writability_changes_total").label("state", "unwritable").value(channelUnwritableTimes.get());
+        writer.name("puppy_channel_writability_changes_total").label("state", "writable").value(channelWritableTimes.get());
+        writer.family("puppy_allocator_active_allocations", "gauge", "Outstanding allocations of the pooled allocator, -1 if unpooled.");
+        writer.name("puppy_allocator_active_allocations").value(activeAllocations(config.getAllocator()));
+    }
+
+    public void registerWorkers(EventLoopGroup eventLoopGroup) {
         Iterator<EventExecutor> iterator = eventLoopGroup.iterator();
-        workExecutors = new ArrayList<>(eventLoopGroup.executorCount());
+        workExecutors = new ArrayList<>(HttpServerConfig.PROCESSOR_NUM*2);
         while(iterator.hasNext()) {
-            workExecutors.add((NioEventLoop) iterator.next());
+            workExecutors.add((SingleThreadEventExecutor) iterator.next());
+        }
+        workerLabels = new String[workExecutors.size()];
+        for (int i = 0; i < workerLabels.length; i++) {
+            workerLabels[i] = String.valueOf(i);
+        }
+        if (eventLoopProbeMillis > 0) {
+            EventLoopProbe[] started = new EventLoopProbe[workExecutors.size()];
+            for (int i = 0; i < started.length; i++) {
+                started[i] = new EventLoopProbe(workExecutors.get(i), workerLabels[i]);
+                started[i].start();
+            }
+            probes = started;
         }
         inited = true;
     }
 
+    public boolean isProbeEnabled() {
+        return eventLoopProbeMillis > 0;
+    }
+
+    /**
+     * 放在pipeline最前面，统计连接数和入站处理耗时
+     */
+    public ChannelHandler getLoopStatHandler() {
+        return loopStatHandler;
+    }
+
+    /**
+     * 返回自上次调用以来所有EventLoop中最大的探测延迟(ms)，并开始新的窗口，供SystemChecker判断是否饱和
+     * 已经到期还没执行的探测按当前已经延迟的时间算，EventLoop被阻塞住时探针跑不起来，也能看到延迟
+     * 没有开启探测时返回0
+     */
+    public long drainMaxLoopLagMillis() {
+        long max = 0;
+        long now = System.nanoTime();
+        for (EventLoopProbe p : probes) {
+            max = Math.max(max, p.windowMaxLag.getAndSet(0));
+            if (!p.loop.isShuttingDown()) {
+                max = Math.max(max, now - p.deadline);
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(max);
+    }
+
+    /**
+     * <pre>
+     *     单个EventLoop的探针，run()只在所属EventLoop上执行
+     *     busyNanos、channels只由EventLoop线程写，其他线程只读
+     * </pre>
+     */
+    private class EventLoopProbe implements Runnable {
+        private static final long HIGHEST_TRACKABLE_MICROS = 60L * 1000 * 1000; // 直方图最大记录1分钟
+        private static final int SIGNIFICANT_DIGITS = 2;
+
+        private final SingleThreadEventExecutor loop;
+        private final String label;
+        private final long intervalNanos;
+        private final Recorder lagRecorder = new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS); // 以微秒记录
+        private final Histogram period = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private Histogram interval;
+        private final AtomicLong lagTotal = new AtomicLong(); // 累计延迟(ns)
+        private final AtomicLong lagCount = new AtomicLong(); // 累计探测次数
+        private final AtomicLong windowMaxLag = new AtomicLong(); // SystemChecker检查窗口内的最大延迟(ns)
+        private final AtomicLong pendingTasksHighWater = new AtomicLong();
+        private volatile int lastPendingTasks;
+        private volatile long busyNanos;
+        private volatile int channels;
+        private volatile long deadline; // 下一次探测应该执行的时间，drainMaxLoopLagMillis在其他线程读
+        private long periodBeginNanos = System.nanoTime();
+        private long periodBusyBase;
+
+        EventLoopProbe(SingleThreadEventExecutor loop, String label) {
+            this.loop = loop;
+            this.label = label;
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(eventLoopProbeMillis);
+        }
+
+        /**
+         * 第一次直接提交到任务队列，绑定线程上的探针，之后按间隔自我调度
+         */
+        void start() {
+            deadline = System.nanoTime();
+            loop.execute(this);
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            if (currentProbe.get() != this) {
+                currentProbe.set(this);
+            }
+            long lag = Math.max(0, now - deadline);
+            lagRecorder.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(lag), HIGHEST_TRACKABLE_MICROS));
+            lagTotal.addAndGet(lag);
+            lagCount.incrementAndGet();
+            ConcurrentUtil.updateMax(windowMaxLag, lag);
+            int pending = loop.pendingTasks();
+            lastPendingTasks = pending;
+            ConcurrentUtil.updateMax(pendingTasksHighWater, pending);
+            if (loop.isShuttingDown()) {
+                return;
+            }
+            deadline = now + intervalNanos;
+            try {
+                loop.schedule(this, intervalNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // EventLoop正在关闭
+            }
+        }
+
+        private void fold() {
+            interval = lagRecorder.getIntervalHistogram(interval);
+            period.add(interval);
+        }
+
+        synchronized double getLagPercentile(double percentile) {
+            fold();
+            return period.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+        synchronized void writeSummary(MetricsWriter writer, String family) {
+            fold();
+            writer.summary(family, "loop", label, period, lagTotal.get(), lagCount.get());
+        }
+
+        /**
+         * 把本周期的探测数据填进bean，并开始新的周期
+         */
+        synchronized void tick(NioWorkerStatusBean bean) {
+            fold();
+            long now = System.nanoTime();
+            long busy = busyNanos;
+            bean.channels = channels;
+            bean.pendingTasksHighWater = pendingTasksHighWater.getAndSet(lastPendingTasks);
+            bean.lagP99 = period.getValueAtPercentile(99) / 1000.0;
+            bean.lagMax = period.getMaxValue() / 1000.0;
+            bean.busyRatio = now > periodBeginNanos ? (busy - periodBusyBase) * 1.0 / (now - periodBeginNanos) : 0;
+            period.reset();
+            periodBeginNanos = now;
+            periodBusyBase = busy;
+        }
+    }
+
+    /**
+     * 只在EventLoop线程上回调，直接修改当前线程探针的计数
+     */
+    @ChannelHandler.Sharable
+    private static class LoopStatHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
+            EventLoopProbe probe = currentProbe.get();
+            if (probe != null) {
+                probe.channels++;
+            }
+            super.channelRegistered(ctx);
+        }
+
+        @Override
+        public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
+            EventLoopProbe probe = currentProbe.get();
+            if (probe != null) {
+                probe.channels--;
+            }
+            super.channelUnregistered(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            long begin = System.nanoTime();
+            try {
+                ctx.fireChannelRead(msg);
+            } finally {
+                EventLoopProbe probe = currentProbe.get();
+                if (probe != null) {
+                    probe.busyNanos += System.nanoTime() - begin;
+                }
+            }
+        }
+    }
+
     private NioWorkerStat() {}
 }
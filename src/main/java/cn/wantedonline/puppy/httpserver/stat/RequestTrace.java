@@ -0,0 +1,140 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.stat;
+
+import cn.wantedonline.puppy.util.DateStringUtil;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <pre>
+ *     一次请求的跟踪记录，按阶段记录System.nanoTime()
+ *     由RequestTracer按采样率创建，挂在ContextAttachment上，写完成后交回RequestTracer
+ *     阶段在EventLoop和业务线程之间传递时由线程池/EventLoop的任务提交保证可见性
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public class RequestTrace {
+
+    public enum Phase {
+        ACCEPT, // 连接建立，长连接上的后续请求为上一个响应写完
+        FIRST_BYTE, // 解码出请求行
+        DECODED, // 请求解码完成，开始分发
+        ROUTED, // 找到Cmd
+        CMD_START, // Cmd方法开始执行
+        CMD_END, // Cmd方法执行完毕
+        SERIALIZED, // 响应内容生成完毕
+        WRITE_BEGIN, // 在EventLoop上开始写响应
+        FLUSHED // 响应写完
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final RequestTracer tracer;
+    private final long[] stamps = new long[PHASES.length];
+    private final Date date = new Date();
+    private final String uri;
+    private String cmd;
+    private int status;
+
+    RequestTrace(RequestTracer tracer, String uri) {
+        this.tracer = tracer;
+        this.uri = uri;
+    }
+
+    public void mark(Phase phase) {
+        stamps[phase.ordinal()] = System.nanoTime();
+    }
+
+    public void mark(Phase phase, long nanos) {
+        stamps[phase.ordinal()] = nanos;
+    }
+
+    /**
+     * 响应写完后调用，交给RequestTracer判断是否保留
+     */
+    public void finish(String cmd, int status) {
+        mark(Phase.FLUSHED);
+        this.cmd = cmd;
+        this.status = status;
+        tracer.complete(this);
+    }
+
+    /**
+     * 从解码出请求行到响应写完的耗时(ns)
+     */
+    long totalNanos() {
+        long begin = stamps[Phase.FIRST_BYTE.ordinal()];
+        long end = stamps[Phase.FLUSHED.ordinal()];
+        return begin == 0 || end == 0 ? 0 : end - begin;
+    }
+
+    public String getDate() {
+        return DateStringUtil.DEFAULT.format(date);
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getCmd() {
+        return cmd;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public long getTotalMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(totalNanos());
+    }
+
+    /**
+     * 每个阶段距上一个有记录的阶段的耗时(us)，没有经过的阶段不输出
+     * FIRST_BYTE是连接建立(长连接上为上一个响应写完)到本请求到达的空闲时间
+     */
+    public Map<String, Long> getPhases() {
+        Map<String, Long> phases = new LinkedHashMap<>(PHASES.length * 2);
+        long prev = 0;
+        for (Phase phase : PHASES) {
+            long stamp = stamps[phase.ordinal()];
+            if (stamp == 0) {
+                continue;
+            }
+            phases.put(phase.name(), prev == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(stamp - prev));
+            prev = stamp;
+        }
+        return phases;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestTrace{" +
+                "date=" + getDate() +
+                ", uri='" + uri + '\'' +
+                ", cmd='" + cmd + '\'' +
+                ", status=" + status +
+                ", totalMicros=" + getTotalMicros() +
+                ", phases=" + getPhases() +
+                '}';
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.stat;
+
+import cn.wantedonline.puppy.spring.annotation.AfterConfig;
+import cn.wantedonline.puppy.spring.annotation.Config;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <pre>
+ *     请求跟踪，按traceSampleRate采样，采样到的请求记录各阶段的纳秒时间
+ *     耗时超过traceSlowMillis的跟踪记录放入无锁环形数组，保留最近traceRingSize个，可通过/stat/trace查看
+ * </pre>
+ *
+ * @author wangcheng
+ */
+@Component
+public class RequestTracer {
+    @Config(resetable = true)
+    private double traceSampleRate = 0.1; // 采样率，0关闭，1全部跟踪
+    @Config(resetable = true)
+    private int traceSlowMillis = 100; // 超过该耗时的跟踪记录才保留，单位ms
+    @Config
+    private int traceRingSize = 128; // 保留最近多少个慢请求
+
+    private volatile long slowNanos = TimeUnit.MILLISECONDS.toNanos(traceSlowMillis);
+    private AtomicReferenceArray<RequestTrace> ring = new AtomicReferenceArray<>(traceRingSize);
+    private final AtomicLong cursor = new AtomicLong();
+
+    @AfterConfig
+    public void reset() {
+        slowNanos = TimeUnit.MILLISECONDS.toNanos(traceSlowMillis);
+        if (ring.length() != traceRingSize && traceRingSize > 0) {
+            ring = new AtomicReferenceArray<>(traceRingSize);
+            cursor.set(0);
+        }
+    }
+
+    /**
+     * 按采样率决定是否跟踪该请求，不跟踪时返回null
+     * idleSinceNanos是连接建立或上一个响应写完的时间，管线化的请求在上一个响应写完前就到了，没有空闲时间
+     */
+    public RequestTrace begin(String uri, long idleSinceNanos, long firstByteNanos) {
+        double rate = traceSampleRate;
+        if (rate <= 0 || rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate) {
+            return null;
+        }
+        RequestTrace trace = new RequestTrace(this, uri);
+        trace.mark(RequestTrace.Phase.ACCEPT, idleSinceNanos != 0 && idleSinceNanos - firstByteNanos > 0 ? firstByteNanos : idleSinceNanos);
+        trace.mark(RequestTrace.Phase.FIRST_BYTE, firstByteNanos);
+        return trace;
+    }
+
+    void complete(RequestTrace trace) {
+        if (trace.totalNanos() < slowNanos) {
+            return;
+        }
+        AtomicReferenceArray<RequestTrace> r = ring;
+        r.set((int) (cursor.getAndIncrement() % r.length()), trace);
+    }
+
+    /**
+     * 最近的n个慢请求，最新的在前
+     */
+    public List<RequestTrace> recent(int n) {
+        AtomicReferenceArray<RequestTrace> r = ring;
+        long end = cursor.get();
+        int count = (int) Math.min(Math.min(n, r.length()), end);
+        List<RequestTrace> result = new ArrayList<>(Math.max(count, 0));
+        for (long i = end - 1; i >= end - count; i--) {
+            RequestTrace trace = r.get((int) (i % r.length()));
+            if (trace != null) {
+                result.add(trace);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.stat;
+
+import cn.wantedonline.puppy.httpserver.common.CmdMappers;
+import cn.wantedonline.puppy.httpserver.component.ContextAttachment;
+import cn.wantedonline.puppy.spring.annotation.AfterConfig;
+import cn.wantedonline.puppy.spring.annotation.Config;
+import cn.wantedonline.puppy.util.AssertUtil;
+import cn.wantedonline.puppy.util.DateStringUtil;
+import cn.wantedonline.puppy.util.Log;
+import cn.wantedonline.puppy.util.concurrent.ConcurrentUtil;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ *     慢请求采样
+ *     业务线程执行Cmd期间登记在册，watchdog定时扫描，执行超过slowSampleThreshold仍未返回的请求抓取处理线程的堆栈，
+ *     相同的堆栈合并计数，通过/stat/slow查看次数最多的堆栈
+ *     每秒抓取次数受slowSampleMaxPerSecond限制，过载时不会因为采样本身加重负担
+ * </pre>
+ *
+ * @author wangcheng
+ */
+@Component
+public class SlowRequestSampler {
+    private static final Logger log = Log.getLogger(SlowRequestSampler.class);
+
+    @Config
+    private int slowSampleIntervalMillis = 100; // 扫描间隔，单位ms，小于等于0关闭采样
+    @Config(resetable = true)
+    private int slowSampleThreshold = 500; // Cmd执行超过该时长开始抓取堆栈，单位ms
+    @Config(resetable = true)
+    private int slowSampleMaxPerSecond = 20; // 每秒最多抓取多少次堆栈
+    @Config(resetable = true)
+    private int slowSampleStackDepth = 32; // 每个堆栈保留的栈帧数
+    @Config(resetable = true)
+    private int slowSampleMaxStacks = 256; // 最多保留多少种不同的堆栈
+
+    private final ConcurrentHashMap<ContextAttachment, Long> running = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SlowStack> stacks = new ConcurrentHashMap<>();
+    private final AtomicLong droppedStacks = new AtomicLong();
+
+    private volatile boolean init = false;
+    // 以下只在watchdog线程中访问
+    private long windowStart;
+    private int windowSamples;
+
+    @AfterConfig
+    public synchronized void init() {
+        if (init || slowSampleIntervalMillis <= 0) {
+            return;
+        }
+        init = true;
+        ConcurrentUtil.getWatchdog().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                } catch (Throwable e) {
+                    log.error("slow request sample failed", e);
+                }
+            }
+        }, slowSampleIntervalMillis, slowSampleIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 业务线程开始执行Cmd
+     */
+    public void processBegin(ContextAttachment attach) {
+        if (init) {
+            running.put(attach, System.nanoTime());
+        }
+    }
+
+    /**
+     * 业务线程执行Cmd结束
+     */
+    public void processEnd(ContextAttachment attach) {
+        if (init) {
+            running.remove(attach);
+        }
+    }
+
+    private void sample() {
+        if (running.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowSampleThreshold);
+        for (Map.Entry<ContextAttachment, Long> entry : running.entrySet()) {
+            long elapsed = now - entry.getValue();
+            if (elapsed < thresholdNanos) {
+                continue;
+            }
+            if (!acquire(now)) {
+                return;
+            }
+            ContextAttachment attach = entry.getKey();
+            Thread thread = attach.getProcessThread();
+            if (AssertUtil.isNull(thread)) {
+                continue;
+            }
+            StackTraceElement[] frames = thread.getStackTrace();
+            //抓取期间Cmd已经结束，线程可能在处理别的请求，丢弃
+            if (thread != attach.getProcessThread() || !running.containsKey(attach)) {
+                continue;
+            }
+            CmdMappers.CmdMeta meta = attach.getCmdMeta();
+            aggregate(AssertUtil.isNull(meta) ? null : meta.getName(), frames, elapsed);
+        }
+    }
+
+    /**
+     * 按秒限制抓取次数
+     */
+    private boolean acquire(long now) {
+        if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+            windowStart = now;
+            windowSamples = 0;
+        }
+        if (windowSamples >= slowSampleMaxPerSecond) {
+            return false;
+        }
+        windowSamples++;
+        return true;
+    }
+
+    private void aggregate(String cmd, StackTraceElement[] frames, long elapsed) {
+        int depth = Math.min(frames.length, slowSampleStackDepth);
+        List<String> trimmed = new ArrayList<>(depth);
+        StringBuilder key = new StringBuilder(depth * 64).append(cmd);
+        for (int i = 0; i < depth; i++) {
+            String frame = frames[i].toString();
+            trimmed.add(frame);
+            key.append('\n').append(frame);
+        }
+        String k = key.toString();
+        SlowStack stack = stacks.get(k);
+        if (AssertUtil.isNull(stack)) {
+            if (stacks.size() >= slowSampleMaxStacks) {
+                droppedStacks.incrementAndGet();
+                return;
+            }
+            stack = new SlowStack(cmd, trimmed);
+            SlowStack prev = stacks.putIfAbsent(k, stack);
+            if (AssertUtil.isNotNull(prev)) {
+                stack = prev;
+            }
+        }
+        stack.hit(elapsed);
+    }
+
+    /**
+     * 命中次数最多的n个堆栈
+     */
+    public List<SlowStack> top(int n) {
+        List<SlowStack> all = new ArrayList<>(stacks.values());
+        Collections.sort(all, new Comparator<SlowStack>() {
+            @Override
+            public int compare(SlowStack o1, SlowStack o2) {
+                long c1 = o1.getCount();
+                long c2 = o2.getCount();
+                return c1 < c2 ? 1 : c1 == c2 ? 0 : -1;
+            }
+        });
+        return all.size() > n ? all.subList(0, n) : all;
+    }
+
+    /**
+     * 清空已聚合的堆栈
+     */
+    public void clear() {
+        stacks.clear();
+        droppedStacks.set(0);
+    }
+
+    public long getDroppedStacks() {
+        return droppedStacks.get();
+    }
+
+    public int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * 聚合后的慢请求堆栈
+     */
+    public static class SlowStack {
+        private final String cmd;
+        private final List<String> frames;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong maxElapsed = new AtomicLong(); // 抓取时已执行的最长时间(ns)
+        private volatile long lastSeen;
+
+        SlowStack(String cmd, List<String> frames) {
+            this.cmd = cmd;
+            this.frames = Collections.unmodifiableList(frames);
+        }
+
+        void hit(long elapsed) {
+            count.incrementAndGet();
+            ConcurrentUtil.updateMax(maxElapsed, elapsed);
+            lastSeen = System.currentTimeMillis();
+        }
+
+        public String getCmd() {
+            return cmd;
+        }
+
+        public List<String> getFrames() {
+            return frames;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMaxElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxElapsed.get());
+        }
+
+        public String getLastSeen() {
+            return DateStringUtil.DEFAULT.format(new Date(lastSeen));
+        }
+
+        @Override
+        public String toString() {
+            return "SlowStack{" +
+                    "cmd='" + cmd + '\'' +
+                    ", count=" + count +
+                    ", maxElapsedMillis=" + getMaxElapsedMillis() +
+                    ", frames=" + frames +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.stat;
+
+import cn.wantedonline.puppy.util.AssertUtil;
+import cn.wantedonline.puppy.util.CharsetTools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <pre>
+ *     统计快照的二进制编解码，供SnapshotStore按定长记录落盘
+ *     编码时写满记录会抛出BufferOverflowException，由SnapshotStore丢弃这条记录
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public abstract class SnapshotCodec<T> {
+
+    public abstract void encode(T snapshot, ByteBuffer buf);
+
+    public abstract T decode(ByteBuffer buf);
+
+    protected static void putString(ByteBuffer buf, String value) {
+        byte[] bytes = AssertUtil.isNull(value) ? new byte[0] : value.getBytes(CharsetTools.UTF_8);
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    protected static String getString(ByteBuffer buf) {
+        int len = buf.getShort() & 0xFFFF;
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, CharsetTools.UTF_8);
+    }
+}
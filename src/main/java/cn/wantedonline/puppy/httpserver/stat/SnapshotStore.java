@@ -0,0 +1,236 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.stat;
+
+import cn.wantedonline.puppy.util.Log;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * <pre>
+ *     统计快照的二进制时间序列文件，内存映射，定长记录，只追加
+ *
+ *     文件头(32字节): magic | version | recordSize | capacity
+ *     记录: crc32 | payloadLength | seq | payload
+ *
+ *     第seq条记录写在 (seq - 1) % capacity 号槽位，写满后覆盖最老的记录
+ *     crc覆盖记录中crc之后的全部内容，进程或机器崩溃时写了一半的记录校验不过，读取时跳过
+ *     每次追加后force到磁盘，停机时不需要再集中写文件
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public class SnapshotStore<T> implements Closeable {
+    private static final Logger log = Log.getLogger(SnapshotStore.class);
+
+    private static final int MAGIC = 0x50534E50; // "PSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_HEADER_SIZE = 16; // crc(4) + length(4) + seq(8)
+
+    private final File file;
+    private final SnapshotCodec<T> codec;
+    private final int recordSize;
+    private final int capacity;
+    private final byte[] scratch;
+    private final CRC32 crc = new CRC32();
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer mapped;
+    private long lastSeq;
+
+    public SnapshotStore(String fileName, SnapshotCodec<T> codec, int recordSize, int capacity) {
+        if (recordSize <= RECORD_HEADER_SIZE || capacity <= 0) {
+            throw new IllegalArgumentException("recordSize must be greater than " + RECORD_HEADER_SIZE + " and capacity must be positive");
+        }
+        if (HEADER_SIZE + (long) recordSize * capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("snapshot file can not be larger than 2GB");
+        }
+        this.file = new File(fileName);
+        this.codec = codec;
+        this.recordSize = recordSize;
+        this.capacity = capacity;
+        this.scratch = new byte[recordSize];
+    }
+
+    /**
+     * 打开文件并扫描出最新的序号，文件不存在或格式不符(如旧版本的JSON文件、记录大小变化)时重建
+     */
+    public synchronized SnapshotStore<T> open() throws IOException {
+        boolean exists = file.exists() && file.length() > 0;
+        raf = new RandomAccessFile(file, "rw");
+        long size = HEADER_SIZE + (long) recordSize * capacity;
+        if (exists && !isCompatible(size)) {
+            log.warn("snapshot file {} is not compatible with recordSize={}, capacity={}, recreate it", file, recordSize, capacity);
+            exists = false;
+        }
+        if (!exists) {
+            raf.setLength(0);
+        }
+        raf.setLength(size);
+        mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (exists) {
+            lastSeq = scanLastSeq();
+        } else {
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, VERSION);
+            mapped.putInt(8, recordSize);
+            mapped.putInt(12, capacity);
+            mapped.force();
+            lastSeq = 0;
+        }
+        return this;
+    }
+
+    private boolean isCompatible(long size) throws IOException {
+        if (raf.length() != size) {
+            return false;
+        }
+        raf.seek(0);
+        return raf.readInt() == MAGIC && raf.readInt() == VERSION && raf.readInt() == recordSize && raf.readInt() == capacity;
+    }
+
+    private long scanLastSeq() {
+        long max = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long seq = readSeq(slot);
+            if (seq > max && slotOf(seq) == slot && isValid(slot)) {
+                max = seq;
+            }
+        }
+        return max;
+    }
+
+    private int slotOf(long seq) {
+        return (int) ((seq - 1) % capacity);
+    }
+
+    private int offsetOf(int slot) {
+        return HEADER_SIZE + slot * recordSize;
+    }
+
+    private long readSeq(int slot) {
+        return mapped.getLong(offsetOf(slot) + 8);
+    }
+
+    /**
+     * 把槽位整条读进scratch并校验crc
+     */
+    private boolean isValid(int slot) {
+        ByteBuffer buf = mapped.duplicate();
+        buf.position(offsetOf(slot));
+        buf.get(scratch, 0, recordSize);
+        ByteBuffer record = ByteBuffer.wrap(scratch);
+        int expected = record.getInt(0);
+        int length = record.getInt(4);
+        if (length < 0 || length > recordSize - RECORD_HEADER_SIZE) {
+            return false;
+        }
+        crc.reset();
+        crc.update(scratch, 4, RECORD_HEADER_SIZE - 4 + length);
+        return (int) crc.getValue() == expected;
+    }
+
+    /**
+     * 追加一条快照，编码超出recordSize时丢弃并返回false
+     */
+    public synchronized boolean append(T snapshot) {
+        if (mapped == null) {
+            return false;
+        }
+        ByteBuffer record = ByteBuffer.wrap(scratch);
+        record.position(RECORD_HEADER_SIZE);
+        try {
+            codec.encode(snapshot, record);
+        } catch (BufferOverflowException e) {
+            log.warn("snapshot is larger than recordSize {} of {}, dropped", recordSize, file);
+            return false;
+        }
+        int length = record.position() - RECORD_HEADER_SIZE;
+        long seq = lastSeq + 1;
+        record.putInt(4, length);
+        record.putLong(8, seq);
+        crc.reset();
+        crc.update(scratch, 4, RECORD_HEADER_SIZE - 4 + length);
+        record.putInt(0, (int) crc.getValue());
+
+        ByteBuffer buf = mapped.duplicate();
+        buf.position(offsetOf(slotOf(seq)));
+        buf.put(scratch, 0, RECORD_HEADER_SIZE + length);
+        mapped.force();
+        lastSeq = seq;
+        return true;
+    }
+
+    /**
+     * 按序号从旧到新读取afterSeq之后的快照，最多limit条，坏记录跳过
+     * 调用方记住最后读到的序号即可增量读取
+     */
+    public synchronized List<T> readAfter(long afterSeq, int limit) {
+        List<T> result = new ArrayList<>();
+        if (mapped == null) {
+            return result;
+        }
+        long from = Math.max(afterSeq + 1, Math.max(1, lastSeq - capacity + 1));
+        for (long seq = from; seq <= lastSeq && result.size() < limit; seq++) {
+            int slot = slotOf(seq);
+            if (readSeq(slot) != seq || !isValid(slot)) {
+                continue;
+            }
+            ByteBuffer record = ByteBuffer.wrap(scratch, RECORD_HEADER_SIZE, scratch.length - RECORD_HEADER_SIZE);
+            record.limit(RECORD_HEADER_SIZE + ByteBuffer.wrap(scratch).getInt(4));
+            try {
+                result.add(codec.decode(record));
+            } catch (RuntimeException e) {
+                log.warn("decode snapshot {} of {} failed, skip it", seq, file, e);
+            }
+        }
+        return result;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mapped != null) {
+            mapped.force();
+            mapped = null;
+        }
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+}
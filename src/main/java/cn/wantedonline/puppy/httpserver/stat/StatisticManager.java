@@ -19,24 +19,23 @@ package cn.wantedonline.puppy.httpserver.stat;
 import cn.wantedonline.puppy.spring.annotation.AfterConfig;
 import cn.wantedonline.puppy.spring.annotation.Config;
 import cn.wantedonline.puppy.util.AssertUtil;
-import cn.wantedonline.puppy.util.CharsetTools;
 import cn.wantedonline.puppy.util.Log;
 import cn.wantedonline.puppy.util.concurrent.BaseSchedulable;
 import cn.wantedonline.puppy.util.DateStringUtil;
 import cn.wantedonline.puppy.util.concurrent.WrappedConcurrentCircularQueue;
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.io.*;
-import java.nio.charset.Charset;
+import java.io.IOException;
 import java.util.Date;
+import java.util.List;
 
 /**
  * <pre>
  *     统计中心
+ *     每次打点的快照在进入内存队列的同时追加到对应的SnapshotStore文件，
+ *     启动时从文件恢复队列，停机时只需要把文件刷盘
  * </pre>
  *
  * @author wangcheng
@@ -45,11 +44,13 @@ import java.util.Date;
 @Service
 public final class StatisticManager {
     @Config
-    private static final String COUNT_STAT_FILE_NAME = "COUNTSTAT.stat";
+    private static final String COUNT_STAT_FILE_NAME = "COUNTSTAT.snap";
     @Config
-    private static final String STREAM_STAT_FILE_NAME = "STREAM.stat";
+    private static final String STREAM_STAT_FILE_NAME = "STREAM.snap";
     @Config
-    private static final String TIME_SPAN_STAT_FILE_NAME = "TIMESPAN.stat";
+    private static final String TIME_SPAN_STAT_FILE_NAME = "TIMESPAN.snap";
+    @Config
+    private static final String CMD_COUNT_STAT_FILE_NAME = "CMDCOUNT.snap";
 
     private Logger log = Log.getLogger(StatisticManager.class);
 
@@ -68,6 +69,10 @@ public final class StatisticManager {
     private int snapshotDay = 7;
     @Config
     private int snapshotMilliseconds = 600000;// 每隔10min记录一次
+    @Config
+    private int snapshotRecordSize = 1024; // 计数、流量、耗时快照的单条记录大小，单位byte
+    @Config
+    private int cmdSnapshotRecordSize = 16384; // Cmd快照的单条记录大小，Cmd很多时需要调大
 
     private static final int dayms = 3600 * 1000 * 24;
     private int snapshotSize = dayms / snapshotMilliseconds * snapshotDay;
@@ -77,6 +82,12 @@ public final class StatisticManager {
     private WrappedConcurrentCircularQueue<CountStat.CountStatSnapshot> countStatSnapshotsData;
     private WrappedConcurrentCircularQueue<StreamStat.StreamStatSnapshot> streamStatSnapshotsData;
     private WrappedConcurrentCircularQueue<TimeSpanStat.TimeSpanSnapshot> timeSpanSnapshotsData;
+    private WrappedConcurrentCircularQueue<CmdCountStat.CmdCountSnapshot> cmdCountSnapshotsData;
+
+    private SnapshotStore<CountStat.CountStatSnapshot> countStatStore;
+    private SnapshotStore<StreamStat.StreamStatSnapshot> streamStatStore;
+    private SnapshotStore<TimeSpanStat.TimeSpanSnapshot> timeSpanStore;
+    private SnapshotStore<CmdCountStat.CmdCountSnapshot> cmdCountStore;
 
     {
         if (openCountStat) {
@@ -90,6 +101,10 @@ public final class StatisticManager {
         if (openTimeSpanStat) {
             timeSpanSnapshotsData = new WrappedConcurrentCircularQueue<>(snapshotSize);
         }
+
+        if (openCmdCountStat) {
+            cmdCountSnapshotsData = new WrappedConcurrentCircularQueue<>(snapshotSize);
+        }
     }
 
     @Autowired
@@ -100,6 +115,8 @@ public final class StatisticManager {
     private NioWorkerStat nioWorkerStat;
     @Autowired
     private TimeSpanStat timeSpanStat;
+    @Autowired
+    private CmdCountStat cmdCountStat;
 
     private NioWorkerStat.NioWorkerStatSnapshot nioWorkerStatSnapshot;
 
@@ -107,15 +124,19 @@ public final class StatisticManager {
         @Override
         public void process() throws Throwable {
             if (AssertUtil.isNotNull(countStatSnapshotsData)) {
-                countStatSnapshotsData.addToHead(countStat.tickAndReset());
+                record(countStatSnapshotsData, countStatStore, countStat.tickAndReset());
             }
 
             if (AssertUtil.isNotNull(streamStatSnapshotsData)) {
-                streamStatSnapshotsData.addToHead(streamStat.tickAndReset());
+                record(streamStatSnapshotsData, streamStatStore, streamStat.tickAndReset());
             }
 
             if (AssertUtil.isNotNull(timeSpanSnapshotsData)) {
-                timeSpanSnapshotsData.addToHead(timeSpanStat.tickAndReset());
+                record(timeSpanSnapshotsData, timeSpanStore, timeSpanStat.tickAndReset());
+            }
+
+            if (AssertUtil.isNotNull(cmdCountSnapshotsData)) {
+                record(cmdCountSnapshotsData, cmdCountStore, cmdCountStat.tickAndReset());
             }
 
             if (openNioWorkerStat) {
@@ -124,6 +145,13 @@ public final class StatisticManager {
         }
     };
 
+    private <T> void record(WrappedConcurrentCircularQueue<T> data, SnapshotStore<T> store, T snapshot) {
+        data.addToHead(snapshot);
+        if (AssertUtil.isNotNull(store)) {
+            store.append(snapshot);
+        }
+    }
+
     @AfterConfig
     public synchronized void init() {
         if (init) {
@@ -132,61 +160,68 @@ public final class StatisticManager {
         schedulable.scheduleAtFixedRateWithDelayMs(getSnapshotInitialDelay(), snapshotMilliseconds);
     }
 
-    public void readStatisticData() {
+    /**
+     * 打开快照文件，把上次停机前的快照按时间顺序放回内存队列
+     */
+    public synchronized void readStatisticData() {
         if (openTimeSpanStat) {
-            timeSpanSnapshotsData = readStatisticSnapshotsDataFromFile(TIME_SPAN_STAT_FILE_NAME);
+            timeSpanStore = openStore(TIME_SPAN_STAT_FILE_NAME, timeSpanStat.snapshotCodec(), snapshotRecordSize, timeSpanSnapshotsData);
         }
         if (openCountStat) {
-            countStatSnapshotsData = readStatisticSnapshotsDataFromFile(COUNT_STAT_FILE_NAME);
+            countStatStore = openStore(COUNT_STAT_FILE_NAME, countStat.snapshotCodec(), snapshotRecordSize, countStatSnapshotsData);
         }
         if (openStreamStat) {
-            streamStatSnapshotsData = readStatisticSnapshotsDataFromFile(STREAM_STAT_FILE_NAME);
+            streamStatStore = openStore(STREAM_STAT_FILE_NAME, streamStat.snapshotCodec(), snapshotRecordSize, streamStatSnapshotsData);
+        }
+        if (openCmdCountStat) {
+            cmdCountStore = openStore(CMD_COUNT_STAT_FILE_NAME, cmdCountStat.snapshotCodec(), cmdSnapshotRecordSize, cmdCountSnapshotsData);
         }
     }
 
-    public synchronized void writeStatisticData() {
-        try {
-            writeStatisticSnapshotsData2File(COUNT_STAT_FILE_NAME, countStatSnapshotsData);
-            writeStatisticSnapshotsData2File(TIME_SPAN_STAT_FILE_NAME, timeSpanSnapshotsData);
-            writeStatisticSnapshotsData2File(STREAM_STAT_FILE_NAME, streamStatSnapshotsData);
-        } catch (IOException e) {
-            log.error("write statistic data to file failed, IO Error... error info {}", e);
-        }
+    /**
+     * 快照在打点时已经写入文件，这里只需刷盘并关闭
+     */
+    public synchronized void closeStatisticData() {
+        closeStore(countStatStore);
+        closeStore(timeSpanStore);
+        closeStore(streamStatStore);
+        closeStore(cmdCountStore);
+        countStatStore = null;
+        timeSpanStore = null;
+        streamStatStore = null;
+        cmdCountStore = null;
     }
 
-    private WrappedConcurrentCircularQueue readStatisticSnapshotsDataFromFile(String fileName) {
-        return readStatisticSnapshotsDataFromFile(fileName, CharsetTools.UTF_8);
+    /**
+     * 历史的Cmd统计快照，最新的在前
+     */
+    public WrappedConcurrentCircularQueue<CmdCountStat.CmdCountSnapshot> getCmdCountSnapshotsData() {
+        return cmdCountSnapshotsData;
     }
 
-    private WrappedConcurrentCircularQueue readStatisticSnapshotsDataFromFile(String fileName, Charset charset) {
-        String filePath = fileName;
-        File file = new File(filePath);
-        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), charset))) {
-            StringBuilder text = new StringBuilder();
-            if (file.exists()) {
-                String lineText = "";
-                while (AssertUtil.isNotNull(lineText = reader.readLine())) {
-                    text.append(lineText);
-                }
-                return JSONObject.parseObject(text.toString(), WrappedConcurrentCircularQueue.class);
+    private <T> SnapshotStore<T> openStore(String fileName, SnapshotCodec<T> codec, int recordSize, WrappedConcurrentCircularQueue<T> data) {
+        try {
+            SnapshotStore<T> store = new SnapshotStore<>(fileName, codec, recordSize, snapshotSize).open();
+            List<T> snapshots = store.readAfter(0, snapshotSize);
+            for (T snapshot : snapshots) {
+                data.addToHead(snapshot);
             }
-        } catch (FileNotFoundException e) {
-            log.info("read statistic snapshots data error, not found file,if it is the first time read, you can ignore it. error info");
+            log.info("open statistic snapshots file {}, {} snapshots restored", fileName, snapshots.size());
+            return store;
         } catch (IOException e) {
-            log.error("read statistic snapshots data error, file is bad... error info", e);
+            log.error("open statistic snapshots file {} failed, snapshots will only be kept in memory", fileName, e);
+            return null;
         }
-        return null;
-    }
-
-    private void writeStatisticSnapshotsData2File(String fileName, WrappedConcurrentCircularQueue data) throws IOException {
-        writeStatisticSnapshotsData2File(fileName, data, CharsetTools.UTF_8);
     }
 
-    private void writeStatisticSnapshotsData2File(String fileName, WrappedConcurrentCircularQueue data, Charset charset) throws IOException {
-        if (AssertUtil.isNotEmptyCollection(data)) {
-            while (data.isWriting()); //当在写数据时，等待它写完
-            data.prohibitWrite(); //禁止写入数据,事实上，使用迭代器就好了，复制一份数据
-            JSON.writeJSONString(new FileOutputStream(fileName), CharsetTools.UTF_8, data);
+    private void closeStore(SnapshotStore<?> store) {
+        if (AssertUtil.isNull(store)) {
+            return;
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            log.error("close statistic snapshots file failed", e);
         }
     }
 
@@ -18,8 +18,11 @@ package cn.wantedonline.puppy.httpserver.stat;
 
 import cn.wantedonline.puppy.spring.annotation.AfterConfig;
 import cn.wantedonline.puppy.util.DateStringUtil;
+import cn.wantedonline.puppy.util.concurrent.ConcurrentUtil;
+import cn.wantedonline.puppy.util.concurrent.StripedCounter;
 import org.springframework.stereotype.Component;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -35,6 +38,8 @@ import java.util.concurrent.atomic.AtomicLong;
 public class StreamStat extends BaseChannelEvent {
     private StreamStatEntry inbound = new StreamStatEntry("inbound"); //收包
     private StreamStatEntry outbound = new StreamStatEntry("outbound"); //发包
+    private StreamStatEntry compressRaw = new StreamStatEntry("compressRaw"); //压缩前的响应体
+    private StreamStatEntry compressWire = new StreamStatEntry("compressWire"); //压缩后实际发送的响应体
 
     public StreamStatEntry getInbound() {
         return inbound;
@@ -44,32 +49,95 @@ public class StreamStat extends BaseChannelEvent {
         return outbound;
     }
 
+    public StreamStatEntry getCompressRaw() {
+        return compressRaw;
+    }
+
+    public StreamStatEntry getCompressWire() {
+        return compressWire;
+    }
+
+    /**
+     * 压缩节省的流量
+     */
+    public long getCompressSavedBytes() {
+        return compressRaw.getAllBytes() - compressWire.getAllBytes();
+    }
+
     /**
      * 打点一个快照数据
      * @return
      */
     public StreamStatSnapshot tickStreamStatSnapshot() {
-        return new StreamStatSnapshot(inbound, outbound);
+        return tick(false);
     }
 
+    /**
+     * 取值和清零对每个计数器是原子的，快照和清零之间的流量不会丢失
+     */
     public StreamStatSnapshot tickAndReset() {
-        StreamStatSnapshot snapshot = tickStreamStatSnapshot();
-        reset();
+        return tick(true);
+    }
+
+    private StreamStatSnapshot tick(boolean reset) {
+        StreamStatSnapshot snapshot = new StreamStatSnapshot(inbound.tick(reset), outbound.tick(reset));
+        snapshot.setCompressRaw(compressRaw.tick(reset));
+        snapshot.setCompressWire(compressWire.tick(reset));
         return snapshot;
     }
 
+    private final SnapshotCodec<StreamStatSnapshot> snapshotCodec = new SnapshotCodec<StreamStatSnapshot>() {
+        @Override
+        public void encode(StreamStatSnapshot snapshot, ByteBuffer buf) {
+            buf.putLong(snapshot.getDate().getTime());
+            encodeValue(snapshot.getInbound(), buf);
+            encodeValue(snapshot.getOutbound(), buf);
+            encodeValue(snapshot.getCompressRaw(), buf);
+            encodeValue(snapshot.getCompressWire(), buf);
+        }
+
+        private void encodeValue(StreamStatValue value, ByteBuffer buf) {
+            putString(buf, value.getName());
+            buf.putLong(value.getMax());
+            buf.putLong(value.getAllBytes());
+            buf.putLong(value.getAllNum());
+        }
+
+        @Override
+        public StreamStatSnapshot decode(ByteBuffer buf) {
+            Date date = new Date(buf.getLong());
+            StreamStatSnapshot snapshot = new StreamStatSnapshot(date, decodeValue(buf), decodeValue(buf));
+            snapshot.setCompressRaw(decodeValue(buf));
+            snapshot.setCompressWire(decodeValue(buf));
+            return snapshot;
+        }
+
+        private StreamStatValue decodeValue(ByteBuffer buf) {
+            return new StreamStatValue(getString(buf), buf.getLong(), buf.getLong(), buf.getLong());
+        }
+    };
+
+    /**
+     * 快照的二进制编解码，用于落盘
+     */
+    public SnapshotCodec<StreamStatSnapshot> snapshotCodec() {
+        return snapshotCodec;
+    }
+
     public class StreamStatSnapshot {
         private Date date;
-        private StreamStatEntry inbound;
-        private StreamStatEntry outbound;
+        private StreamStatValue inbound;
+        private StreamStatValue outbound;
+        private StreamStatValue compressRaw;
+        private StreamStatValue compressWire;
 
-        public StreamStatSnapshot(StreamStatEntry inbound, StreamStatEntry outbound) {
+        public StreamStatSnapshot(StreamStatValue inbound, StreamStatValue outbound) {
             this.date = new Date();
             this.inbound = inbound;
             this.outbound = outbound;
         }
 
-        public StreamStatSnapshot(Date date, StreamStatEntry inbound, StreamStatEntry outbound) {
+        public StreamStatSnapshot(Date date, StreamStatValue inbound, StreamStatValue outbound) {
             this.date = date;
             this.inbound = inbound;
             this.outbound = outbound;
@@ -83,54 +151,148 @@ public class StreamStat extends BaseChannelEvent {
             this.date = date;
         }
 
-        public StreamStatEntry getInbound() {
+        public StreamStatValue getInbound() {
             return inbound;
         }
 
-        public void setInbound(StreamStatEntry inbound) {
+        public void setInbound(StreamStatValue inbound) {
             this.inbound = inbound;
         }
 
-        public StreamStatEntry getOutbound() {
+        public StreamStatValue getOutbound() {
             return outbound;
         }
 
-        public void setOutbound(StreamStatEntry outbound) {
+        public void setOutbound(StreamStatValue outbound) {
             this.outbound = outbound;
         }
 
+        public StreamStatValue getCompressRaw() {
+            return compressRaw;
+        }
+
+        public void setCompressRaw(StreamStatValue compressRaw) {
+            this.compressRaw = compressRaw;
+        }
+
+        public StreamStatValue getCompressWire() {
+            return compressWire;
+        }
+
+        public void setCompressWire(StreamStatValue compressWire) {
+            this.compressWire = compressWire;
+        }
+
         @Override
         public String toString() {
             return "StreamStatSnapshot{" +
                     "date=" + DateStringUtil.DEFAULT.format(date) +
                     ", inbound=" + inbound +
                     ", outbound=" + outbound +
+                    ", compressRaw=" + compressRaw +
+                    ", compressWire=" + compressWire +
                     '}';
         }
     }
 
+    /**
+     * 输出启动以来的累计流量
+     */
+    public void writeMetrics(MetricsWriter writer) {
+        writer.family("puppy_stream_bytes", "counter", "Bytes read and written by the HTTP codec.");
+        writer.name("puppy_stream_bytes_total").label("direction", inbound.getName()).value(inbound.allBytes.total());
+        writer.name("puppy_stream_bytes_total").label("direction", outbound.getName()).value(outbound.allBytes.total());
+        writer.family("puppy_stream_messages", "counter", "Messages read and written by the HTTP codec.");
+        writer.name("puppy_stream_messages_total").label("direction", inbound.getName()).value(inbound.allNum.total());
+        writer.name("puppy_stream_messages_total").label("direction", outbound.getName()).value(outbound.allNum.total());
+        writer.family("puppy_compress_bytes", "counter", "Response body bytes before and after compression.");
+        writer.name("puppy_compress_bytes_total").label("stage", "raw").value(compressRaw.allBytes.total());
+        writer.name("puppy_compress_bytes_total").label("stage", "wire").value(compressWire.allBytes.total());
+    }
+
     @AfterConfig
     public void reset() {
-        inbound.reset();
-        outbound.reset();
+        inbound.tick(true);
+        outbound.tick(true);
+        compressRaw.tick(true);
+        compressWire.tick(true);
     }
 
+    /**
+     * 实时的流量统计项，由各个EventLoop线程并发写入
+     */
     public class StreamStatEntry {
         private String name;
-        private volatile long max;
-        private AtomicLong allBytes = new AtomicLong(0); //流量大小
-        private AtomicLong allNum = new AtomicLong(0); //次数统计
-        private double avgBytes = 0.0;  //平均包大小
+        private AtomicLong max = new AtomicLong(); //最大包大小
+        private StripedCounter allBytes = new StripedCounter(); //流量大小
+        private StripedCounter allNum = new StripedCounter(); //次数统计
 
         public StreamStatEntry(String name) {
             this.name = name;
-            max = 0;
         }
 
         public void record(long bytes) {
-            allNum.incrementAndGet();
-            allBytes.addAndGet(bytes);
-            if (bytes > max) { max = bytes; }
+            allNum.increment();
+            allBytes.add(bytes);
+            ConcurrentUtil.updateMax(max, bytes);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getAllBytes() {
+            return allBytes.sum();
+        }
+
+        public long getAllNum() {
+            return allNum.sum();
+        }
+
+        public double getAvgBytes() {
+            return allBytes.sum() * 1.0d / allNum.sum();
+        }
+
+        /**
+         * 取出当前值
+         * @param reset 是否同时清零
+         */
+        public StreamStatValue tick(boolean reset) {
+            if (reset) {
+                return new StreamStatValue(name, max.getAndSet(0), allBytes.sumThenReset(), allNum.sumThenReset());
+            }
+            return new StreamStatValue(name, max.get(), allBytes.sum(), allNum.sum());
+        }
+
+        @Override
+        public String toString() {
+            return tick(false).toString();
+        }
+    }
+
+    /**
+     * 快照中的流量统计值
+     */
+    public static class StreamStatValue {
+        private String name;
+        private long max;
+        private long allBytes; //流量大小
+        private long allNum; //次数统计
+        private double avgBytes;  //平均包大小
+
+        public StreamStatValue() {
+        }
+
+        public StreamStatValue(String name, long max, long allBytes, long allNum) {
+            this.name = name;
+            this.max = max;
+            this.allBytes = allBytes;
+            this.allNum = allNum;
+            this.avgBytes = allNum == 0 ? 0.0d : allBytes * 1.0d / allNum;
         }
 
         public String getName() {
@@ -141,37 +303,38 @@ public class StreamStat extends BaseChannelEvent {
             this.name = name;
         }
 
+        public long getMax() {
+            return max;
+        }
+
+        public void setMax(long max) {
+            this.max = max;
+        }
+
         public long getAllBytes() {
-            return allBytes.get();
+            return allBytes;
         }
 
         public void setAllBytes(long allBytes) {
-            this.allBytes.set(allBytes);
+            this.allBytes = allBytes;
         }
 
         public long getAllNum() {
-            return allNum.get();
+            return allNum;
         }
 
         public void setAllNum(long allNum) {
-            this.allNum.set(allNum);
+            this.allNum = allNum;
         }
 
         public double getAvgBytes() {
-            return allBytes.get() * 1.0d / allNum.get();
+            return avgBytes;
         }
 
         public void setAvgBytes(double avgBytes) {
             this.avgBytes = avgBytes;
         }
 
-        public void reset() {
-            max = 0;
-            allBytes.set(0);
-            allNum.set(0);
-            avgBytes = 0.0d;
-        }
-
         @Override
         public String toString() {
             return "StreamStatEntry{" +
@@ -22,11 +22,17 @@ import cn.wantedonline.puppy.spring.annotation.AfterConfig;
 import cn.wantedonline.puppy.spring.annotation.Config;
 import cn.wantedonline.puppy.util.DateStringUtil;
 import cn.wantedonline.puppy.util.Log;
+import cn.wantedonline.puppy.util.concurrent.ConcurrentUtil;
+import cn.wantedonline.puppy.util.concurrent.StripedCounter;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
 import org.slf4j.Logger;
 import org.springframework.stereotype.Component;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -47,78 +53,154 @@ public class TimeSpanStat extends BaseChannelEvent {
     public int slow_encode_threshold = 500;
     @Config(resetable = true)
     public int slow_req_threshold = 1000;
+    @Config(resetable = true)
+    public int slow_warn_interval = 1000; // 同一统计项两次SLOW_PROCESS日志的最小间隔，期间的慢处理只计数，单位ms
 
-    private TimeSpanStatEntry allTSS; // 全部统计
-    private TimeSpanStatEntry decodeTSS; // 解码统计
-    private TimeSpanStatEntry encodeTSS; // 编码统计
-    private TimeSpanStatEntry processTSS; // 业务统计
-    private TimeSpanStatEntry okTSS; // 处理完毕
+    private volatile TimeSpanStatEntry allTSS; // 全部统计
+    private volatile TimeSpanStatEntry decodeTSS; // 解码统计
+    private volatile TimeSpanStatEntry encodeTSS; // 编码统计
+    private volatile TimeSpanStatEntry processTSS; // 业务统计
+    private volatile TimeSpanStatEntry okTSS; // 处理完毕
 
     public TimeSpanSnapshot tickTimeSpanSnapshot() {
-        TimeSpanSnapshot snapshot = new TimeSpanSnapshot();
-        snapshot.setAllTSS(allTSS);
-        snapshot.setDecodeTSS(decodeTSS);
-        snapshot.setEncodeTSS(encodeTSS);
-        snapshot.setOkTSS(okTSS);
-        snapshot.setProcessTSS(processTSS);
-        return snapshot;
+        return tick(false);
     }
 
+    /**
+     * 每个统计项的取值和清零是原子的，快照和清零之间记录的耗时会计入下一个周期
+     */
     public TimeSpanSnapshot tickAndReset() {
-        TimeSpanSnapshot snapshot = tickTimeSpanSnapshot();
-        reset();
+        return tick(true);
+    }
+
+    private TimeSpanSnapshot tick(boolean reset) {
+        TimeSpanSnapshot snapshot = new TimeSpanSnapshot();
+        snapshot.setAllTSS(allTSS.tick(reset));
+        snapshot.setDecodeTSS(decodeTSS.tick(reset));
+        snapshot.setEncodeTSS(encodeTSS.tick(reset));
+        snapshot.setOkTSS(okTSS.tick(reset));
+        snapshot.setProcessTSS(processTSS.tick(reset));
         return snapshot;
     }
 
+    private final SnapshotCodec<TimeSpanSnapshot> snapshotCodec = new SnapshotCodec<TimeSpanSnapshot>() {
+        @Override
+        public void encode(TimeSpanSnapshot snapshot, ByteBuffer buf) {
+            buf.putLong(snapshot.getDate().getTime());
+            encodeValue(snapshot.getAllTSS(), buf);
+            encodeValue(snapshot.getDecodeTSS(), buf);
+            encodeValue(snapshot.getEncodeTSS(), buf);
+            encodeValue(snapshot.getProcessTSS(), buf);
+            encodeValue(snapshot.getOkTSS(), buf);
+        }
+
+        private void encodeValue(TimeSpanStatValue value, ByteBuffer buf) {
+            putString(buf, value.getName());
+            buf.putInt(value.getSlowThreshold());
+            buf.putLong(value.getTotalCount());
+            buf.putLong(value.getTotalSpan());
+            buf.putLong(value.getMaxSpan());
+            buf.putLong(value.getSlowCount());
+            buf.putLong(value.getSlowSpan());
+            buf.putDouble(value.getP50());
+            buf.putDouble(value.getP90());
+            buf.putDouble(value.getP99());
+            buf.putDouble(value.getP999());
+        }
+
+        @Override
+        public TimeSpanSnapshot decode(ByteBuffer buf) {
+            TimeSpanSnapshot snapshot = new TimeSpanSnapshot();
+            snapshot.setDate(new Date(buf.getLong()));
+            snapshot.setAllTSS(decodeValue(buf));
+            snapshot.setDecodeTSS(decodeValue(buf));
+            snapshot.setEncodeTSS(decodeValue(buf));
+            snapshot.setProcessTSS(decodeValue(buf));
+            snapshot.setOkTSS(decodeValue(buf));
+            return snapshot;
+        }
+
+        private TimeSpanStatValue decodeValue(ByteBuffer buf) {
+            TimeSpanStatValue value = new TimeSpanStatValue();
+            value.name = getString(buf);
+            value.slowThreshold = buf.getInt();
+            value.totalCount = buf.getLong();
+            value.totalSpan = buf.getLong();
+            value.maxSpan = buf.getLong();
+            value.slowCount = buf.getLong();
+            value.slowSpan = buf.getLong();
+            value.p50 = buf.getDouble();
+            value.p90 = buf.getDouble();
+            value.p99 = buf.getDouble();
+            value.p999 = buf.getDouble();
+            return value;
+        }
+    };
+
+    /**
+     * 快照的二进制编解码，用于落盘
+     */
+    public SnapshotCodec<TimeSpanSnapshot> snapshotCodec() {
+        return snapshotCodec;
+    }
+
     public class TimeSpanSnapshot {
         private Date date;
-        private TimeSpanStatEntry allTSS; // 全部统计
-        private TimeSpanStatEntry decodeTSS; // 解码统计
-        private TimeSpanStatEntry encodeTSS; // 编码统计
-        private TimeSpanStatEntry processTSS; // 业务统计
-        private TimeSpanStatEntry okTSS; // 处理完毕
+        private TimeSpanStatValue allTSS; // 全部统计
+        private TimeSpanStatValue decodeTSS; // 解码统计
+        private TimeSpanStatValue encodeTSS; // 编码统计
+        private TimeSpanStatValue processTSS; // 业务统计
+        private TimeSpanStatValue okTSS; // 处理完毕
 
         public TimeSpanSnapshot() {
             this.date = new Date();
         }
 
-        public TimeSpanStatEntry getAllTSS() {
+        public Date getDate() {
+            return date;
+        }
+
+        public void setDate(Date date) {
+            this.date = date;
+        }
+
+        public TimeSpanStatValue getAllTSS() {
             return allTSS;
         }
 
-        public void setAllTSS(TimeSpanStatEntry allTSS) {
+        public void setAllTSS(TimeSpanStatValue allTSS) {
             this.allTSS = allTSS;
         }
 
-        public TimeSpanStatEntry getDecodeTSS() {
+        public TimeSpanStatValue getDecodeTSS() {
             return decodeTSS;
         }
 
-        public void setDecodeTSS(TimeSpanStatEntry decodeTSS) {
+        public void setDecodeTSS(TimeSpanStatValue decodeTSS) {
             this.decodeTSS = decodeTSS;
         }
 
-        public TimeSpanStatEntry getEncodeTSS() {
+        public TimeSpanStatValue getEncodeTSS() {
             return encodeTSS;
         }
 
-        public void setEncodeTSS(TimeSpanStatEntry encodeTSS) {
+        public void setEncodeTSS(TimeSpanStatValue encodeTSS) {
             this.encodeTSS = encodeTSS;
         }
 
-        public TimeSpanStatEntry getProcessTSS() {
+        public TimeSpanStatValue getProcessTSS() {
             return processTSS;
         }
 
-        public void setProcessTSS(TimeSpanStatEntry processTSS) {
+        public void setProcessTSS(TimeSpanStatValue processTSS) {
             this.processTSS = processTSS;
         }
 
-        public TimeSpanStatEntry getOkTSS() {
+        public TimeSpanStatValue getOkTSS() {
             return okTSS;
         }
 
-        public void setOkTSS(TimeSpanStatEntry okTSS) {
+        public void setOkTSS(TimeSpanStatValue okTSS) {
             this.okTSS = okTSS;
         }
 
@@ -135,10 +217,20 @@ public class TimeSpanStat extends BaseChannelEvent {
         }
     }
 
+    /**
+     * 请求解码完成，开始分发，记录解码耗时
+     */
+    @Override
+    public void messageReceiveEnd(ContextAttachment attach) {
+        decodeTSS.record(attach.getProcessNanos(), attach.getDecodeNanos(), attach.getRequest().getUri(), attach);
+    }
+
+    /**
+     * 开始写响应，记录业务处理耗时
+     */
     @Override
     public void writeBegin(ContextAttachment attach) {
-        attach.markWriteBegin();
-        processTSS.record(attach.getEncode(), attach.getProcess(), attach.getRequest().getUri(), attach);
+        processTSS.record(attach.getEncodeNanos(), attach.getProcessNanos(), attach.getRequest().getUri(), attach);
     }
 
     @Override
@@ -148,19 +240,26 @@ public class TimeSpanStat extends BaseChannelEvent {
             return;
         }
         // TODO:这里没有处理chunk的情况
-        long incr = attach.markWriteEnd();
-        long complete = attach.getComplete();
-
-        if (incr == -1) {
-            // 说明是第一次写
-            encodeTSS.record(complete, attach.getEncode(), attach.getRequest().getUri(),attach);
-            allTSS.record(complete, attach.getDecode(), attach.getRequest().getUri(),attach);
-        } else {
-            encodeTSS.record(incr, complete, attach.getEncode(), attach.getRequest().getUri(), attach);
-            allTSS.record(incr, complete, attach.getDecode(), attach.getRequest().getUri(), attach);
-            if (resp.getStatus().equals(HttpResponseStatus.OK)) {
-                okTSS.record(incr, complete, attach.getDecode(), attach.getRequest().getUri(), attach);
-            }
+        long complete = attach.getCompleteNanos();
+        encodeTSS.record(complete, attach.getEncodeNanos(), attach.getRequest().getUri(), attach);
+        allTSS.record(complete, attach.getDecodeNanos(), attach.getRequest().getUri(), attach);
+        if (resp.getStatus().equals(HttpResponseStatus.OK)) {
+            okTSS.record(complete, attach.getDecodeNanos(), attach.getRequest().getUri(), attach);
+        }
+    }
+
+    /**
+     * 分位数为本统计周期内的数据，_sum和_count为累计值
+     */
+    public void writeMetrics(MetricsWriter writer) {
+        TimeSpanStatEntry[] entries = {decodeTSS, processTSS, encodeTSS, allTSS, okTSS};
+        writer.family("puppy_request_duration_seconds", "summary", "Request phase latency.");
+        for (TimeSpanStatEntry e : entries) {
+            e.writeSummary(writer, "puppy_request_duration_seconds");
+        }
+        writer.family("puppy_request_slow", "counter", "Requests slower than the phase threshold.");
+        for (TimeSpanStatEntry e : entries) {
+            writer.name("puppy_request_slow_total").label("phase", e.getName()).value(e.slowCount.total());
         }
     }
 
@@ -193,20 +292,38 @@ public class TimeSpanStat extends BaseChannelEvent {
         return okTSS;
     }
 
+    /**
+     * <pre>
+     *     单项耗时统计，时长都以System.nanoTime()计算，对外以毫秒输出
+     *     计数使用分段计数器，分位数由HdrHistogram的Recorder记录，写入都是无锁的
+     *     读取时把Recorder的区间数据归并到本周期的直方图中
+     * </pre>
+     */
     public class TimeSpanStatEntry {
-        private AtomicLong totalCount = new AtomicLong(); // 处理总次数
-        private AtomicLong totalSpan = new AtomicLong(); // 处理总时长
+        private static final long HIGHEST_TRACKABLE_MICROS = 3600L * 1000 * 1000; // 直方图最大记录1小时
+        private static final int SIGNIFICANT_DIGITS = 2;
+
+        private StripedCounter totalCount = new StripedCounter(); // 处理总次数
+        private StripedCounter totalSpan = new StripedCounter(); // 处理总时长(ns)
         private Logger log;
-        private volatile long maxSpan;
+        private AtomicLong maxSpan = new AtomicLong(); // 最大时长(ns)
         private String name = "";
-        private AtomicLong slowCount = new AtomicLong(); // 慢的总个数
-        private AtomicLong slowSpan = new AtomicLong(); // 慢的总时长
+        private StripedCounter slowCount = new StripedCounter(); // 慢的总个数
+        private StripedCounter slowSpan = new StripedCounter(); // 慢的总时长(ns)
         private int slowThreshold;
+        private long slowThresholdNanos;
         private boolean warn;
+        private final AtomicLong lastWarnTime = new AtomicLong(); // 上次输出日志的时间(ms)
+        private final AtomicLong suppressedWarn = new AtomicLong(); // 上次输出日志后被忽略的慢处理个数
+
+        private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS); // 以微秒记录
+        private final Histogram period = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        private Histogram interval;
 
         public TimeSpanStatEntry(String name, int slowThreshold, boolean warn, Logger log) {
             this.name = name;
             this.slowThreshold = slowThreshold;
+            this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThreshold);
             this.log = log;
             this.warn = warn;
         }
@@ -215,78 +332,200 @@ public class TimeSpanStat extends BaseChannelEvent {
             this(name, 1000, true, log);
         }
 
-        public long getTotalCount() {
+        public String getName() {
+            return name;
+        }
 
-            return totalCount.get();
+        public long getTotalCount() {
+            return totalCount.sum();
         }
 
+        /**
+         * 处理总时长(ms)
+         */
         public long getTotalSpan() {
-            return totalSpan.get();
+            return TimeUnit.NANOSECONDS.toMillis(totalSpan.sum());
         }
 
         public long getSlowCount() {
-            return slowCount.get();
+            return slowCount.sum();
         }
 
+        /**
+         * 慢处理总时长(ms)
+         */
         public long getSlowSpan() {
-            return slowSpan.get();
+            return TimeUnit.NANOSECONDS.toMillis(slowSpan.sum());
         }
 
         /**
-         * 提取最大时长
+         * 提取最大时长(ms)
          */
         public long getMaxSpan() {
-            return maxSpan;
+            return TimeUnit.NANOSECONDS.toMillis(maxSpan.get());
+        }
+
+        /**
+         * 返回本周期内指定分位的时长(ms)，精度到微秒
+         */
+        public synchronized double getPercentile(double percentile) {
+            fold();
+            return period.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+        /**
+         * 把Recorder当前区间的数据归并到本周期的直方图，区间直方图循环使用
+         */
+        private void fold() {
+            interval = recorder.getIntervalHistogram(interval);
+            period.add(interval);
+        }
+
+        synchronized void writeSummary(MetricsWriter writer, String family) {
+            fold();
+            writer.summary(family, "phase", name, period, totalSpan.total(), totalCount.total());
         }
 
+        /**
+         * 取出本周期的统计值
+         * @param reset 是否同时开始新的周期
+         */
+        public synchronized TimeSpanStatValue tick(boolean reset) {
+            fold();
+            TimeSpanStatValue value;
+            if (reset) {
+                value = new TimeSpanStatValue(name, slowThreshold, totalCount.sumThenReset(), totalSpan.sumThenReset(),
+                        maxSpan.getAndSet(0), slowCount.sumThenReset(), slowSpan.sumThenReset(), period);
+                period.reset();
+            } else {
+                value = new TimeSpanStatValue(name, slowThreshold, totalCount.sum(), totalSpan.sum(),
+                        maxSpan.get(), slowCount.sum(), slowSpan.sum(), period);
+            }
+            return value;
+        }
+
+        /**
+         * @param end 结束时的System.nanoTime()
+         * @param begin 开始时的System.nanoTime()
+         */
         public void record(long end, long begin, String uri, Object arg) {
-            if (begin <= 0 || end <= 0) {
+            if (begin == 0 || end == 0) {
                 return;
             }
-            totalCount.incrementAndGet();
             long span = end - begin;
-            totalSpan.addAndGet(span);
-            if (span >= slowThreshold) {
-                slowCount.incrementAndGet();
-                slowSpan.addAndGet(span);
+            if (span < 0) {
+                return;
+            }
+            totalCount.increment();
+            totalSpan.add(span);
+            recorder.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(span), HIGHEST_TRACKABLE_MICROS));
+            if (span >= slowThresholdNanos) {
+                slowCount.increment();
+                slowSpan.add(span);
                 if (warn) {
-                    warn(end, begin, uri, arg);
+                    warn(span, uri, arg);
                 }
             }
-            if (span > maxSpan) {
-                maxSpan = span;
-            }
+            ConcurrentUtil.updateMax(maxSpan, span);
+        }
+
+        @Override
+        public String toString() {
+            return tick(false).toString();
         }
 
         /**
-         * 针对不是一次发送的情况
-         * @param incr
-         * @param end
-         * @param begin
-         * @param uri
-         * @param arg
+         * 每个slow_warn_interval最多输出一条日志，避免过载时大量日志加重负担，慢请求的堆栈由SlowRequestSampler采样
          */
-        public void record(long incr, long end, long begin, String uri, Object arg) {
-            if (incr <= 0 || end <= 0 || begin <= 0) {
+        protected void warn(long span, String uri, Object arg) {
+            long now = System.currentTimeMillis();
+            long last = lastWarnTime.get();
+            if (now - last < slow_warn_interval || !lastWarnTime.compareAndSet(last, now)) {
+                suppressedWarn.incrementAndGet();
                 return;
             }
-            long span = end - begin;
-            long lastSpan = span - incr;
-            totalSpan.addAndGet(incr);
-            if (span >= slowThreshold) {
-                if (lastSpan >= slowThreshold) {
-                    slowSpan.addAndGet(incr);
-                    if (warn) {
-                        warn(end, begin, uri, arg);
-                    }
-                } else {
-                    slowSpan.addAndGet(span);
-                    slowCount.incrementAndGet();
-                }
-            }
-            if (span > maxSpan) {
-                maxSpan = span;
-            }
+            log.warn("SLOW_PROCESS FOR {}:{}:{} [{}ms], {} suppressed", uri, name, arg,
+                    TimeUnit.NANOSECONDS.toMillis(span), suppressedWarn.getAndSet(0));
+        }
+
+    }
+
+    /**
+     * 快照中的耗时统计值，时长单位都是ms
+     */
+    public static class TimeSpanStatValue {
+        private String name;
+        private int slowThreshold;
+        private long totalCount;
+        private long totalSpan;
+        private long maxSpan;
+        private long slowCount;
+        private long slowSpan;
+        private double p50;
+        private double p90;
+        private double p99;
+        private double p999;
+
+        public TimeSpanStatValue() {
+        }
+
+        TimeSpanStatValue(String name, int slowThreshold, long totalCount, long totalSpanNanos, long maxSpanNanos,
+                          long slowCount, long slowSpanNanos, Histogram histogram) {
+            this.name = name;
+            this.slowThreshold = slowThreshold;
+            this.totalCount = totalCount;
+            this.totalSpan = TimeUnit.NANOSECONDS.toMillis(totalSpanNanos);
+            this.maxSpan = TimeUnit.NANOSECONDS.toMillis(maxSpanNanos);
+            this.slowCount = slowCount;
+            this.slowSpan = TimeUnit.NANOSECONDS.toMillis(slowSpanNanos);
+            this.p50 = histogram.getValueAtPercentile(50) / 1000.0;
+            this.p90 = histogram.getValueAtPercentile(90) / 1000.0;
+            this.p99 = histogram.getValueAtPercentile(99) / 1000.0;
+            this.p999 = histogram.getValueAtPercentile(99.9) / 1000.0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSlowThreshold() {
+            return slowThreshold;
+        }
+
+        public long getTotalCount() {
+            return totalCount;
+        }
+
+        public long getTotalSpan() {
+            return totalSpan;
+        }
+
+        public long getMaxSpan() {
+            return maxSpan;
+        }
+
+        public long getSlowCount() {
+            return slowCount;
+        }
+
+        public long getSlowSpan() {
+            return slowSpan;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getP999() {
+            return p999;
         }
 
         @Override
@@ -296,26 +535,14 @@ public class TimeSpanStat extends BaseChannelEvent {
                     ", totalCount=" + totalCount +
                     ", totalSpan=" + totalSpan +
                     ", maxSpan=" + maxSpan +
+                    ", p50=" + p50 +
+                    ", p99=" + p99 +
+                    ", p999=" + p999 +
                     ", slowCount=" + slowCount +
                     ", slowSpan=" + slowSpan +
                     ", slowThreshold=" + slowThreshold +
                     '}';
         }
-
-        protected void warn(long end, long begin, String uri, Object arg) {
-            log.warn("SLOW_PROCESS FOR {}:{}:{} [{}ms]\n", uri, new Object[]{
-                    name,
-                    arg,
-                    end - begin
-            });
-
-
-        }
-
-        public boolean isNeedReset() {
-            return totalCount.get() < 0 || totalSpan.get() < 0;
-        }
-
     }
 
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.system;
+
+import cn.wantedonline.puppy.httpserver.annotation.Cmd;
+import cn.wantedonline.puppy.httpserver.stat.MetricsWriter;
+import cn.wantedonline.puppy.spring.annotation.AfterConfig;
+import cn.wantedonline.puppy.spring.annotation.Config;
+import cn.wantedonline.puppy.util.Log;
+import cn.wantedonline.puppy.util.concurrent.ConcurrentUtil;
+import cn.wantedonline.puppy.util.concurrent.StripedCounter;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ *     自适应并发限制，在Cmd分发前做准入控制
+ *     每个统计窗口用Cmd处理耗时(含业务线程池排队)的均值和长期均值比较(梯度算法):
+ *     短期耗时超过长期耗时的concurrencyLimitRttTolerance倍时按比例收缩限制，否则在限制基础上增加sqrt(limit)的排队余量
+ *     CRITICAL级别不受限制，NORMAL在并发达到限制或拒绝服务时拒绝，SHEDDABLE在达到concurrencyLimitSheddableRatio或快要拒绝服务时拒绝
+ *     被拒绝的请求立即返回503和Retry-After
+ * </pre>
+ *
+ * @author wangcheng
+ */
+@Component
+public class ConcurrencyLimiter {
+    private static final Logger log = Log.getLogger(ConcurrencyLimiter.class);
+    private static final double LONG_RTT_DECAY = 0.95; // 长期耗时的指数平滑系数
+    private static final double MIN_GRADIENT = 0.5; // 每个窗口最多收缩一半
+
+    @Config
+    private boolean openConcurrencyLimit = true;
+    @Config
+    private int concurrencyLimitInitial = 200; // 初始并发限制
+    @Config(resetable = true)
+    private int concurrencyLimitMin = 20; // 并发限制下限
+    @Config(resetable = true)
+    private int concurrencyLimitMax = 2000; // 并发限制上限
+    @Config(resetable = true)
+    private int concurrencyLimitWindowMillis = 100; // 统计窗口，单位ms
+    @Config(resetable = true)
+    private int concurrencyLimitMinSamples = 10; // 窗口内样本数少于该值不调整
+    @Config(resetable = true)
+    private double concurrencyLimitRttTolerance = 2.0; // 短期耗时超过长期耗时多少倍开始收缩
+    @Config(resetable = true)
+    private double concurrencyLimitSmoothing = 0.2; // 每次调整向新限制靠近的比例
+    @Config(resetable = true)
+    private double concurrencyLimitSheddableRatio = 0.7; // SHEDDABLE请求可使用的并发比例
+    @Config(resetable = true)
+    private int retryAfterSeconds = 1; // 拒绝时Retry-After响应头的秒数
+
+    private final AtomicInteger inflight = new AtomicInteger();
+    private volatile int limit;
+    private double estimatedLimit; // 只在update中访问
+    private double longRtt; // 长期平均耗时(ns)，只在update中访问
+
+    // 当前窗口
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final StripedCounter windowRtt = new StripedCounter();
+    private final StripedCounter windowSamples = new StripedCounter();
+    private final AtomicLong windowMaxInflight = new AtomicLong();
+
+    private final StripedCounter[] rejectedByLimit = newCounters();
+    private final StripedCounter[] rejectedByOverload = newCounters();
+
+    private static StripedCounter[] newCounters() {
+        StripedCounter[] counters = new StripedCounter[Cmd.Priority.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new StripedCounter();
+        }
+        return counters;
+    }
+
+    @AfterConfig
+    public synchronized void reset() {
+        if (estimatedLimit == 0) {
+            estimatedLimit = concurrencyLimitInitial;
+        }
+        estimatedLimit = Math.max(concurrencyLimitMin, Math.min(concurrencyLimitMax, estimatedLimit));
+        limit = (int) estimatedLimit;
+        log.info("ConcurrencyLimiter {}, limit:{}, min:{}, max:{}", openConcurrencyLimit ? "ON" : "OFF", limit, concurrencyLimitMin, concurrencyLimitMax);
+    }
+
+    /**
+     * 尝试占用一个并发名额，返回true时处理结束后必须调用release
+     */
+    public boolean tryAcquire(Cmd.Priority priority) {
+        if (!openConcurrencyLimit) {
+            return true;
+        }
+        if (priority != Cmd.Priority.CRITICAL) {
+            if (SystemChecker.isDenialOfService() || priority == Cmd.Priority.SHEDDABLE && SystemChecker.isDenialOfServiceAlmost()) {
+                rejectedByOverload[priority.ordinal()].increment();
+                return false;
+            }
+            int max = priority == Cmd.Priority.SHEDDABLE ? (int) (limit * concurrencyLimitSheddableRatio) : limit;
+            int current;
+            do {
+                current = inflight.get();
+                if (current >= max) {
+                    rejectedByLimit[priority.ordinal()].increment();
+                    return false;
+                }
+            } while (!inflight.compareAndSet(current, current + 1));
+            ConcurrentUtil.updateMax(windowMaxInflight, current + 1);
+        } else {
+            ConcurrentUtil.updateMax(windowMaxInflight, inflight.incrementAndGet());
+        }
+        return true;
+    }
+
+    /**
+     * 释放并发名额
+     * @param rtt 处理耗时(ns)，小于0表示没有处理(如业务线程池拒绝)，不计入样本
+     */
+    public void release(long rtt) {
+        if (!openConcurrencyLimit) {
+            return;
+        }
+        inflight.decrementAndGet();
+        if (rtt >= 0) {
+            windowRtt.add(rtt);
+            windowSamples.increment();
+        }
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= TimeUnit.MILLISECONDS.toNanos(concurrencyLimitWindowMillis) && windowStart.compareAndSet(start, now)) {
+            update();
+        }
+    }
+
+    private synchronized void update() {
+        long samples = windowSamples.sumThenReset();
+        long rttSum = windowRtt.sumThenReset();
+        long maxInflight = windowMaxInflight.getAndSet(inflight.get());
+        if (samples < concurrencyLimitMinSamples) {
+            //样本太少，放回下个窗口继续累计
+            windowSamples.add(samples);
+            windowRtt.add(rttSum);
+            return;
+        }
+        double shortRtt = (double) rttSum / samples;
+        longRtt = longRtt == 0 ? shortRtt : longRtt * LONG_RTT_DECAY + shortRtt * (1 - LONG_RTT_DECAY);
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, concurrencyLimitRttTolerance * longRtt / shortRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        if (newLimit > estimatedLimit && maxInflight < estimatedLimit / 2) {
+            //并发远没有用满，没有依据继续放大
+            newLimit = estimatedLimit;
+        }
+        newLimit = estimatedLimit * (1 - concurrencyLimitSmoothing) + newLimit * concurrencyLimitSmoothing;
+        estimatedLimit = Math.max(concurrencyLimitMin, Math.min(concurrencyLimitMax, newLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public long getRejectedByLimit(Cmd.Priority priority) {
+        return rejectedByLimit[priority.ordinal()].total();
+    }
+
+    public long getRejectedByOverload(Cmd.Priority priority) {
+        return rejectedByOverload[priority.ordinal()].total();
+    }
+
+    public void writeMetrics(MetricsWriter writer) {
+        writer.family("puppy_concurrency_limit", "gauge", "Adaptive concurrency limit for Cmd dispatch.");
+        writer.name("puppy_concurrency_limit").value(limit);
+        writer.family("puppy_concurrency_inflight", "gauge", "Cmds currently admitted by the concurrency limiter.");
+        writer.name("puppy_concurrency_inflight").value(inflight.get());
+        writer.family("puppy_concurrency_rejected", "counter", "Requests shed with 503 by the concurrency limiter.");
+        for (Cmd.Priority priority : Cmd.Priority.values()) {
+            writer.name("puppy_concurrency_rejected_total").label("priority", priority.name()).label("reason", "limit").value(getRejectedByLimit(priority));
+            writer.name("puppy_concurrency_rejected_total").label("priority", priority.name()).label("reason", "overload").value(getRejectedByOverload(priority));
+        }
+    }
+}
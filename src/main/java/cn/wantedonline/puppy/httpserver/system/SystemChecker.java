@@ -24,7 +24,6 @@ import cn.wantedonline.puppy.spring.annotation.AfterBootstrap;
 import cn.wantedonline.puppy.spring.annotation.Config;
 import cn.wantedonline.puppy.util.Log;
 import cn.wantedonline.puppy.util.concurrent.ConcurrentUtil;
-import io.netty.channel.nio.NioEventLoopGroup;
 import org.slf4j.Logger;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -48,7 +47,7 @@ public class SystemChecker {
     @Autowired
     protected HttpServerConfig config;
     private static volatile boolean denialOfService = false;
-    /** 快要接近denialOfService了,进一步退化,参数是: threadPoolQueueCountLimit - 500 */
+    /** 快要接近denialOfService了,进一步退化,参数是: eventLoopLagWarnMillis */
     private static volatile boolean denialOfServiceAlmost = false;
     /** 系统最重要的线程池的监控，要很实时 */
     @Config
@@ -83,91 +82,48 @@ public class SystemChecker {
     /** 为了防止启动时候突然飙高而报，启动时候第一次不报，可以防止服务器启动时突然的堆积日志把服务器搞崩溃 */
     private static volatile boolean logExceededFirstTime = true;
 
-    /** 线程池允许等待的线程数 */
+    /** EventLoop探测延迟超过该值认为接近饱和，单位ms */
     @Config(resetable = true)
-    private int threadPoolQueueCountLimit = 30000;
+    private int eventLoopLagWarnMillis = 200;
+    /** EventLoop探测延迟连续超过该值认为拒绝服务，单位ms */
+    @Config(resetable = true)
+    private int eventLoopLagErrorMillis = 1000;
 
     @AfterBootstrap
     protected void init() {
         SystemMonitor.initGarbageCollectMonitor(gcMonitorSec);
         SystemMonitor.initLoadAverageMonitor(loadMonitorSec);
         SystemMonitor.initThreadCpuTimeMonitor(threadCpuTimeMonitorSec);
-        SystemMonitor.initThreadPoolMonitor(threadMonitorSec, threadMonitorQueueThreshold);
+        SystemMonitor.initThreadPoolMonitor(threadMonitorSec, threadMonitorQueueThreshold, config.getBizExecutor());
         initDenialOfServiceMonitor();
         initLogMonitor();
     }
 
     public void initDenialOfServiceMonitor() {
         if (dosMonitorCheckSec > 0) {
-            log.info("DenialOfServiceMonitor ON, interval:{}sec, Worker EventLoop Size:{}", dosMonitorCheckSec, config.getWorkerEventLoopGroup().executorCount());
+            log.info("DenialOfServiceMonitor ON, interval:{}sec, Worker EventLoop Size:{}, eventLoopLagWarn:{}ms, eventLoopLagError:{}ms",
+                    dosMonitorCheckSec, config.getWorkerCount(), eventLoopLagWarnMillis, eventLoopLagErrorMillis);
             ConcurrentUtil.getWatchdog().scheduleWithFixedDelay(new Runnable() {
 
                 /**
-                 * check denialOfServiceAlmost
-                 */
-                private boolean check2(NioEventLoopGroup workerEventLoop) {
-                    int _threadPoolQueueCountLimit = threadPoolQueueCountLimit - 500;// 几乎要拒绝服务的等待队列阀值
-                    //TODO:如何实现DOS防范
-                    /*
-                    int activeCount = executor.getActiveCount();
-                    int queueCount = executor.getQueue().size(); // 等待队列的大小
-                    int largestPoolSize = executor.getLargestPoolSize();
-                    int atLeastReamin = largestPoolSize <= HttpServerConfig.PROCESSOR_NUM ? 1 : HttpServerConfig.PROCESSOR_NUM; // 最少要剩余的空闲线程数
-                    if (activeCount > 0 && activeCount + atLeastReamin >= largestPoolSize) {
-                        ConcurrentUtil.threadSleep(2000); // 小小暂停一下，防止是那种突然一下子冲过来的情况而报DOS
-                        activeCount = executor.getActiveCount();
-                        int currQueueCount = executor.getQueue().size(); // 等待队列的大小，如果持续增大，就说明肯定有问题，需要DOS
-                        if (activeCount > 0 && activeCount + atLeastReamin >= largestPoolSize && currQueueCount > queueCount && currQueueCount > _threadPoolQueueCountLimit) {
-                            denialOfServiceAlmost = true;
-                            return true;
-                        }
-                    }
-                    */
-                    return false;
-                }
-
-                /**
-                 * check denialOfService
+                 * 以EventLoop探测任务的延迟作为饱和信号:一个间隔内最大延迟超过阈值，说明EventLoop忙不过来或任务队列积压
+                 * 连续两个间隔超过error阈值才判定为拒绝服务，防止偶发的GC停顿或突发请求误报
                  */
-                private boolean check(NioEventLoopGroup workerEventLoop) {
-                    /*
-                    int activeCount = executor.getActiveCount();
-                    int queueCount = executor.getQueue().size(); // 等待队列的大小
-                    int largestPoolSize = executor.getLargestPoolSize();
-                    int atLeastReamin = largestPoolSize <= HttpServerConfig.PROCESSOR_NUM ? 1 : HttpServerConfig.PROCESSOR_NUM; // 最少要剩余的空闲线程数
-                    if (activeCount > 0 && activeCount + atLeastReamin >= largestPoolSize) {
-                        String pipelineInfo = SystemInfo.getThreadsDetailInfo("PIPELINE", true, 20); // 先打印好
-                        ConcurrentUtil.threadSleep(2000); // 小小暂停一下，防止是那种突然一下子冲过来的情况而报DOS
-                        activeCount = executor.getActiveCount();
-                        int currQueueCount = executor.getQueue().size(); // 等待队列的大小，如果持续增大，就说明肯定有问题，需要DOS
-                        if (activeCount > 0 && activeCount + atLeastReamin >= largestPoolSize && currQueueCount > queueCount && currQueueCount > threadPoolQueueCountLimit) { // 打印好了，线程池仍然大量占用，就发出报警邮件
-                            if (!lastTestDenialOfService) {
-                                MDC.put("mailTitle", "DenialOfService");
-                                log.error("DENIAL OF SERVICE, ACTIVE_SIZE:{}, WAITTING_QUEUE_SIZE:{}, RUNNING PIPELINE:\n{}\n\n", activeCount, currQueueCount, pipelineInfo);
-                            }
-                            denialOfService = true;
-                            lastTestDenialOfService = true;
-                            denialOfServiceAlmost = true;
-                            return true;
-                        }
-                    }
-                    */
-                    return false;
-                }
-
                 @Override
                 public void run() {
-                    boolean r = check(config.getWorkerEventLoopGroup());
-                    boolean r1 = check(config.getWorkerEventLoopGroup());
-                    if (!r && !r1) {
+                    long lag = config.nioWorkerStat.drainMaxLoopLagMillis();
+                    if (lag >= eventLoopLagErrorMillis) {
+                        if (lastTestDenialOfService && !denialOfService) {
+                            MDC.put("mailTitle", "DenialOfService");
+                            log.error("DENIAL OF SERVICE, EVENTLOOP LAG:{}ms, WORKERS:\n{}\n\n", lag, config.nioWorkerStat.statNioWorkers());
+                            denialOfService = true;
+                        }
+                        lastTestDenialOfService = true;
+                        denialOfServiceAlmost = true;
+                    } else {
                         denialOfService = false;
                         lastTestDenialOfService = false;
-                    }
-
-                    boolean r2 = check2(config.getWorkerEventLoopGroup());
-                    boolean r21 = check2(config.getWorkerEventLoopGroup());
-                    if (!r2 && !r21) {
-                        denialOfServiceAlmost = false;
+                        denialOfServiceAlmost = lag >= eventLoopLagWarnMillis;
                     }
                 }
             }, dosMonitorCheckSec * 5, dosMonitorCheckSec, TimeUnit.SECONDS);// httpServer刚启动时，很有可能很多请求冲进来，先不拒绝服务，所以暂定5s后再开始定时
@@ -224,7 +180,7 @@ public class SystemChecker {
     }
 
     /**
-     * 快要接近denialOfService了,进一步退化,参数是: threadPoolQueueCountLimit - 500
+     * 快要接近denialOfService了,进一步退化,参数是: eventLoopLagWarnMillis
      */
     public static boolean isDenialOfServiceAlmost() {
         return denialOfServiceAlmost;
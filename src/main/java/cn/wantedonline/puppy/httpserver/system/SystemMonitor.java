@@ -18,6 +18,8 @@ package cn.wantedonline.puppy.httpserver.system;
 
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
@@ -33,6 +35,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import cn.wantedonline.puppy.httpserver.stat.MetricsWriter;
 import cn.wantedonline.puppy.util.AssertUtil;
 import cn.wantedonline.puppy.util.HumanReadableUtil;
 import cn.wantedonline.puppy.util.Log;
@@ -337,4 +340,38 @@ public class SystemMonitor {
         return mx.getSystemLoadAverage();
     }
 
+    /**
+     * 输出JVM及系统负载相关的监控指标
+     */
+    public static void writeMetrics(MetricsWriter writer) {
+        writer.family("puppy_system_load_average", "gauge", "System load average for the last minute.");
+        writer.name("puppy_system_load_average").value(getLoadAverage());
+        writer.family("puppy_system_load_high", "gauge", "1 if the load monitor considers the system overloaded.");
+        writer.name("puppy_system_load_high").value(loadAverageHigh ? 1 : 0);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+        writer.family("puppy_jvm_memory_used_bytes", "gauge", "Used JVM memory.");
+        writer.name("puppy_jvm_memory_used_bytes").label("area", "heap").value(heap.getUsed());
+        writer.name("puppy_jvm_memory_used_bytes").label("area", "nonheap").value(nonHeap.getUsed());
+        writer.family("puppy_jvm_memory_max_bytes", "gauge", "Max JVM memory, -1 if undefined.");
+        writer.name("puppy_jvm_memory_max_bytes").label("area", "heap").value(heap.getMax());
+        writer.name("puppy_jvm_memory_max_bytes").label("area", "nonheap").value(nonHeap.getMax());
+
+        List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+        writer.family("puppy_jvm_gc_collections", "counter", "GC collections per collector.");
+        for (GarbageCollectorMXBean gc : gcs) {
+            writer.name("puppy_jvm_gc_collections_total").label("gc", gc.getName()).value(gc.getCollectionCount());
+        }
+        writer.family("puppy_jvm_gc_collection_seconds", "counter", "GC time per collector.");
+        for (GarbageCollectorMXBean gc : gcs) {
+            writer.name("puppy_jvm_gc_collection_seconds_total").label("gc", gc.getName()).value(gc.getCollectionTime(), 3);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        writer.family("puppy_jvm_threads", "gauge", "Live JVM threads.");
+        writer.name("puppy_jvm_threads").value(threads.getThreadCount());
+    }
+
 }
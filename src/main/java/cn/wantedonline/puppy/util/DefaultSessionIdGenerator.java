@@ -24,45 +24,32 @@ package cn.wantedonline.puppy.util;
  */
 public class DefaultSessionIdGenerator extends SessionIdGeneratorBase {
 
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
     @Override
     public String generateSessionId(String route) {
 
-        byte random[] = new byte[16];
         int sessionIdLength = getSessionIdLength();
+        byte random[] = new byte[sessionIdLength];
+        getRandomBytes(random);
 
-        // Render the result as a String of hexadecimal digits
-        // Start with enough space for sessionIdLength and medium route size
-        StringBuilder buffer = new StringBuilder(2 * sessionIdLength + 20);
-
-        int resultLenBytes = 0;
-
-        while (resultLenBytes < sessionIdLength) {
-            getRandomBytes(random);
-            for (int j = 0; j < random.length && resultLenBytes < sessionIdLength; j++) {
-                byte b1 = (byte) ((random[j] & 0xf0) >> 4);
-                byte b2 = (byte) (random[j] & 0x0f);
-                if (b1 < 10)
-                    buffer.append((char) ('0' + b1));
-                else
-                    buffer.append((char) ('A' + (b1 - 10)));
-                if (b2 < 10)
-                    buffer.append((char) ('0' + b2));
-                else
-                    buffer.append((char) ('A' + (b2 - 10)));
-                resultLenBytes++;
-            }
+        if (route == null || route.length() == 0) {
+            route = getJvmRoute();
         }
+        int routeLength = (route != null && route.length() > 0) ? route.length() + 1 : 0;
 
-        if (route != null && route.length() > 0) {
-            buffer.append('.').append(route);
-        } else {
-            String jvmRoute = getJvmRoute();
-            if (jvmRoute != null && jvmRoute.length() > 0) {
-                buffer.append('.').append(jvmRoute);
-            }
+        // Render the result as a String of hexadecimal digits
+        char[] id = new char[2 * sessionIdLength + routeLength];
+        for (int i = 0; i < sessionIdLength; i++) {
+            id[2 * i] = HEX[(random[i] & 0xf0) >> 4];
+            id[2 * i + 1] = HEX[random[i] & 0x0f];
+        }
+        if (routeLength > 0) {
+            id[2 * sessionIdLength] = '.';
+            route.getChars(0, route.length(), id, 2 * sessionIdLength + 1);
         }
 
-        return buffer.toString();
+        return new String(id);
     }
 
 }
@@ -21,8 +21,7 @@ import org.slf4j.Logger;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Arrays;
 
 public abstract class SessionIdGeneratorBase implements SessionIdGenerator {
 
@@ -30,13 +29,22 @@ public abstract class SessionIdGeneratorBase implements SessionIdGenerator {
 
 
     /**
-     * Queue of random number generator objects to be used when creating session
-     * identifiers. If the queue is empty when a random number generator is
-     * required, a new random number generator object is created. This is
-     * designed this way since random number generators use a sync to make them
-     * thread-safe and the sync makes using a a single object slow(er).
+     * Size of the per-thread buffer of random bytes, refilled from the
+     * thread's own random number generator in one call.
      */
-    private final Queue<SecureRandom> randoms = new ConcurrentLinkedQueue<SecureRandom>();
+    private static final int RANDOM_POOL_SIZE = 1024;
+
+    /**
+     * Random number generator and prefetched random bytes of each thread,
+     * generating a session identifier needs no synchronization and the
+     * generator is only entered once per RANDOM_POOL_SIZE bytes.
+     */
+    private final ThreadLocal<RandomPool> randoms = new ThreadLocal<RandomPool>() {
+        @Override
+        protected RandomPool initialValue() {
+            return new RandomPool(createSecureRandom());
+        }
+    };
 
 
     /**
@@ -159,13 +167,7 @@ public abstract class SessionIdGeneratorBase implements SessionIdGenerator {
     }
 
     protected void getRandomBytes(byte bytes[]) {
-
-        SecureRandom random = randoms.poll();
-        if (random == null) {
-            random = createSecureRandom();
-        }
-        random.nextBytes(bytes);
-        randoms.add(random);
+        randoms.get().nextBytes(bytes);
     }
 
 
@@ -233,4 +235,31 @@ public abstract class SessionIdGeneratorBase implements SessionIdGenerator {
         return result;
     }
 
+
+    private static final class RandomPool {
+        private final SecureRandom random;
+        private final byte[] pool = new byte[RANDOM_POOL_SIZE];
+        private int position = RANDOM_POOL_SIZE;
+
+        private RandomPool(SecureRandom random) {
+            this.random = random;
+        }
+
+        private void nextBytes(byte[] bytes) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (position == pool.length) {
+                    random.nextBytes(pool);
+                    position = 0;
+                }
+                int n = Math.min(bytes.length - offset, pool.length - position);
+                System.arraycopy(pool, position, bytes, offset, n);
+                // bytes handed out are not kept in the pool
+                Arrays.fill(pool, position, position + n, (byte) 0);
+                position += n;
+                offset += n;
+            }
+        }
+    }
+
 }
@@ -235,5 +235,17 @@ public class ConcurrentUtil {
         return null;
     }
 
+    /**
+     * CAS更新最大值，只有超过当前值时才写，读多写少不会频繁使缓存行失效
+     */
+    public static void updateMax(AtomicLong max, long value) {
+        long cur;
+        while (value > (cur = max.get())) {
+            if (max.compareAndSet(cur, value)) {
+                return;
+            }
+        }
+    }
+
     private ConcurrentUtil(){}
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package cn.wantedonline.puppy.util.concurrent;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <pre>
+ *     分段计数器，用于统计这类写多读少的场景
+ *     每个线程固定使用一个cell，cell之间填充到128字节，避免多个EventLoop线程在同一缓存行上竞争
+ *     sumThenReset对每个cell做getAndSet(0)，并发的累加要么计入本次结果，要么留到下一次，不会丢失
+ *     累加是无锁的，sumThenReset和total之间互斥，保证total不会回退
+ * </pre>
+ *
+ * @author wangcheng
+ */
+public final class StripedCounter {
+    private static final int PAD = 16; // 16个long，128字节，同时避开相邻缓存行预取
+    private static final int MAX_STRIPES = 64;
+    private static final int STRIPES = stripes();
+    private static final int MASK = STRIPES - 1;
+
+    private static final AtomicInteger nextIndex = new AtomicInteger();
+    private static final FastThreadLocal<Integer> threadIndex = new FastThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() throws Exception {
+            return nextIndex.getAndIncrement() & MASK;
+        }
+    };
+
+    // 首尾各留一段填充，第i个cell位于(i + 1) * PAD
+    private final AtomicLongArray cells = new AtomicLongArray((STRIPES + 2) * PAD);
+    private long drained; // 已经被sumThenReset取走的累计值
+
+    private static int stripes() {
+        int n = 1;
+        while (n < ConcurrentUtil.CORE_PROCESSOR_NUM * 2 && n < MAX_STRIPES) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    public void add(long x) {
+        cells.getAndAdd((threadIndex.get() + 1) * PAD, x);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 1; i <= STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    /**
+     * 取出当前的和并清零，清零的部分计入total
+     */
+    public synchronized long sumThenReset() {
+        long sum = 0;
+        for (int i = 1; i <= STRIPES; i++) {
+            sum += cells.getAndSet(i * PAD, 0);
+        }
+        drained += sum;
+        return sum;
+    }
+
+    /**
+     * 创建以来的累计值，不受sumThenReset影响，单调递增，用于对外暴露counter类型的指标
+     */
+    public synchronized long total() {
+        return drained + sum();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.benchmark;
+
+import cn.wantedonline.puppy.util.DefaultSessionIdGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <pre>
+ *     多线程并发生成SessionId的吞吐(个/秒)
+ *     sharedQueue是原来的做法:所有线程共用一个SecureRandom队列，每个Id都要出队、入队一次
+ *     defaultGenerator是现在的DefaultSessionIdGenerator:每个线程一个SecureRandom，随机字节按1KB批量预取
+ *     main方法依次用1,2,4,8,16,32个线程运行，线程数超过CPU核数时结果没有参考意义
+ * </pre>
+ *
+ * @author wangcheng
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionIdGeneratorBenchmark {
+    private static final int SESSION_ID_LENGTH = 16;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final DefaultSessionIdGenerator generator = new DefaultSessionIdGenerator();
+    private final Queue<SecureRandom> randoms = new ConcurrentLinkedQueue<SecureRandom>();
+
+    @Setup
+    public void setup() {
+        generator.setSessionIdLength(SESSION_ID_LENGTH);
+        generator.setJvmRoute("node1");
+    }
+
+    @Benchmark
+    public String defaultGenerator() {
+        return generator.generateSessionId();
+    }
+
+    @Benchmark
+    public String sharedQueue() throws NoSuchAlgorithmException {
+        byte[] bytes = new byte[SESSION_ID_LENGTH];
+        SecureRandom random = randoms.poll();
+        if (random == null) {
+            random = SecureRandom.getInstance("SHA1PRNG");
+        }
+        random.nextBytes(bytes);
+        randoms.add(random);
+        StringBuilder id = new StringBuilder(2 * SESSION_ID_LENGTH + 6);
+        for (byte b : bytes) {
+            id.append(HEX[(b & 0xf0) >> 4]).append(HEX[b & 0x0f]);
+        }
+        return id.append(".node1").toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32}) {
+            Options opt = new OptionsBuilder()
+                    .include(SessionIdGeneratorBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
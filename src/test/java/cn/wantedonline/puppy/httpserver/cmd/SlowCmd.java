@@ -0,0 +1,38 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.cmd;
+
+import cn.wantedonline.puppy.httpserver.annotation.Cmd;
+import cn.wantedonline.puppy.httpserver.annotation.CmdDescr;
+import cn.wantedonline.puppy.httpserver.common.BaseCmd;
+import cn.wantedonline.puppy.httpserver.component.HttpRequest;
+import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+import org.springframework.stereotype.Service;
+
+/**
+ * 测试用：在业务线程里执行较长时间的Cmd
+ */
+@Service
+@CmdDescr("慢请求")
+public class SlowCmd implements BaseCmd {
+
+    @Cmd(value = "睡眠millis毫秒后返回", offload = true)
+    public Object sleep(HttpRequest request, HttpResponse response) throws Exception {
+        Thread.sleep(request.getParameterLong("millis"));
+        return "done";
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.cmd;
+
+import cn.wantedonline.puppy.httpserver.annotation.Cmd;
+import cn.wantedonline.puppy.httpserver.annotation.CmdDescr;
+import cn.wantedonline.puppy.httpserver.common.StreamingCmd;
+import cn.wantedonline.puppy.httpserver.component.HttpRequest;
+import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import org.springframework.stereotype.Service;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * 测试用：自己消费请求体的流式Cmd，返回收到的字节数
+ */
+@Service
+@CmdDescr("流式计数")
+public class StreamCountCmd implements StreamingCmd {
+    //回调和@Cmd方法都在请求所在的EventLoop上执行
+    private final Map<HttpRequest, long[]> counts = new IdentityHashMap<>();
+
+    @Override
+    public synchronized void contentReceived(HttpRequest request, HttpContent content) {
+        long[] count = counts.get(request);
+        if (count == null) {
+            count = new long[1];
+            counts.put(request, count);
+        }
+        count[0] += content.content().readableBytes();
+    }
+
+    @Cmd(value = "返回收到的请求体字节数", streaming = true)
+    public synchronized Object count(HttpRequest request, HttpResponse response) {
+        long[] count = counts.remove(request);
+        return String.valueOf(count == null ? 0 : count[0]);
+    }
+}
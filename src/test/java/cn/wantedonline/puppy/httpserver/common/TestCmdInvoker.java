@@ -0,0 +1,65 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.common;
+
+import cn.wantedonline.puppy.httpserver.component.HttpRequest;
+import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class TestCmdInvoker {
+
+    public static class EchoCmd implements BaseCmd {
+        public Object echo(HttpRequest request, HttpResponse response) {
+            return "echo";
+        }
+
+        public int count(HttpRequest request, HttpResponse response) {
+            return 3;
+        }
+
+        public void nothing(HttpRequest request, HttpResponse response) {
+        }
+
+        public Object fail(HttpRequest request, HttpResponse response) throws IOException {
+            throw new IOException("fail");
+        }
+    }
+
+    private CmdInvoker bind(String name) throws Exception {
+        return CmdInvoker.bind(new EchoCmd(), EchoCmd.class.getMethod(name, HttpRequest.class, HttpResponse.class));
+    }
+
+    @Test
+    public void testReturnValues() throws Throwable {
+        Assert.assertEquals("echo", bind("echo").invoke(null, null));
+        Assert.assertEquals(3, bind("count").invoke(null, null));
+        Assert.assertNull(bind("nothing").invoke(null, null));
+    }
+
+    @Test
+    public void testExceptionIsUnwrapped() throws Throwable {
+        try {
+            bind("fail").invoke(null, null);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("fail", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.common;
+
+import cn.wantedonline.puppy.httpserver.component.HttpRequest;
+import cn.wantedonline.puppy.httpserver.component.HttpResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestCmdRouter {
+
+    public static class RouteCmd implements BaseCmd {
+        public Object a(HttpRequest request, HttpResponse response) {
+            return null;
+        }
+
+        public Object b(HttpRequest request, HttpResponse response) {
+            return null;
+        }
+
+        public Object c(HttpRequest request, HttpResponse response) {
+            return null;
+        }
+
+        public Object d(HttpRequest request, HttpResponse response) {
+            return null;
+        }
+    }
+
+    private static final RouteCmd CMD = new RouteCmd();
+    private static final CmdMappers.CmdMeta A = meta("a");
+    private static final CmdMappers.CmdMeta B = meta("b");
+    private static final CmdMappers.CmdMeta C = meta("c");
+    private static final CmdMappers.CmdMeta D = meta("d");
+
+    private static CmdMappers.CmdMeta meta(String name) {
+        try {
+            return new CmdMappers.CmdMeta(CMD, RouteCmd.class.getMethod(name, HttpRequest.class, HttpResponse.class));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static CmdMappers.CmdMeta meta(CmdRouter router, String uri) {
+        CmdRouter.Route route = router.match(uri);
+        return route == null ? null : route.getMeta();
+    }
+
+    private static Map<String, String> params(String... kv) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < kv.length; i += 2) {
+            map.put(kv[i], kv[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void testStaticRoutesAndNodeSplit() {
+        CmdRouter router = CmdRouter.builder()
+                .add("/user/info", A)
+                .add("/user/index", B)
+                .add("/user", C)
+                .add("/u", D)
+                .build();
+        Assert.assertEquals(4, router.size());
+        Assert.assertSame(A, meta(router, "/user/info"));
+        Assert.assertSame(B, meta(router, "/user/index"));
+        Assert.assertSame(C, meta(router, "/user"));
+        Assert.assertSame(D, meta(router, "/u"));
+        Assert.assertNull(meta(router, "/us"));
+        Assert.assertNull(meta(router, "/user/in"));
+        Assert.assertNull(meta(router, "/user/infox"));
+        Assert.assertNull(meta(router, "/"));
+        Assert.assertSame(Collections.emptyMap(), router.match("/user/info").getPathParameters());
+    }
+
+    @Test
+    public void testLaterRouteOverridesEarlier() {
+        CmdRouter router = CmdRouter.builder().add("/a", A).add("/a", B).add("*.do", A).add("*.do", B).build();
+        Assert.assertEquals(2, router.size());
+        Assert.assertSame(B, meta(router, "/a"));
+        Assert.assertSame(B, meta(router, "/x.do"));
+    }
+
+    @Test
+    public void testQueryStringTrailingSlashAndAbsoluteForm() {
+        CmdRouter router = CmdRouter.builder().add("/user/info", A).add("/", B).build();
+        Assert.assertSame(A, meta(router, "/user/info?id=1&next=/other"));
+        Assert.assertSame(A, meta(router, "/user/info#top"));
+        Assert.assertSame(A, meta(router, "/user/info/"));
+        Assert.assertSame(A, meta(router, "/user/info/?id=1"));
+        Assert.assertSame(A, meta(router, "http://example.com:8080/user/info?id=1"));
+        Assert.assertSame(B, meta(router, "http://example.com"));
+        Assert.assertSame(B, meta(router, "/"));
+        Assert.assertSame(B, meta(router, "/?a=b"));
+        //查询串中的://不是absolute-form
+        Assert.assertSame(B, meta(router, "/?next=http://example.com"));
+    }
+
+    @Test
+    public void testPathParameters() {
+        CmdRouter router = CmdRouter.builder()
+                .add("/user/{id}", A)
+                .add("/user/{id}/order/{orderId}", B)
+                .build();
+        CmdRouter.Route route = router.match("/user/42");
+        Assert.assertSame(A, route.getMeta());
+        Assert.assertEquals("/user/{id}", route.getPattern());
+        Assert.assertEquals(params("id", "42"), route.getPathParameters());
+        route = router.match("/user/42/order/7?x=1");
+        Assert.assertSame(B, route.getMeta());
+        Assert.assertEquals(params("id", "42", "orderId", "7"), route.getPathParameters());
+        Assert.assertNull(router.match("/user/"));
+        Assert.assertNull(router.match("/user//order/7"));
+        Assert.assertNull(router.match("/user/42/order"));
+    }
+
+    @Test
+    public void testStaticRouteBeforeParameter() {
+        CmdRouter router = CmdRouter.builder()
+                .add("/user/{id}", A)
+                .add("/user/me", B)
+                .build();
+        Assert.assertSame(B, meta(router, "/user/me"));
+        Assert.assertTrue(router.match("/user/me").getPathParameters().isEmpty());
+        Assert.assertSame(A, meta(router, "/user/mee"));
+        Assert.assertSame(A, meta(router, "/user/m"));
+        Assert.assertEquals(params("id", "mee"), router.match("/user/mee").getPathParameters());
+    }
+
+    @Test
+    public void testBacktracking() {
+        CmdRouter router = CmdRouter.builder()
+                .add("/user/me/profile", A)
+                .add("/user/{id}/orders", B)
+                .add("/user/{id}/{tab}/detail", C)
+                .add("/user/*", D)
+                .build();
+        //静态分支/user/me走不通时回退到参数分支
+        Assert.assertSame(A, meta(router, "/user/me/profile"));
+        Assert.assertSame(B, meta(router, "/user/me/orders"));
+        Assert.assertEquals(params("id", "me"), router.match("/user/me/orders").getPathParameters());
+        //参数分支在更深处失败时回退到同一层的其他参数分支，再回退到前缀路由
+        Assert.assertSame(C, meta(router, "/user/7/orders/detail"));
+        Assert.assertEquals(params("id", "7", "tab", "orders"), router.match("/user/7/orders/detail").getPathParameters());
+        Assert.assertSame(D, meta(router, "/user/7/orders/other"));
+        Assert.assertTrue(router.match("/user/7/orders/other").getPathParameters().isEmpty());
+        Assert.assertSame(D, meta(router, "/user/me/profile/more"));
+    }
+
+    @Test
+    public void testPrefixRoutes() {
+        CmdRouter router = CmdRouter.builder()
+                .add("/*", A)
+                .add("/static/*", B)
+                .add("/static/img/*", C)
+                .add("/user/{id}/*", D)
+                .build();
+        Assert.assertSame(A, meta(router, "/"));
+        Assert.assertSame(A, meta(router, "/anything/else"));
+        Assert.assertSame(B, meta(router, "/static"));
+        Assert.assertSame(B, meta(router, "/static/"));
+        Assert.assertSame(B, meta(router, "/static/css/a.css"));
+        //最长前缀优先
+        Assert.assertSame(C, meta(router, "/static/img/a.png"));
+        Assert.assertSame(C, meta(router, "/static/img"));
+        //前缀必须在路径段边界上
+        Assert.assertSame(A, meta(router, "/staticx"));
+        Assert.assertSame(B, meta(router, "/static/imgx"));
+        CmdRouter.Route route = router.match("/user/3/a/b");
+        Assert.assertSame(D, route.getMeta());
+        Assert.assertEquals(params("id", "3"), route.getPathParameters());
+        Assert.assertEquals(params("id", "3"), router.match("/user/3").getPathParameters());
+    }
+
+    @Test
+    public void testSuffixRoutes() {
+        CmdRouter router = CmdRouter.builder()
+                .add("*.do", A)
+                .add("*.tar.gz", B)
+                .add("*.gz", C)
+                .add("/exact.do", D)
+                .build();
+        Assert.assertSame(A, meta(router, "/a/b.do"));
+        Assert.assertSame(A, meta(router, "/a/b.do?x=1"));
+        //最长的后缀优先
+        Assert.assertSame(B, meta(router, "/a.tar.gz"));
+        Assert.assertSame(C, meta(router, "/a.gz"));
+        //后缀优先级最低
+        Assert.assertSame(D, meta(router, "/exact.do"));
+        Assert.assertNull(meta(router, "/a/bdo"));
+        Assert.assertNull(meta(router, "/a.dox"));
+    }
+
+    @Test
+    public void testSuffixAfterPrefixFails() {
+        CmdRouter router = CmdRouter.builder().add("/static/*", A).add("*.do", B).build();
+        Assert.assertSame(A, meta(router, "/static/a.do"));
+        Assert.assertSame(B, meta(router, "/other/a.do"));
+    }
+
+    @Test
+    public void testPercentEncodedUri() {
+        CmdRouter router = CmdRouter.builder()
+                .add("/user info", A)
+                .add("/a+b", B)
+                .add("/file/{name}", C)
+                .build();
+        Assert.assertSame(A, meta(router, "/user%20info"));
+        Assert.assertSame(A, meta(router, "/user%20info/?q=%20"));
+        //路径中的+不是空格
+        Assert.assertSame(B, meta(router, "/a+b"));
+        Assert.assertSame(B, meta(router, "/a%2Bb"));
+        Assert.assertNull(meta(router, "/a%20b"));
+        Assert.assertEquals(params("name", "中文.txt"), router.match("/file/%E4%B8%AD%E6%96%87.txt").getPathParameters());
+        Assert.assertEquals(params("name", "a+b"), router.match("/file/a+b").getPathParameters());
+    }
+
+    @Test
+    public void testNoMatch() {
+        Assert.assertNull(CmdRouter.EMPTY.match("/a"));
+        Assert.assertNull(CmdRouter.EMPTY.match(null));
+        Assert.assertEquals(0, CmdRouter.EMPTY.size());
+    }
+
+    @Test
+    public void testIllegalPatterns() {
+        String[] patterns = {
+                "user", "{id}", "/a/{", "/a/}", "/a/{}", "/a/{id", "/a/x{id}", "/a/{id}x", "/a/{b/{c}",
+                "/a/{b}}", "/a*", "/a/*/b", "*.", "*./a", "*.*"
+        };
+        for (String pattern : patterns) {
+            try {
+                CmdRouter.builder().add(pattern, A);
+                Assert.fail(pattern);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains(pattern));
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBuiltRouterCannotChange() {
+        CmdRouter.Builder builder = CmdRouter.builder();
+        builder.build();
+        builder.add("/a", A);
+    }
+}
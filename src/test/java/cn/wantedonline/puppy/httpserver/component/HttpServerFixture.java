@@ -0,0 +1,143 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.component;
+
+import cn.wantedonline.puppy.Bootstrap;
+import cn.wantedonline.puppy.httpserver.common.HttpServerConfig;
+import cn.wantedonline.puppy.spring.BeanUtil;
+import org.junit.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * <pre>
+ *     服务器测试的公共部分：启动/停止服务器，通过原始socket发送请求、读取响应
+ *     所有服务器测试共用serverTestContext.xml和server-test.properties，
+ *     每个测试类只在自己的properties文件里写需要覆盖的配置(至少要有listen_port)
+ *     SpringBootstrap每个JVM只能加载一次，pom中surefire配置了每个测试类使用单独的JVM
+ * </pre>
+ */
+public final class HttpServerFixture {
+    public static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private HttpServerFixture() {}
+
+    /**
+     * @param properties classpath下该测试类自己的配置文件
+     */
+    public static void start(String properties) {
+        System.setProperty("puppy.test.properties", properties);
+        Bootstrap.main(new String[0], "classpath:serverTestContext.xml");
+    }
+
+    public static void stop() {
+        Bootstrap bootstrap = BeanUtil.getTypedBean("bootstrap");
+        bootstrap.stopServer();
+    }
+
+    /**
+     * @param receiveBufferSize 大于0时设置接收缓冲区大小
+     */
+    public static Socket connect(int receiveBufferSize) throws IOException {
+        Socket socket = new Socket();
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        socket.connect(new InetSocketAddress("127.0.0.1", BeanUtil.getTypedBean(HttpServerConfig.class).getListenPort()));
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    /**
+     * 发送没有请求体的keep-alive GET请求
+     */
+    public static void get(Socket socket, String uri) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + uri + " HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: keep-alive\r\n\r\n").getBytes(ASCII));
+        out.flush();
+    }
+
+    /**
+     * 读取状态行和响应头，不读响应体
+     */
+    public static ResponseHead readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            Assert.assertTrue("connection closed before response", b >= 0);
+            buf.write(b);
+            matched = (b == '\r' || b == '\n') ? matched + 1 : 0;
+        }
+        return new ResponseHead(new String(buf.toByteArray(), ASCII));
+    }
+
+    /**
+     * 读取length字节的响应体
+     */
+    public static String readBody(InputStream in, long length) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (long i = 0; i < length; i++) {
+            int b = in.read();
+            Assert.assertTrue("connection closed before response body", b >= 0);
+            buf.write(b);
+        }
+        return new String(buf.toByteArray(), ASCII);
+    }
+
+    public static final class ResponseHead {
+        private final String text;
+        private final int status;
+        private final long contentLength;
+
+        private ResponseHead(String text) {
+            this.text = text;
+            String[] lines = text.split("\r\n");
+            Assert.assertTrue(text, lines[0].startsWith("HTTP/1.1 "));
+            this.status = Integer.parseInt(lines[0].substring(9, 12));
+            long length = -1;
+            for (String line : lines) {
+                if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    length = Long.parseLong(line.substring(15).trim());
+                }
+            }
+            this.contentLength = length;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * 没有Content-Length时返回-1
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
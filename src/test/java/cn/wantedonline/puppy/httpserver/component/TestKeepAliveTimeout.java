@@ -0,0 +1,123 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.component;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+
+/**
+ * 请求处理时间超过keepAliveTimeout时连接不能被空闲检测关闭，
+ * keepAliveTimeout=1秒，见keepalive-test.properties
+ */
+public class TestKeepAliveTimeout {
+    private static final int FILE_SIZE = 32 * 1024 * 1024;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        File dir = new File("target/keepalive-download");
+        dir.mkdirs();
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "big.bin"), "rw");
+        try {
+            file.setLength(FILE_SIZE);
+        } finally {
+            file.close();
+        }
+        HttpServerFixture.start("keepalive-test.properties");
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        HttpServerFixture.stop();
+        new File("target/keepalive-download/big.bin").delete();
+    }
+
+    @Test(timeout = 30000)
+    public void testOffloadedCmdOutlastsTimeout() throws IOException {
+        Socket socket = HttpServerFixture.connect(0);
+        try {
+            long begin = System.currentTimeMillis();
+            long length = request(socket, "/slow/sleep?millis=2500");
+            Assert.assertTrue(System.currentTimeMillis() - begin >= 2500);
+            Assert.assertEquals(length, drain(socket.getInputStream(), length, 0));
+            //响应写完后连接仍然可以继续使用
+            length = request(socket, "/slow/sleep?millis=0");
+            Assert.assertEquals(length, drain(socket.getInputStream(), length, 0));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testSendfileOutlastsTimeout() throws IOException {
+        Socket socket = HttpServerFixture.connect(16 * 1024);
+        try {
+            long begin = System.currentTimeMillis();
+            long length = request(socket, "/download/download?file=big.bin");
+            Assert.assertEquals(FILE_SIZE, length);
+            //限速读取，整个文件至少用3秒
+            Assert.assertEquals(length, drain(socket.getInputStream(), length, 3000));
+            Assert.assertTrue(System.currentTimeMillis() - begin >= 3000);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * 发送请求并读完响应头，返回Content-Length
+     */
+    private long request(Socket socket, String uri) throws IOException {
+        HttpServerFixture.get(socket, uri);
+        HttpServerFixture.ResponseHead head = HttpServerFixture.readHead(socket.getInputStream());
+        Assert.assertEquals(head.toString(), 200, head.getStatus());
+        Assert.assertTrue("no Content-Length: " + head, head.getContentLength() >= 0);
+        return head.getContentLength();
+    }
+
+    /**
+     * 读取length字节的响应体，minMillis大于0时按该时长限速读取，返回实际读到的字节数
+     */
+    private long drain(InputStream in, long length, long minMillis) throws IOException {
+        byte[] buf = new byte[8192];
+        long begin = System.currentTimeMillis();
+        long received = 0;
+        while (received < length) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, length - received));
+            if (n < 0) {
+                break;
+            }
+            received += n;
+            long wait = begin + minMillis * received / length - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return received;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package cn.wantedonline.puppy.httpserver.component;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * 分块上传到StreamingCmd时同样受maxUploadSize限制，
+ * maxUploadSize=4096，见streaming-test.properties
+ */
+public class TestStreamingUpload {
+    private static final int MAX_UPLOAD_SIZE = 4096;
+
+    @BeforeClass
+    public static void startServer() {
+        HttpServerFixture.start("streaming-test.properties");
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        HttpServerFixture.stop();
+    }
+
+    @Test(timeout = 30000)
+    public void testStreamingCmdReceivesBody() throws IOException {
+        Socket socket = HttpServerFixture.connect(0);
+        try {
+            sendChunked(socket, MAX_UPLOAD_SIZE, 1000);
+            HttpServerFixture.ResponseHead head = HttpServerFixture.readHead(socket.getInputStream());
+            Assert.assertEquals(head.toString(), 200, head.getStatus());
+            Assert.assertEquals(String.valueOf(MAX_UPLOAD_SIZE), HttpServerFixture.readBody(socket.getInputStream(), head.getContentLength()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testStreamingCmdBodyTooLarge() throws IOException {
+        Socket socket = HttpServerFixture.connect(0);
+        try {
+            sendChunked(socket, MAX_UPLOAD_SIZE * 4, 1000);
+            HttpServerFixture.ResponseHead head = HttpServerFixture.readHead(socket.getInputStream());
+            Assert.assertEquals(head.toString(), 413, head.getStatus());
+            HttpServerFixture.readBody(socket.getInputStream(), Math.max(0, head.getContentLength()));
+            //响应写完后关闭连接
+            Assert.assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * 以chunked编码发送length字节的请求体，每块chunkSize字节
+     */
+    private void sendChunked(Socket socket, int length, int chunkSize) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("POST /streamCount/count HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: keep-alive\r\n"
+                + "Content-Type: application/octet-stream\r\nTransfer-Encoding: chunked\r\n\r\n").getBytes(HttpServerFixture.ASCII));
+        byte[] chunk = new byte[chunkSize];
+        for (int sent = 0; sent < length; sent += chunkSize) {
+            int n = Math.min(chunkSize, length - sent);
+            out.write((Integer.toHexString(n) + "\r\n").getBytes(HttpServerFixture.ASCII));
+            out.write(chunk, 0, n);
+            out.write("\r\n".getBytes(HttpServerFixture.ASCII));
+        }
+        out.write("0\r\n\r\n".getBytes(HttpServerFixture.ASCII));
+        out.flush();
+    }
+}
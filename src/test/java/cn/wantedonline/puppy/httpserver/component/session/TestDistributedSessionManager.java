@@ -0,0 +1,131 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 两个DistributedSessionManager共用一个LocalSessionStore，模拟两个节点
+ */
+public class TestDistributedSessionManager {
+
+    private DistributedSessionManager node(LocalSessionStore store, String route) {
+        DistributedSessionManager manager = new DistributedSessionManager(store);
+        manager.setJvmRoute(route);
+        manager.setNearCacheMillis(0);
+        return manager;
+    }
+
+    @Test
+    public void testWriteBehindAndNearCache() throws Exception {
+        LocalSessionStore store = new LocalSessionStore();
+        DistributedSessionManager a = node(store, "a");
+        DistributedSessionManager b = node(store, "b");
+
+        Session session = a.createSession(null);
+        Assert.assertTrue(session.getId().endsWith(".a"));
+        session.setAttribute("user", "puppy");
+        Assert.assertNull(b.findSession(session.getId()));
+
+        a.flush();
+        Assert.assertEquals(1, store.size());
+        Session remote = b.findSession(session.getId());
+        Assert.assertEquals("puppy", remote.getAttribute("user"));
+        Assert.assertEquals(2, b.getRemoteLoads()); // including the miss before the flush
+
+        // unchanged: only the version is checked
+        Assert.assertSame(remote, b.findSession(session.getId()));
+        Assert.assertEquals(1, b.getRevalidations());
+
+        // changed on the owner: the stale copy is reloaded
+        session.setAttribute("user", "wangcheng");
+        session.removeAttribute("missing");
+        a.flush();
+        Assert.assertEquals("wangcheng", b.findSession(session.getId()).getAttribute("user"));
+        Assert.assertEquals(1, b.getStaleReloads());
+
+        // the owner checks the version of its own copy as well
+        Assert.assertSame(session, a.findSession(session.getId()));
+        Assert.assertEquals(1, a.getRevalidations());
+    }
+
+    @Test
+    public void testConflict() throws Exception {
+        LocalSessionStore store = new LocalSessionStore();
+        DistributedSessionManager a = node(store, "a");
+        DistributedSessionManager b = node(store, "b");
+        a.setNearCacheMillis(60000);
+
+        Session session = a.createSession(null);
+        session.setAttribute("k", 1);
+        session.setAttribute("gone", 1);
+        a.flush();
+        Session remote = b.findSession(session.getId());
+        remote.setAttribute("k", 2);
+        remote.setAttribute("other", "b");
+        remote.removeAttribute("gone");
+        b.flush();
+
+        // the owner's write is based on an old version: rebased on the current data and written again
+        session.setAttribute("k", 3);
+        a.flush();
+        Assert.assertEquals(1, a.getConflicts());
+        Assert.assertSame(session, a.findSession(session.getId()));
+        Assert.assertEquals(3, session.getAttribute("k"));
+        Assert.assertEquals("b", session.getAttribute("other"));
+        Assert.assertNull(session.getAttribute("gone"));
+        remote = b.findSession(session.getId());
+        Assert.assertEquals(3, remote.getAttribute("k"));
+        Assert.assertEquals("b", remote.getAttribute("other"));
+        Assert.assertNull(remote.getAttribute("gone"));
+
+        // removed by another node: the owner does not bring it back
+        b.findSession(session.getId()).expire();
+        b.flush();
+        Assert.assertEquals(0, store.size());
+        a.findSession(session.getId()).setAttribute("k", 4);
+        a.flush();
+        Assert.assertEquals(2, a.getConflicts());
+        Assert.assertEquals(0, store.size());
+        Assert.assertNull(a.findSession(session.getId()));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        LocalSessionStore store = new LocalSessionStore();
+        DistributedSessionManager a = node(store, "a");
+        DistributedSessionManager b = node(store, "b");
+
+        Session session = a.createSession(null);
+        session.setAttribute("k", 1);
+        a.flush();
+        Assert.assertNotNull(b.findSession(session.getId()));
+
+        session.expire();
+        a.flush();
+        Assert.assertEquals(0, store.size());
+        Assert.assertNull(b.findSession(session.getId()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonSerializableAttribute() {
+        DistributedSessionManager a = node(new LocalSessionStore(), "a");
+        a.createSession(null).setAttribute("k", new Object());
+    }
+}
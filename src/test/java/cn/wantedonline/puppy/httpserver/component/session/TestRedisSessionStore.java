@@ -0,0 +1,382 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RedisSessionStore连到进程内的RESP服务端，服务端只实现用到的命令，EVALSHA按保存脚本的语义执行
+ */
+public class TestRedisSessionStore {
+
+    private FakeRedis redis;
+    private RedisSessionStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        redis = new FakeRedis();
+        store = new RedisSessionStore("127.0.0.1", redis.getPort(), 2000, 2, "test:");
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        redis.close();
+    }
+
+    private static SessionData delta(String id, long version, String name, String value) {
+        SessionData delta = new SessionData(id);
+        delta.setVersion(version);
+        delta.setCreationTime(1000);
+        delta.setLastAccessedTime(2000);
+        delta.setMaxInactiveInterval(1800);
+        if (value == null) {
+            delta.removeAttribute(name);
+        } else {
+            delta.putAttribute(name, value.getBytes(CharsetUtil.UTF_8));
+        }
+        return delta;
+    }
+
+    private static String attribute(SessionData data, String name) {
+        byte[] value = data.getAttributes().get(name);
+        return value == null ? null : new String(value, CharsetUtil.UTF_8);
+    }
+
+    @Test
+    public void testSaveLoadAndVersion() throws Exception {
+        Assert.assertNull(store.load("s1"));
+        Assert.assertEquals(-1, store.version("s1"));
+
+        // the script is not cached yet: NOSCRIPT, SCRIPT LOAD, then the retry
+        Assert.assertArrayEquals(new long[]{1}, store.save(Collections.singletonList(delta("s1", 0, "user", "王成"))));
+        Assert.assertEquals(1, redis.scriptLoads.get());
+        Assert.assertEquals(1, store.version("s1"));
+        SessionData data = store.load("s1");
+        Assert.assertEquals(1, data.getVersion());
+        Assert.assertEquals(1000, data.getCreationTime());
+        Assert.assertEquals(2000, data.getLastAccessedTime());
+        Assert.assertEquals(1800, data.getMaxInactiveInterval());
+        Assert.assertEquals("王成", attribute(data, "user"));
+
+        Assert.assertArrayEquals(new long[]{2}, store.save(Arrays.asList(delta("s1", 1, "user", null))));
+        Assert.assertNull(attribute(store.load("s1"), "user"));
+        Assert.assertEquals(1, redis.scriptLoads.get());
+
+        SessionData invalidated = new SessionData("s1");
+        invalidated.setInvalidated(true);
+        Assert.assertArrayEquals(new long[]{-1}, store.save(Arrays.asList(invalidated)));
+        Assert.assertNull(store.load("s1"));
+    }
+
+    @Test
+    public void testConflict() throws Exception {
+        store.save(Arrays.asList(delta("s1", 0, "k", "1")));
+        store.save(Arrays.asList(delta("s1", 1, "k", "2")));
+
+        // the first is based on an old version, the second would bring back a session that does not exist
+        long[] versions = store.save(Arrays.asList(delta("s1", 1, "k", "3"), delta("s2", 5, "k", "3")));
+        Assert.assertArrayEquals(new long[]{SessionStore.CONFLICT, SessionStore.CONFLICT}, versions);
+        Assert.assertEquals("2", attribute(store.load("s1"), "k"));
+        Assert.assertEquals(2, store.version("s1"));
+        Assert.assertNull(store.load("s2"));
+    }
+
+    @Test
+    public void testNoScriptReload() throws Exception {
+        store.save(Arrays.asList(delta("s1", 0, "k", "1")));
+        Assert.assertEquals(1, redis.scriptLoads.get());
+
+        // redis restarted and lost its script cache, the invalidation in the same batch is not run twice
+        redis.flushScripts();
+        SessionData invalidated = new SessionData("gone");
+        invalidated.setInvalidated(true);
+        long[] versions = store.save(Arrays.asList(delta("s1", 1, "k", "2"), invalidated, delta("s2", 0, "k", "1")));
+        Assert.assertArrayEquals(new long[]{2, -1, 1}, versions);
+        Assert.assertEquals(2, redis.scriptLoads.get());
+        Assert.assertEquals(1, redis.deletes.get());
+        Assert.assertEquals("2", attribute(store.load("s1"), "k"));
+        Assert.assertEquals("1", attribute(store.load("s2"), "k"));
+    }
+
+    @Test
+    public void testPartialError() throws Exception {
+        redis.failingKeys.add("test:s2");
+        long[] versions = store.save(Arrays.asList(delta("s1", 0, "k", "1"), delta("s2", 0, "k", "1"), delta("s3", 0, "k", "1")));
+        Assert.assertArrayEquals(new long[]{1, SessionStore.FAILED, 1}, versions);
+
+        // the connection is still usable after the error
+        redis.failingKeys.clear();
+        Assert.assertNotNull(store.load("s1"));
+        Assert.assertNull(store.load("s2"));
+        Assert.assertNotNull(store.load("s3"));
+        Assert.assertArrayEquals(new long[]{1}, store.save(Arrays.asList(delta("s2", 0, "k", "1"))));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCommandError() throws Exception {
+        redis.failingKeys.add("test:s1");
+        store.load("s1");
+    }
+
+    private static final class ErrorReply {
+        private final String message;
+
+        private ErrorReply(String message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * 只实现RedisSessionStore用到的命令，failingKeys中的key一律返回错误
+     */
+    private static final class FakeRedis implements Runnable {
+        private final ServerSocket server;
+        private final Map<String, Map<String, byte[]>> db = new HashMap<String, Map<String, byte[]>>();
+        private final Set<String> scripts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final Set<String> failingKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final List<Socket> clients = Collections.synchronizedList(new ArrayList<Socket>());
+        private final AtomicInteger scriptLoads = new AtomicInteger();
+        private final AtomicInteger deletes = new AtomicInteger();
+
+        private FakeRedis() throws IOException {
+            server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread acceptor = new Thread(this, "fake-redis");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private int getPort() {
+            return server.getLocalPort();
+        }
+
+        private void flushScripts() {
+            scripts.clear();
+        }
+
+        @Override
+        public void run() {
+            while (!server.isClosed()) {
+                final Socket client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                clients.add(client);
+                Thread handler = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                }, "fake-redis-client");
+                handler.setDaemon(true);
+                handler.start();
+            }
+        }
+
+        private void close() {
+            try {
+                server.close();
+                synchronized (clients) {
+                    for (Socket client : clients) {
+                        client.close();
+                    }
+                }
+            } catch (IOException ignore) {
+            }
+        }
+
+        private void serve(Socket client) {
+            try {
+                InputStream in = new BufferedInputStream(client.getInputStream());
+                OutputStream out = new BufferedOutputStream(client.getOutputStream());
+                List<byte[]> command;
+                while ((command = readCommand(in)) != null) {
+                    reply(out, execute(command));
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException ignore) {
+            }
+        }
+
+        private synchronized Object execute(List<byte[]> command) {
+            String name = string(command.get(0)).toUpperCase();
+            if ("SCRIPT".equals(name)) {
+                scriptLoads.incrementAndGet();
+                String sha1 = sha1Hex(command.get(2));
+                scripts.add(sha1);
+                return sha1.getBytes(CharsetUtil.US_ASCII);
+            }
+            String key = string(command.get(name.equals("EVALSHA") ? 3 : 1));
+            if (failingKeys.contains(key)) {
+                return new ErrorReply("ERR injected failure");
+            }
+            Map<String, byte[]> hash = db.get(key);
+            if ("HGETALL".equals(name)) {
+                List<byte[]> fields = new ArrayList<byte[]>();
+                if (hash != null) {
+                    for (Map.Entry<String, byte[]> e : hash.entrySet()) {
+                        fields.add(e.getKey().getBytes(CharsetUtil.UTF_8));
+                        fields.add(e.getValue());
+                    }
+                }
+                return fields;
+            }
+            if ("HGET".equals(name)) {
+                return hash == null ? null : hash.get(string(command.get(2)));
+            }
+            if ("DEL".equals(name)) {
+                deletes.incrementAndGet();
+                return db.remove(key) == null ? 0L : 1L;
+            }
+            if ("EVALSHA".equals(name)) {
+                if (!scripts.contains(string(command.get(1)))) {
+                    return new ErrorReply("NOSCRIPT No matching script. Please use EVAL.");
+                }
+                return save(key, hash, command.subList(4, command.size()));
+            }
+            return new ErrorReply("ERR unknown command '" + name + "'");
+        }
+
+        /**
+         * 与SAVE_SCRIPT相同: 比较#v，删除字段，写入字段，版本号加一
+         */
+        private Object save(String key, Map<String, byte[]> hash, List<byte[]> argv) {
+            byte[] current = hash == null ? null : hash.get("#v");
+            if (!(current == null ? "0" : string(current)).equals(string(argv.get(0)))) {
+                return SessionStore.CONFLICT;
+            }
+            if (hash == null) {
+                hash = new LinkedHashMap<String, byte[]>();
+                db.put(key, hash);
+            }
+            int removed = Integer.parseInt(string(argv.get(2)));
+            for (int i = 3; i < 3 + removed; i++) {
+                hash.remove(string(argv.get(i)));
+            }
+            for (int i = 3 + removed; i + 1 < argv.size(); i += 2) {
+                hash.put(string(argv.get(i)), argv.get(i + 1));
+            }
+            long version = current == null ? 1 : Long.parseLong(string(current)) + 1;
+            hash.put("#v", String.valueOf(version).getBytes(CharsetUtil.US_ASCII));
+            return version;
+        }
+
+        private static List<byte[]> readCommand(InputStream in) throws IOException {
+            String header = readLine(in);
+            if (header == null) {
+                return null;
+            }
+            int count = Integer.parseInt(header.substring(1));
+            List<byte[]> command = new ArrayList<byte[]>(count);
+            for (int i = 0; i < count; i++) {
+                int length = Integer.parseInt(readLine(in).substring(1));
+                byte[] arg = new byte[length + 2];
+                int read = 0;
+                while (read < arg.length) {
+                    int n = in.read(arg, read, arg.length - read);
+                    if (n < 0) {
+                        return null;
+                    }
+                    read += n;
+                }
+                command.add(Arrays.copyOf(arg, length));
+            }
+            return command;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return null;
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return string(line.toByteArray());
+        }
+
+        private static void reply(OutputStream out, Object reply) throws IOException {
+            if (reply == null) {
+                out.write("$-1\r\n".getBytes(CharsetUtil.US_ASCII));
+            } else if (reply instanceof ErrorReply) {
+                out.write(("-" + ((ErrorReply) reply).message + "\r\n").getBytes(CharsetUtil.UTF_8));
+            } else if (reply instanceof Long) {
+                out.write((":" + reply + "\r\n").getBytes(CharsetUtil.US_ASCII));
+            } else if (reply instanceof byte[]) {
+                byte[] bulk = (byte[]) reply;
+                out.write(("$" + bulk.length + "\r\n").getBytes(CharsetUtil.US_ASCII));
+                out.write(bulk);
+                out.write("\r\n".getBytes(CharsetUtil.US_ASCII));
+            } else {
+                List<?> items = (List<?>) reply;
+                out.write(("*" + items.size() + "\r\n").getBytes(CharsetUtil.US_ASCII));
+                for (Object item : items) {
+                    reply(out, item);
+                }
+            }
+        }
+
+        private static String string(byte[] bytes) {
+            return new String(bytes, CharsetUtil.UTF_8);
+        }
+
+        private static String sha1Hex(byte[] script) {
+            try {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : MessageDigest.getInstance("SHA-1").digest(script)) {
+                    hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                }
+                return hex.toString();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
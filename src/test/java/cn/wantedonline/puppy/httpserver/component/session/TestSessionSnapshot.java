@@ -0,0 +1,126 @@
+/*
+ * Copyright [2016-2026] wangcheng(wantedonline@outlook.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package cn.wantedonline.puppy.httpserver.component.session;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestSessionSnapshot {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DefaultHttpSession session(String id, int maxInactiveInterval) {
+        DefaultHttpSession session = new DefaultHttpSession();
+        session.setValid(true);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setMaxInactiveInterval(maxInactiveInterval);
+        session.setId(id);
+        return session;
+    }
+
+    @Test
+    public void testWriteAndRestore() throws Exception {
+        File file = new File(folder.getRoot(), "SESSIONS.snap");
+        SessionSnapshot.Writer writer = new SessionSnapshot.Writer(file);
+        DefaultHttpSession a = session("a", 1800);
+        a.setAttribute("user", "王成");
+        a.setAttribute("date", new Date(0));
+        a.setAttribute("skipped", new Object());
+        writer.write(a);
+        DefaultHttpSession big = session("big", -1);
+        big.setAttribute("data", new byte[1024 * 1024]);
+        writer.write(big);
+        DefaultHttpSession shortLived = session("short", 1);
+        writer.write(shortLived);
+        DefaultHttpSession expired = session("expired", 1);
+        expired.restoreAccessTime(System.currentTimeMillis() - 2000);
+        writer.write(expired); // already expired, not written
+        writer.commit();
+
+        SessionSnapshot.Reader reader = SessionSnapshot.Reader.open(file);
+        Assert.assertEquals(3, reader.getCount());
+        final Map<String, Integer> offsets = new HashMap<String, Integer>();
+        reader.scan(new SessionSnapshot.Visitor() {
+            @Override
+            public void visit(String id, int offset) {
+                offsets.put(id, offset);
+            }
+        });
+        Assert.assertEquals(3, offsets.size());
+        long now = System.currentTimeMillis();
+        Assert.assertFalse(reader.isExpired(offsets.get("a"), now));
+        Assert.assertFalse(reader.isExpired(offsets.get("big"), now));
+        Assert.assertFalse(reader.isExpired(offsets.get("short"), now));
+        Assert.assertTrue(reader.isExpired(offsets.get("short"), now + 1000));
+        Assert.assertEquals(shortLived.getThisAccessedTime() + 1000, reader.deadline(offsets.get("short")));
+        Assert.assertEquals(0, reader.deadline(offsets.get("big")));
+
+        DefaultHttpSession restored = new DefaultHttpSession();
+        reader.restore(offsets.get("a"), restored);
+        Assert.assertEquals("a", restored.getId());
+        Assert.assertEquals(a.getCreationTime(), restored.getCreationTime());
+        Assert.assertEquals(a.getThisAccessedTime(), restored.getLastAccessedTime());
+        Assert.assertEquals("王成", restored.getAttribute("user"));
+        Assert.assertEquals(new Date(0), restored.getAttribute("date"));
+        Assert.assertNull(restored.getAttribute("skipped"));
+
+        // records not restored are copied as they are
+        File next = new File(folder.getRoot(), "NEXT.snap");
+        SessionSnapshot.Writer copy = new SessionSnapshot.Writer(next);
+        copy.write(reader.record(offsets.get("big")));
+        copy.commit();
+        SessionSnapshot.Reader nextReader = SessionSnapshot.Reader.open(next);
+        final List<Integer> nextOffsets = new ArrayList<Integer>();
+        nextReader.scan(new SessionSnapshot.Visitor() {
+            @Override
+            public void visit(String id, int offset) {
+                nextOffsets.add(offset);
+            }
+        });
+        DefaultHttpSession restoredBig = new DefaultHttpSession();
+        nextReader.restore(nextOffsets.get(0), restoredBig);
+        Assert.assertEquals("big", restoredBig.getId());
+        Assert.assertEquals(1024 * 1024, ((byte[]) restoredBig.getAttribute("data")).length);
+    }
+
+    @Test
+    public void testCommitReplacesOldSnapshot() throws Exception {
+        File file = new File(folder.getRoot(), "SESSIONS.snap");
+        SessionSnapshot.Writer writer = new SessionSnapshot.Writer(file);
+        writer.write(session("a", 1800));
+        writer.commit();
+        Assert.assertEquals(1, SessionSnapshot.Reader.open(file).getCount());
+
+        writer = new SessionSnapshot.Writer(file);
+        writer.write(session("a", 1800));
+        writer.write(session("b", 1800));
+        writer.commit();
+        Assert.assertEquals(2, SessionSnapshot.Reader.open(file).getCount());
+        Assert.assertArrayEquals(new String[]{"SESSIONS.snap"}, folder.getRoot().list());
+    }
+}